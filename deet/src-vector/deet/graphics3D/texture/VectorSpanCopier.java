@@ -0,0 +1,150 @@
+package deet.graphics3D.texture;
+
+import jdk.incubator.vector.*;
+
+/**
+    A SpanCopier built on the Vector API (jdk.incubator.vector).
+    The texture locations of a whole run of pixels are computed
+    at once in vector lanes (the location of each lane is the
+    span's start plus the lane number times its step), turned
+    into buffer indices, and the texels are gathered with the
+    indices. With 512-bit vectors, a whole INTERP_SIZE (16
+    pixel) span fits in one vector. The pixels left over at the
+    end of a span are copied one at a time (masked gathers
+    aren't compiled to vector instructions).
+    <p>This class is kept in its own source root (src-vector),
+    so the rest of the engine builds on any JDK. Compile it after
+    src, into the same output directory:
+    <pre>
+    javac --add-modules jdk.incubator.vector -cp classes
+        -d classes src-vector/deet/graphics3D/texture/*.java
+    </pre>
+    and run with --add-modules jdk.incubator.vector. Texture
+    loads it by name only if the module is present (see
+    Texture.setVectorSpans()); otherwise, or if it wasn't
+    compiled, textures use their scalar span loops.
+*/
+final class VectorSpanCopier implements SpanCopier {
+
+    // at least 8 lanes, so the byte vectors are at least 64 bits
+    private static final VectorSpecies<Integer> INTS =
+        (IntVector.SPECIES_PREFERRED.length() >= 8)?
+        IntVector.SPECIES_PREFERRED:IntVector.SPECIES_256;
+    private static final int LANES = INTS.length();
+    private static final VectorSpecies<Byte> BYTES =
+        VectorSpecies.of(byte.class,
+        VectorShape.forBitSize(LANES * Byte.SIZE));
+
+    // 0, 1, 2, ... LANES-1
+    private static final IntVector LANE_NUMBERS =
+        IntVector.zero(INTS).addIndex(1);
+
+
+    /**
+        Gets the SpanList's array for gathering, so it isn't
+        shared between threads.
+    */
+    private static int[] getIndexMap(SpanList spans) {
+        if (spans.indexMap == null) {
+            spans.indexMap = new int[LANES];
+        }
+        return spans.indexMap;
+    }
+
+
+    /**
+        Calculates the buffer indices of LANES pixels starting
+        at (x,y), and stores them in the index map.
+    */
+    private static void setIndices(int[] indexMap, int x, int y,
+        IntVector stepX, IntVector stepY, int shift, int xMask,
+        int yMask, int rowSize)
+    {
+        IntVector tx = stepX.add(x).lanewise(VectorOperators.ASHR,
+            shift).and(xMask);
+        IntVector ty = stepY.add(y).lanewise(VectorOperators.ASHR,
+            shift).and(yMask);
+        ty.mul(rowSize).add(tx).intoArray(indexMap, 0);
+    }
+
+
+    public void copy(int[] buffer, int xMask, int yMask,
+        int rowSize, SpanList spans, int shift, int[] dest,
+        int offset)
+    {
+        int[] indexMap = getIndexMap(spans);
+        for (int i=0; i<spans.numSpans; i++) {
+            int x = spans.x[i];
+            int y = spans.y[i];
+            int dx = spans.dx[i];
+            int dy = spans.dy[i];
+            int length = spans.length[i];
+            IntVector stepX = LANE_NUMBERS.mul(dx);
+            IntVector stepY = LANE_NUMBERS.mul(dy);
+            int vectorLength = length - length % LANES;
+            for (int j=0; j<vectorLength; j+=LANES) {
+                setIndices(indexMap, x, y, stepX, stepY, shift,
+                    xMask, yMask, rowSize);
+                IntVector.fromArray(INTS, buffer, 0,
+                    indexMap, 0).intoArray(dest, offset);
+                offset+=LANES;
+                x+=dx * LANES;
+                y+=dy * LANES;
+            }
+            for (int j=vectorLength; j<length; j++) {
+                dest[offset++] = buffer[((x >> shift) & xMask) +
+                    ((y >> shift) & yMask) * rowSize];
+                x+=dx;
+                y+=dy;
+            }
+        }
+    }
+
+
+    public void copy(byte[] buffer, int[] table, int tableOffset,
+        int xMask, int yMask, int rowSize, SpanList spans,
+        int shift, int[] dest, int offset)
+    {
+        int[] indexMap = getIndexMap(spans);
+        for (int i=0; i<spans.numSpans; i++) {
+            int x = spans.x[i];
+            int y = spans.y[i];
+            int dx = spans.dx[i];
+            int dy = spans.dy[i];
+            int length = spans.length[i];
+            IntVector stepX = LANE_NUMBERS.mul(dx);
+            IntVector stepY = LANE_NUMBERS.mul(dy);
+            int vectorLength = length - length % LANES;
+            for (int j=0; j<vectorLength; j+=LANES) {
+                setIndices(indexMap, x, y, stepX, stepY, shift,
+                    xMask, yMask, rowSize);
+                setTableIndices(indexMap, ByteVector.fromArray(
+                    BYTES, buffer, 0, indexMap, 0), tableOffset);
+                IntVector.fromArray(INTS, table, 0,
+                    indexMap, 0).intoArray(dest, offset);
+                offset+=LANES;
+                x+=dx * LANES;
+                y+=dy * LANES;
+            }
+            for (int j=vectorLength; j<length; j++) {
+                dest[offset++] = table[tableOffset +
+                    (buffer[((x >> shift) & xMask) +
+                    ((y >> shift) & yMask) * rowSize] & 0xff)];
+                x+=dx;
+                y+=dy;
+            }
+        }
+    }
+
+
+    /**
+        Stores the shade table indices of gathered palette
+        indices in the index map.
+    */
+    private static void setTableIndices(int[] indexMap,
+        ByteVector texels, int tableOffset)
+    {
+        ((IntVector)texels.castShape(INTS, 0)).and(0xff).add(
+            tableOffset).intoArray(indexMap, 0);
+    }
+}
@@ -9,6 +9,7 @@ import deet.graphics3D.*;
 import deet.graphics3D.texture.*;
 import deet.math3D.*;
 import deet.object.GameObjectManager;
+import deet.util.Profiler;
 
 /**
     The BSPRenderer class is a renderer capable of drawing
@@ -33,6 +34,10 @@ public class BSPRenderer extends ZBufferedRenderer
     protected Graphics2D currentGraphics2D;
     protected boolean viewNotFilledFirstTime;
     protected int polygonCount;
+    protected PortalCuller portalCuller;
+    protected BSPTreeVisibility visibility;
+    protected boolean surfacePrefetching;
+    protected SurfacePrefetcher surfacePrefetcher;
 
     /**
         Creates a new BSP renderer with the specified camera
@@ -58,6 +63,73 @@ public class BSPRenderer extends ZBufferedRenderer
     }
 
 
+    /**
+        Sets whether the BSP tree is traversed using portals.
+        When on, only the leaves visible through the portals of
+        the camera's leaf are traversed. The tree must be built
+        with portals (see BSPTreeBuilderWithPortals); otherwise,
+        every leaf is traversed.
+    */
+    public void setPortalCulling(boolean portalCulling) {
+        if (portalCulling && portalCuller == null) {
+            portalCuller = new PortalCuller();
+            visibility = new BSPTreeVisibility();
+        }
+        else if (!portalCulling) {
+            portalCuller = null;
+            visibility = null;
+        }
+        traverser.setVisibility(visibility);
+    }
+
+
+    /**
+        Checks if portal culling is on.
+    */
+    public boolean isPortalCulling() {
+        return (portalCuller != null);
+    }
+
+
+    /**
+        Sets whether the surfaces around the camera are built in
+        the background before they are visible. This only has an
+        effect if the SurfaceCache has build threads.
+    */
+    public void setSurfacePrefetching(boolean surfacePrefetching) {
+        this.surfacePrefetching = surfacePrefetching;
+        if (!surfacePrefetching) {
+            surfacePrefetcher = null;
+        }
+    }
+
+
+    /**
+        Checks if surface prefetching is on.
+    */
+    public boolean isSurfacePrefetching() {
+        return surfacePrefetching;
+    }
+
+
+    /**
+        Gets the number of BSP polygons visited in the last
+        frame.
+    */
+    public int getNumPolygonsTraversed() {
+        return traverser.getPolygonCount();
+    }
+
+
+    /**
+        Gets the number of leaves visible through portals in the
+        last frame, or -1 if portal culling is off.
+    */
+    public int getNumLeavesVisible() {
+        return (visibility == null)?-1:visibility.getNumVisible();
+    }
+
+
     protected void init() {
         destPolygon = new TexturedPolygon3D();
         scanConverter = new SortedScanConverter(viewWindow);
@@ -82,6 +154,47 @@ public class BSPRenderer extends ZBufferedRenderer
     }
 
 
+    protected ZBufferedRenderer createBandRenderer() {
+        return new BSPRenderer(camera, viewWindow);
+    }
+
+
+    protected void startBandFrame(ZBufferedRenderer parent) {
+        super.startBandFrame(parent);
+        ((SortedScanConverter)scanConverter).clear();
+    }
+
+
+    protected boolean drawBandPolygon(Polygon3D source,
+        Polygon3D projected, boolean sorted)
+    {
+        ((SortedScanConverter)scanConverter).setSortedMode(sorted);
+        return super.drawBandPolygon(source, projected, sorted);
+    }
+
+
+    protected boolean isBandFilled() {
+        return ((SortedScanConverter)scanConverter).isFilled();
+    }
+
+
+    /**
+        Checks if the view is filled. In banded mode, the view is
+        filled if every band is filled.
+    */
+    protected boolean isFilled() {
+        if (bands == null) {
+            return ((SortedScanConverter)scanConverter).isFilled();
+        }
+        for (int i=0; i<bands.length; i++) {
+            if (!bands[i].isFilled()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+
     public void startFrame(Graphics2D g) {
         super.startFrame(g);
         ((SortedScanConverter)scanConverter).clear();
@@ -91,7 +204,7 @@ public class BSPRenderer extends ZBufferedRenderer
 
     public void endFrame(Graphics2D g) {
         super.endFrame(g);
-        if (!((SortedScanConverter)scanConverter).isFilled()) {
+        if (!isFilled()) {
             g.drawString("View not completely filled", 5,
                 viewWindow.getTopOffset() +
                 viewWindow.getHeight() - 5);
@@ -112,17 +225,78 @@ public class BSPRenderer extends ZBufferedRenderer
     /**
         Draws the visible polygons in a BSP tree based on
         the camera location. The polygons are drawn front-to-back.
+        Afterwards, the HierarchicalZBuffer is built so game
+        objects hidden behind the world can be skipped.
     */
     public void draw(Graphics2D g, BSPTree tree) {
-        ((SortedScanConverter)scanConverter).setSortedMode(true);
-        currentGraphics2D = g;
+        long startTime = Profiler.start();
+        if (surfacePrefetching) {
+            if (surfacePrefetcher == null ||
+                surfacePrefetcher.getTree() != tree)
+            {
+                surfacePrefetcher = new SurfacePrefetcher(tree);
+            }
+            surfacePrefetcher.prefetch(camera.getLocation(),
+                getSurfaceCache());
+        }
+        if (portalCuller != null) {
+            portalCuller.findVisibleLeaves(tree, camera, viewWindow,
+                visibility);
+        }
+        if (bands != null) {
+            drawBanded(tree);
+        }
+        else {
+            ((SortedScanConverter)scanConverter).setSortedMode(true);
+            currentGraphics2D = g;
+            traverser.traverse(tree, camera.getLocation());
+            ((SortedScanConverter)scanConverter).setSortedMode(
+                false);
+            buildHierarchicalZBuffer();
+        }
+        Profiler.end(Profiler.BSP_TRAVERSAL, startTime);
+    }
+
+
+    /**
+        Draws a BSP tree in banded mode. The bands fill up
+        a little behind the traversal, so the traversal may visit
+        a few more polygons than needed (those polygons draw
+        nothing). Game objects are only marked visible for the
+        leaves a single-threaded traversal would have visited.
+    */
+    protected void drawBanded(BSPTree tree) {
+        traverser.setDeferMarkVisible(true);
         traverser.traverse(tree, camera.getLocation());
-        ((SortedScanConverter)scanConverter).setSortedMode(false);
+
+        // find where a single-threaded traversal would've stopped
+        waitForBands();
+        int stopCount = 0;
+        for (int i=0; i<bands.length; i++) {
+            stopCount = Math.max(stopCount,
+                bands[i].getFilledSeq());
+        }
+        if (stopCount != RenderBand.NOT_FILLED) {
+            stopCount = (stopCount + FILLED_CHECK - 1) /
+                FILLED_CHECK * FILLED_CHECK;
+        }
+        traverser.markDeferredVisible(stopCount);
+        traverser.setDeferMarkVisible(false);
+        buildHierarchicalZBuffer();
     }
 
 
     // from the BSPTreeTraverseListener interface
     public boolean visitPolygon(BSPPolygon poly, boolean isBack) {
+        if (bands != null) {
+            int count = traverser.getPolygonCount();
+            drawBanded(poly, true, count);
+            if (count % FILLED_CHECK == 0) {
+                return !isFilled();
+            }
+            return true;
+        }
+
         SortedScanConverter scanConverter =
             (SortedScanConverter)this.scanConverter;
 
@@ -149,10 +323,10 @@ public class BSPRenderer extends ZBufferedRenderer
             (SortedScanConverter)this.scanConverter;
         TexturedPolygon3D poly = (TexturedPolygon3D)destPolygon;
         Texture texture = poly.getTexture();
-        ScanRenderer scanRenderer = (ScanRenderer)
-            bspScanRenderers.get(texture.getClass());
-        scanRenderer.setTexture(texture);
+        ScanRenderer scanRenderer =
+            getScanRenderer(bspScanRenderers, texture);
         Rectangle3D textureBounds = poly.getTextureBounds();
+        numPolygonsDrawn++;
 
         a.setToCrossProduct(textureBounds.getDirectionV(),
             textureBounds.getOrigin());
@@ -185,6 +359,7 @@ public class BSPRenderer extends ZBufferedRenderer
                     scanRenderer.render(offset, scan.left,
                         scan.right);
                     setScanDepth(offset, scan.right-scan.left+1);
+                    numPixelsDrawn+=scan.right - scan.left + 1;
                 }
             }
             y++;
@@ -3,6 +3,10 @@ package deet.bsp2D;
 import java.awt.Rectangle;
 import java.awt.Point;
 import java.util.List;
+import java.util.ArrayList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
 
 import deet.graphics3D.texture.*;
 import deet.math3D.*;
@@ -23,6 +27,10 @@ public class BSPTree {
         public Node back;
         public BSPLine partition;
         public List polygons;
+        // the range of leaf indices under this node
+        // (see getLeaves())
+        public int firstLeaf;
+        public int lastLeaf;
     }
 
 
@@ -35,10 +43,13 @@ public class BSPTree {
         public float ceilHeight;
         public boolean isBack;
         public List portals;
+        public List viewPortals;
         public Rectangle bounds;
     }
 
     private Node root;
+    private List leaves;
+    private PotentiallyVisibleSet potentiallyVisibleSet;
 
     /**
         Creates a new BSPTree with the specified root node.
@@ -56,6 +67,59 @@ public class BSPTree {
     }
 
 
+    /**
+        Sets the PotentiallyVisibleSet of this tree, or null if
+        there isn't one.
+    */
+    public void setPotentiallyVisibleSet(
+        PotentiallyVisibleSet potentiallyVisibleSet)
+    {
+        this.potentiallyVisibleSet = potentiallyVisibleSet;
+    }
+
+
+    /**
+        Gets the PotentiallyVisibleSet of this tree, or null if
+        there isn't one.
+    */
+    public PotentiallyVisibleSet getPotentiallyVisibleSet() {
+        return potentiallyVisibleSet;
+    }
+
+
+    /**
+        Gets a list of every leaf in this tree, in in-order. The
+        first time this method is called, every node's firstLeaf
+        and lastLeaf values are set to the range of indices of
+        the leaves under it (for a leaf, firstLeaf is its own
+        index in this list). Call this method only after the tree
+        is completely built.
+    */
+    public List getLeaves() {
+        if (leaves == null) {
+            leaves = new ArrayList();
+            numberLeaves(root);
+        }
+        return leaves;
+    }
+
+
+    private void numberLeaves(Node node) {
+        if (node == null) {
+            return;
+        }
+        node.firstLeaf = leaves.size();
+        if (node instanceof Leaf) {
+            leaves.add(node);
+        }
+        else {
+            numberLeaves(node.front);
+            numberLeaves(node.back);
+        }
+        node.lastLeaf = leaves.size() - 1;
+    }
+
+
     /**
         Calculates the 2D boundary of all the polygons in this
         BSP tree. Returns a rectangle of the bounds.
@@ -192,26 +256,106 @@ public class BSPTree {
 
     /**
         Creates surface textures for every polygon in this tree.
+        The surfaces (and their shade maps) are created in
+        parallel on a ForkJoinPool with one thread per available
+        processor, splitting the polygons in half until there
+        are few enough for one task.
     */
-    public void createSurfaces(final List lights) {
+    public void createSurfaces(List lights) {
+        // find every polygon with a shaded texture
+        final List polygons = new ArrayList();
         BSPTreeTraverser traverser = new BSPTreeTraverser();
         traverser.setListener(new BSPTreeTraverseListener() {
 
             public boolean visitPolygon(BSPPolygon poly,
                 boolean isBack)
             {
-                Texture texture = poly.getTexture();
-                if (texture instanceof ShadedTexture) {
-                    ShadedSurface.createShadedSurface(poly,
-                        (ShadedTexture)texture,
-                        poly.getTextureBounds(), lights,
-                        poly.getAmbientLightIntensity());
+                if (poly.getTexture() instanceof ShadedTexture) {
+                    polygons.add(poly);
                 }
                 return true;
             }
         });
+        traverser.traverse(this);
+
+        ForkJoinPool pool = new ForkJoinPool(
+            Runtime.getRuntime().availableProcessors());
+        try {
+            pool.invoke(new SurfaceBuilder(polygons, 0,
+                polygons.size(), lights));
+        }
+        finally {
+            pool.shutdown();
+        }
+    }
+
+
+    /**
+        A fork/join task that creates the surfaces of a range of
+        polygons in a list.
+    */
+    private static class SurfaceBuilder extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        // the most polygons lit by one task
+        private static final int MAX_POLYGONS = 8;
+
+        private List polygons;
+        private int start;
+        private int end;
+        private List lights;
+
+        public SurfaceBuilder(List polygons, int start, int end,
+            List lights)
+        {
+            this.polygons = polygons;
+            this.start = start;
+            this.end = end;
+            this.lights = lights;
+        }
+
+        protected void compute() {
+            if (end - start > MAX_POLYGONS) {
+                int middle = (start + end) / 2;
+                ForkJoinTask.invokeAll(
+                    new SurfaceBuilder(polygons, start, middle,
+                    lights),
+                    new SurfaceBuilder(polygons, middle, end,
+                    lights));
+                return;
+            }
+            for (int i=start; i<end; i++) {
+                BSPPolygon poly = (BSPPolygon)polygons.get(i);
+                ShadedSurface.createShadedSurface(poly,
+                    (ShadedTexture)poly.getTexture(),
+                    poly.getTextureBounds(), lights,
+                    poly.getAmbientLightIntensity());
+            }
+        }
+    }
+
+
+    /**
+        Gets a list of the ShadedSurfaces of the polygons in this
+        tree. The surfaces should already be created.
+    */
+    public List getShadedSurfaces() {
+        final List surfaces = new ArrayList();
+        BSPTreeTraverser traverser = new BSPTreeTraverser();
+        traverser.setListener(new BSPTreeTraverseListener() {
 
+            public boolean visitPolygon(BSPPolygon poly,
+                boolean isBack)
+            {
+                if (poly.getTexture() instanceof ShadedSurface) {
+                    surfaces.add(poly.getTexture());
+                }
+                return true;
+            }
+        });
         traverser.traverse(this);
+        return surfaces;
     }
 
 }
@@ -3,6 +3,10 @@ package deet.bsp2D;
 import java.awt.geom.Point2D;
 import java.awt.Rectangle;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import deet.math3D.*;
 
@@ -10,24 +14,154 @@ import deet.math3D.*;
     The BSPTreeBuilder class builds a BSP tree from a list
     of polygons. The polygons must be BSPPolygons.
 
-    Currently, the builder does not try to optimize the order of
-    the partitions, and could be optimized by choosing partitions
-    in an order that minimizes polygon splits and provides a more
-    balanced, complete tree.
+    Partitions are chosen by scoring candidate walls by the
+    number of polygons they split and by how unevenly they divide
+    the rest (see choosePartition()). The front and back of each
+    node are built in parallel with fork/join. T-junctions created
+    by splits are removed once the whole tree is built.
 */
 public class BSPTreeBuilder {
 
+    /**
+        The default weight of each polygon split by a partition.
+    */
+    public static final float DEFAULT_SPLIT_WEIGHT = 8;
+
+    /**
+        The default weight of the difference between the number
+        of polygons in front of and in back of a partition.
+    */
+    public static final float DEFAULT_BALANCE_WEIGHT = 1;
+
+    /**
+        The default maximum number of walls scored when choosing
+        a partition.
+    */
+    public static final int DEFAULT_MAX_CANDIDATES = 32;
+
+    /**
+        The default minimum number of polygons under a node for
+        its front and back to be built in parallel.
+    */
+    public static final int DEFAULT_FORK_THRESHOLD = 32;
+
+    /**
+        How far (in world units) a T-intersection point can be
+        from a polygon edge and still be inserted in it.
+    */
+    private static final float T_JUNCTION_EPSILON = 0.01f;
+
+
     /**
         The bsp tree currently being built.
     */
     protected BSPTree currentTree;
 
+    private float splitWeight = DEFAULT_SPLIT_WEIGHT;
+    private float balanceWeight = DEFAULT_BALANCE_WEIGHT;
+    private int maxCandidates = DEFAULT_MAX_CANDIDATES;
+    private int forkThreshold = DEFAULT_FORK_THRESHOLD;
+    private int parallelism =
+        Runtime.getRuntime().availableProcessors();
+
+    // T-junctions found while building, as {v1, v2, tPoint}
+    private List tJunctions;
+
+    // statistics of the last build
+    private AtomicInteger numSplits = new AtomicInteger();
+    private int numInputPolygons;
+    private int numPolygons;
+    private int numNodes;
+    private int numLeaves;
+    private int depth;
+    private float averageLeafDepth;
+    private long buildTime;
+
+
+    /**
+        Sets the weights used to score partitions. A partition's
+        score is splitWeight times the number of polygons it
+        splits, plus balanceWeight times the difference between
+        the number of polygons in front of and in back of it. The
+        lowest score wins. If both weights are 0, the first wall
+        is always used.
+    */
+    public void setWeights(float splitWeight, float balanceWeight) {
+        this.splitWeight = splitWeight;
+        this.balanceWeight = balanceWeight;
+    }
+
+
+    public float getSplitWeight() {
+        return splitWeight;
+    }
+
+
+    public float getBalanceWeight() {
+        return balanceWeight;
+    }
+
+
+    /**
+        Sets the maximum number of walls scored when choosing a
+        partition. If a node has more walls than this, evenly
+        spaced walls are sampled. Use 0 to score every wall.
+    */
+    public void setMaxCandidates(int maxCandidates) {
+        this.maxCandidates = maxCandidates;
+    }
+
+
+    public int getMaxCandidates() {
+        return maxCandidates;
+    }
+
+
+    /**
+        Sets the number of threads used to build the tree, and the
+        minimum number of polygons under a node for its front and
+        back to be built in parallel. With one thread, the tree is
+        built on the calling thread. Either way, the same tree is
+        built.
+    */
+    public void setParallelism(int parallelism, int forkThreshold) {
+        this.parallelism = Math.max(1, parallelism);
+        this.forkThreshold = forkThreshold;
+    }
+
+
+    public int getParallelism() {
+        return parallelism;
+    }
+
+
     /**
         Builds a BSP tree.
     */
     public BSPTree build(List polygons) {
+        long startTime = System.nanoTime();
+        numSplits.set(0);
+        numInputPolygons = polygons.size();
+        tJunctions = Collections.synchronizedList(new ArrayList());
+
         currentTree = new BSPTree(createNewNode(polygons));
-        buildNode(currentTree.getRoot());
+        if (parallelism > 1) {
+            ForkJoinPool pool = new ForkJoinPool(parallelism);
+            try {
+                pool.invoke(new NodeBuilder(currentTree.getRoot()));
+            }
+            finally {
+                pool.shutdown();
+            }
+        }
+        else {
+            buildNode(currentTree.getRoot());
+        }
+        removeTJunctions();
+        tJunctions = null;
+
+        buildTime = System.nanoTime() - startTime;
+        calcStatistics();
         return currentTree;
     }
 
@@ -70,7 +204,7 @@ public class BSPTreeBuilder {
                 if (back != null) {
                     backList.add(back);
                 }
-
+                numSplits.incrementAndGet();
             }
         }
 
@@ -83,14 +217,42 @@ public class BSPTreeBuilder {
         node.back = createNewNode(backList);
 
         // build front and back nodes
-        buildNode(node.front);
-        buildNode(node.back);
+        if (parallelism > 1 && ForkJoinTask.inForkJoinPool() &&
+            frontList.size() + backList.size() >= forkThreshold)
+        {
+            ForkJoinTask.invokeAll(new NodeBuilder(node.front),
+                new NodeBuilder(node.back));
+        }
+        else {
+            buildNode(node.front);
+            buildNode(node.back);
+        }
         if (node.back instanceof BSPTree.Leaf) {
             ((BSPTree.Leaf)node.back).isBack = true;
         }
     }
 
 
+    /**
+        A fork/join task that builds a node and everything under
+        it.
+    */
+    private class NodeBuilder extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private BSPTree.Node node;
+
+        public NodeBuilder(BSPTree.Node node) {
+            this.node = node;
+        }
+
+        protected void compute() {
+            buildNode(node);
+        }
+    }
+
+
     /**
         Creates a new node from a list of polygons. If none of
         the polygons are walls, a leaf is created.
@@ -176,19 +338,98 @@ public class BSPTreeBuilder {
 
     /**
         Chooses a line from a list of polygons to use as a
-        partition. This method just returns the line formed by
-        the first vertical polygon, or null if none found. A
-        smarter method would choose a partition that minimizes
-        polygon splits and provides a more balanced, complete tree.
+        partition, or returns null if there are no walls. Up to
+        getMaxCandidates() walls are scored (see setWeights()),
+        skipping walls collinear with one already scored, and the
+        wall with the lowest score is used. Ties go to the first
+        wall.
     */
     protected BSPLine choosePartition(List polygons) {
+        ArrayList walls = new ArrayList();
         for (int i=0; i<polygons.size(); i++) {
             BSPPolygon poly = (BSPPolygon)polygons.get(i);
             if (poly.isWall()) {
-                return new BSPLine(poly);
+                walls.add(poly);
+            }
+        }
+        if (walls.size() == 0) {
+            return null;
+        }
+        if (walls.size() == 1 ||
+            (splitWeight == 0 && balanceWeight == 0))
+        {
+            return new BSPLine((BSPPolygon)walls.get(0));
+        }
+
+        // sample evenly spaced walls if there are too many
+        int step = 1;
+        if (maxCandidates > 0 && walls.size() > maxCandidates) {
+            step = (walls.size() + maxCandidates - 1) /
+                maxCandidates;
+        }
+
+        ArrayList scored = new ArrayList();
+        BSPPolygon best = null;
+        float bestScore = Float.MAX_VALUE;
+        for (int i=0; i<walls.size(); i+=step) {
+            BSPPolygon wall = (BSPPolygon)walls.get(i);
+            BSPLine line = wall.getLine();
+
+            // collinear walls make the same partition
+            boolean collinear = false;
+            for (int j=0; !collinear && j<scored.size(); j++) {
+                if (((BSPLine)scored.get(j)).getSide(line) ==
+                    BSPLine.COLLINEAR)
+                {
+                    collinear = true;
+                }
+            }
+            if (collinear) {
+                continue;
+            }
+            scored.add(line);
+
+            float score = scorePartition(line, polygons, bestScore);
+            if (score < bestScore) {
+                bestScore = score;
+                best = wall;
+            }
+        }
+        return new BSPLine(best);
+    }
+
+
+    /**
+        Scores a partition against a list of polygons (lower is
+        better). Scoring stops early once the score reaches
+        maxScore.
+    */
+    protected float scorePartition(BSPLine partition, List polygons,
+        float maxScore)
+    {
+        int splits = 0;
+        int front = 0;
+        int back = 0;
+        for (int i=0; i<polygons.size(); i++) {
+            BSPPolygon poly = (BSPPolygon)polygons.get(i);
+            int side = partition.getSide(poly);
+            if (side == BSPLine.FRONT) {
+                front++;
+            }
+            else if (side == BSPLine.BACK) {
+                back++;
+            }
+            else if (side == BSPLine.SPANNING) {
+                splits++;
+                front++;
+                back++;
+                if (splitWeight * splits >= maxScore) {
+                    return maxScore;
+                }
             }
         }
-        return null;
+        return splitWeight * splits +
+            balanceWeight * Math.abs(front - back);
     }
 
 
@@ -286,19 +527,55 @@ public class BSPTreeBuilder {
 
 
     /**
-        Remove any T-Junctions from the current tree along the
-        line specified by (v1, v2). Find all polygons with this
-        edge and insert the T-intersection point between them.
+        Records a T-junction along the line specified by (v1, v2).
+        After the tree is built, the T-intersection point is
+        inserted between the points of every polygon edge it lies
+        on (see removeTJunctions()).
     */
     protected void removeTJunctions(final Vector3D v1,
         final Vector3D v2, final Vector3D tPoint)
     {
+        tJunctions.add(new Vector3D[] { v1, v2, tPoint });
+    }
+
+
+    /**
+        Removes the T-Junctions recorded while building from every
+        polygon in the current tree. A T-intersection point is
+        inserted in each polygon edge it lies on, so polygons
+        split later than their neighbors (or in parallel with
+        them) are handled too.
+    */
+    protected void removeTJunctions() {
+        if (tJunctions.size() == 0) {
+            return;
+        }
+
+        // sort the T-intersection points by x
+        final ArrayList points = new ArrayList();
+        for (int i=0; i<tJunctions.size(); i++) {
+            Vector3D[] junction = (Vector3D[])tJunctions.get(i);
+            points.add(junction[2]);
+        }
+        Collections.sort(points, new Comparator() {
+            public int compare(Object a, Object b) {
+                return Float.compare(((Vector3D)a).x,
+                    ((Vector3D)b).x);
+            }
+        });
+
+        final float[] pointX = new float[points.size()];
+        for (int i=0; i<pointX.length; i++) {
+            pointX[i] = ((Vector3D)points.get(i)).x;
+        }
+
         BSPTreeTraverser traverser = new BSPTreeTraverser(
             new BSPTreeTraverseListener() {
+                ArrayList found = new ArrayList();
                 public boolean visitPolygon(BSPPolygon poly,
                     boolean isBackLeaf)
                 {
-                    removeTJunctions(poly, v1, v2, tPoint);
+                    removeTJunctions(poly, points, pointX, found);
                     return true;
                 }
             }
@@ -308,24 +585,225 @@ public class BSPTreeBuilder {
 
 
     /**
-        Remove any T-Junctions from the specified polygon. The
-        T-intersection point is inserted between the points
-        v1 and v2 if there are no other points between them.
+        Removes T-Junctions from the specified polygon, inserting
+        every point (sorted by x in pointX) that lies inside an
+        edge of the polygon.
     */
-    protected void removeTJunctions(BSPPolygon poly,
-        Vector3D v1, Vector3D v2, Vector3D tPoint)
+    private void removeTJunctions(BSPPolygon poly, List points,
+        float[] pointX, ArrayList found)
     {
         for (int i=0; i<poly.getNumVertices(); i++) {
             int next = (i+1) % poly.getNumVertices();
             Vector3D p1 = poly.getVertex(i);
             Vector3D p2 = poly.getVertex(next);
-            if ((p1.equals(v1) && p2.equals(v2)) ||
-                (p1.equals(v2) && p2.equals(v1)))
+            float dx = p2.x - p1.x;
+            float dy = p2.y - p1.y;
+            float dz = p2.z - p1.z;
+            float lengthSq = dx*dx + dy*dy + dz*dz;
+            if (lengthSq == 0) {
+                continue;
+            }
+
+            // find the points inside the edge
+            found.clear();
+            float minX = Math.min(p1.x, p2.x) - T_JUNCTION_EPSILON;
+            float maxX = Math.max(p1.x, p2.x) + T_JUNCTION_EPSILON;
+            for (int j=findFirst(pointX, minX);
+                j<pointX.length && pointX[j] <= maxX; j++)
             {
-                poly.insertVertex(next, tPoint);
+                Vector3D t = (Vector3D)points.get(j);
+                float f = ((t.x - p1.x)*dx + (t.y - p1.y)*dy +
+                    (t.z - p1.z)*dz) / lengthSq;
+                if (f <= 0 || f >= 1 || t.equals(p1) ||
+                    t.equals(p2))
+                {
+                    continue;
+                }
+                float ex = p1.x + f*dx - t.x;
+                float ey = p1.y + f*dy - t.y;
+                float ez = p1.z + f*dz - t.z;
+                if (ex*ex + ey*ey + ez*ez <=
+                    T_JUNCTION_EPSILON * T_JUNCTION_EPSILON)
+                {
+                    insertSorted(found, t, f);
+                }
+            }
+
+            // insert them in order from p1 to p2
+            for (int j=0; j<found.size(); j+=2) {
+                poly.insertVertex(next + j/2, (Vector3D)found.get(j));
+            }
+            i += found.size() / 2;
+        }
+    }
+
+
+    /**
+        Finds the index of the first value in a sorted array that
+        is greater than or equal to the specified value.
+    */
+    private static int findFirst(float[] values, float value) {
+        int low = 0;
+        int high = values.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (values[mid] < value) {
+                low = mid + 1;
+            }
+            else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+
+    /**
+        Adds a point and its fraction along an edge to a list of
+        (point, fraction) pairs sorted by fraction, skipping
+        points already in the list.
+    */
+    private static void insertSorted(ArrayList found, Vector3D t,
+        float f)
+    {
+        int index = 0;
+        while (index < found.size() &&
+            ((Float)found.get(index+1)).floatValue() < f)
+        {
+            index+=2;
+        }
+        for (int i=0; i<found.size(); i+=2) {
+            if (t.equals(found.get(i))) {
                 return;
             }
         }
+        found.add(index, t);
+        found.add(index+1, Float.valueOf(f));
+    }
+
+
+    /**
+        Calculates the statistics of the current tree.
+    */
+    private void calcStatistics() {
+        numPolygons = 0;
+        numNodes = 0;
+        numLeaves = 0;
+        depth = 0;
+        long totalLeafDepth = 0;
+        ArrayList nodes = new ArrayList();
+        ArrayList depths = new ArrayList();
+        nodes.add(currentTree.getRoot());
+        depths.add(Integer.valueOf(1));
+        while (nodes.size() > 0) {
+            BSPTree.Node node =
+                (BSPTree.Node)nodes.remove(nodes.size() - 1);
+            int nodeDepth =
+                ((Integer)depths.remove(depths.size() - 1)).intValue();
+            if (node == null) {
+                continue;
+            }
+            if (node.polygons != null) {
+                numPolygons += node.polygons.size();
+            }
+            depth = Math.max(depth, nodeDepth);
+            if (node instanceof BSPTree.Leaf) {
+                numLeaves++;
+                totalLeafDepth += nodeDepth;
+            }
+            else {
+                numNodes++;
+                nodes.add(node.front);
+                depths.add(Integer.valueOf(nodeDepth + 1));
+                nodes.add(node.back);
+                depths.add(Integer.valueOf(nodeDepth + 1));
+            }
+        }
+        averageLeafDepth = (numLeaves == 0) ? 0 :
+            (float)totalLeafDepth / numLeaves;
+    }
+
+
+    /**
+        Gets the depth of the last tree built (the number of
+        nodes from the root to the deepest leaf, inclusive).
+    */
+    public int getDepth() {
+        return depth;
+    }
+
+
+    /**
+        Gets the average depth of the leaves of the last tree
+        built.
+    */
+    public float getAverageLeafDepth() {
+        return averageLeafDepth;
+    }
+
+
+    /**
+        Gets the number of leaves in the last tree built.
+    */
+    public int getNumLeaves() {
+        return numLeaves;
+    }
+
+
+    /**
+        Gets the number of nodes (not counting leaves) in the last
+        tree built.
+    */
+    public int getNumNodes() {
+        return numNodes;
+    }
+
+
+    /**
+        Gets the number of polygons split while building the last
+        tree.
+    */
+    public int getNumSplits() {
+        return numSplits.get();
+    }
+
+
+    /**
+        Gets the number of polygons the last tree was built from.
+    */
+    public int getNumInputPolygons() {
+        return numInputPolygons;
+    }
+
+
+    /**
+        Gets the number of polygons in the last tree built
+        (including the pieces of split polygons).
+    */
+    public int getNumPolygons() {
+        return numPolygons;
+    }
+
+
+    /**
+        Gets the time, in nanoseconds, it took to build the last
+        tree.
+    */
+    public long getBuildTime() {
+        return buildTime;
+    }
+
+
+    /**
+        Gets a one-line summary of the statistics of the last tree
+        built.
+    */
+    public String getStatistics() {
+        return "depth " + depth + " (average leaf " +
+            Math.round(averageLeafDepth * 10) / 10f + "), " +
+            numLeaves + " leaves, " + numNodes + " nodes, " +
+            getNumSplits() + " splits (" + numInputPolygons +
+            " -> " + numPolygons + " polygons)";
     }
 
 }
@@ -1,5 +1,6 @@
 package deet.bsp2D;
 
+import java.awt.geom.Point2D;
 import java.util.List;
 import java.util.ArrayList;
 
@@ -41,13 +42,30 @@ public class BSPTreeBuilderWithPortals extends BSPTreeBuilder {
 
 
     /**
-        Finds all the portals of the specified leaf.
+        Finds all the portals of the specified leaf. Passable
+        portals are added to the leaf's portals list. Every
+        portal that can be seen through (passable portals, and
+        walls that don't cover the whole opening between the two
+        leaves, like steps) is added to the leaf's viewPortals
+        list.
     */
     protected void findPortals(BSPTree.Leaf leaf) {
         ArrayList lines = new ArrayList();
+        ArrayList pieces = new ArrayList();
         leaf.portals = new ArrayList();
+        leaf.viewPortals = new ArrayList();
         for (int i=0; i<leaf.polygons.size(); i++) {
             Polygon3D poly = (Polygon3D)leaf.polygons.get(i);
+            // find a point inside the leaf
+            float centerX = 0;
+            float centerZ = 0;
+            for (int j=0; j<poly.getNumVertices(); j++) {
+                centerX += poly.getVertex(j).x;
+                centerZ += poly.getVertex(j).z;
+            }
+            centerX /= poly.getNumVertices();
+            centerZ /= poly.getNumVertices();
+
             for (int j=0; j<poly.getNumVertices(); j++) {
                 int next = (j+1) % poly.getNumVertices();
                 Vector3D v1 = poly.getVertex(j);
@@ -67,23 +85,32 @@ public class BSPTreeBuilderWithPortals extends BSPTreeBuilder {
                 // create the portal
                 if (!checked) {
                     lines.add(line);
-                    Portal portal = createPortal(line);
-                    if (portal != null) {
-                        leaf.portals.add(portal);
+                    boolean solid = isSolidWall(line);
+                    pieces.clear();
+                    createPortals(line, pieces);
+                    for (int k=0; k<pieces.size(); k++) {
+                        Portal portal = (Portal)pieces.get(k);
+                        if (!solid) {
+                            leaf.portals.add(portal);
+                        }
+                        if (!solid ||
+                            !isOpaque(portal, centerX, centerZ))
+                        {
+                            leaf.viewPortals.add(portal);
+                        }
                     }
                 }
             }
         }
         ((ArrayList)leaf.portals).trimToSize();
+        ((ArrayList)leaf.viewPortals).trimToSize();
     }
 
 
     /**
-        Creates a portal for the specified line segment. Returns
-        null if no portal could be created (if the line represents
-        a solid wall or the line isn't found).
+        Checks if the specified line segment is a solid wall.
     */
-    protected Portal createPortal(BSPLine line) {
+    protected boolean isSolidWall(BSPLine line) {
         BSPTree.Node node = currentTree.getCollinearNode(line);
         if (node != null && node.polygons != null) {
             for (int i=0; i<node.polygons.size(); i++) {
@@ -91,12 +118,118 @@ public class BSPTreeBuilderWithPortals extends BSPTreeBuilder {
                 if (poly.isSolidWall() &&
                     line.equalsIgnoreOrder(poly.getLine()))
                 {
-                    // wall not passable
-                    return null;
+                    return true;
                 }
             }
         }
+        return false;
+    }
+
+
+    /**
+        Checks if the walls along the specified portal cover the
+        whole opening between its two leaves, from the lowest
+        floor to the highest ceiling, when seen from the specified
+        point. Walls are only drawn from the front, so only walls
+        facing the point are counted.
+    */
+    protected boolean isOpaque(Portal portal, float x, float z) {
+        BSPLine line = portal.getDivider();
+        BSPTree.Leaf front = portal.getFrontLeaf();
+        BSPTree.Leaf back = portal.getBackLeaf();
+        float covered = Math.min(front.floorHeight, back.floorHeight);
+        float ceil = Math.max(front.ceilHeight, back.ceilHeight);
+        BSPTree.Node node = currentTree.getCollinearNode(line);
+        if (node == null || node.polygons == null) {
+            return false;
+        }
+
+        // stack up the walls along the portal from the bottom
+        boolean found = true;
+        while (found && covered < ceil - 1) {
+            found = false;
+            for (int i=0; i<node.polygons.size(); i++) {
+                BSPPolygon poly = (BSPPolygon)node.polygons.get(i);
+                BSPLine wall = poly.getLine();
+                if (poly.isSolidWall() &&
+                    wall.getSideThin(x, z) == BSPLine.FRONT &&
+                    wall.bottom <= covered + 1 &&
+                    wall.top > covered &&
+                    wall.ptSegDistSq(line.x1, line.y1) <= 1 &&
+                    wall.ptSegDistSq(line.x2, line.y2) <= 1)
+                {
+                    covered = wall.top;
+                    found = true;
+                }
+            }
+        }
+        return (covered >= ceil - 1);
+    }
+
+
+    /**
+        Creates the portals for the specified line segment and
+        adds them to the list. If a partition of the tree spans
+        the segment (so the segment borders more than one leaf
+        on one side), the segment is split at the partition and
+        a portal is created for each piece.
+    */
+    protected void createPortals(BSPLine line, List portals) {
+        BSPLine partition = findSpanningPartition(
+            currentTree.getRoot(), line, BSPLine.FRONT);
+        if (partition == null) {
+            partition = findSpanningPartition(
+                currentTree.getRoot(), line, BSPLine.BACK);
+        }
+        if (partition != null) {
+            float f = line.getIntersection(partition);
+            if (f > 0 && f < 1) {
+                Point2D.Float p = line.getIntersectionPoint(
+                    partition);
+                createPortals(new BSPLine(line.x1, line.y1,
+                    p.x, p.y), portals);
+                createPortals(new BSPLine(p.x, p.y,
+                    line.x2, line.y2), portals);
+            }
+            return;
+        }
 
+        Portal portal = createPortal(line);
+        if (portal != null) {
+            portals.add(portal);
+        }
+    }
+
+
+    /**
+        Finds the first partition that spans the specified line
+        segment when searching for the leaf on the specified side
+        of the segment. Returns null if no partition spans it.
+    */
+    protected BSPLine findSpanningPartition(BSPTree.Node node,
+        BSPLine line, int side)
+    {
+        while (node != null && !(node instanceof BSPTree.Leaf)) {
+            int segSide = node.partition.getSide(line);
+            if (segSide == BSPLine.COLLINEAR) {
+                segSide = side;
+            }
+            if (segSide == BSPLine.SPANNING) {
+                return node.partition;
+            }
+            node = (segSide == BSPLine.FRONT)?node.front:node.back;
+        }
+        return null;
+    }
+
+
+    /**
+        Creates a portal for the specified line segment, ignoring
+        any walls along it. Returns null if no portal could be
+        created (if the line doesn't have a non-empty leaf on
+        both sides).
+    */
+    protected Portal createPortal(BSPLine line) {
         BSPTree.Leaf frontLeaf = currentTree.getFrontLeaf(line);
         BSPTree.Leaf backLeaf = currentTree.getBackLeaf(line);
         if (frontLeaf != null && backLeaf != null &&
@@ -1,6 +1,9 @@
 package deet.bsp2D;
 
 
+import java.util.ArrayList;
+import java.util.BitSet;
+
 import deet.math3D.*;
 import deet.object.GameObjectManager;
 
@@ -16,6 +19,12 @@ public class BSPTreeTraverser {
     private float z;
     private GameObjectManager objectManager;
     private BSPTreeTraverseListener listener;
+    private int polygonCount;
+    private boolean deferMarkVisible;
+    private ArrayList deferredLeaves = new ArrayList();
+    private int[] deferredCounts = new int[16];
+    private BSPTreeVisibility visibility;
+    private BitSet potentiallyVisible;
 
     /**
         Creates a new BSPTreeTraverser with no
@@ -55,14 +64,84 @@ public class BSPTreeTraverser {
     }
 
 
+    /**
+        Sets the set of visible leaves used in draw-order
+        traversals. Leaves that aren't visible, and nodes with no
+        visible leaves under them, are skipped. If null, every
+        node is traversed.
+    */
+    public void setVisibility(BSPTreeVisibility visibility) {
+        this.visibility = visibility;
+    }
+
+
+    /**
+        Sets whether calls to the GameObjectManager's
+        markVisible() method are deferred. When deferred, visited
+        leaves are remembered along with the number of polygons
+        visited before them, and are marked later by calling
+        markDeferredVisible(). This lets a listener that learns
+        late where a traversal should have stopped mark exactly
+        the leaves an early-stopping traversal would have marked.
+    */
+    public void setDeferMarkVisible(boolean deferMarkVisible) {
+        this.deferMarkVisible = deferMarkVisible;
+    }
+
+
+    /**
+        Marks the deferred leaves that were visited before
+        polygonLimit polygons were visited, then forgets all
+        deferred leaves.
+    */
+    public void markDeferredVisible(int polygonLimit) {
+        for (int i=0; i<deferredLeaves.size(); i++) {
+            if (deferredCounts[i] < polygonLimit) {
+                BSPTree.Leaf leaf =
+                    (BSPTree.Leaf)deferredLeaves.get(i);
+                objectManager.markVisible(leaf.bounds);
+            }
+        }
+        deferredLeaves.clear();
+    }
+
+
+    /**
+        Gets the number of polygons visited in the last
+        traversal.
+    */
+    public int getPolygonCount() {
+        return polygonCount;
+    }
+
+
     /**
         Traverses a tree in draw-order (front-to-back) using
-        the specified view location.
+        the specified view location. If the tree has a
+        PotentiallyVisibleSet, only the leaves potentially
+        visible from the view location are visited.
     */
     public void traverse(BSPTree tree, Vector3D viewLocation) {
         x = viewLocation.x;
         z = viewLocation.z;
         traversing = true;
+        polygonCount = 0;
+
+        // only visit leaves in the PVS of the view location
+        potentiallyVisible = null;
+        PotentiallyVisibleSet pvs = tree.getPotentiallyVisibleSet();
+        if (pvs != null) {
+            BSPTree.Leaf leaf = tree.getLeaf(x, z);
+            if (leaf != null && leaf.bounds != null &&
+                leaf.bounds.contains(x, z))
+            {
+                potentiallyVisible = pvs.getVisibleLeaves(leaf);
+            }
+        }
+        if (objectManager != null) {
+            objectManager.setVisibleLeaves(tree, potentiallyVisible);
+        }
+
         traverseDrawOrder(tree.getRoot());
     }
 
@@ -71,7 +150,9 @@ public class BSPTreeTraverser {
         Traverses a tree in in-order.
     */
     public void traverse(BSPTree tree) {
+        potentiallyVisible = null;
         traversing = true;
+        polygonCount = 0;
         traverseInOrder(tree.getRoot());
     }
 
@@ -82,6 +163,14 @@ public class BSPTreeTraverser {
     */
     private void traverseDrawOrder(BSPTree.Node node) {
         if (traversing && node != null) {
+            if ((potentiallyVisible != null &&
+                !PotentiallyVisibleSet.isVisible(
+                potentiallyVisible, node)) ||
+                (visibility != null && !visibility.isVisible(node)))
+            {
+                // nothing under this node is visible
+                return;
+            }
             if (node instanceof BSPTree.Leaf) {
                 // no partition, just handle polygons
                 visitNode(node);
@@ -130,15 +219,36 @@ public class BSPTreeTraverser {
             // mark the bounds of this leaf as visible in
             // the game object manager.
             if (objectManager != null && leaf.bounds != null) {
-                objectManager.markVisible(leaf.bounds);
+                if (deferMarkVisible) {
+                    deferLeaf(leaf);
+                }
+                else {
+                    objectManager.markVisible(leaf.bounds);
+                }
             }
         }
 
         // visit every polygon
         for (int i=0; traversing && i<node.polygons.size(); i++) {
             BSPPolygon poly = (BSPPolygon)node.polygons.get(i);
+            polygonCount++;
             traversing = listener.visitPolygon(poly, isBack);
         }
     }
 
+
+    /**
+        Remembers a visited leaf for markDeferredVisible().
+    */
+    private void deferLeaf(BSPTree.Leaf leaf) {
+        int index = deferredLeaves.size();
+        if (index == deferredCounts.length) {
+            int[] newCounts = new int[index*2];
+            System.arraycopy(deferredCounts, 0, newCounts, 0, index);
+            deferredCounts = newCounts;
+        }
+        deferredCounts[index] = polygonCount;
+        deferredLeaves.add(leaf);
+    }
+
 }
@@ -0,0 +1,99 @@
+package deet.bsp2D;
+
+import java.util.Arrays;
+
+/**
+    A BSPTreeVisibility is the set of visible leaves of a BSP
+    tree. When a BSPTreeTraverser has a BSPTreeVisibility, it
+    skips every leaf that isn't visible and every node that has
+    no visible leaves under it.
+*/
+public class BSPTreeVisibility {
+
+    private boolean[] visible = new boolean[0];
+    private int[] visibleBefore = new int[1];
+    private int numLeaves;
+    private int numVisible;
+    private boolean allVisible;
+    private boolean countsValid;
+
+    /**
+        Clears this set so no leaves of the specified tree are
+        visible.
+    */
+    public void clear(BSPTree tree) {
+        numLeaves = tree.getLeaves().size();
+        if (visible.length < numLeaves) {
+            visible = new boolean[numLeaves];
+            visibleBefore = new int[numLeaves + 1];
+        }
+        else {
+            Arrays.fill(visible, 0, numLeaves, false);
+        }
+        numVisible = 0;
+        allVisible = false;
+        countsValid = false;
+    }
+
+
+    /**
+        Marks every leaf as visible.
+    */
+    public void setAllVisible() {
+        allVisible = true;
+    }
+
+
+    /**
+        Marks the specified leaf as visible.
+    */
+    public void setVisible(BSPTree.Leaf leaf) {
+        if (!visible[leaf.firstLeaf]) {
+            visible[leaf.firstLeaf] = true;
+            numVisible++;
+            countsValid = false;
+        }
+    }
+
+
+    /**
+        Checks if the leaf with the specified index is visible.
+    */
+    public boolean isVisible(int leafIndex) {
+        return allVisible || visible[leafIndex];
+    }
+
+
+    /**
+        Checks if the specified node is visible. A node is
+        visible if any leaf under it is visible.
+    */
+    public boolean isVisible(BSPTree.Node node) {
+        if (allVisible) {
+            return true;
+        }
+        if (node instanceof BSPTree.Leaf) {
+            return visible[node.firstLeaf];
+        }
+        if (node.lastLeaf < node.firstLeaf) {
+            return false;
+        }
+        if (!countsValid) {
+            for (int i=0; i<numLeaves; i++) {
+                visibleBefore[i+1] = visibleBefore[i] +
+                    (visible[i]?1:0);
+            }
+            countsValid = true;
+        }
+        return (visibleBefore[node.lastLeaf+1] >
+            visibleBefore[node.firstLeaf]);
+    }
+
+
+    /**
+        Gets the number of visible leaves.
+    */
+    public int getNumVisible() {
+        return allVisible?numLeaves:numVisible;
+    }
+}
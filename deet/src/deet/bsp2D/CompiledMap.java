@@ -0,0 +1,955 @@
+package deet.bsp2D;
+
+import java.awt.Color;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.*;
+
+import deet.graphics3D.texture.*;
+import deet.math3D.*;
+
+/**
+    A CompiledMap is a map after it has been loaded by a
+    MapLoader: its finished BSPTree (nodes, leaves, portals and
+    polygons, with their textures and shade maps), its lights,
+    its player start location and the objects placed in it. It
+    can be saved to a versioned, little-endian binary file, and
+    loaded back by memory-mapping the file, without parsing the
+    map, building the tree, finding portals or lighting the
+    surfaces again. Textures are saved as the names of their
+    image files (relative to the map), and are loaded from them.
+    <p>The file also records what the map was compiled from: the
+    hash of the map file, the hashes of its MTL files and texture
+    images, and the builder's class and settings, so matches()
+    can tell when it's out of date.
+    <p>MapLoader saves a compiled map to a ".bsp" file next to
+    the map file and loads it from there when the map hasn't
+    changed. Maps can also be compiled ahead of time:
+    <p>Usage: CompiledMap mapFile...
+*/
+public class CompiledMap {
+
+    // "BSPM"
+    private static final int MAGIC = 0x4D505342;
+
+    /**
+        The version of the file format. Files with a different
+        version are not loaded.
+    */
+    public static final int VERSION = 2;
+
+    private static final int NODE = 0;
+    private static final int LEAF = 1;
+    private static final int NO_NODE = 2;
+
+    /**
+        An object placed in the map: either an OBJ object or, if
+        the filename is null, a trigger with the specified radius.
+        An angle of NaN means the object's angle isn't set.
+    */
+    public static class ObjectDef {
+        public String name;
+        public String filename;
+        public Vector3D location;
+        public float angleY = Float.NaN;
+        public float radius;
+    }
+
+    private long mapHash;
+    private String builderName;
+    private float splitWeight;
+    private float balanceWeight;
+    private int maxCandidates;
+    // the other files the map was compiled from, and their hashes
+    private List sourceFiles;
+    private long[] sourceHashes;
+    private BSPTree tree;
+    private List lights;
+    private Transform3D playerStart;
+    private List objectDefs;
+    // textures acquired from the TextureCache by load()
+    private List sharedTextures = new ArrayList();
+
+    /**
+        Creates a new CompiledMap. The map hash, the source files
+        (such as the MTL files the map uses) and the builder
+        identify what the map was compiled from and how its tree
+        was built, so an out of date compiled map isn't used (see
+        matches()). The image files of the textures are added to
+        the source files when the map is saved.
+    */
+    public CompiledMap(long mapHash, List sourceFiles,
+        BSPTreeBuilder builder, BSPTree tree, List lights,
+        Transform3D playerStart, List objectDefs)
+    {
+        this(mapHash, builder.getClass().getName(),
+            builder.getSplitWeight(), builder.getBalanceWeight(),
+            builder.getMaxCandidates(), tree, lights, playerStart,
+            objectDefs);
+        this.sourceFiles = new ArrayList(sourceFiles);
+    }
+
+
+    private CompiledMap(long mapHash, String builderName,
+        float splitWeight, float balanceWeight, int maxCandidates,
+        BSPTree tree, List lights, Transform3D playerStart,
+        List objectDefs)
+    {
+        this.mapHash = mapHash;
+        this.builderName = builderName;
+        this.splitWeight = splitWeight;
+        this.balanceWeight = balanceWeight;
+        this.maxCandidates = maxCandidates;
+        this.tree = tree;
+        this.lights = lights;
+        this.playerStart = playerStart;
+        this.objectDefs = objectDefs;
+    }
+
+
+    public BSPTree getTree() {
+        return tree;
+    }
+
+
+    /**
+        Gets the point lights of the map.
+    */
+    public List getLights() {
+        return lights;
+    }
+
+
+    public Transform3D getPlayerStartLocation() {
+        return playerStart;
+    }
+
+
+    /**
+        Gets the objects placed in the map, as ObjectDefs.
+    */
+    public List getObjectDefs() {
+        return objectDefs;
+    }
+
+
+    /**
+        Gets the textures acquired from the TextureCache when
+        this map was loaded (see load()).
+    */
+    public List getSharedTextures() {
+        return sharedTextures;
+    }
+
+
+    /**
+        Releases the textures acquired when this map was loaded
+        back to the TextureCache.
+    */
+    public void releaseTextures() {
+        releaseTextures(sharedTextures);
+    }
+
+
+    private static void releaseTextures(List sharedTextures) {
+        TextureCache cache = TextureCache.getInstance();
+        for (int i=0; i<sharedTextures.size(); i++) {
+            cache.release(
+                (TextureCache.SharedTexture)sharedTextures.get(i));
+        }
+        sharedTextures.clear();
+    }
+
+
+    /**
+        Checks if this CompiledMap was compiled from a map file
+        with the specified hash, using a builder of the same
+        class with the same settings, and none of its other
+        source files (MTL files and texture images) have changed
+        since.
+    */
+    public boolean matches(long mapHash, BSPTreeBuilder builder) {
+        if (this.mapHash != mapHash ||
+            !builderName.equals(builder.getClass().getName()) ||
+            splitWeight != builder.getSplitWeight() ||
+            balanceWeight != builder.getBalanceWeight() ||
+            maxCandidates != builder.getMaxCandidates())
+        {
+            return false;
+        }
+        if (sourceHashes == null) {
+            // not saved or loaded, so the hashes aren't known
+            return false;
+        }
+        for (int i=0; i<sourceFiles.size(); i++) {
+            File file = (File)sourceFiles.get(i);
+            try {
+                if (!file.exists() || PotentiallyVisibleSet.
+                    calcHash(file) != sourceHashes[i])
+                {
+                    return false;
+                }
+            }
+            catch (IOException ex) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+
+    /**
+        Saves this map to a file. The image files of the
+        textures are found in the specified materials (see
+        ObjectLoader.Material). Image file names are saved
+        relative to the specified directory, if they're in it.
+    */
+    public void save(File file, Collection materials, File path)
+        throws IOException
+    {
+        MapWriter out = new MapWriter();
+        out.putInt(MAGIC);
+        out.putInt(VERSION);
+        out.putLong(mapHash);
+        out.putString(builderName);
+        out.putFloat(splitWeight);
+        out.putFloat(balanceWeight);
+        out.putInt(maxCandidates);
+
+        // find every polygon, vertex, texture and portal
+        IdentityHashMap polygonIndices = new IdentityHashMap();
+        IdentityHashMap vertexIndices = new IdentityHashMap();
+        IdentityHashMap textureIndices = new IdentityHashMap();
+        IdentityHashMap portalIndices = new IdentityHashMap();
+        List polygons = new ArrayList();
+        List vertices = new ArrayList();
+        List textures = new ArrayList();
+        List portals = new ArrayList();
+        index(tree.getRoot(), polygonIndices, polygons);
+        for (int i=0; i<polygons.size(); i++) {
+            BSPPolygon poly = (BSPPolygon)polygons.get(i);
+            for (int j=0; j<poly.getNumVertices(); j++) {
+                addIndex(poly.getVertex(j), vertexIndices, vertices);
+            }
+            if (poly.getTexture() instanceof ShadedSurface) {
+                addIndex(((ShadedSurface)poly.getTexture()).
+                    getSourceTexture(), textureIndices, textures);
+            }
+        }
+        List leaves = tree.getLeaves();
+        for (int i=0; i<leaves.size(); i++) {
+            BSPTree.Leaf leaf = (BSPTree.Leaf)leaves.get(i);
+            addIndices(leaf.portals, portalIndices, portals);
+            addIndices(leaf.viewPortals, portalIndices, portals);
+        }
+
+        // textures (only the materials the map used have
+        // decoded textures)
+        IdentityHashMap textureFiles = new IdentityHashMap();
+        Iterator i = materials.iterator();
+        while (i.hasNext()) {
+            ObjectLoader.Material material =
+                (ObjectLoader.Material)i.next();
+            if (material.texture != null) {
+                textureFiles.put(material.texture,
+                    material.sourceFile);
+            }
+        }
+        List textureNames = new ArrayList();
+        List sources = new ArrayList(sourceFiles);
+        for (int j=0; j<textures.size(); j++) {
+            File textureFile = (File)textureFiles.get(
+                textures.get(j));
+            if (textureFile == null) {
+                throw new IOException("No image file for texture");
+            }
+            textureNames.add(getName(textureFile, path));
+            if (!sources.contains(textureFile)) {
+                sources.add(textureFile);
+            }
+        }
+
+        // source files, with their hashes
+        long[] hashes = new long[sources.size()];
+        out.putInt(sources.size());
+        for (int j=0; j<sources.size(); j++) {
+            File sourceFile = (File)sources.get(j);
+            hashes[j] = PotentiallyVisibleSet.calcHash(sourceFile);
+            out.putString(getName(sourceFile, path));
+            out.putLong(hashes[j]);
+        }
+        sourceFiles = sources;
+        sourceHashes = hashes;
+
+        out.putInt(textureNames.size());
+        for (int j=0; j<textureNames.size(); j++) {
+            out.putString((String)textureNames.get(j));
+        }
+
+        // lights
+        IdentityHashMap lightIndices = new IdentityHashMap();
+        out.putInt(lights.size());
+        for (int j=0; j<lights.size(); j++) {
+            PointLight3D light = (PointLight3D)lights.get(j);
+            lightIndices.put(light, Integer.valueOf(j));
+            out.putVector(light);
+            out.putFloat(light.getIntensity());
+            out.putFloat(light.getDistanceFalloff());
+        }
+
+        // player start and objects
+        out.putVector(playerStart.getLocation());
+        out.putFloat(playerStart.getAngleX());
+        out.putFloat(playerStart.getAngleY());
+        out.putFloat(playerStart.getAngleZ());
+        out.putInt(objectDefs.size());
+        for (int j=0; j<objectDefs.size(); j++) {
+            ObjectDef def = (ObjectDef)objectDefs.get(j);
+            out.putString(def.name);
+            out.putString(def.filename);
+            out.putVector(def.location);
+            out.putFloat(def.angleY);
+            out.putFloat(def.radius);
+        }
+
+        // vertices
+        out.putInt(vertices.size());
+        for (int j=0; j<vertices.size(); j++) {
+            out.putVector((Vector3D)vertices.get(j));
+        }
+
+        // polygons
+        out.putInt(polygons.size());
+        for (int j=0; j<polygons.size(); j++) {
+            writePolygon(out, (BSPPolygon)polygons.get(j),
+                vertexIndices, textureIndices, lightIndices);
+        }
+
+        // nodes and leaves, in pre-order
+        writeNode(out, tree.getRoot(), polygonIndices,
+            portalIndices);
+
+        // portals
+        IdentityHashMap leafIndices = new IdentityHashMap();
+        for (int j=0; j<leaves.size(); j++) {
+            leafIndices.put(leaves.get(j), Integer.valueOf(j));
+        }
+        out.putInt(portals.size());
+        for (int j=0; j<portals.size(); j++) {
+            Portal portal = (Portal)portals.get(j);
+            out.putLine(portal.getDivider());
+            out.putInt(getIndex(leafIndices, portal.getFrontLeaf()));
+            out.putInt(getIndex(leafIndices, portal.getBackLeaf()));
+        }
+
+        out.writeTo(file);
+    }
+
+
+    private void writePolygon(MapWriter out, BSPPolygon poly,
+        Map vertexIndices, Map textureIndices, Map lightIndices)
+    {
+        int type = poly.isSolidWall() ? BSPPolygon.TYPE_WALL :
+            poly.isWall() ? BSPPolygon.TYPE_PASSABLE_WALL :
+            BSPPolygon.TYPE_FLOOR;
+        out.putInt(type);
+        out.putFloat(poly.getAmbientLightIntensity());
+        out.putVector(poly.getNormal());
+        out.putInt(poly.getNumVertices());
+        for (int i=0; i<poly.getNumVertices(); i++) {
+            out.putInt(getIndex(vertexIndices, poly.getVertex(i)));
+        }
+
+        if (!(poly.getTexture() instanceof ShadedSurface)) {
+            out.putInt(-1);
+            return;
+        }
+        ShadedSurface surface = (ShadedSurface)poly.getTexture();
+        out.putInt(getIndex(textureIndices,
+            surface.getSourceTexture()));
+        out.putRectangle(surface.getSourceTextureBounds());
+        out.putRectangle(surface.getSurfaceBounds());
+        out.putFloat(surface.getAmbientLightIntensity());
+        PointLight3D[] staticLights = surface.getStaticLights();
+        out.putInt(staticLights.length);
+        for (int i=0; i<staticLights.length; i++) {
+            out.putInt(getIndex(lightIndices, staticLights[i]));
+        }
+        out.putInt(surface.getShadeMapWidth());
+        out.putInt(surface.getShadeMapHeight());
+        out.putBytes(surface.getShadeMap());
+    }
+
+
+    private void writeNode(MapWriter out, BSPTree.Node node,
+        Map polygonIndices, Map portalIndices)
+    {
+        if (node == null) {
+            out.putInt(NO_NODE);
+            return;
+        }
+        boolean isLeaf = (node instanceof BSPTree.Leaf);
+        out.putInt(isLeaf ? LEAF : NODE);
+        writeIndices(out, node.polygons, polygonIndices);
+        if (isLeaf) {
+            BSPTree.Leaf leaf = (BSPTree.Leaf)node;
+            out.putFloat(leaf.floorHeight);
+            out.putFloat(leaf.ceilHeight);
+            out.putInt(leaf.isBack ? 1 : 0);
+            if (leaf.bounds == null) {
+                out.putInt(0);
+            }
+            else {
+                out.putInt(1);
+                out.putInt(leaf.bounds.x);
+                out.putInt(leaf.bounds.y);
+                out.putInt(leaf.bounds.width);
+                out.putInt(leaf.bounds.height);
+            }
+            writeIndices(out, leaf.portals, portalIndices);
+            writeIndices(out, leaf.viewPortals, portalIndices);
+        }
+        else {
+            out.putLine(node.partition);
+            writeNode(out, node.front, polygonIndices,
+                portalIndices);
+            writeNode(out, node.back, polygonIndices,
+                portalIndices);
+        }
+    }
+
+
+    /**
+        Writes the indices of the objects of a list, or -1 if
+        the list is null.
+    */
+    private void writeIndices(MapWriter out, List list, Map indices) {
+        if (list == null) {
+            out.putInt(-1);
+            return;
+        }
+        out.putInt(list.size());
+        for (int i=0; i<list.size(); i++) {
+            out.putInt(getIndex(indices, list.get(i)));
+        }
+    }
+
+
+    private static void index(BSPTree.Node node, Map indices,
+        List list)
+    {
+        if (node == null) {
+            return;
+        }
+        addIndices(node.polygons, indices, list);
+        if (!(node instanceof BSPTree.Leaf)) {
+            index(node.front, indices, list);
+            index(node.back, indices, list);
+        }
+    }
+
+
+    private static void addIndices(List objects, Map indices,
+        List list)
+    {
+        for (int i=0; objects != null && i<objects.size(); i++) {
+            addIndex(objects.get(i), indices, list);
+        }
+    }
+
+
+    private static void addIndex(Object object, Map indices,
+        List list)
+    {
+        if (!indices.containsKey(object)) {
+            indices.put(object, Integer.valueOf(list.size()));
+            list.add(object);
+        }
+    }
+
+
+    private static int getIndex(Map indices, Object object) {
+        return ((Integer)indices.get(object)).intValue();
+    }
+
+
+    /**
+        Loads a map saved with save() by memory-mapping the file.
+        Textures are loaded from their image files (relative to
+        the specified directory) with the specified pixel format,
+        through the TextureCache (see getSharedTextures()).
+    */
+    public static CompiledMap load(File file, File path,
+        PixelFormat pixelFormat) throws IOException
+    {
+        ByteBuffer in;
+        FileInputStream is = new FileInputStream(file);
+        try {
+            FileChannel channel = is.getChannel();
+            in = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                channel.size());
+        }
+        finally {
+            is.close();
+        }
+        in.order(ByteOrder.LITTLE_ENDIAN);
+
+        MapReader reader = new MapReader(in, path, pixelFormat);
+        boolean loaded = false;
+        try {
+            if (in.getInt() != MAGIC) {
+                throw new IOException("Not a compiled map: " + file);
+            }
+            int version = in.getInt();
+            if (version != VERSION) {
+                throw new IOException("Compiled map " + file +
+                    " is version " + version + ", not " + VERSION);
+            }
+            CompiledMap map = reader.read();
+            loaded = true;
+            return map;
+        }
+        catch (RuntimeException ex) {
+            // a truncated or corrupt file
+            IOException ioEx = new IOException(
+                "Couldn't read compiled map " + file);
+            ioEx.initCause(ex);
+            throw ioEx;
+        }
+        finally {
+            if (!loaded) {
+                releaseTextures(reader.sharedTextures);
+            }
+        }
+    }
+
+
+    /**
+        Gets the name a file is saved as: relative to the
+        specified directory if it's in it, otherwise absolute.
+    */
+    private static String getName(File file, File path) {
+        String name = file.getAbsolutePath();
+        if (path != null && file.getAbsolutePath().
+            startsWith(path.getAbsolutePath() + File.separator))
+        {
+            name = path.toURI().relativize(file.toURI()).getPath();
+        }
+        return name;
+    }
+
+
+    /**
+        Reads the rest of a compiled map after the version.
+    */
+    private static class MapReader {
+
+        private ByteBuffer in;
+        private File path;
+        private PixelFormat pixelFormat;
+        private ShadedTexture[] textures;
+        private List sharedTextures = new ArrayList();
+        private PointLight3D[] lights;
+        private Vector3D[] vertices;
+        private BSPPolygon[] polygons;
+        // leaf portal indices, set to portals once they're read
+        private Map leafPortals = new IdentityHashMap();
+        private Map leafViewPortals = new IdentityHashMap();
+
+        MapReader(ByteBuffer in, File path, PixelFormat pixelFormat) {
+            this.in = in;
+            this.path = path;
+            this.pixelFormat = pixelFormat;
+        }
+
+
+        CompiledMap read() throws IOException {
+            long mapHash = in.getLong();
+            String builderName = getString();
+            float splitWeight = in.getFloat();
+            float balanceWeight = in.getFloat();
+            int maxCandidates = in.getInt();
+
+            // source files
+            List sourceFiles = new ArrayList();
+            long[] sourceHashes = new long[in.getInt()];
+            for (int i=0; i<sourceHashes.length; i++) {
+                sourceFiles.add(getFile());
+                sourceHashes[i] = in.getLong();
+            }
+
+            // textures
+            textures = new ShadedTexture[in.getInt()];
+            for (int i=0; i<textures.length; i++) {
+                File textureFile = getFile();
+                TextureCache.SharedTexture sharedTexture =
+                    TextureCache.getInstance().acquire(textureFile,
+                    Color.BLACK, pixelFormat);
+                sharedTextures.add(sharedTexture);
+                textures[i] = sharedTexture.getTexture();
+                if (textures[i] == null) {
+                    throw new IOException("Couldn't load texture " +
+                        textureFile);
+                }
+            }
+
+            // lights
+            lights = new PointLight3D[in.getInt()];
+            List lightList = new ArrayList();
+            for (int i=0; i<lights.length; i++) {
+                Vector3D v = getVector();
+                float intensity = in.getFloat();
+                float falloff = in.getFloat();
+                lights[i] = new PointLight3D(v.x, v.y, v.z,
+                    intensity, falloff);
+                lightList.add(lights[i]);
+            }
+
+            // player start and objects
+            Transform3D playerStart = new Transform3D();
+            playerStart.getLocation().setTo(getVector());
+            float angleX = in.getFloat();
+            float angleY = in.getFloat();
+            float angleZ = in.getFloat();
+            playerStart.setAngle(angleX, angleY, angleZ);
+            int numObjects = in.getInt();
+            List objectDefs = new ArrayList();
+            for (int i=0; i<numObjects; i++) {
+                ObjectDef def = new ObjectDef();
+                def.name = getString();
+                def.filename = getString();
+                def.location = getVector();
+                def.angleY = in.getFloat();
+                def.radius = in.getFloat();
+                objectDefs.add(def);
+            }
+
+            // vertices and polygons
+            vertices = new Vector3D[in.getInt()];
+            for (int i=0; i<vertices.length; i++) {
+                vertices[i] = getVector();
+            }
+            polygons = new BSPPolygon[in.getInt()];
+            for (int i=0; i<polygons.length; i++) {
+                polygons[i] = readPolygon();
+            }
+
+            // nodes, leaves and portals
+            BSPTree tree = new BSPTree(readNode());
+            List leaves = tree.getLeaves();
+            Portal[] portals = new Portal[in.getInt()];
+            for (int i=0; i<portals.length; i++) {
+                BSPLine divider = getLine();
+                BSPTree.Leaf front =
+                    (BSPTree.Leaf)leaves.get(in.getInt());
+                BSPTree.Leaf back =
+                    (BSPTree.Leaf)leaves.get(in.getInt());
+                portals[i] = new Portal(divider, front, back);
+            }
+            for (int i=0; i<leaves.size(); i++) {
+                BSPTree.Leaf leaf = (BSPTree.Leaf)leaves.get(i);
+                leaf.portals = toList(
+                    (int[])leafPortals.get(leaf), portals);
+                leaf.viewPortals = toList(
+                    (int[])leafViewPortals.get(leaf), portals);
+            }
+
+            CompiledMap map = new CompiledMap(mapHash, builderName,
+                splitWeight, balanceWeight, maxCandidates, tree,
+                lightList, playerStart, objectDefs);
+            map.sourceFiles = sourceFiles;
+            map.sourceHashes = sourceHashes;
+            map.sharedTextures = sharedTextures;
+            return map;
+        }
+
+
+        private BSPPolygon readPolygon() {
+            int type = in.getInt();
+            float ambientLightIntensity = in.getFloat();
+            Vector3D normal = getVector();
+            Vector3D[] polyVertices = new Vector3D[in.getInt()];
+            for (int i=0; i<polyVertices.length; i++) {
+                polyVertices[i] = vertices[in.getInt()];
+            }
+            BSPPolygon poly = new BSPPolygon(polyVertices, type);
+            poly.setNormal(normal);
+            poly.setAmbientLightIntensity(ambientLightIntensity);
+
+            int textureIndex = in.getInt();
+            if (textureIndex == -1) {
+                return poly;
+            }
+            ShadedTexture texture = textures[textureIndex];
+            Rectangle3D textureBounds = getRectangle();
+            Rectangle3D surfaceBounds = getRectangle();
+            float surfaceAmbient = in.getFloat();
+            PointLight3D[] staticLights =
+                new PointLight3D[in.getInt()];
+            for (int i=0; i<staticLights.length; i++) {
+                staticLights[i] = lights[in.getInt()];
+            }
+            int shadeMapWidth = in.getInt();
+            int shadeMapHeight = in.getInt();
+            byte[] shadeMap = new byte[in.getInt()];
+            in.get(shadeMap);
+
+            // same as ShadedSurface.createShadedSurface()
+            ShadedSurface surface = new ShadedSurface(
+                (int)surfaceBounds.getWidth(),
+                (int)surfaceBounds.getHeight());
+            surface.setTexture(texture, textureBounds);
+            surface.setSurfaceBounds(surfaceBounds);
+            surface.setShadeMap(shadeMap, shadeMapWidth,
+                shadeMapHeight, staticLights, surfaceAmbient);
+            poly.setTexture(surface, surfaceBounds);
+            return poly;
+        }
+
+
+        private BSPTree.Node readNode() {
+            int type = in.getInt();
+            if (type == NO_NODE) {
+                return null;
+            }
+            BSPTree.Node node = (type == LEAF) ?
+                new BSPTree.Leaf() : new BSPTree.Node();
+            node.polygons = toList(getIndices(), polygons);
+            if (type == LEAF) {
+                BSPTree.Leaf leaf = (BSPTree.Leaf)node;
+                leaf.floorHeight = in.getFloat();
+                leaf.ceilHeight = in.getFloat();
+                leaf.isBack = (in.getInt() != 0);
+                if (in.getInt() != 0) {
+                    leaf.bounds = new java.awt.Rectangle(in.getInt(),
+                        in.getInt(), in.getInt(), in.getInt());
+                }
+                leafPortals.put(leaf, getIndices());
+                leafViewPortals.put(leaf, getIndices());
+            }
+            else {
+                node.partition = getLine();
+                node.front = readNode();
+                node.back = readNode();
+            }
+            return node;
+        }
+
+
+        private int[] getIndices() {
+            int count = in.getInt();
+            if (count == -1) {
+                return null;
+            }
+            int[] indices = new int[count];
+            in.asIntBuffer().get(indices);
+            in.position(in.position() + count * 4);
+            return indices;
+        }
+
+
+        private List toList(int[] indices, Object[] objects) {
+            if (indices == null) {
+                return null;
+            }
+            ArrayList list = new ArrayList(indices.length);
+            for (int i=0; i<indices.length; i++) {
+                list.add(objects[indices[i]]);
+            }
+            return list;
+        }
+
+
+        private String getString() {
+            int length = in.getInt();
+            if (length == -1) {
+                return null;
+            }
+            byte[] bytes = new byte[length];
+            in.get(bytes);
+            try {
+                return new String(bytes, "UTF-8");
+            }
+            catch (UnsupportedEncodingException ex) {
+                throw new Error(ex);
+            }
+        }
+
+
+        /**
+            Reads a file name, relative to the map's directory
+            if it isn't absolute.
+        */
+        private File getFile() {
+            File file = new File(getString());
+            if (!file.isAbsolute()) {
+                file = new File(path, file.getPath());
+            }
+            return file;
+        }
+
+
+        private Vector3D getVector() {
+            float x = in.getFloat();
+            float y = in.getFloat();
+            float z = in.getFloat();
+            return new Vector3D(x, y, z);
+        }
+
+
+        private BSPLine getLine() {
+            BSPLine line = new BSPLine();
+            line.x1 = in.getFloat();
+            line.y1 = in.getFloat();
+            line.x2 = in.getFloat();
+            line.y2 = in.getFloat();
+            line.nx = in.getFloat();
+            line.ny = in.getFloat();
+            line.top = in.getFloat();
+            line.bottom = in.getFloat();
+            return line;
+        }
+
+
+        private Rectangle3D getRectangle() {
+            Rectangle3D rect = new Rectangle3D();
+            rect.getOrigin().setTo(getVector());
+            rect.getDirectionU().setTo(getVector());
+            rect.getDirectionV().setTo(getVector());
+            rect.setNormal(getVector());
+            rect.setWidth(in.getFloat());
+            rect.setHeight(in.getFloat());
+            return rect;
+        }
+    }
+
+
+    /**
+        Writes little-endian values to a growing buffer.
+    */
+    private static class MapWriter {
+
+        private ByteBuffer out = newBuffer(65536);
+
+        private static ByteBuffer newBuffer(int capacity) {
+            return ByteBuffer.allocate(capacity).order(
+                ByteOrder.LITTLE_ENDIAN);
+        }
+
+
+        private void ensureCapacity(int bytes) {
+            if (out.remaining() < bytes) {
+                ByteBuffer newOut = newBuffer(Math.max(
+                    out.capacity() * 2, out.position() + bytes));
+                out.flip();
+                newOut.put(out);
+                out = newOut;
+            }
+        }
+
+
+        void putInt(int value) {
+            ensureCapacity(4);
+            out.putInt(value);
+        }
+
+
+        void putLong(long value) {
+            ensureCapacity(8);
+            out.putLong(value);
+        }
+
+
+        void putFloat(float value) {
+            ensureCapacity(4);
+            out.putFloat(value);
+        }
+
+
+        void putBytes(byte[] bytes) {
+            putInt(bytes.length);
+            ensureCapacity(bytes.length);
+            out.put(bytes);
+        }
+
+
+        void putString(String s) {
+            if (s == null) {
+                putInt(-1);
+                return;
+            }
+            try {
+                putBytes(s.getBytes("UTF-8"));
+            }
+            catch (UnsupportedEncodingException ex) {
+                throw new Error(ex);
+            }
+        }
+
+
+        void putVector(Vector3D v) {
+            putFloat(v.x);
+            putFloat(v.y);
+            putFloat(v.z);
+        }
+
+
+        void putLine(BSPLine line) {
+            putFloat(line.x1);
+            putFloat(line.y1);
+            putFloat(line.x2);
+            putFloat(line.y2);
+            putFloat(line.nx);
+            putFloat(line.ny);
+            putFloat(line.top);
+            putFloat(line.bottom);
+        }
+
+
+        void putRectangle(Rectangle3D rect) {
+            putVector(rect.getOrigin());
+            putVector(rect.getDirectionU());
+            putVector(rect.getDirectionV());
+            putVector(rect.getNormal());
+            putFloat(rect.getWidth());
+            putFloat(rect.getHeight());
+        }
+
+
+        /**
+            Writes everything to a file, replacing it.
+        */
+        void writeTo(File file) throws IOException {
+            out.flip();
+            FileOutputStream os = new FileOutputStream(file);
+            try {
+                FileChannel channel = os.getChannel();
+                while (out.hasRemaining()) {
+                    channel.write(out);
+                }
+            }
+            finally {
+                os.close();
+            }
+        }
+    }
+
+
+    /**
+        Compiles maps ahead of time, the same way ShooterCore
+        loads them.
+    */
+    public static void main(String[] args) throws IOException {
+        if (args.length == 0) {
+            System.out.println("Usage: CompiledMap mapFile...");
+            return;
+        }
+        for (int i=0; i<args.length; i++) {
+            MapLoader loader = new MapLoader(
+                new BSPTreeBuilderWithPortals());
+            loader.compileMap(args[i]);
+        }
+    }
+}
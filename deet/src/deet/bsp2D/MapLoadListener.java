@@ -0,0 +1,20 @@
+package deet.bsp2D;
+
+
+/**
+    A MapLoadListener is an interface for a MapLoader to report
+    its progress while loading a map. Maps can be loaded on
+    another thread, so the listener may be called from any
+    thread.
+*/
+public interface MapLoadListener {
+
+    /**
+        Called when a MapLoader starts a stage of loading a map.
+        The progress is the fraction of the map loaded so far,
+        from 0 to 1. The last call, when the map is loaded, has
+        a progress of 1.
+    */
+    public void loadProgress(String stage, float progress);
+
+}
@@ -3,8 +3,11 @@ package deet.bsp2D;
 import java.io.*;
 import java.util.*;
 
+import deet.graphics3D.texture.PixelFormat;
+import deet.graphics3D.texture.TextureCache;
 import deet.math3D.*;
 import deet.object.GameObject;
+import deet.util.ThreadPool;
 
 /**
     The MapLoader class loads maps from a text file based on
@@ -77,6 +80,11 @@ public class MapLoader extends ObjectLoader {
     private RoomDef currentRoom;
     private List rooms;
     private List mapObjects;
+    private List objectDefs;
+    private boolean useCompiledMaps = true;
+    private MapLoadListener loadListener;
+    // the textures of the compiled map loaded, if any
+    private List compiledTextures;
 
     // use a separate ObjectLoader for objects
     private ObjectLoader objectLoader;
@@ -107,26 +115,316 @@ public class MapLoader extends ObjectLoader {
         loadedObjects = new HashMap();
         rooms = new ArrayList();
         mapObjects = new ArrayList();
+        objectDefs = new ArrayList();
+        compiledTextures = new ArrayList();
+    }
+
+
+    /**
+        Sets whether maps are saved to, and loaded from, compiled
+        ".bsp" files next to the map files (see CompiledMap). The
+        default is true.
+    */
+    public void setCompiledMaps(boolean useCompiledMaps) {
+        this.useCompiledMaps = useCompiledMaps;
+    }
+
+
+    /**
+        Sets the listener told about the progress of loading a
+        map, or null for none.
+    */
+    public void setLoadListener(MapLoadListener loadListener) {
+        this.loadListener = loadListener;
+    }
+
+
+    /**
+        Tells the load listener, if any, that a stage of loading
+        the map has started.
+    */
+    protected void loadProgress(String stage, float progress) {
+        if (loadListener != null) {
+            loadListener.loadProgress(stage, progress);
+        }
     }
 
 
     /**
         Loads a map file and creates a BSP tree. Objects
         created can be retrieved from the getObjectsInMap()
-        method.
+        method. If compiled maps are used (see setCompiledMaps())
+        and the map was compiled with the same kind of builder
+        and builder settings since it, its MTL files or its
+        texture images last changed, the compiled map is loaded
+        instead. Otherwise, the map is compiled after loading it.
     */
     public BSPTree loadMap(String filename) throws IOException {
+        if (!useCompiledMaps) {
+            BSPTree tree = parseMap(filename);
+            loadProgress("Done", 1);
+            return tree;
+        }
+
+        File mapFile = new File(filename);
+        File compiledFile = new File(filename + ".bsp");
+        long mapHash = PotentiallyVisibleSet.calcHash(mapFile);
+        if (compiledFile.exists()) {
+            loadProgress("Loading map", 0);
+            long startTime = System.nanoTime();
+            CompiledMap map = null;
+            try {
+                map = CompiledMap.load(compiledFile,
+                    mapFile.getParentFile(), pixelFormat);
+            }
+            catch (IOException ex) {
+                System.out.println("Couldn't load " + compiledFile +
+                    ": " + ex);
+            }
+            if (map != null &&
+                map.matches(mapHash, builder))
+            {
+                long mapTime = System.nanoTime();
+                loadProgress("Loading objects", .3f);
+                BSPTree tree = loadCompiledMap(map, mapFile);
+                loadProgress("Loading visibility", .9f);
+                loadPotentiallyVisibleSet(tree, mapFile);
+                loadProgress("Done", 1);
+                System.out.println("Loaded " + compiledFile +
+                    ": map " + (mapTime - startTime) / 1000000 +
+                    "ms, objects " +
+                    (System.nanoTime() - mapTime) / 1000000 + "ms");
+                System.out.println("Textures: " +
+                    TextureCache.getReport(getSharedTextures()));
+                return tree;
+            }
+            if (map != null) {
+                map.releaseTextures();
+            }
+        }
+
+        BSPTree tree = parseMap(filename);
+        loadProgress("Saving compiled map", .95f);
+        saveCompiledMap(tree, mapHash, compiledFile);
+        loadProgress("Done", 1);
+        return tree;
+    }
+
+
+    /**
+        Loads a map file, builds its BSP tree and saves it as a
+        compiled ".bsp" file next to the map file, whether or not
+        compiled maps are used.
+    */
+    public BSPTree compileMap(String filename) throws IOException {
+        File mapFile = new File(filename);
+        BSPTree tree = parseMap(filename);
+        loadProgress("Saving compiled map", .95f);
+        saveCompiledMap(tree, PotentiallyVisibleSet.calcHash(mapFile),
+            new File(filename + ".bsp"));
+        loadProgress("Done", 1);
+        return tree;
+    }
+
+
+    /**
+        Parses a map file and creates its BSP tree, surfaces and
+        PotentiallyVisibleSet. The objects in the map are loaded
+        on another thread while the tree is built.
+    */
+    protected BSPTree parseMap(String filename) throws IOException {
+        startMap(filename);
+
+        loadProgress("Parsing map", 0);
+        long startTime = System.nanoTime();
+        parseFile(filename);
+        long parseTime = System.nanoTime();
+
+        // the objects don't depend on the tree
+        final IOException[] error = new IOException[1];
+        final long[] objectTime = new long[1];
+        ThreadPool objectThread = new ThreadPool(1);
+        BSPTree tree;
+        long treeTime;
+        long surfaceTime;
+        long pvsTime;
+        try {
+            objectThread.runTask(new Runnable() {
+                public void run() {
+                    try {
+                        createObjects();
+                    }
+                    catch (IOException ex) {
+                        synchronized (error) {
+                            error[0] = ex;
+                        }
+                    }
+                    objectTime[0] = System.nanoTime();
+                }
+            });
+
+            loadProgress("Building BSP tree", .45f);
+            tree = createBSPTree();
+            treeTime = System.nanoTime();
+
+            // create polygon surfaces based on the lights.
+            loadProgress("Lighting", .6f);
+            tree.createSurfaces(lights);
+            surfaceTime = System.nanoTime();
+
+            loadProgress("Finding visible areas", .7f);
+            loadPotentiallyVisibleSet(tree, new File(filename));
+            pvsTime = System.nanoTime();
+
+            loadProgress("Loading objects", .8f);
+        }
+        finally {
+            // wait for the objects even if building the tree
+            // failed, so they don't keep loading into this loader
+            objectThread.join();
+        }
+        synchronized (error) {
+            if (error[0] != null) {
+                throw error[0];
+            }
+        }
+
+        System.out.println("Loaded " + filename + ": parse " +
+            (parseTime - startTime) / 1000000 + "ms, tree " +
+            (treeTime - parseTime) / 1000000 + "ms, surfaces " +
+            (surfaceTime - treeTime) / 1000000 + "ms, pvs " +
+            (pvsTime - surfaceTime) / 1000000 + "ms, objects " +
+            (objectTime[0] - parseTime) / 1000000 +
+            "ms (in parallel)");
+        System.out.println("BSP tree: " + builder.getStatistics());
+        System.out.println("Textures: " +
+            TextureCache.getReport(getSharedTextures()));
+        return tree;
+    }
+
+
+    /**
+        Clears everything from the last map loaded.
+    */
+    private void startMap(String filename) {
         currentRoom = null;
         rooms.clear();
         vertices.clear();
         mapObjects.clear();
+        objectDefs.clear();
+        mtlFiles.clear();
         playerStart = new Transform3D();
 
         path = new File(filename).getParentFile();
+    }
 
-        parseFile(filename);
 
-        return createBSPTree();
+    /**
+        Uses the tree, lights, player start location and objects
+        of a compiled map.
+    */
+    protected BSPTree loadCompiledMap(CompiledMap map, File mapFile)
+        throws IOException
+    {
+        startMap(mapFile.getPath());
+        compiledTextures.addAll(map.getSharedTextures());
+        lights.addAll(map.getLights());
+        playerStart = map.getPlayerStartLocation();
+        objectDefs.addAll(map.getObjectDefs());
+        createObjects();
+        return map.getTree();
+    }
+
+
+    /**
+        Gets the shared textures of the map and of its objects,
+        decoded or not (see TextureCache.getReport()).
+    */
+    public List getSharedTextures() {
+        List sharedTextures = super.getSharedTextures();
+        sharedTextures.addAll(compiledTextures);
+        sharedTextures.addAll(objectLoader.getSharedTextures());
+        return sharedTextures;
+    }
+
+
+    /**
+        Releases the shared textures of the map and of its
+        objects back to the TextureCache. Call this when the map
+        isn't used anymore.
+    */
+    public void releaseTextures() {
+        super.releaseTextures();
+        TextureCache cache = TextureCache.getInstance();
+        for (int i=0; i<compiledTextures.size(); i++) {
+            cache.release(
+                (TextureCache.SharedTexture)compiledTextures.get(i));
+        }
+        compiledTextures.clear();
+        objectLoader.releaseTextures();
+    }
+
+
+    /**
+        Saves a tree built from the current map to a compiled
+        map file. Errors are printed, since the map still works.
+    */
+    private void saveCompiledMap(BSPTree tree, long mapHash,
+        File compiledFile)
+    {
+        List sourceFiles = new ArrayList();
+        for (int i=0; i<mtlFiles.size(); i++) {
+            sourceFiles.add(new File(path, (String)mtlFiles.get(i)));
+        }
+        CompiledMap map = new CompiledMap(mapHash, sourceFiles,
+            builder, tree, lights, playerStart, objectDefs);
+        try {
+            map.save(compiledFile, materials.values(), path);
+        }
+        catch (IOException ex) {
+            System.out.println("Couldn't save " + compiledFile +
+                ": " + ex);
+        }
+    }
+
+
+    /**
+        Loads the PotentiallyVisibleSet of a tree from a ".pvs"
+        file next to the map file. If the file doesn't exist, or
+        was baked for a different version of the map, the set is
+        baked and saved. Nothing is done if the tree has no
+        portals.
+    */
+    protected void loadPotentiallyVisibleSet(BSPTree tree,
+        File mapFile) throws IOException
+    {
+        if (!(builder instanceof BSPTreeBuilderWithPortals)) {
+            return;
+        }
+
+        long mapHash = PotentiallyVisibleSet.calcHash(mapFile);
+        File pvsFile = new File(mapFile.getPath() + ".pvs");
+        PotentiallyVisibleSet pvs = null;
+        if (pvsFile.exists()) {
+            try {
+                pvs = PotentiallyVisibleSet.load(pvsFile);
+            }
+            catch (IOException ex) {
+                ex.printStackTrace();
+            }
+        }
+        if (pvs == null || !pvs.matches(tree, mapHash)) {
+            pvs = PotentiallyVisibleSet.bake(tree, mapHash);
+            try {
+                pvs.save(pvsFile);
+            }
+            catch (IOException ex) {
+                // the set still works, it just isn't saved
+                System.out.println("Couldn't save " + pvsFile +
+                    ": " + ex);
+            }
+        }
+        tree.setPotentiallyVisibleSet(pvs);
     }
 
 
@@ -142,11 +440,7 @@ public class MapLoader extends ObjectLoader {
         }
 
         // build the tree
-        BSPTree tree = builder.build(allPolygons);
-
-        // create polygon surfaces based on the lights.
-        tree.createSurfaces(lights);
-        return tree;
+        return builder.build(allPolygons);
     }
 
 
@@ -176,6 +470,107 @@ public class MapLoader extends ObjectLoader {
     }
 
 
+    /**
+        Sets the pixel format of the textures of the map and of
+        its OBJ objects.
+    */
+    public void setPixelFormat(PixelFormat pixelFormat) {
+        super.setPixelFormat(pixelFormat);
+        objectLoader.setPixelFormat(pixelFormat);
+    }
+
+
+    /**
+        Adds an object from an external OBJ file to the map. The
+        name can be "null" if no unique name is needed. The
+        angle, in radians around the y-axis, isn't set if it's
+        NaN. The object is created by createObjects().
+    */
+    protected void addObject(String uniqueName, String filename,
+        Vector3D loc, float angleY)
+    {
+        CompiledMap.ObjectDef def = new CompiledMap.ObjectDef();
+        def.name = uniqueName;
+        def.filename = filename;
+        def.location = new Vector3D(loc);
+        def.angleY = angleY;
+        objectDefs.add(def);
+    }
+
+
+    /**
+        Adds a trigger with the specified radius to the map. The
+        trigger is created by createObjects().
+    */
+    protected void addTrigger(String uniqueName, Vector3D loc,
+        float r)
+    {
+        CompiledMap.ObjectDef def = new CompiledMap.ObjectDef();
+        def.name = uniqueName;
+        def.location = new Vector3D(loc);
+        def.radius = r;
+        objectDefs.add(def);
+    }
+
+
+    /**
+        Creates the objects and triggers added to the map. OBJ
+        files that haven't been loaded yet are loaded in parallel
+        (see ObjectLoader.loadObjects()), and each object in the
+        map is a clone of its file's object.
+    */
+    protected void createObjects() throws IOException {
+        // load the new OBJ files
+        List filenames = new ArrayList();
+        for (int i=0; i<objectDefs.size(); i++) {
+            CompiledMap.ObjectDef def =
+                (CompiledMap.ObjectDef)objectDefs.get(i);
+            if (def.filename != null &&
+                !loadedObjects.containsKey(def.filename) &&
+                !filenames.contains(def.filename))
+            {
+                filenames.add(def.filename);
+            }
+        }
+        String[] paths = new String[filenames.size()];
+        for (int i=0; i<paths.length; i++) {
+            paths[i] = new File(path,
+                (String)filenames.get(i)).getPath();
+        }
+        PolygonGroup[] objects = objectLoader.loadObjects(paths);
+        for (int i=0; i<objects.length; i++) {
+            loadedObjects.put(filenames.get(i), objects[i]);
+        }
+
+        for (int i=0; i<objectDefs.size(); i++) {
+            CompiledMap.ObjectDef def =
+                (CompiledMap.ObjectDef)objectDefs.get(i);
+            if (def.filename == null) {
+                GameObject object = new GameObject(
+                    new PolygonGroup(def.name));
+                object.getTransform().getLocation().setTo(
+                    def.location);
+                object.getBounds().setTopHeight(32);
+                object.getBounds().setRadius(def.radius);
+                mapObjects.add(object);
+                continue;
+            }
+            PolygonGroup object =
+                (PolygonGroup)loadedObjects.get(def.filename);
+            PolygonGroup mapObject = (PolygonGroup)object.clone();
+            mapObject.getTransform().getLocation().setTo(
+                def.location);
+            if (!def.name.equals("null")) {
+                mapObject.setName(def.name);
+            }
+            if (!Float.isNaN(def.angleY)) {
+                mapObject.getTransform().setAngleY(def.angleY);
+            }
+            mapObjects.add(mapObject);
+        }
+    }
+
+
     /**
         Parses a line in a MAP file.
     */
@@ -248,38 +643,18 @@ public class MapLoader extends ObjectLoader {
                 // create a new obj from an object file
                 String uniqueName = tokenizer.nextToken();
                 String filename = tokenizer.nextToken();
-                // check if the object is already loaded
-                PolygonGroup object =
-                    (PolygonGroup)loadedObjects.get(filename);
-                if (object == null) {
-                    File file = new File(path, filename);
-                    String filePath = file.getPath();
-                    object = objectLoader.loadObject(filePath);
-                    loadedObjects.put(filename, object);
-                }
                 Vector3D loc = getVector(tokenizer.nextToken());
-                PolygonGroup mapObject =
-                    (PolygonGroup)object.clone();
-                mapObject.getTransform().getLocation().setTo(loc);
-                if (!uniqueName.equals("null")) {
-                    mapObject.setName(uniqueName);
-                }
+                float angleY = Float.NaN;
                 if (tokenizer.hasMoreTokens()) {
-                    mapObject.getTransform().setAngleY(
-                        Float.parseFloat(tokenizer.nextToken()));
+                    angleY = Float.parseFloat(tokenizer.nextToken());
                 }
-                mapObjects.add(mapObject);
+                addObject(uniqueName, filename, loc, angleY);
             }
             else if (command.equals("trigger")) {
                 String uniqueName = tokenizer.nextToken();
                 Vector3D loc = getVector(tokenizer.nextToken());
                 float r = Float.parseFloat(tokenizer.nextToken());
-                GameObject object = new GameObject(
-                    new PolygonGroup(uniqueName));
-                object.getTransform().getLocation().setTo(loc);
-                object.getBounds().setTopHeight(32);
-                object.getBounds().setRadius(r);
-                mapObjects.add(object);
+                addTrigger(uniqueName, loc, r);
             }
             else if (command.equals("room")) {
                 // start a new room
@@ -289,12 +664,14 @@ public class MapLoader extends ObjectLoader {
             else if (command.equals("floor")) {
                 // define a room's floor
                 float y = Float.parseFloat(tokenizer.nextToken());
-                currentRoom.setFloor(y, currentMaterial.texture);
+                currentRoom.setFloor(y,
+                    currentMaterial.getTexture());
             }
             else if (command.equals("ceil")) {
                 // define a room's ceiling
                 float y = Float.parseFloat(tokenizer.nextToken());
-                currentRoom.setCeil(y, currentMaterial.texture);
+                currentRoom.setCeil(y,
+                    currentMaterial.getTexture());
             }
             else if (command.equals("wall")) {
                 // define a wall vertex in a room.
@@ -306,11 +683,11 @@ public class MapLoader extends ObjectLoader {
                     float top =
                         Float.parseFloat(tokenizer.nextToken());
                     currentRoom.addVertex(x, z, bottom, top,
-                        currentMaterial.texture);
+                        currentMaterial.getTexture());
                 }
                 else {
                     currentRoom.addVertex(x, z,
-                        currentMaterial.texture);
+                        currentMaterial.getTexture());
                 }
             }
             else {
@@ -38,6 +38,39 @@ public class Portal extends AStarNode {
     }
 
 
+    /**
+        Gets the line dividing the two leaves of this Portal.
+    */
+    public BSPLine getDivider() {
+        return divider;
+    }
+
+
+    /**
+        Gets the leaf in front of this Portal.
+    */
+    public BSPTree.Leaf getFrontLeaf() {
+        return front;
+    }
+
+
+    /**
+        Gets the leaf in back of this Portal.
+    */
+    public BSPTree.Leaf getBackLeaf() {
+        return back;
+    }
+
+
+    /**
+        Gets the leaf on the other side of this Portal from the
+        specified leaf.
+    */
+    public BSPTree.Leaf getOtherLeaf(BSPTree.Leaf leaf) {
+        return (leaf == front)?back:front;
+    }
+
+
     /**
         Gets the mid-point along this Portal's divider.
     */
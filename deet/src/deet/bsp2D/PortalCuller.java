@@ -0,0 +1,220 @@
+package deet.bsp2D;
+
+import java.util.List;
+
+import deet.math3D.*;
+
+/**
+    The PortalCuller finds the leaves of a BSP tree that are
+    visible from the camera. Starting in the camera's leaf, it
+    floods outward through the leaf's view portals. Each portal is
+    projected to the screen, and the next leaf is only visited
+    if the portal's screen bounds overlap the screen bounds of
+    the portals the flood has already passed through. The
+    result is conservative: a leaf is never culled if any part
+    of it could be visible (as long as the camera isn't closer
+    than the near clip plane to a wall, which collision
+    detection prevents).
+*/
+public class PortalCuller {
+
+    /**
+        If the camera is closer than this to a portal, the
+        portal is treated as covering the whole view, since part
+        of it is in front of the near clip plane.
+    */
+    private static final float NEAR_DISTANCE = 8;
+
+    /**
+        Extra pixels added around each projected portal to cover
+        rounding in the scan converter.
+    */
+    private static final float MARGIN = 1;
+
+    private Polygon3D portalPolygon;
+    private Polygon3D clipPolygon;
+    private Transform3D camera;
+    private ViewWindow view;
+    private BSPTreeVisibility visibility;
+    private boolean[] onPath = new boolean[0];
+    private float[] visitedWindows = new float[0];
+    private int numPortalsTested;
+    private float portalLeft;
+    private float portalTop;
+    private float portalRight;
+    private float portalBottom;
+
+    /**
+        Creates a new PortalCuller.
+    */
+    public PortalCuller() {
+        portalPolygon = new Polygon3D(new Vector3D(),
+            new Vector3D(), new Vector3D(), new Vector3D());
+        clipPolygon = new Polygon3D();
+    }
+
+
+    /**
+        Finds the leaves of the tree visible from the specified
+        camera and stores them in the specified visibility set.
+        If the camera isn't inside a leaf with portals (for
+        example, the tree was built without portals, or the
+        camera is outside the map), every leaf is marked
+        visible.
+    */
+    public void findVisibleLeaves(BSPTree tree, Transform3D camera,
+        ViewWindow view, BSPTreeVisibility visibility)
+    {
+        this.camera = camera;
+        this.view = view;
+        this.visibility = visibility;
+        numPortalsTested = 0;
+
+        visibility.clear(tree);
+        Vector3D location = camera.getLocation();
+        BSPTree.Leaf leaf = tree.getLeaf(location.x, location.z);
+        if (leaf == null || leaf.bounds == null ||
+            leaf.viewPortals == null ||
+            !leaf.bounds.contains(location.x, location.z))
+        {
+            visibility.setAllVisible();
+            return;
+        }
+
+        int numLeaves = tree.getLeaves().size();
+        if (onPath.length < numLeaves) {
+            onPath = new boolean[numLeaves];
+            visitedWindows = new float[numLeaves*4];
+        }
+        for (int i=0; i<numLeaves; i++) {
+            // an empty window, so any window is larger
+            visitedWindows[i*4] = Float.MAX_VALUE;
+        }
+
+        float left = view.getLeftOffset();
+        float top = view.getTopOffset();
+        flood(leaf, left, top, left + view.getWidth(),
+            top + view.getHeight());
+    }
+
+
+    /**
+        Gets the number of portals projected in the last call to
+        findVisibleLeaves().
+    */
+    public int getNumPortalsTested() {
+        return numPortalsTested;
+    }
+
+
+    /**
+        Marks a leaf visible and floods through its portals that
+        are visible within the specified screen window.
+    */
+    private void flood(BSPTree.Leaf leaf, float left, float top,
+        float right, float bottom)
+    {
+        int index = leaf.firstLeaf;
+        visibility.setVisible(leaf);
+
+        // skip if this leaf was already flooded through a
+        // window containing this one
+        int w = index*4;
+        if (visitedWindows[w] <= left &&
+            visitedWindows[w+1] <= top &&
+            visitedWindows[w+2] >= right &&
+            visitedWindows[w+3] >= bottom)
+        {
+            return;
+        }
+        visitedWindows[w] = left;
+        visitedWindows[w+1] = top;
+        visitedWindows[w+2] = right;
+        visitedWindows[w+3] = bottom;
+
+        onPath[index] = true;
+        List portals = leaf.viewPortals;
+        for (int i=0; portals != null && i<portals.size(); i++) {
+            Portal portal = (Portal)portals.get(i);
+            BSPTree.Leaf next = portal.getOtherLeaf(leaf);
+            if (next == null || onPath[next.firstLeaf]) {
+                continue;
+            }
+
+            numPortalsTested++;
+            float pLeft = left;
+            float pTop = top;
+            float pRight = right;
+            float pBottom = bottom;
+            if (!isNear(portal)) {
+                if (!project(portal)) {
+                    continue;
+                }
+                // intersect the portal with the current window
+                pLeft = Math.max(left, portalLeft);
+                pTop = Math.max(top, portalTop);
+                pRight = Math.min(right, portalRight);
+                pBottom = Math.min(bottom, portalBottom);
+                if (pLeft >= pRight || pTop >= pBottom) {
+                    continue;
+                }
+            }
+            flood(next, pLeft, pTop, pRight, pBottom);
+        }
+        onPath[index] = false;
+    }
+
+    /**
+        Checks if the camera is within NEAR_DISTANCE of the
+        specified portal (in the x-z plane).
+    */
+    private boolean isNear(Portal portal) {
+        Vector3D location = camera.getLocation();
+        BSPLine line = portal.getDivider();
+        return (line.ptSegDistSq(location.x, location.z) <
+            NEAR_DISTANCE * NEAR_DISTANCE);
+    }
+
+
+    /**
+        Projects a portal to the screen and sets its screen
+        bounds. The portal spans from the lowest floor to the
+        highest ceiling of its two leaves. Returns false if the
+        portal is completely behind the camera.
+    */
+    private boolean project(Portal portal) {
+        BSPLine line = portal.getDivider();
+        BSPTree.Leaf front = portal.getFrontLeaf();
+        BSPTree.Leaf back = portal.getBackLeaf();
+        float floor = Math.min(front.floorHeight, back.floorHeight);
+        float ceil = Math.max(front.ceilHeight, back.ceilHeight);
+        portalPolygon.getVertex(0).setTo(line.x1, floor, line.y1);
+        portalPolygon.getVertex(1).setTo(line.x2, floor, line.y2);
+        portalPolygon.getVertex(2).setTo(line.x2, ceil, line.y2);
+        portalPolygon.getVertex(3).setTo(line.x1, ceil, line.y1);
+
+        clipPolygon.setTo(portalPolygon);
+        clipPolygon.subtract(camera);
+        if (!clipPolygon.clip(-1)) {
+            return false;
+        }
+        clipPolygon.project(view);
+
+        portalLeft = Float.MAX_VALUE;
+        portalTop = Float.MAX_VALUE;
+        portalRight = -Float.MAX_VALUE;
+        portalBottom = -Float.MAX_VALUE;
+        for (int i=0; i<clipPolygon.getNumVertices(); i++) {
+            Vector3D v = clipPolygon.getVertex(i);
+            portalLeft = Math.min(portalLeft, v.x);
+            portalTop = Math.min(portalTop, v.y);
+            portalRight = Math.max(portalRight, v.x);
+            portalBottom = Math.max(portalBottom, v.y);
+        }
+        portalLeft -= MARGIN;
+        portalTop -= MARGIN;
+        portalRight += MARGIN;
+        portalBottom += MARGIN;
+        return true;
+    }
+}
@@ -0,0 +1,531 @@
+package deet.bsp2D;
+
+import java.io.*;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import deet.math3D.Polygon3D;
+import deet.util.ThreadPool;
+
+/**
+    A PotentiallyVisibleSet (PVS) holds, for every leaf of a BSP
+    tree, the set of leaves that could be seen from anywhere in
+    that leaf. It is baked from the view portals of a tree built
+    with a BSPTreeBuilderWithPortals, and can be saved to a
+    compact run-length encoded file next to the map.
+    <p>Baking works in 2D (looking down on the map). A leaf is
+    potentially visible from a source leaf if a line can pass
+    through every portal between them. Since any 3D line of
+    sight projects to a 2D line, the result is conservative.
+*/
+public class PotentiallyVisibleSet {
+
+    // "PVS1"
+    private static final int MAGIC = 0x50565331;
+
+    /**
+        Clipped portals are grown by this much (in map units)
+        so floating point error never loses a leaf.
+    */
+    private static final float EPSILON = 1;
+
+    private BitSet[] visibleLeaves;
+    private long mapHash;
+    private long treeSignature;
+
+    /**
+        Creates a new, empty PotentiallyVisibleSet.
+    */
+    private PotentiallyVisibleSet(int numLeaves, long mapHash,
+        long treeSignature)
+    {
+        visibleLeaves = new BitSet[numLeaves];
+        this.mapHash = mapHash;
+        this.treeSignature = treeSignature;
+    }
+
+
+    /**
+        Bakes the PotentiallyVisibleSet of a tree. The leaves are
+        baked in parallel on a ThreadPool with one thread per
+        available processor. The map hash is stored so the set
+        can be checked against the map later (see matches()).
+    */
+    public static PotentiallyVisibleSet bake(BSPTree tree,
+        long mapHash)
+    {
+        List leaves = tree.getLeaves();
+        final PotentiallyVisibleSet pvs = new PotentiallyVisibleSet(
+            leaves.size(), mapHash, calcTreeSignature(tree));
+
+        final float[][] centers = calcLeafCenters(leaves);
+        ThreadPool threadPool = new ThreadPool(
+            Runtime.getRuntime().availableProcessors());
+        for (int i=0; i<leaves.size(); i++) {
+            final BSPTree.Leaf leaf = (BSPTree.Leaf)leaves.get(i);
+            threadPool.runTask(new Runnable() {
+                public void run() {
+                    pvs.visibleLeaves[leaf.firstLeaf] =
+                        new LeafBaker(centers).bake(leaf);
+                }
+            });
+        }
+        threadPool.join();
+
+        // if a leaf failed to bake, everything is visible from it
+        for (int i=0; i<pvs.visibleLeaves.length; i++) {
+            if (pvs.visibleLeaves[i] == null) {
+                pvs.visibleLeaves[i] = new BitSet(leaves.size());
+                pvs.visibleLeaves[i].set(0, leaves.size());
+            }
+        }
+        return pvs;
+    }
+
+
+    /**
+        Finds a point inside every leaf (the average of the
+        vertices of its first polygon, which is inside since
+        leaves are convex). Returns the x and z arrays.
+    */
+    private static float[][] calcLeafCenters(List leaves) {
+        float[][] centers = new float[2][leaves.size()];
+        for (int i=0; i<leaves.size(); i++) {
+            BSPTree.Leaf leaf = (BSPTree.Leaf)leaves.get(i);
+            if (leaf.polygons == null || leaf.polygons.size() == 0) {
+                continue;
+            }
+            Polygon3D poly = (Polygon3D)leaf.polygons.get(0);
+            for (int j=0; j<poly.getNumVertices(); j++) {
+                centers[0][i] += poly.getVertex(j).x;
+                centers[1][i] += poly.getVertex(j).z;
+            }
+            centers[0][i] /= poly.getNumVertices();
+            centers[1][i] /= poly.getNumVertices();
+        }
+        return centers;
+    }
+
+
+    /**
+        Gets the leaves (as a set of leaf indices) potentially
+        visible from the specified leaf.
+    */
+    public BitSet getVisibleLeaves(BSPTree.Leaf leaf) {
+        return visibleLeaves[leaf.firstLeaf];
+    }
+
+
+    /**
+        Gets the number of leaves in this set.
+    */
+    public int getNumLeaves() {
+        return visibleLeaves.length;
+    }
+
+
+    /**
+        Checks if this PotentiallyVisibleSet was baked for the
+        specified tree and map hash.
+    */
+    public boolean matches(BSPTree tree, long mapHash) {
+        return (this.mapHash == mapHash &&
+            visibleLeaves.length == tree.getLeaves().size() &&
+            treeSignature == calcTreeSignature(tree));
+    }
+
+
+    /**
+        Checks if any leaf under the specified node is in the
+        specified set of leaves.
+    */
+    public static boolean isVisible(BitSet leaves,
+        BSPTree.Node node)
+    {
+        int index = leaves.nextSetBit(node.firstLeaf);
+        return (index != -1 && index <= node.lastLeaf);
+    }
+
+
+    /**
+        Calculates a hash of the contents of a file.
+    */
+    public static long calcHash(File file) throws IOException {
+        CRC32 crc = new CRC32();
+        InputStream is = new FileInputStream(file);
+        try {
+            byte[] buffer = new byte[4096];
+            int count;
+            while ((count = is.read(buffer)) != -1) {
+                crc.update(buffer, 0, count);
+            }
+        }
+        finally {
+            is.close();
+        }
+        return crc.getValue();
+    }
+
+
+    /**
+        Calculates a signature of the leaves and portals of a
+        tree, so a saved set isn't used with a tree built
+        differently from the same map.
+    */
+    public static long calcTreeSignature(BSPTree tree) {
+        List leaves = tree.getLeaves();
+        long signature = leaves.size();
+        for (int i=0; i<leaves.size(); i++) {
+            BSPTree.Leaf leaf = (BSPTree.Leaf)leaves.get(i);
+            if (leaf.bounds != null) {
+                signature = signature*31 + leaf.bounds.x;
+                signature = signature*31 + leaf.bounds.y;
+                signature = signature*31 + leaf.bounds.width;
+                signature = signature*31 + leaf.bounds.height;
+            }
+            if (leaf.viewPortals != null) {
+                signature = signature*31 + leaf.viewPortals.size();
+            }
+        }
+        return signature;
+    }
+
+
+    /**
+        Saves this set to a file. The rows of the leaf-to-leaf
+        visibility matrix are written as one stream of bits,
+        stored as alternating runs of 0s and 1s (starting with
+        0s), each run length written as a variable-length int.
+    */
+    public void save(File file) throws IOException {
+        DataOutputStream out = new DataOutputStream(
+            new BufferedOutputStream(new FileOutputStream(file)));
+        try {
+            int numLeaves = visibleLeaves.length;
+            out.writeInt(MAGIC);
+            out.writeLong(mapHash);
+            out.writeLong(treeSignature);
+            out.writeInt(numLeaves);
+
+            boolean bit = false;
+            int run = 0;
+            for (int i=0; i<numLeaves; i++) {
+                for (int j=0; j<numLeaves; j++) {
+                    if (visibleLeaves[i].get(j) != bit) {
+                        writeVarInt(out, run);
+                        bit = !bit;
+                        run = 0;
+                    }
+                    run++;
+                }
+            }
+            writeVarInt(out, run);
+        }
+        finally {
+            out.close();
+        }
+    }
+
+
+    /**
+        Loads a set saved with save().
+    */
+    public static PotentiallyVisibleSet load(File file)
+        throws IOException
+    {
+        DataInputStream in = new DataInputStream(
+            new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not a PVS file: " + file);
+            }
+            long mapHash = in.readLong();
+            long treeSignature = in.readLong();
+            int numLeaves = in.readInt();
+            PotentiallyVisibleSet pvs = new PotentiallyVisibleSet(
+                numLeaves, mapHash, treeSignature);
+            for (int i=0; i<numLeaves; i++) {
+                pvs.visibleLeaves[i] = new BitSet(numLeaves);
+            }
+
+            boolean bit = false;
+            long index = 0;
+            long total = (long)numLeaves * numLeaves;
+            while (index < total) {
+                int run = readVarInt(in);
+                if (bit) {
+                    for (long k=index; k<index+run; k++) {
+                        pvs.visibleLeaves[(int)(k / numLeaves)].set(
+                            (int)(k % numLeaves));
+                    }
+                }
+                index += run;
+                bit = !bit;
+            }
+            return pvs;
+        }
+        finally {
+            in.close();
+        }
+    }
+
+
+    private static void writeVarInt(DataOutputStream out, int value)
+        throws IOException
+    {
+        while ((value & ~0x7f) != 0) {
+            out.writeByte((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+
+    private static int readVarInt(DataInputStream in)
+        throws IOException
+    {
+        int value = 0;
+        int shift = 0;
+        int b;
+        do {
+            b = in.readUnsignedByte();
+            value |= (b & 0x7f) << shift;
+            shift += 7;
+        }
+        while ((b & 0x80) != 0);
+        return value;
+    }
+
+
+    /**
+        Bakes the visible leaves of one source leaf. For every
+        portal out of the source leaf, the baker floods through
+        the view portals beyond it. Each portal is clipped to the
+        wedge of lines that pass through both the source portal
+        and the (clipped) portal the flood entered through. Only
+        the part of the source portal in front of the entry
+        portal (and the part of the entry portal beyond the
+        source portal) is used for the wedge, since a line can
+        only pass through them in that order. This
+        is a superset of the lines that pass through every portal
+        on the way, so the result is conservative.
+    */
+    private static class LeafBaker {
+
+        private BitSet visible;
+        private boolean[] onPath;
+        private HashMap flooded;
+        private float[] centerX;
+        private float[] centerZ;
+        private Portal source;
+        private BSPTree.Leaf first;
+
+        LeafBaker(float[][] centers) {
+            centerX = centers[0];
+            centerZ = centers[1];
+            int numLeaves = centerX.length;
+            visible = new BitSet(numLeaves);
+            onPath = new boolean[numLeaves];
+            flooded = new HashMap();
+        }
+
+
+        BitSet bake(BSPTree.Leaf leaf) {
+            visible.set(leaf.firstLeaf);
+            List portals = leaf.viewPortals;
+            if (leaf.bounds == null || portals == null) {
+                return visible;
+            }
+            onPath[leaf.firstLeaf] = true;
+            for (int i=0; i<portals.size(); i++) {
+                source = (Portal)portals.get(i);
+                BSPTree.Leaf next = source.getOtherLeaf(leaf);
+                if (next == null || onPath[next.firstLeaf]) {
+                    continue;
+                }
+                visible.set(next.firstLeaf);
+                flooded.clear();
+                first = next;
+
+                // every portal of the next leaf can be seen
+                // through the source portal
+                onPath[next.firstLeaf] = true;
+                List nextPortals = next.viewPortals;
+                for (int j=0; j<nextPortals.size(); j++) {
+                    Portal portal = (Portal)nextPortals.get(j);
+                    BSPTree.Leaf leaf2 = portal.getOtherLeaf(next);
+                    if (leaf2 != null && !onPath[leaf2.firstLeaf]) {
+                        visible.set(leaf2.firstLeaf);
+                        flood(next, leaf2, portal, 0, 1);
+                    }
+                }
+                onPath[next.firstLeaf] = false;
+            }
+            return visible;
+        }
+
+
+        /**
+            Floods into a leaf (from the previous leaf) through
+            part of a portal (from t0 to t1 along the portal's
+            divider).
+        */
+        private void flood(BSPTree.Leaf previous, BSPTree.Leaf leaf,
+            Portal entry, float t0, float t1)
+        {
+            if (isFlooded(entry, t0, t1)) {
+                return;
+            }
+
+            // clip the source portal to the near side of the
+            // entry portal, and the entry portal to the far side
+            // of the source portal
+            BSPLine a = source.getDivider();
+            BSPLine e = entry.getDivider();
+            float[] aRange = { 0, 1 };
+            float[] bRange = { t0, t1 };
+            if (!clip(a, e.x1, e.y1, e.x2, e.y2,
+                centerX[previous.firstLeaf],
+                centerZ[previous.firstLeaf], aRange) ||
+                !clip(e, a.x1, a.y1, a.x2, a.y2,
+                centerX[first.firstLeaf],
+                centerZ[first.firstLeaf], bRange))
+            {
+                return;
+            }
+            float ax0 = a.x1 + aRange[0] * (a.x2 - a.x1);
+            float ay0 = a.y1 + aRange[0] * (a.y2 - a.y1);
+            float ax1 = a.x1 + aRange[1] * (a.x2 - a.x1);
+            float ay1 = a.y1 + aRange[1] * (a.y2 - a.y1);
+            float bx0 = e.x1 + bRange[0] * (e.x2 - e.x1);
+            float by0 = e.y1 + bRange[0] * (e.y2 - e.y1);
+            float bx1 = e.x1 + bRange[1] * (e.x2 - e.x1);
+            float by1 = e.y1 + bRange[1] * (e.y2 - e.y1);
+
+            // pair the ends of the two portals so the lines
+            // a1->b0 and a0->b1 are the separating lines
+            if (segmentsCross(ax0, ay0, bx0, by0, ax1, ay1, bx1, by1))
+            {
+                float tx = bx0;
+                float ty = by0;
+                bx0 = bx1;
+                by0 = by1;
+                bx1 = tx;
+                by1 = ty;
+            }
+
+            onPath[leaf.firstLeaf] = true;
+            List portals = leaf.viewPortals;
+            for (int i=0; portals != null && i<portals.size(); i++) {
+                Portal portal = (Portal)portals.get(i);
+                BSPTree.Leaf next = portal.getOtherLeaf(leaf);
+                if (next == null || onPath[next.firstLeaf]) {
+                    continue;
+                }
+                BSPLine c = portal.getDivider();
+                float[] range = { 0, 1 };
+                if (clip(c, ax1, ay1, bx0, by0, bx1, by1, range) &&
+                    clip(c, ax0, ay0, bx1, by1, bx0, by0, range))
+                {
+                    visible.set(next.firstLeaf);
+                    flood(leaf, next, portal, range[0], range[1]);
+                }
+            }
+            onPath[leaf.firstLeaf] = false;
+        }
+
+
+        /**
+            Checks if a portal was already flooded through over
+            a range containing the specified range (from the same
+            source portal). If not, the range is remembered.
+        */
+        private boolean isFlooded(Portal portal, float t0, float t1)
+        {
+            float[] range = (float[])flooded.get(portal);
+            if (range != null && range[0] <= t0 && range[1] >= t1) {
+                return true;
+            }
+            if (range == null) {
+                flooded.put(portal, new float[] { t0, t1 });
+            }
+            else if (t0 <= range[0] && t1 >= range[1]) {
+                range[0] = t0;
+                range[1] = t1;
+            }
+            return false;
+        }
+
+
+        /**
+            Clips a range of a line to the side of the line from
+            (px,py) to (qx,qy) that the point (rx,ry) is on.
+            Returns false if nothing is left. If the clip line is
+            degenerate, the range isn't clipped.
+        */
+        private boolean clip(BSPLine line, float px, float py,
+            float qx, float qy, float rx, float ry, float[] range)
+        {
+            float dx = qx - px;
+            float dy = qy - py;
+            float length = (float)Math.sqrt(dx*dx + dy*dy);
+            if (length < EPSILON) {
+                return true;
+            }
+            float side = dx*(ry - py) - dy*(rx - px);
+            if (Math.abs(side) < EPSILON * length) {
+                return true;
+            }
+            if (side < 0) {
+                dx = -dx;
+                dy = -dy;
+            }
+
+            // distance (scaled by length) of the line's ends
+            // to the clip line, plus the epsilon
+            float d1 = dx*(line.y1 - py) - dy*(line.x1 - px) +
+                EPSILON * length;
+            float d2 = dx*(line.y2 - py) - dy*(line.x2 - px) +
+                EPSILON * length;
+            float t0 = range[0];
+            float t1 = range[1];
+            float f0 = d1 + t0 * (d2 - d1);
+            float f1 = d1 + t1 * (d2 - d1);
+            if (f0 < 0 && f1 < 0) {
+                return false;
+            }
+            if (f0 < 0) {
+                range[0] = t0 + (t1 - t0) * f0 / (f0 - f1);
+            }
+            else if (f1 < 0) {
+                range[1] = t0 + (t1 - t0) * f0 / (f0 - f1);
+            }
+            return true;
+        }
+
+
+        /**
+            Checks if the segment (x1,y1)->(x2,y2) crosses the
+            segment (x3,y3)->(x4,y4).
+        */
+        private boolean segmentsCross(float x1, float y1, float x2,
+            float y2, float x3, float y3, float x4, float y4)
+        {
+            float d1 = cross(x3, y3, x4, y4, x1, y1);
+            float d2 = cross(x3, y3, x4, y4, x2, y2);
+            float d3 = cross(x1, y1, x2, y2, x3, y3);
+            float d4 = cross(x1, y1, x2, y2, x4, y4);
+            return (((d1 > 0 && d2 < 0) || (d1 < 0 && d2 > 0)) &&
+                ((d3 > 0 && d4 < 0) || (d3 < 0 && d4 > 0)));
+        }
+
+
+        private float cross(float ax, float ay, float bx, float by,
+            float px, float py)
+        {
+            return (bx - ax)*(py - ay) - (by - ay)*(px - ax);
+        }
+    }
+}
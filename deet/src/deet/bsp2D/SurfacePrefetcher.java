@@ -0,0 +1,151 @@
+package deet.bsp2D;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import deet.graphics3D.texture.*;
+import deet.math3D.*;
+
+/**
+    The SurfacePrefetcher starts background builds of the
+    ShadedSurfaces in the leaf the camera is in, and in every
+    leaf next to it (through the leaf's portals), so the
+    surfaces are usually ready before they are visible. The
+    builds only happen if the SurfaceCache has build threads.
+*/
+public class SurfacePrefetcher {
+
+    /**
+        How far in front of a wall to look for the leaf it
+        belongs to.
+    */
+    private static final float WALL_OFFSET = 1;
+
+    private BSPTree tree;
+    // the surfaces of each leaf, indexed by leaf number
+    private List[] leafSurfaces;
+    private BSPTree.Leaf lastLeaf;
+
+    /**
+        Creates a new SurfacePrefetcher for the specified tree.
+        The tree's surfaces should already be created.
+    */
+    public SurfacePrefetcher(BSPTree tree) {
+        this.tree = tree;
+        List leaves = tree.getLeaves();
+        leafSurfaces = new List[leaves.size()];
+        for (int i=0; i<leaves.size(); i++) {
+            BSPTree.Leaf leaf = (BSPTree.Leaf)leaves.get(i);
+            leafSurfaces[i] = new ArrayList();
+            addSurfaces(leaf, leaf.polygons);
+        }
+        addWallSurfaces(tree.getRoot());
+    }
+
+
+    /**
+        Gets the tree of this prefetcher.
+    */
+    public BSPTree getTree() {
+        return tree;
+    }
+
+
+    /**
+        Adds the surfaces of the walls of the specified node and
+        its children to the leaves in front of them. A wall can
+        be in front of more than one leaf, so its ends and
+        middle are each checked.
+    */
+    private void addWallSurfaces(BSPTree.Node node) {
+        if (node == null || node instanceof BSPTree.Leaf) {
+            return;
+        }
+        if (node.polygons != null) {
+            for (int i=0; i<node.polygons.size(); i++) {
+                Polygon3D poly = (Polygon3D)node.polygons.get(i);
+                Texture surface = getSurface(poly);
+                if (!(surface instanceof ShadedSurface)) {
+                    continue;
+                }
+                Vector3D normal = poly.getNormal();
+                Vector3D v1 = poly.getVertex(0);
+                Vector3D v2 = poly.getVertex(0);
+                for (int j=1; j<poly.getNumVertices(); j++) {
+                    Vector3D v = poly.getVertex(j);
+                    if (v.x != v1.x || v.z != v1.z) {
+                        v2 = v;
+                    }
+                }
+                for (int j=0; j<3; j++) {
+                    // a little inside each end, and the middle
+                    float t = .05f + .45f * j;
+                    float x = v1.x + t * (v2.x - v1.x) +
+                        WALL_OFFSET * normal.x;
+                    float z = v1.z + t * (v2.z - v1.z) +
+                        WALL_OFFSET * normal.z;
+                    BSPTree.Leaf leaf = tree.getLeaf(x, z);
+                    List surfaces = leafSurfaces[leaf.firstLeaf];
+                    if (!surfaces.contains(surface)) {
+                        surfaces.add(surface);
+                    }
+                }
+            }
+        }
+        addWallSurfaces(node.front);
+        addWallSurfaces(node.back);
+    }
+
+
+    private void addSurfaces(BSPTree.Leaf leaf, List polygons) {
+        if (polygons == null) {
+            return;
+        }
+        for (int i=0; i<polygons.size(); i++) {
+            Texture surface = getSurface((Polygon3D)polygons.get(i));
+            if (surface instanceof ShadedSurface) {
+                leafSurfaces[leaf.firstLeaf].add(surface);
+            }
+        }
+    }
+
+
+    private Texture getSurface(Polygon3D poly) {
+        if (poly instanceof TexturedPolygon3D) {
+            return ((TexturedPolygon3D)poly).getTexture();
+        }
+        return null;
+    }
+
+
+    /**
+        Prefetches the surfaces around the specified location,
+        if it's in a different leaf than the last time this
+        method was called.
+    */
+    public void prefetch(Vector3D location, SurfaceCache cache) {
+        BSPTree.Leaf leaf = tree.getLeaf(location.x, location.z);
+        if (leaf == lastLeaf) {
+            return;
+        }
+        lastLeaf = leaf;
+        prefetch(leaf, cache);
+        if (leaf.portals != null) {
+            for (int i=0; i<leaf.portals.size(); i++) {
+                Portal portal = (Portal)leaf.portals.get(i);
+                BSPTree.Leaf other = portal.getOtherLeaf(leaf);
+                if (other != null) {
+                    prefetch(other, cache);
+                }
+            }
+        }
+    }
+
+
+    private void prefetch(BSPTree.Leaf leaf, SurfaceCache cache) {
+        List surfaces = leafSurfaces[leaf.firstLeaf];
+        for (int i=0; i<surfaces.size(); i++) {
+            cache.prefetchSurface((ShadedSurface)surfaces.get(i));
+        }
+    }
+}
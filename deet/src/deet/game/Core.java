@@ -4,6 +4,7 @@ import java.awt.*;
 import javax.swing.ImageIcon;
 
 import deet.graphics.ScreenManager;
+import deet.util.Profiler;
 
 /**
     Simple abstract class used for testing. Subclasses should
@@ -11,9 +12,22 @@ import deet.graphics.ScreenManager;
 */
 public abstract class Core {
 
-    private boolean isRunning;
+    private volatile boolean isRunning;
+    private boolean pipelined;
     protected ScreenManager screen;
 
+    // fixed timestep (tickRate is 0 for a variable timestep)
+    private int tickRate;
+    private long tickTime;
+    private int maxCatchUpTicks = 5;
+    private long lastLoopTime;
+    private long accumulatedTime;
+    private float interpolation = 1;
+    private long numSkippedTicks;
+
+    private TimingStats tickStats = new TimingStats();
+    private TimingStats frameStats = new TimingStats();
+
 
     /**
         Signals the game loop that it's time to quit
@@ -23,6 +37,118 @@ public abstract class Core {
     }
 
 
+    /**
+        Sets whether the game loop is pipelined. In pipelined
+        mode, update() runs on its own thread while the previous
+        frame is drawn from a snapshot on the main thread (see
+        takeSnapshot() and drawSnapshot()). Must be called
+        before gameLoop().
+    */
+    public void setPipelined(boolean pipelined) {
+        this.pipelined = pipelined;
+    }
+
+
+    /**
+        Checks if the game loop is pipelined.
+    */
+    public boolean isPipelined() {
+        return pipelined;
+    }
+
+
+    /**
+        Sets the number of times per second update() is called.
+        With a tick rate, update() is always passed the same
+        elapsed time (1000 / ticksPerSecond ms, rounded), and is
+        called as many times as needed to keep up with the clock,
+        so the simulation behaves the same at any frame rate. If
+        0 (the default), update() is called once per frame with
+        the time elapsed since the last frame.
+    */
+    public void setTickRate(int ticksPerSecond) {
+        tickRate = ticksPerSecond;
+        tickTime = (ticksPerSecond > 0)?
+            Math.max(1, Math.round(1000f / ticksPerSecond)):0;
+    }
+
+
+    /**
+        Gets the number of times per second update() is called,
+        or 0 for a variable timestep.
+    */
+    public int getTickRate() {
+        return tickRate;
+    }
+
+
+    /**
+        Gets the time passed to update() each tick, in
+        milliseconds, or 0 for a variable timestep.
+    */
+    public long getTickTime() {
+        return tickTime;
+    }
+
+
+    /**
+        Sets the maximum number of ticks run in one frame. If
+        the simulation falls further behind than this (for
+        example, after a long hitch), the extra ticks are
+        skipped so the game doesn't stall trying to catch up.
+    */
+    public void setMaxCatchUpTicks(int maxCatchUpTicks) {
+        this.maxCatchUpTicks = Math.max(1, maxCatchUpTicks);
+    }
+
+
+    /**
+        Gets the maximum number of ticks run in one frame.
+    */
+    public int getMaxCatchUpTicks() {
+        return maxCatchUpTicks;
+    }
+
+
+    /**
+        Gets how far the clock is between the last tick and the
+        next one, from 0 to 1. Drawing the state between the
+        previous tick and the last tick by this amount makes
+        motion smooth when the frame rate doesn't match the tick
+        rate. Always 1 for a variable timestep or in pipelined
+        mode.
+    */
+    public float getInterpolation() {
+        return interpolation;
+    }
+
+
+    /**
+        Gets the number of ticks skipped because the simulation
+        fell too far behind.
+    */
+    public long getNumSkippedTicks() {
+        return numSkippedTicks;
+    }
+
+
+    /**
+        Gets the statistics for the calls to update().
+    */
+    public TimingStats getTickStats() {
+        return tickStats;
+    }
+
+
+    /**
+        Gets the statistics for drawing frames (including
+        showing them on the screen).
+    */
+    public TimingStats getFrameStats() {
+        return frameStats;
+    }
+
+
     /**
         Calls init() and gameLoop()
     */
@@ -84,22 +210,24 @@ public abstract class Core {
         Runs through the game loop until stop() is called.
     */
     public void gameLoop() {
-        long startTime = System.currentTimeMillis();
-        long currTime = startTime;
+        if (pipelined) {
+            pipelinedGameLoop();
+            return;
+        }
+        lastLoopTime = System.nanoTime();
+        Profiler.registerThread();
 
         while (isRunning) {
-            long elapsedTime =
-                System.currentTimeMillis() - currTime;
-            currTime += elapsedTime;
-
             // update
-            update(elapsedTime);
+            updateElapsed();
 
             // draw the screen
+            long startTime = System.nanoTime();
             Graphics2D g = screen.getGraphics();
             draw(g);
             g.dispose();
-            screen.update();
+            updateScreen();
+            frameStats.add(startTime, System.nanoTime());
 
             // don't take a nap! run as fast as possible
             /*try {
@@ -110,6 +238,186 @@ public abstract class Core {
     }
 
 
+    /**
+        Runs through the game loop until stop() is called,
+        updating on a separate thread. The update thread fills a
+        snapshot after each update, and this thread draws the
+        newest snapshot.
+    */
+    private void pipelinedGameLoop() {
+        final FramePipeline pipeline = new FramePipeline(
+            createSnapshot(), createSnapshot());
+        Thread updateThread = new Thread("update") {
+            public void run() {
+                Profiler.registerThread();
+                try {
+                    updateLoop(pipeline);
+                }
+                catch (InterruptedException ex) { }
+                catch (RuntimeException ex) {
+                    ex.printStackTrace();
+                    Core.this.stop();
+                }
+                finally {
+                    pipeline.close();
+                }
+            }
+        };
+        updateThread.start();
+
+        Profiler.registerThread();
+        try {
+            while (isRunning) {
+                Object snapshot = pipeline.startDraw();
+                if (snapshot == null) {
+                    break;
+                }
+
+                // draw the screen
+                long startTime = System.nanoTime();
+                Graphics2D g = screen.getGraphics();
+                drawSnapshot(g, snapshot);
+                g.dispose();
+                updateScreen();
+                frameStats.add(startTime, System.nanoTime());
+
+                pipeline.finishDraw(snapshot);
+            }
+        }
+        catch (InterruptedException ex) { }
+        finally {
+            stop();
+            pipeline.close();
+            try {
+                updateThread.join();
+            }
+            catch (InterruptedException ex) { }
+        }
+    }
+
+
+    /**
+        The update thread's loop: updates, then fills a snapshot
+        for the render thread, until stop() is called.
+    */
+    private void updateLoop(FramePipeline pipeline)
+        throws InterruptedException
+    {
+        lastLoopTime = System.nanoTime();
+        while (isRunning) {
+            // update
+            if (updateElapsed() == 0) {
+                // wait for the next tick
+                long waitTime = (tickTime * 1000000 -
+                    accumulatedTime) / 1000000;
+                Thread.sleep(Math.max(1, waitTime));
+                continue;
+            }
+
+            // hand the frame to the render thread
+            Object snapshot = pipeline.startUpdate();
+            if (snapshot == null) {
+                break;
+            }
+            takeSnapshot(snapshot);
+            pipeline.finishUpdate(snapshot);
+        }
+    }
+
+
+    /**
+        Calls update() for the time passed since the last call.
+        With a variable timestep, update() is called once with
+        the elapsed time. With a fixed timestep, it's called once
+        for each tick that passed, up to the maximum catch-up
+        ticks, and the interpolation is set. Returns the number
+        of times update() was called.
+    */
+    private int updateElapsed() {
+        long currTime = System.nanoTime();
+        if (tickRate == 0) {
+            // keep the fraction of a millisecond for next time
+            long elapsedTime = (currTime - lastLoopTime) / 1000000;
+            lastLoopTime+=elapsedTime * 1000000;
+            tick(elapsedTime);
+            return 1;
+        }
+
+        accumulatedTime+=currTime - lastLoopTime;
+        lastLoopTime = currTime;
+        long tickNanos = tickTime * 1000000;
+        int numTicks = 0;
+        while (accumulatedTime >= tickNanos) {
+            if (numTicks == maxCatchUpTicks) {
+                // too far behind; skip the rest
+                long skipped = accumulatedTime / tickNanos;
+                numSkippedTicks+=skipped;
+                accumulatedTime-=skipped * tickNanos;
+                break;
+            }
+            tick(tickTime);
+            accumulatedTime-=tickNanos;
+            numTicks++;
+        }
+        if (!pipelined) {
+            interpolation = (float)accumulatedTime / tickNanos;
+        }
+        return numTicks;
+    }
+
+
+    /**
+        Shows the frame drawn to the screen, and ends the frame
+        for the Profiler. In pipelined mode, the Profiler frame
+        also includes the updates done while it was drawn.
+    */
+    private void updateScreen() {
+        long startTime = Profiler.start();
+        screen.update();
+        Profiler.end(Profiler.BLIT, startTime);
+        Profiler.endFrame();
+    }
+
+
+    private void tick(long elapsedTime) {
+        long startTime = System.nanoTime();
+        update(elapsedTime);
+        tickStats.add(startTime, System.nanoTime());
+    }
+
+
+    /**
+        Creates an empty snapshot for the pipelined game loop.
+        Two are created. By default, returns an empty Object.
+    */
+    protected Object createSnapshot() {
+        return new Object();
+    }
+
+
+    /**
+        Fills a snapshot with everything needed to draw the
+        current state, so drawSnapshot() can draw it while the
+        next frame is updated. Called on the update thread,
+        after update(). The snapshot may have been filled and
+        drawn before. By default, does nothing.
+    */
+    protected void takeSnapshot(Object snapshot) {
+        // do nothing
+    }
+
+
+    /**
+        Draws a snapshot filled by takeSnapshot(). Called on the
+        render thread in pipelined mode; must not read state that
+        update() changes. By default, calls draw(), which is only
+        safe if the subclass keeps such state in the snapshot.
+    */
+    protected void drawSnapshot(Graphics2D g, Object snapshot) {
+        draw(g);
+    }
+
+
     /**
         Updates the state of the game/animation based on the
         amount of elapsed time that has passed.
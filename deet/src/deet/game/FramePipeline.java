@@ -0,0 +1,148 @@
+package deet.game;
+
+import java.util.LinkedList;
+
+/**
+    The FramePipeline hands frame snapshots from an update thread
+    to a render thread, so the next frame can be simulated while
+    the current one is drawn. It holds two snapshots: at any time
+    one can be filled by the update thread while the other is
+    drawn by the render thread.
+    <p>The update thread calls startUpdate() to get a free
+    snapshot, fills it, and passes it to finishUpdate(). The
+    render thread calls startDraw() to get the newest filled
+    snapshot, draws it, and passes it to finishDraw(). If the
+    update thread finishes a snapshot before the previous one is
+    drawn, the previous one is dropped (returned to the free
+    list), so the render thread always draws the newest frame.
+    <p>The snapshots are whatever objects the game uses; the
+    pipeline never looks inside them.
+*/
+public class FramePipeline {
+
+    private LinkedList free;
+    private Object ready;
+    private boolean closed;
+
+    // stats
+    private int numUpdated;
+    private int numDrawn;
+    private int numDropped;
+
+    /**
+        Creates a new FramePipeline with the two specified
+        snapshots.
+    */
+    public FramePipeline(Object snapshot1, Object snapshot2) {
+        free = new LinkedList();
+        free.add(snapshot1);
+        free.add(snapshot2);
+    }
+
+
+    /**
+        Waits until a snapshot is free to be filled by the update
+        thread, and returns it. Returns null if the pipeline is
+        closed.
+    */
+    public synchronized Object startUpdate()
+        throws InterruptedException
+    {
+        while (!closed && free.isEmpty()) {
+            wait();
+        }
+        if (closed) {
+            return null;
+        }
+        return free.removeFirst();
+    }
+
+
+    /**
+        Publishes a filled snapshot to the render thread. If a
+        snapshot is already waiting to be drawn, it is dropped.
+    */
+    public synchronized void finishUpdate(Object snapshot) {
+        if (ready != null) {
+            free.add(ready);
+            numDropped++;
+        }
+        ready = snapshot;
+        numUpdated++;
+        notifyAll();
+    }
+
+
+    /**
+        Waits until a filled snapshot is ready to draw, and
+        returns it. Returns null if the pipeline is closed.
+    */
+    public synchronized Object startDraw()
+        throws InterruptedException
+    {
+        while (!closed && ready == null) {
+            wait();
+        }
+        if (closed) {
+            return null;
+        }
+        Object snapshot = ready;
+        ready = null;
+        return snapshot;
+    }
+
+
+    /**
+        Returns a drawn snapshot so the update thread can
+        fill it again.
+    */
+    public synchronized void finishDraw(Object snapshot) {
+        free.add(snapshot);
+        numDrawn++;
+        notifyAll();
+    }
+
+
+    /**
+        Closes this pipeline. Any threads waiting in
+        startUpdate() or startDraw() return null.
+    */
+    public synchronized void close() {
+        closed = true;
+        notifyAll();
+    }
+
+
+    /**
+        Checks if this pipeline is closed.
+    */
+    public synchronized boolean isClosed() {
+        return closed;
+    }
+
+
+    /**
+        Gets the number of snapshots published by the update
+        thread.
+    */
+    public synchronized int getNumUpdated() {
+        return numUpdated;
+    }
+
+
+    /**
+        Gets the number of snapshots drawn.
+    */
+    public synchronized int getNumDrawn() {
+        return numDrawn;
+    }
+
+
+    /**
+        Gets the number of snapshots dropped because a newer one
+        was published before they were drawn.
+    */
+    public synchronized int getNumDropped() {
+        return numDropped;
+    }
+}
@@ -2,6 +2,9 @@ package deet.game;
 
 import java.awt.*;
 import java.awt.event.KeyEvent;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
 import java.util.List;
 import java.util.ArrayList;
 
@@ -9,10 +12,24 @@ import java.util.ArrayList;
 import deet.graphics3D.*;
 import deet.input.*;
 import deet.math3D.*;
+import deet.overlay.ProfilerDisplay;
+import deet.util.Profiler;
 
 public abstract class GameCore3D extends Core {
 
     private static final long INSTRUCTIONS_TIME = 4000;
+    private static final String PROFILE_FILE = "profile.csv";
+
+    /**
+        The state needed to draw a frame in pipelined mode (see
+        Core.setPipelined()). Subclasses can add to it.
+    */
+    protected static class Snapshot {
+        /** The camera when the snapshot was taken. */
+        public Transform3D camera = new Transform3D();
+        /** The total view size change requested (in steps). */
+        public int viewResize;
+    }
 
     protected PolygonRenderer polygonRenderer;
     protected ViewWindow viewWindow;
@@ -20,6 +37,18 @@ public abstract class GameCore3D extends Core {
 
     private List overlays = new ArrayList();
 
+    // the camera moved by updateWorld() in pipelined or
+    // interpolated mode, and where it was before the last tick
+    private Transform3D simulationCamera;
+    private Transform3D previousCamera;
+    // total view size changes requested and applied, in steps
+    private int viewResize;
+    private int appliedViewResize;
+    // for updating overlays on the render thread
+    private long lastDrawTime;
+    // picks the render scale (null if the resolution is fixed)
+    private ResolutionController resolutionController;
+
     protected boolean drawFrameRate = false;
     protected boolean drawInstructions = true;
     private long drawInstructionsTime = 0;
@@ -37,6 +66,10 @@ public abstract class GameCore3D extends Core {
         GameAction.DETECT_INITAL_PRESS_ONLY);
     private GameAction frameRateToggle = new GameAction(
         "frameRateToggle", GameAction.DETECT_INITAL_PRESS_ONLY);
+    private GameAction profilerToggle = new GameAction(
+        "profilerToggle", GameAction.DETECT_INITAL_PRESS_ONLY);
+    private GameAction profilerDump = new GameAction(
+        "profilerDump", GameAction.DETECT_INITAL_PRESS_ONLY);
     protected GameAction goForward = new GameAction("goForward");
     protected GameAction goBackward = new GameAction("goBackward");
     protected GameAction goUp = new GameAction("goUp");
@@ -87,6 +120,12 @@ public abstract class GameCore3D extends Core {
         inputManager.mapToKey(largerView, KeyEvent.VK_PLUS);
         inputManager.mapToKey(largerView, KeyEvent.VK_EQUALS);
         inputManager.mapToKey(frameRateToggle, KeyEvent.VK_R);
+        inputManager.mapToKey(profilerToggle, KeyEvent.VK_P);
+        inputManager.mapToKey(profilerDump, KeyEvent.VK_O);
+
+        // show the stage times while profiling
+        addOverlay(new ProfilerDisplay());
+        Profiler.registerMBean();
 
         // create the polygon renderer
         createPolygonRenderer();
@@ -112,6 +151,37 @@ public abstract class GameCore3D extends Core {
     }
 
 
+    /**
+        Gets the camera that updateWorld() moves. In pipelined
+        mode, this is a copy of the renderer's camera that is
+        handed to the render thread with each snapshot. In
+        interpolated mode, it's a copy that the renderer's camera
+        follows between ticks. Otherwise, it's the renderer's
+        camera.
+    */
+    public Transform3D getCamera() {
+        if (!isPipelined() && !isInterpolated()) {
+            return polygonRenderer.getCamera();
+        }
+        if (simulationCamera == null) {
+            simulationCamera = new Transform3D(
+                polygonRenderer.getCamera());
+            previousCamera = new Transform3D(simulationCamera);
+        }
+        return simulationCamera;
+    }
+
+
+    /**
+        Checks if frames are drawn between the last two ticks
+        (see Core.getInterpolation()). True when there is a fixed
+        tick rate and the game loop isn't pipelined.
+    */
+    public boolean isInterpolated() {
+        return (getTickRate() != 0 && !isPipelined());
+    }
+
+
     /**
         Sets the view bounds, centering the view on the screen.
     */
@@ -135,6 +205,43 @@ public abstract class GameCore3D extends Core {
     }
 
 
+    /**
+        Sets a time budget for drawing a frame, in nanoseconds.
+        When frames take longer, the view is drawn at a lower
+        resolution and scaled up (see ResolutionController). A
+        budget of 0 (the default) always draws the view at full
+        resolution. Only applies to renderers with a double
+        buffer (FastTexturedPolygonRenderer and subclasses).
+    */
+    public void setFrameBudget(long frameBudget) {
+        if (frameBudget <= 0) {
+            resolutionController = null;
+            if (polygonRenderer instanceof
+                FastTexturedPolygonRenderer)
+            {
+                ((FastTexturedPolygonRenderer)polygonRenderer).
+                    setRenderScale(1);
+            }
+        }
+        else if (resolutionController == null) {
+            resolutionController =
+                new ResolutionController(frameBudget);
+        }
+        else {
+            resolutionController.setFrameBudget(frameBudget);
+        }
+    }
+
+
+    /**
+        Gets the ResolutionController that picks the render
+        scale, or null if there is no frame budget.
+    */
+    public ResolutionController getResolutionController() {
+        return resolutionController;
+    }
+
+
     public void update(long elapsedTime) {
 
         // cap elapsedTime
@@ -145,24 +252,73 @@ public abstract class GameCore3D extends Core {
             return;
         }
         if (largerView.isPressed()) {
-            setViewBounds(viewWindow.getWidth() + 64,
-                viewWindow.getHeight() + 48);
+            resizeView(1);
         }
         else if (smallerView.isPressed()) {
-            setViewBounds(viewWindow.getWidth() - 64,
-                viewWindow.getHeight() - 48);
+            resizeView(-1);
         }
         if (frameRateToggle.isPressed()) {
             drawFrameRate = !drawFrameRate;
         }
+        if (profilerToggle.isPressed()) {
+            Profiler.setProfiling(!Profiler.isProfiling());
+        }
+        if (profilerDump.isPressed() && Profiler.isProfiling()) {
+            dumpProfile();
+        }
 
         drawInstructionsTime+=elapsedTime;
         if (drawInstructionsTime >= INSTRUCTIONS_TIME) {
             drawInstructions = false;
         }
+        if (isInterpolated()) {
+            Transform3D camera = getCamera();
+            previousCamera.setTo(camera);
+        }
         updateWorld(elapsedTime);
 
-        // update overlays
+        if (!isPipelined()) {
+            updateOverlays(elapsedTime);
+        }
+    }
+
+
+    /**
+        Writes the Profiler history to PROFILE_FILE.
+    */
+    private void dumpProfile() {
+        try {
+            Writer out = new FileWriter(PROFILE_FILE);
+            try {
+                Profiler.writeCSV(out);
+            }
+            finally {
+                out.close();
+            }
+        }
+        catch (IOException ex) {
+            ex.printStackTrace();
+        }
+    }
+
+
+    /**
+        Makes the view larger (positive steps) or smaller
+        (negative steps). In pipelined mode, the change is made
+        on the render thread when the next snapshot is drawn.
+    */
+    private void resizeView(int steps) {
+        if (isPipelined()) {
+            viewResize+=steps;
+        }
+        else {
+            setViewBounds(viewWindow.getWidth() + 64 * steps,
+                viewWindow.getHeight() + 48 * steps);
+        }
+    }
+
+
+    private void updateOverlays(long elapsedTime) {
         for (int i=0; i<overlays.size(); i++) {
             Overlay overlay = (Overlay)overlays.get(i);
             if (overlay.isEnabled()) {
@@ -171,15 +327,55 @@ public abstract class GameCore3D extends Core {
         }
     }
 
+
+    protected Object createSnapshot() {
+        return new Snapshot();
+    }
+
+
+    protected void takeSnapshot(Object snapshot) {
+        Snapshot s = (Snapshot)snapshot;
+        s.camera.setTo(getCamera());
+        // a total, so changes in dropped snapshots aren't lost
+        s.viewResize = viewResize;
+    }
+
+
+    /**
+        Draws a snapshot: applies any view size change, moves the
+        renderer's camera to the snapshot's camera, updates the
+        overlays (they are drawn on this thread), and calls
+        draw().
+    */
+    protected void drawSnapshot(Graphics2D g, Object snapshot) {
+        Snapshot s = (Snapshot)snapshot;
+        int steps = s.viewResize - appliedViewResize;
+        if (steps != 0) {
+            setViewBounds(viewWindow.getWidth() + 64 * steps,
+                viewWindow.getHeight() + 48 * steps);
+            appliedViewResize = s.viewResize;
+        }
+        polygonRenderer.getCamera().setTo(s.camera);
+
+        long currTime = System.currentTimeMillis();
+        if (lastDrawTime != 0) {
+            updateOverlays(Math.min(currTime - lastDrawTime, 100));
+        }
+        lastDrawTime = currTime;
+
+        draw(g);
+    }
+
     public void updateWorld(long elapsedTime) {
 
         // cap elapsedTime
         elapsedTime = Math.min(elapsedTime, 100);
+        long startTime = Profiler.start();
 
         float angleChange = 0.0002f*elapsedTime;
         float distanceChange = .5f*elapsedTime;
 
-        Transform3D camera = polygonRenderer.getCamera();
+        Transform3D camera = getCamera();
         Vector3D cameraLoc = camera.getLocation();
 
         // apply movement
@@ -230,10 +426,25 @@ public abstract class GameCore3D extends Core {
         if (tiltRight.isPressed()) {
             camera.rotateAngleZ(-10*angleChange);
         }
+        Profiler.end(Profiler.INPUT, startTime);
     }
 
 
     public void draw(Graphics2D g) {
+        long drawStartTime = System.nanoTime();
+        ResolutionController controller = resolutionController;
+        if (controller != null &&
+            polygonRenderer instanceof FastTexturedPolygonRenderer)
+        {
+            ((FastTexturedPolygonRenderer)polygonRenderer).
+                setRenderScale(controller.getScale());
+        }
+        if (isInterpolated()) {
+            // draw between the last two ticks
+            Transform3D camera = getCamera();
+            polygonRenderer.getCamera().setToInterpolated(
+                previousCamera, camera, getInterpolation());
+        }
         int viewX1 = viewWindow.getLeftOffset();
         int viewY1 = viewWindow.getTopOffset();
         int viewX2 = viewX1 + viewWindow.getWidth();
@@ -249,7 +460,14 @@ public abstract class GameCore3D extends Core {
         }
 
         drawPolygons(g);
+        long startTime = Profiler.start();
         drawOverlays(g);
+        Profiler.end(Profiler.OVERLAYS, startTime);
+        if (controller != null) {
+            // not counting the time to show the frame, which
+            // can include waiting for the display
+            controller.addFrame(System.nanoTime() - drawStartTime);
+        }
     }
 
     public void drawPolygons(Graphics2D g) {
@@ -286,6 +504,19 @@ public abstract class GameCore3D extends Core {
             calcFrameRate();
             g.drawString(frameRate + " frames/sec", 5,
                 screen.getHeight() - 5);
+            if (getTickRate() != 0) {
+                TimingStats ticks = getTickStats();
+                g.drawString("ticks: " + getTickRate() + "/sec, " +
+                    ticks.getAverageTime() / 1000 + "us (max " +
+                    ticks.getMaxTime() / 1000 + "us), frame " +
+                    getFrameStats().getAverageTime() / 1000 + "us",
+                    5, screen.getHeight() - 35);
+            }
+            if (resolutionController != null) {
+                g.drawString("resolution: " + Math.round(
+                    resolutionController.getScale() * 100) + "%",
+                    5, screen.getHeight() - 50);
+            }
         }
 
         // draw overlays
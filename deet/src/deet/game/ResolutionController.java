@@ -0,0 +1,224 @@
+package deet.game;
+
+/**
+    The ResolutionController picks the scale to draw the view at
+    (see FastTexturedPolygonRenderer.setRenderScale()) so frames
+    take no longer than a time budget. After each frame, call
+    addFrame() with the time it took, and draw the next frame at
+    getScale().
+    <p>The scale changes in steps of SCALE_STEP, between the
+    minimum scale and 1. When the average time of the last few
+    frames is over the budget, the scale goes down a step. The
+    scale only goes back up after the frames have been fast
+    enough for a while that the next step up (with more pixels
+    to draw) is expected to stay under HEADROOM times the
+    budget. Together with a wait after every change, this keeps
+    the scale from flipping back and forth between two steps.
+    <p>The scale of each of the last HISTORY_SIZE frames is
+    kept. The methods are synchronized, so the scale can be read
+    on another thread.
+*/
+public class ResolutionController {
+
+    /**
+        The size of a scale change.
+    */
+    public static final float SCALE_STEP = .125f;
+
+    /**
+        The default minimum scale.
+    */
+    public static final float DEFAULT_MIN_SCALE = .5f;
+
+    /**
+        The part of the budget the next step up must be
+        expected to fit in.
+    */
+    public static final float HEADROOM = .85f;
+
+    /**
+        The number of frames kept in the history.
+    */
+    public static final int HISTORY_SIZE = 256;
+
+    // frames averaged to decide to go down a step
+    private static final int SAMPLE_FRAMES = 8;
+    // frames that must have room to go up a step
+    private static final int UP_FRAMES = 60;
+    // frames to wait after a change
+    private static final int WAIT_FRAMES = 8;
+
+    private long frameBudget;
+    private float minScale = DEFAULT_MIN_SCALE;
+    private float scale = 1;
+
+    // the last frame times, for the average
+    private long[] frameTimes = new long[SAMPLE_FRAMES];
+    private int numSamples;
+    private long totalTime;
+    private int waitFrames;
+    private int upFrames;
+    private int numChanges;
+
+    private float[] history = new float[HISTORY_SIZE];
+    private int historyIndex;
+    private int numFrames;
+
+    /**
+        Creates a new ResolutionController with the specified
+        frame budget, in nanoseconds.
+    */
+    public ResolutionController(long frameBudget) {
+        this.frameBudget = frameBudget;
+    }
+
+
+    /**
+        Sets the frame budget, in nanoseconds.
+    */
+    public synchronized void setFrameBudget(long frameBudget) {
+        this.frameBudget = frameBudget;
+    }
+
+
+    /**
+        Gets the frame budget, in nanoseconds.
+    */
+    public synchronized long getFrameBudget() {
+        return frameBudget;
+    }
+
+
+    /**
+        Sets the lowest scale to use (from SCALE_STEP to 1).
+    */
+    public synchronized void setMinScale(float minScale) {
+        this.minScale = Math.min(1, Math.max(SCALE_STEP, minScale));
+        if (scale < this.minScale) {
+            setScale(this.minScale);
+        }
+    }
+
+
+    /**
+        Gets the lowest scale to use.
+    */
+    public synchronized float getMinScale() {
+        return minScale;
+    }
+
+
+    /**
+        Gets the scale to draw the next frame at.
+    */
+    public synchronized float getScale() {
+        return scale;
+    }
+
+
+    /**
+        Gets the number of times the scale changed.
+    */
+    public synchronized int getNumChanges() {
+        return numChanges;
+    }
+
+
+    /**
+        Adds a frame drawn at the current scale that took the
+        specified time, in nanoseconds, and changes the scale if
+        needed.
+    */
+    public synchronized void addFrame(long frameTime) {
+        history[historyIndex] = scale;
+        historyIndex = (historyIndex + 1) % HISTORY_SIZE;
+        numFrames = Math.min(numFrames + 1, HISTORY_SIZE);
+
+        if (waitFrames > 0) {
+            // frames right after a change aren't counted
+            waitFrames--;
+            return;
+        }
+        int index = numSamples % SAMPLE_FRAMES;
+        if (numSamples >= SAMPLE_FRAMES) {
+            totalTime-=frameTimes[index];
+        }
+        frameTimes[index] = frameTime;
+        totalTime+=frameTime;
+        numSamples++;
+        if (numSamples < SAMPLE_FRAMES) {
+            return;
+        }
+
+        long averageTime = totalTime / SAMPLE_FRAMES;
+        if (averageTime > frameBudget) {
+            upFrames = 0;
+            if (scale > minScale) {
+                setScale(Math.max(minScale, scale - SCALE_STEP));
+            }
+        }
+        else if (scale < 1) {
+            // the time at the next step, if it's all pixels
+            float nextScale = Math.min(1, scale + SCALE_STEP);
+            float ratio = (nextScale * nextScale) / (scale * scale);
+            if (averageTime * ratio < frameBudget * HEADROOM) {
+                upFrames++;
+                if (upFrames >= UP_FRAMES) {
+                    setScale(nextScale);
+                }
+            }
+            else {
+                upFrames = 0;
+            }
+        }
+    }
+
+
+    private void setScale(float scale) {
+        this.scale = scale;
+        numChanges++;
+        numSamples = 0;
+        totalTime = 0;
+        upFrames = 0;
+        waitFrames = WAIT_FRAMES;
+    }
+
+
+    /**
+        Sets the scale back to 1 and clears the frame times and
+        the history.
+    */
+    public synchronized void reset() {
+        scale = 1;
+        numSamples = 0;
+        totalTime = 0;
+        upFrames = 0;
+        waitFrames = 0;
+        numChanges = 0;
+        historyIndex = 0;
+        numFrames = 0;
+    }
+
+
+    /**
+        Gets the number of frames in the history.
+    */
+    public synchronized int getNumFrames() {
+        return numFrames;
+    }
+
+
+    /**
+        Gets the scale of each frame in the history, oldest
+        first.
+    */
+    public synchronized float[] getScaleHistory() {
+        float[] scales = new float[numFrames];
+        int first = (historyIndex - numFrames + HISTORY_SIZE) %
+            HISTORY_SIZE;
+        for (int i=0; i<numFrames; i++) {
+            scales[i] = history[(first + i) % HISTORY_SIZE];
+        }
+        return scales;
+    }
+}
@@ -0,0 +1,85 @@
+package deet.game;
+
+/**
+    The TimingStats class keeps simple statistics for a repeated
+    task, like a simulation tick or a frame: how many times per
+    second it runs, and the average and maximum time it takes.
+    The statistics are recalculated once per second, so they are
+    stable enough to display. The methods are synchronized, so
+    the task can be timed on one thread and read on another.
+*/
+public class TimingStats {
+
+    private static final long PERIOD = 1000000000L;
+
+    private long periodStart;
+    private int count;
+    private long totalTime;
+    private long maxTime;
+    private long totalCount;
+
+    private float rate;
+    private long lastAverageTime;
+    private long lastMaxTime;
+
+    /**
+        Adds one run of the task that started and ended at the
+        specified times, in nanoseconds (see System.nanoTime()).
+    */
+    public synchronized void add(long startTime, long endTime) {
+        long time = endTime - startTime;
+        if (totalCount == 0) {
+            periodStart = startTime;
+        }
+        count++;
+        totalCount++;
+        totalTime+=time;
+        maxTime = Math.max(maxTime, time);
+
+        long periodTime = endTime - periodStart;
+        if (periodTime >= PERIOD) {
+            rate = (float)count * PERIOD / periodTime;
+            lastAverageTime = totalTime / count;
+            lastMaxTime = maxTime;
+            periodStart = endTime;
+            count = 0;
+            totalTime = 0;
+            maxTime = 0;
+        }
+    }
+
+
+    /**
+        Gets the number of times per second the task ran, over
+        the last full second.
+    */
+    public synchronized float getRate() {
+        return rate;
+    }
+
+
+    /**
+        Gets the average time the task took over the last full
+        second, in nanoseconds.
+    */
+    public synchronized long getAverageTime() {
+        return lastAverageTime;
+    }
+
+
+    /**
+        Gets the longest time the task took over the last full
+        second, in nanoseconds.
+    */
+    public synchronized long getMaxTime() {
+        return lastMaxTime;
+    }
+
+
+    /**
+        Gets the number of times the task ran in total.
+    */
+    public synchronized long getCount() {
+        return totalCount;
+    }
+}
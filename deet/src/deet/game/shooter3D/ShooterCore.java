@@ -3,6 +3,8 @@ package deet.game.shooter3D;
 import java.awt.*;
 import java.awt.event.KeyEvent;
 import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.LinkedList;
 
@@ -15,21 +17,28 @@ import deet.input.*;
 import deet.math3D.*;
 import deet.object.CollisionDetection;
 import deet.object.CollisionDetectionWithSliding;
+import deet.object.GameObject;
 import deet.object.GameObjectManager;
 import deet.object.GameObjectRenderer;
+import deet.object.GameObjectSnapshot;
 import deet.object.GridGameObjectManager;
 import deet.object.actor.Player;
+import deet.overlay.LoadingDisplay;
+import deet.util.Profiler;
 
 public abstract class ShooterCore extends GameCore3D {
 
     private static final float PLAYER_SPEED = .5f;
     private static final float PLAYER_TURN_SPEED = 0.04f;
     private static final float CAMERA_HEIGHT = 100;
+    private static final long LOADING_SCREEN_DELAY = 50;
 
     protected GameAction fire = new GameAction("fire",
         GameAction.DETECT_INITAL_PRESS_ONLY);
     protected GameAction jump = new GameAction("jump",
         GameAction.DETECT_INITAL_PRESS_ONLY);
+    protected GameAction nextMap = new GameAction("nextMap",
+        GameAction.DETECT_INITAL_PRESS_ONLY);
 
     protected GameObjectManager gameObjectManager;
     protected DisplayMode[] modes;
@@ -37,13 +46,227 @@ public abstract class ShooterCore extends GameCore3D {
     protected BSPTree bspTree;
     protected CollisionDetection collisionDetection;
     protected String mapFile;
+    protected String nextMapFile;
+    protected int numRenderBands = 1;
+    protected boolean portalCulling;
+    protected boolean asyncSurfaces;
+    protected boolean spanRendering;
+    protected PixelFormat pixelFormat = PixelFormat.RGB_565;
+    protected LoadingDisplay loadingDisplay = new LoadingDisplay();
+
+    /**
+        A snapshot that also holds a copy of the game objects.
+    */
+    protected static class ShooterSnapshot extends Snapshot {
+        /** The game objects when the snapshot was taken. */
+        public GameObjectSnapshot objects = new GameObjectSnapshot();
+        /** The level's BSP tree when the snapshot was taken. */
+        public BSPTree bspTree;
+    }
+
+    /**
+        A loaded level: the BSP tree of a map and a new
+        GameObjectManager for it. Levels are loaded on a
+        LevelLoader thread and started with startLevel().
+    */
+    protected static class Level {
+        public String mapFile;
+        public BSPTree bspTree;
+        public CollisionDetection collisionDetection;
+        public GameObjectManager gameObjectManager;
+        /** The objects in the map, not yet in the manager. */
+        public List mapObjects;
+        public Transform3D playerStart;
+        /** The loader, which holds the level's textures. */
+        public MapLoader loader;
+    }
+
+    /**
+        A thread that loads a level with loadLevel(). The load
+        progress is passed on to a MapLoadListener, which can be
+        set at any time, so a level can be loaded quietly and
+        shown loading later.
+    */
+    protected class LevelLoader extends Thread
+        implements MapLoadListener
+    {
+        private String mapFile;
+        private Level level;
+        private IOException error;
+        private volatile boolean done;
+        private boolean discarded;
+        private MapLoadListener listener;
+        private String stage;
+        private float progress;
+
+        public LevelLoader(String mapFile) {
+            super("LevelLoader-" + mapFile);
+            this.mapFile = mapFile;
+            setDaemon(true);
+        }
+
+        public void run() {
+            Level loaded = null;
+            IOException loadError = null;
+            try {
+                loaded = loadLevel(mapFile, this);
+            }
+            catch (IOException ex) {
+                loadError = ex;
+            }
+            finally {
+                synchronized (this) {
+                    level = loaded;
+                    error = loadError;
+                    done = true;
+                    if (discarded && level != null) {
+                        level.loader.releaseTextures();
+                    }
+                }
+            }
+        }
+
+        /**
+            Discards the level this thread loads, releasing its
+            textures once it's loaded.
+        */
+        public synchronized void discard() {
+            discarded = true;
+            if (done && level != null) {
+                level.loader.releaseTextures();
+            }
+        }
+
+        /**
+            Gets the map file this thread loads.
+        */
+        public String getMapFile() {
+            return mapFile;
+        }
+
+        /**
+            Checks if this thread is done loading, whether or
+            not the level loaded.
+        */
+        public boolean isDone() {
+            return done;
+        }
+
+        /**
+            Gets the loaded level, waiting for it if needed.
+        */
+        public Level getLevel() throws IOException {
+            while (!done) {
+                try {
+                    join();
+                }
+                catch (InterruptedException ex) { }
+            }
+            if (level == null) {
+                throw (error != null)?error:
+                    new IOException("Couldn't load " + mapFile);
+            }
+            return level;
+        }
+
+        /**
+            Sets the listener told about the load progress. The
+            listener is told the current stage right away.
+        */
+        public synchronized void setListener(
+            MapLoadListener listener)
+        {
+            this.listener = listener;
+            if (listener != null && stage != null) {
+                listener.loadProgress(stage, progress);
+            }
+        }
+
+        public synchronized void loadProgress(String stage,
+            float progress)
+        {
+            this.stage = stage;
+            this.progress = progress;
+            if (listener != null) {
+                listener.loadProgress(stage, progress);
+            }
+        }
+    }
+
+    // the current level, the level being loaded to replace it,
+    // and a level loaded ahead of time
+    private Level level;
+    private LevelLoader levelLoader;
+    private LevelLoader preloader;
+
+    // the objects and tree drawn in pipelined mode
+    private GameObjectManager drawnObjects;
+    private BSPTree drawnTree;
+    // the last tree drawn, to notice when the level changes
+    private BSPTree lastDrawnTree;
+
+    /**
+        The transforms of an object for drawing between ticks.
+    */
+    private static class ObjectTransforms {
+        Transform3D previous = new Transform3D();
+        Transform3D current = new Transform3D();
+    }
+
+    // ObjectTransforms by object, in interpolated mode
+    private HashMap objectTransforms = new HashMap();
 
     public ShooterCore(String[] args, String defaultMap) {
         
-        for (int i=0; mapFile == null && i<args.length; i++) {
+        for (int i=0; i<args.length; i++) {
             if (mapFile == null && !args[i].startsWith("-")) {
                 mapFile = args[i];
             }
+            else if (args[i].equals("-bands")) {
+                // render on every available core
+                numRenderBands =
+                    Runtime.getRuntime().availableProcessors();
+            }
+            else if (args[i].equals("-portals")) {
+                // only draw leaves visible through portals
+                portalCulling = true;
+            }
+            else if (args[i].equals("-asyncsurfaces")) {
+                // build surfaces in the background
+                asyncSurfaces = true;
+            }
+            else if (args[i].equals("-intpixels")) {
+                // 32-bit textures and double buffer
+                pixelFormat = PixelFormat.RGB_888;
+            }
+            else if (args[i].equals("-spans")) {
+                // copy texture spans in batches
+                spanRendering = true;
+            }
+            else if (args[i].equals("-pipelined")) {
+                // update the next frame while drawing this one
+                setPipelined(true);
+            }
+            else if (args[i].equals("-tickrate") &&
+                i + 1 < args.length)
+            {
+                // simulate with a fixed timestep
+                setTickRate(Integer.parseInt(args[++i]));
+            }
+            else if (args[i].equals("-next") &&
+                i + 1 < args.length)
+            {
+                // load this map in the background, and switch
+                // to it (and back) by pressing N
+                nextMapFile = args[++i];
+            }
+            else if (args[i].equals("-budget") &&
+                i + 1 < args.length)
+            {
+                // lower the resolution when frames take longer
+                // than this many milliseconds
+                setFrameBudget(Long.parseLong(args[++i]) * 1000000);
+            }
         }
         if (mapFile == null) {
             mapFile = defaultMap;
@@ -63,6 +286,7 @@ public abstract class ShooterCore extends GameCore3D {
         // load the object model
         ObjectLoader loader = new ObjectLoader();
         loader.setLights(lights, ambientLightIntensity);
+        loader.setPixelFormat(pixelFormat);
         PolygonGroup blastModel = null;
         try {
             blastModel = loader.loadObject("../images/blast.obj");
@@ -76,10 +300,15 @@ public abstract class ShooterCore extends GameCore3D {
         init(modes);
 
         inputManager.mapToKey(jump, KeyEvent.VK_SPACE);
+        inputManager.mapToKey(nextMap, KeyEvent.VK_N);
         inputManager.mapToMouse(fire, InputManager.MOUSE_BUTTON_1);
 
         ((Player)gameObjectManager.getPlayer()).
             setBlastModel(blastModel);
+
+        if (nextMapFile != null) {
+            preloadMap(nextMapFile);
+        }
     }
 
 
@@ -90,12 +319,52 @@ public abstract class ShooterCore extends GameCore3D {
             (float)Math.toRadians(75));
 
         Transform3D camera = new Transform3D();
-        polygonRenderer = new BSPRenderer(camera, viewWindow);
+        BSPRenderer renderer = new BSPRenderer(camera, viewWindow);
+        renderer.setNumBands(numRenderBands);
+        renderer.setPortalCulling(portalCulling);
+        renderer.setPixelFormat(pixelFormat);
+        renderer.setSpanRendering(spanRendering);
+        if (asyncSurfaces) {
+            renderer.getSurfaceCache().setNumBuildThreads(1);
+            renderer.setSurfacePrefetching(true);
+        }
+        polygonRenderer = renderer;
+    }
+
+
+    /**
+        Starts a level that finished loading, if any, before
+        updating the game.
+    */
+    public void update(long elapsedTime) {
+        if (levelLoader != null && levelLoader.isDone()) {
+            LevelLoader loader = levelLoader;
+            levelLoader = null;
+            try {
+                startLevel(loader.getLevel());
+                if (nextMapFile != null) {
+                    preloadMap(nextMapFile);
+                }
+            }
+            catch (IOException ex) {
+                loadingDisplay.stop();
+                ex.printStackTrace();
+            }
+        }
+        if (nextMap.isPressed() && nextMapFile != null &&
+            levelLoader == null)
+        {
+            String next = nextMapFile;
+            nextMapFile = mapFile;
+            changeMap(next);
+        }
+        super.update(elapsedTime);
     }
 
 
     public void updateWorld(long elapsedTime) {
 
+        long startTime = Profiler.start();
         float angleVelocity;
 
         Player player = (Player)gameObjectManager.getPlayer();
@@ -140,8 +409,12 @@ public abstract class ShooterCore extends GameCore3D {
         angleVelocity += Math.max(-turnRight.getAmount(), -200);
         playerTransform.setAngleVelocityY(angleVelocity *
              PLAYER_TURN_SPEED / 200);
+        Profiler.end(Profiler.INPUT, startTime);
 
         // update objects
+        if (isInterpolated()) {
+            savePreviousTransforms();
+        }
         gameObjectManager.update(elapsedTime);
 
         // limit look up/down
@@ -155,20 +428,50 @@ public abstract class ShooterCore extends GameCore3D {
         }
 
         // set the camera to be 100 units above the player
-        Transform3D camera = polygonRenderer.getCamera();
+        Transform3D camera = getCamera();
         camera.setTo(playerTransform);
         camera.getLocation().add(0,CAMERA_HEIGHT,0);
 
     }
 
+    /**
+        Loads the first map, drawing its progress until it's
+        loaded.
+    */
     public void createPolygons() {
-        Graphics2D g = screen.getGraphics();
-        g.setColor(Color.BLACK);
-        g.fillRect(0,0, screen.getWidth(), screen.getHeight());
-        g.setColor(Color.WHITE);
-        g.drawString("Loading...", 5, screen.getHeight() - 5);
-        screen.update();
+        addOverlay(loadingDisplay);
+        LevelLoader loader = new LevelLoader(mapFile);
+        loadingDisplay.start(mapFile);
+        loader.setListener(loadingDisplay);
+        loader.start();
+
+        while (!loader.isDone()) {
+            Graphics2D g = screen.getGraphics();
+            g.setColor(Color.BLACK);
+            g.fillRect(0,0, screen.getWidth(), screen.getHeight());
+            loadingDisplay.draw(g, viewWindow);
+            g.dispose();
+            screen.update();
+            try {
+                loader.join(LOADING_SCREEN_DELAY);
+            }
+            catch (InterruptedException ex) { }
+        }
+
+        try {
+            startLevel(loader.getLevel());
+        }
+        catch (IOException ex) {
+            loadingDisplay.stop();
+            ex.printStackTrace();
+        }
+    }
 
+
+    /**
+        Creates the MapLoader for loadLevel().
+    */
+    protected MapLoader createMapLoader() {
         float ambientLightIntensity = .2f;
         List lights = new LinkedList();
         lights.add(new PointLight3D(-100,100,100, .3f, -1));
@@ -177,45 +480,279 @@ public abstract class ShooterCore extends GameCore3D {
         MapLoader loader = new MapLoader(
             new BSPTreeBuilderWithPortals());
         loader.setObjectLights(lights, ambientLightIntensity);
+        loader.setPixelFormat(pixelFormat);
+        return loader;
+    }
 
+
+    /**
+        Loads a map and creates the collision detection and
+        GameObjectManager for it. This is called on a
+        LevelLoader thread while the current level (if any) is
+        still playing, so it must not change the game.
+        Subclasses can override it to do other slow work for a
+        level in the background.
+    */
+    protected Level loadLevel(String mapFile,
+        MapLoadListener listener) throws IOException
+    {
+        MapLoader loader = createMapLoader();
+        loader.setLoadListener(listener);
+
+        Level level = new Level();
+        level.mapFile = mapFile;
+        level.loader = loader;
         try {
-            bspTree = loader.loadMap(mapFile);
+            level.bspTree = loader.loadMap(mapFile);
         }
         catch (IOException ex) {
-            ex.printStackTrace();
+            loader.releaseTextures();
+            throw ex;
         }
+        level.collisionDetection =
+            new CollisionDetectionWithSliding(level.bspTree);
+        level.gameObjectManager = new GridGameObjectManager(
+            level.bspTree.calcBounds(), level.collisionDetection);
+        level.mapObjects = loader.getObjectsInMap();
+        level.playerStart = loader.getPlayerStartLocation();
+        return level;
+    }
 
-        collisionDetection =
-            new CollisionDetectionWithSliding(bspTree);
-        gameObjectManager = new GridGameObjectManager(
-            bspTree.calcBounds(), collisionDetection);
-        gameObjectManager.addPlayer(new Player());
 
-        ((BSPRenderer)polygonRenderer).setGameObjectManager(
-            gameObjectManager);
+    /**
+        Loads a map in the background without starting it. A
+        later changeMap() call for the same map uses it. Only
+        one map is preloaded at a time.
+    */
+    public void preloadMap(String mapFile) {
+        if (preloader != null &&
+            preloader.getMapFile().equals(mapFile))
+        {
+            return;
+        }
+        if (preloader != null) {
+            preloader.discard();
+        }
+        preloader = new LevelLoader(mapFile);
+        preloader.start();
+    }
+
+
+    /**
+        Loads a map in the background, showing its progress,
+        and starts it on the game thread once it's loaded. The
+        current level keeps playing until then. If the map was
+        preloaded, the preloaded level is used.
+    */
+    public void changeMap(String mapFile) {
+        if (levelLoader != null) {
+            levelLoader.discard();
+        }
+        if (preloader != null &&
+            preloader.getMapFile().equals(mapFile))
+        {
+            levelLoader = preloader;
+            preloader = null;
+        }
+        else {
+            levelLoader = new LevelLoader(mapFile);
+            levelLoader.start();
+        }
+        loadingDisplay.start(mapFile);
+        levelLoader.setListener(loadingDisplay);
+    }
 
 
-        createGameObjects(loader.getObjectsInMap());
-        Transform3D start = loader.getPlayerStartLocation();
-        gameObjectManager.getPlayer().getTransform().setTo(start);
+    /**
+        Checks if a map is loading to replace the current one.
+    */
+    public boolean isChangingMap() {
+        return (levelLoader != null);
     }
 
 
+    /**
+        Makes a loaded level the current one, all at once
+        between updates: the BSP tree, collision detection and
+        GameObjectManager are replaced, the player is moved to
+        the new map, and createGameObjects() adds the map's
+        objects. The old level's textures are released, along
+        with the OBJ models no other loaded level uses (see
+        ObjectLoader.releaseTextures()). In
+        pipelined mode, the render thread keeps drawing the old
+        level until it gets a snapshot of the new one.
+    */
+    protected void startLevel(Level level) {
+        if (this.level != null) {
+            this.level.loader.releaseTextures();
+        }
+        this.level = level;
+        GameObject player = (gameObjectManager == null)?
+            new Player():gameObjectManager.getPlayer();
+        player.getTransform().stop();
+        player.getTransform().setTo(level.playerStart);
+
+        mapFile = level.mapFile;
+        bspTree = level.bspTree;
+        collisionDetection = level.collisionDetection;
+        gameObjectManager = level.gameObjectManager;
+        gameObjectManager.addPlayer(player);
+        if (!isPipelined()) {
+            ((BSPRenderer)polygonRenderer).setGameObjectManager(
+                gameObjectManager);
+        }
+        objectTransforms.clear();
+
+        createGameObjects(level.mapObjects);
+
+        Transform3D camera = getCamera();
+        camera.setTo(player.getTransform());
+        camera.getLocation().add(0,CAMERA_HEIGHT,0);
+    }
+
+
+    /**
+        Adds the objects in a map to the gameObjectManager. This
+        is called on the game thread when a level starts.
+    */
     protected abstract void createGameObjects(List mapObjects);
 
+
+    protected Object createSnapshot() {
+        return new ShooterSnapshot();
+    }
+
+
+    protected void takeSnapshot(Object snapshot) {
+        super.takeSnapshot(snapshot);
+        GameObjectSnapshot objects =
+            ((ShooterSnapshot)snapshot).objects;
+        // the last time this snapshot was drawn
+        objects.notifyVisible();
+        objects.capture(gameObjectManager);
+        ((ShooterSnapshot)snapshot).bspTree = bspTree;
+    }
+
+
+    protected void drawSnapshot(Graphics2D g, Object snapshot) {
+        drawnObjects = ((ShooterSnapshot)snapshot).objects;
+        drawnTree = ((ShooterSnapshot)snapshot).bspTree;
+        ((BSPRenderer)polygonRenderer).setGameObjectManager(
+            drawnObjects);
+        super.drawSnapshot(g, snapshot);
+    }
+
     public void drawPolygons(Graphics2D g) {
 
+        BSPRenderer renderer = (BSPRenderer)polygonRenderer;
+        BSPTree tree = isPipelined()?drawnTree:bspTree;
+        if (tree != lastDrawnTree) {
+            // the level changed; free the old level's surfaces
+            if (lastDrawnTree != null) {
+                renderer.getSurfaceCache().clear();
+            }
+            lastDrawnTree = tree;
+        }
+
         polygonRenderer.startFrame(g);
 
         // draw polygons in bsp tree (set z buffer)
-        ((BSPRenderer)polygonRenderer).draw(g, bspTree);
+        renderer.draw(g, tree);
 
         // draw game object polygons (check and set z buffer)
-        gameObjectManager.draw(g,
-            (GameObjectRenderer)polygonRenderer);
+        long startTime = Profiler.start();
+        GameObjectManager objects = isPipelined()?
+            drawnObjects:gameObjectManager;
+        if (isInterpolated()) {
+            interpolateObjects(getInterpolation());
+            objects.draw(g, (GameObjectRenderer)polygonRenderer);
+            restoreObjects();
+        }
+        else {
+            objects.draw(g, (GameObjectRenderer)polygonRenderer);
+        }
+        Profiler.end(Profiler.OBJECT_RENDERING, startTime);
 
         polygonRenderer.endFrame(g);
 
     }
 
+
+    /**
+        Saves the transform of every object before a tick.
+        Objects that were removed are forgotten.
+    */
+    private void savePreviousTransforms() {
+        HashMap oldTransforms = objectTransforms;
+        objectTransforms = new HashMap();
+        Iterator i = gameObjectManager.iterator();
+        while (i.hasNext()) {
+            GameObject object = (GameObject)i.next();
+            ObjectTransforms t =
+                (ObjectTransforms)oldTransforms.get(object);
+            if (t == null) {
+                t = new ObjectTransforms();
+            }
+            t.previous.setTo(object.getTransform());
+            objectTransforms.put(object, t);
+        }
+    }
+
+
+    /**
+        Moves every object between its transform before the last
+        tick and its current transform. Objects added during the
+        last tick aren't moved.
+    */
+    private void interpolateObjects(float alpha) {
+        Iterator i = gameObjectManager.iterator();
+        while (i.hasNext()) {
+            GameObject object = (GameObject)i.next();
+            ObjectTransforms t =
+                (ObjectTransforms)objectTransforms.get(object);
+            if (t != null) {
+                t.current.setTo(object.getTransform());
+                object.getTransform().setToInterpolated(
+                    t.previous, t.current, alpha);
+            }
+        }
+    }
+
+
+    /**
+        Moves every object back to its current transform after
+        interpolateObjects().
+    */
+    private void restoreObjects() {
+        Iterator i = gameObjectManager.iterator();
+        while (i.hasNext()) {
+            GameObject object = (GameObject)i.next();
+            ObjectTransforms t =
+                (ObjectTransforms)objectTransforms.get(object);
+            if (t != null) {
+                object.getTransform().setTo(t.current);
+            }
+        }
+    }
+
+
+    public void drawOverlays(Graphics2D g) {
+        super.drawOverlays(g);
+        if (drawFrameRate) {
+            // time spent building surfaces (the cause of most
+            // hitches) in the last frame, and the worst frame
+            SurfaceCache cache =
+                ((BSPRenderer)polygonRenderer).getSurfaceCache();
+            g.setColor(Color.WHITE);
+            g.drawString("surface builds: " +
+                cache.getLastFrameBuildTime() / 1000000 + "ms (max " +
+                cache.getMaxFrameBuildTime() / 1000000 + "ms)", 5,
+                screen.getHeight() - 20);
+            TextureCache textures = TextureCache.getInstance();
+            g.drawString("textures: " + textures.getNumTextures() +
+                ", " + textures.getUsedBytes() / 1024 + "KB", 5,
+                screen.getHeight() - 65);
+        }
+    }
+
 }
\ No newline at end of file
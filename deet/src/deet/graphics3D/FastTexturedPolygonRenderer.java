@@ -6,6 +6,7 @@ import java.util.HashMap;
 
 import deet.graphics3D.texture.*;
 import deet.math3D.*;
+import deet.util.Profiler;
 
 /**
     The FastTexturedPolygonRenderer is a PolygonRenderer that
@@ -25,7 +26,21 @@ public class FastTexturedPolygonRenderer extends PolygonRenderer {
     protected Vector3D viewPos = new Vector3D();
     protected BufferedImage doubleBuffer;
     protected short[] doubleBufferData;
+    protected int[] doubleBufferIntData;
+    protected PixelFormat pixelFormat = PixelFormat.RGB_565;
     protected HashMap scanRenderers;
+    protected HashMap spanRenderers;
+    protected boolean mipMapping = true;
+    protected boolean spanRendering;
+    protected float renderScale = 1;
+
+    // the view bounds while a frame is drawn at a lower scale
+    private Rectangle displayBounds = new Rectangle();
+    private boolean scaledFrame;
+
+    // stats for the current frame
+    protected int numPolygonsDrawn;
+    protected int numPixelsDrawn;
 
     public FastTexturedPolygonRenderer(Transform3D camera,
         ViewWindow viewWindow)
@@ -37,6 +52,14 @@ public class FastTexturedPolygonRenderer extends PolygonRenderer {
         ViewWindow viewWindow, boolean clearViewEveryFrame)
     {
         super(camera, viewWindow, clearViewEveryFrame);
+
+        spanRenderers = new HashMap();
+        spanRenderers.put(PowerOf2Texture.class,
+            new PowerOf2TextureSpanRenderer());
+        spanRenderers.put(ShadedTexture.class,
+            new ShadedTextureSpanRenderer());
+        spanRenderers.put(ShadedSurface.class,
+            new ShadedSurfaceSpanRenderer());
     }
 
     protected void init() {
@@ -55,35 +78,217 @@ public class FastTexturedPolygonRenderer extends PolygonRenderer {
 
 
     public void startFrame(Graphics2D g) {
+        numPolygonsDrawn = 0;
+        numPixelsDrawn = 0;
+        scaledFrame = (renderScale != 1);
+        if (scaledFrame) {
+            // shrink the view until endFrame()
+            displayBounds.setBounds(viewWindow.getLeftOffset(),
+                viewWindow.getTopOffset(), viewWindow.getWidth(),
+                viewWindow.getHeight());
+            viewWindow.setBounds(displayBounds.x, displayBounds.y,
+                Math.max(1, Math.round(displayBounds.width *
+                renderScale)),
+                Math.max(1, Math.round(displayBounds.height *
+                renderScale)));
+        }
         // initialize buffer
         if (doubleBuffer == null ||
             doubleBuffer.getWidth() != viewWindow.getWidth() ||
-            doubleBuffer.getHeight() != viewWindow.getHeight())
+            doubleBuffer.getHeight() != viewWindow.getHeight() ||
+            doubleBuffer.getType() != pixelFormat.getImageType())
         {
-            doubleBuffer = new BufferedImage(
-                viewWindow.getWidth(), viewWindow.getHeight(),
-                BufferedImage.TYPE_USHORT_565_RGB);
+            doubleBuffer = pixelFormat.createImage(
+                viewWindow.getWidth(), viewWindow.getHeight());
             //doubleBuffer = g.getDeviceConfiguration().createCompatibleImage(
             //viewWindow.getWidth(), viewWindow.getHeight());
 
             DataBuffer dest =
                 doubleBuffer.getRaster().getDataBuffer();
-            doubleBufferData = ((DataBufferUShort)dest).getData();
+            doubleBufferData = null;
+            doubleBufferIntData = null;
+            if (pixelFormat.isIntPixels()) {
+                doubleBufferIntData = ((DataBufferInt)dest).getData();
+            }
+            else {
+                doubleBufferData = ((DataBufferUShort)dest).getData();
+            }
         }
         // clear view
         if (clearViewEveryFrame) {
-            for (int i=0; i<doubleBufferData.length; i++) {
-                doubleBufferData[i] = 0;
+            if (doubleBufferIntData != null) {
+                for (int i=0; i<doubleBufferIntData.length; i++) {
+                    doubleBufferIntData[i] = 0;
+                }
+            }
+            else {
+                for (int i=0; i<doubleBufferData.length; i++) {
+                    doubleBufferData[i] = 0;
+                }
             }
         }
     }
 
     public void endFrame(Graphics2D g) {
         // draw the double buffer onto the screen
-        g.drawImage(doubleBuffer, viewWindow.getLeftOffset(),
-            viewWindow.getTopOffset(), null);
+        long startTime = Profiler.start();
+        if (scaledFrame) {
+            // restore the view, and scale the image up to fill it
+            scaledFrame = false;
+            viewWindow.setBounds(displayBounds.x, displayBounds.y,
+                displayBounds.width, displayBounds.height);
+            g.drawImage(doubleBuffer, displayBounds.x,
+                displayBounds.y, displayBounds.width,
+                displayBounds.height, null);
+        }
+        else {
+            g.drawImage(doubleBuffer, viewWindow.getLeftOffset(),
+                viewWindow.getTopOffset(), null);
+        }
+        Profiler.end(Profiler.BLIT, startTime);
+    }
+
+
+    /**
+        Gets the number of textured polygons drawn (with at least
+        one visible scan) since the frame started. With render
+        bands (see ZBufferedRenderer), the bands' counts are
+        added at endFrame().
+    */
+    public int getNumPolygonsDrawn() {
+        return numPolygonsDrawn;
+    }
+
+
+    /**
+        Gets the number of pixels scanned since the frame
+        started, before any depth test. Pixels drawn over more
+        than once are counted each time.
+    */
+    public int getNumPixelsDrawn() {
+        return numPixelsDrawn;
+    }
+
+    /**
+        Sets the pixel format of the double buffer. Every texture
+        drawn must use the same pixel format. The default is
+        PixelFormat.RGB_565. Use PixelFormat.RGB_888 to avoid
+        converting every pixel when the double buffer is drawn
+        to a 32-bit screen.
+    */
+    public void setPixelFormat(PixelFormat pixelFormat) {
+        this.pixelFormat = pixelFormat;
+    }
+
+
+    /**
+        Gets the pixel format of the double buffer.
+    */
+    public PixelFormat getPixelFormat() {
+        return pixelFormat;
+    }
+
+
+    /**
+        Sets whether textures with mip-maps are drawn using the
+        mip-map level that best matches the size of the texture
+        on the screen. The default is true.
+    */
+    public void setMipMapping(boolean mipMapping) {
+        this.mipMapping = mipMapping;
+    }
+
+
+    /**
+        Checks if mip-mapping is used.
+    */
+    public boolean isMipMapping() {
+        return mipMapping;
+    }
+
+
+    /**
+        Sets whether textured scans are drawn a span at a time
+        (see SpanRenderer) instead of a pixel at a time. The
+        pixels drawn are the same. Only applies to polygons
+        drawn without a z-buffer test. The default is false.
+    */
+    public void setSpanRendering(boolean spanRendering) {
+        this.spanRendering = spanRendering;
+    }
+
+
+    /**
+        Checks if textured scans are drawn a span at a time.
+    */
+    public boolean isSpanRendering() {
+        return spanRendering;
+    }
+
+
+    /**
+        Sets the scale of the resolution the view is drawn at,
+        from 0 to 1 (the default). At a lower scale, the view
+        window is made smaller from startFrame() to endFrame(),
+        and the image is scaled up to the full view in
+        endFrame(). Takes effect at the next startFrame().
+    */
+    public void setRenderScale(float renderScale) {
+        this.renderScale = renderScale;
+    }
+
+
+    /**
+        Gets the scale of the resolution the view is drawn at.
+    */
+    public float getRenderScale() {
+        return renderScale;
     }
 
+
+    /**
+        Gets the scan renderer for a texture from the specified
+        map of renderers by texture class, or the span renderer
+        if span rendering is on.
+    */
+    protected ScanRenderer getScanRenderer(HashMap renderers,
+        Texture texture)
+    {
+        if (spanRendering) {
+            renderers = spanRenderers;
+        }
+        ScanRenderer scanRenderer = (ScanRenderer)
+            renderers.get(texture.getClass());
+        scanRenderer.setTexture(texture);
+        return scanRenderer;
+    }
+
+
+    /**
+        Gets the mip-map level to use for a run of pixels. The
+        level is picked from the change in texture coordinates
+        from one pixel to the next across the screen (dtx, dty),
+        and from one row to the next down the screen (found from
+        the a, b and c vectors at u, v and z). Texture
+        coordinates are scaled by SCALE.
+    */
+    protected int getMipMapLevel(float u, float v, float z,
+        int dtx, int dty, int maxLevel)
+    {
+        if (maxLevel == 0 || !mipMapping) {
+            return 0;
+        }
+        float invZ = 1 / z;
+        float duy = (SCALE * a.y - u * c.y * invZ) * invZ;
+        float dvy = (SCALE * b.y - v * c.y * invZ) * invZ;
+        float sizeSq = Math.max((float)dtx*dtx + (float)dty*dty,
+            duy*duy + dvy*dvy) / (SCALE * SCALE);
+        // log2 of the size of a pixel in texels
+        int level = Math.getExponent(sizeSq) >> 1;
+        return Math.max(0, Math.min(level, maxLevel));
+    }
+
+
     protected void drawCurrentPolygon(Graphics2D g) {
         if (!(sourcePolygon instanceof TexturedPolygon3D)) {
             // not a textured polygon - return
@@ -91,10 +296,10 @@ public class FastTexturedPolygonRenderer extends PolygonRenderer {
         }
         TexturedPolygon3D poly = (TexturedPolygon3D)destPolygon;
         Texture texture = poly.getTexture();
-        ScanRenderer scanRenderer = (ScanRenderer)
-            scanRenderers.get(texture.getClass());
-        scanRenderer.setTexture(texture);
+        ScanRenderer scanRenderer =
+            getScanRenderer(scanRenderers, texture);
         Rectangle3D textureBounds = poly.getTextureBounds();
+        numPolygonsDrawn++;
 
         a.setToCrossProduct(textureBounds.getDirectionV(),
             textureBounds.getOrigin());
@@ -118,6 +323,7 @@ public class FastTexturedPolygonRenderer extends PolygonRenderer {
                     (scan.left - viewWindow.getLeftOffset());
 
                 scanRenderer.render(offset, scan.left, scan.right);
+                numPixelsDrawn+=scan.right - scan.left + 1;
             }
             y++;
             viewPos.y--;
@@ -241,6 +447,7 @@ public class FastTexturedPolygonRenderer extends PolygonRenderer {
         public void render(int offset, int left, int right) {
             PowerOf2Texture texture =
                 (PowerOf2Texture)currentTexture;
+            int maxLevel = texture.getNumMipMaps() - 1;
             float u = SCALE * a.getDotProduct(viewPos);
             float v = SCALE * b.getDotProduct(viewPos);
             float z = c.getDotProduct(viewPos);
@@ -262,13 +469,28 @@ public class FastTexturedPolygonRenderer extends PolygonRenderer {
                     nextTy = (int)(v/z);
                     int dtx = (nextTx-tx) >> INTERP_SIZE_BITS;
                     int dty = (nextTy-ty) >> INTERP_SIZE_BITS;
+                    int level = getMipMapLevel(u, v, z, dtx, dty,
+                        maxLevel);
+                    PowerOf2Texture mipMap = texture.getMipMap(level);
+                    int shift = SCALE_BITS + level;
                     int endOffset = offset + INTERP_SIZE;
-                    while (offset < endOffset) {
-                        doubleBufferData[offset++] =
-                            texture.getColor(
-                            tx >> SCALE_BITS, ty >> SCALE_BITS);
-                        tx+=dtx;
-                        ty+=dty;
+                    if (doubleBufferIntData != null) {
+                        while (offset < endOffset) {
+                            doubleBufferIntData[offset++] =
+                                mipMap.getIntColor(tx >> shift,
+                                ty >> shift);
+                            tx+=dtx;
+                            ty+=dty;
+                        }
+                    }
+                    else {
+                        while (offset < endOffset) {
+                            doubleBufferData[offset++] =
+                                mipMap.getColor(tx >> shift,
+                                ty >> shift);
+                            tx+=dtx;
+                            ty+=dty;
+                        }
                     }
                     x+=INTERP_SIZE;
                 }
@@ -282,13 +504,28 @@ public class FastTexturedPolygonRenderer extends PolygonRenderer {
                     nextTy = (int)(v/z);
                     int dtx = (nextTx-tx) / interpSize;
                     int dty = (nextTy-ty) / interpSize;
+                    int level = getMipMapLevel(u, v, z, dtx, dty,
+                        maxLevel);
+                    PowerOf2Texture mipMap = texture.getMipMap(level);
+                    int shift = SCALE_BITS + level;
                     int endOffset = offset + interpSize;
-                    while (offset < endOffset) {
-                        doubleBufferData[offset++] =
-                            texture.getColor(
-                            tx >> SCALE_BITS, ty >> SCALE_BITS);
-                        tx+=dtx;
-                        ty+=dty;
+                    if (doubleBufferIntData != null) {
+                        while (offset < endOffset) {
+                            doubleBufferIntData[offset++] =
+                                mipMap.getIntColor(tx >> shift,
+                                ty >> shift);
+                            tx+=dtx;
+                            ty+=dty;
+                        }
+                    }
+                    else {
+                        while (offset < endOffset) {
+                            doubleBufferData[offset++] =
+                                mipMap.getColor(tx >> shift,
+                                ty >> shift);
+                            tx+=dtx;
+                            ty+=dty;
+                        }
                     }
                     x+=interpSize;
                 }
@@ -303,6 +540,7 @@ public class FastTexturedPolygonRenderer extends PolygonRenderer {
         public void render(int offset, int left, int right) {
             ShadedTexture texture =
                 (ShadedTexture)currentTexture;
+            int maxLevel = texture.getNumMipMaps() - 1;
             float u = SCALE * a.getDotProduct(viewPos);
             float v = SCALE * b.getDotProduct(viewPos);
             float z = c.getDotProduct(viewPos);
@@ -324,13 +562,28 @@ public class FastTexturedPolygonRenderer extends PolygonRenderer {
                     nextTy = (int)(v/z);
                     int dtx = (nextTx-tx) >> INTERP_SIZE_BITS;
                     int dty = (nextTy-ty) >> INTERP_SIZE_BITS;
+                    int level = getMipMapLevel(u, v, z, dtx, dty,
+                        maxLevel);
+                    ShadedTexture mipMap = texture.getMipMap(level);
+                    int shift = SCALE_BITS + level;
                     int endOffset = offset + INTERP_SIZE;
-                    while (offset < endOffset) {
-                        doubleBufferData[offset++] =
-                            texture.getColor(
-                            tx >> SCALE_BITS, ty >> SCALE_BITS);
-                        tx+=dtx;
-                        ty+=dty;
+                    if (doubleBufferIntData != null) {
+                        while (offset < endOffset) {
+                            doubleBufferIntData[offset++] =
+                                mipMap.getIntColor(tx >> shift,
+                                ty >> shift);
+                            tx+=dtx;
+                            ty+=dty;
+                        }
+                    }
+                    else {
+                        while (offset < endOffset) {
+                            doubleBufferData[offset++] =
+                                mipMap.getColor(tx >> shift,
+                                ty >> shift);
+                            tx+=dtx;
+                            ty+=dty;
+                        }
                     }
                     x+=INTERP_SIZE;
                 }
@@ -344,13 +597,28 @@ public class FastTexturedPolygonRenderer extends PolygonRenderer {
                     nextTy = (int)(v/z);
                     int dtx = (nextTx-tx) / interpSize;
                     int dty = (nextTy-ty) / interpSize;
+                    int level = getMipMapLevel(u, v, z, dtx, dty,
+                        maxLevel);
+                    ShadedTexture mipMap = texture.getMipMap(level);
+                    int shift = SCALE_BITS + level;
                     int endOffset = offset + interpSize;
-                    while (offset < endOffset) {
-                        doubleBufferData[offset++] =
-                            texture.getColor(
-                            tx >> SCALE_BITS, ty >> SCALE_BITS);
-                        tx+=dtx;
-                        ty+=dty;
+                    if (doubleBufferIntData != null) {
+                        while (offset < endOffset) {
+                            doubleBufferIntData[offset++] =
+                                mipMap.getIntColor(tx >> shift,
+                                ty >> shift);
+                            tx+=dtx;
+                            ty+=dty;
+                        }
+                    }
+                    else {
+                        while (offset < endOffset) {
+                            doubleBufferData[offset++] =
+                                mipMap.getColor(tx >> shift,
+                                ty >> shift);
+                            tx+=dtx;
+                            ty+=dty;
+                        }
                     }
                     x+=interpSize;
                 }
@@ -398,12 +666,23 @@ public class FastTexturedPolygonRenderer extends PolygonRenderer {
                     int dtx = (nextTx-tx) >> INTERP_SIZE_BITS;
                     int dty = (nextTy-ty) >> INTERP_SIZE_BITS;
                     int endOffset = offset + INTERP_SIZE;
-                    while (offset < endOffset) {
-                        doubleBufferData[offset++] =
-                            texture.getColor(
-                            tx >> SCALE_BITS, ty >> SCALE_BITS);
-                        tx+=dtx;
-                        ty+=dty;
+                    if (doubleBufferIntData != null) {
+                        while (offset < endOffset) {
+                            doubleBufferIntData[offset++] =
+                                texture.getIntColor(
+                                tx >> SCALE_BITS, ty >> SCALE_BITS);
+                            tx+=dtx;
+                            ty+=dty;
+                        }
+                    }
+                    else {
+                        while (offset < endOffset) {
+                            doubleBufferData[offset++] =
+                                texture.getColor(
+                                tx >> SCALE_BITS, ty >> SCALE_BITS);
+                            tx+=dtx;
+                            ty+=dty;
+                        }
                     }
                     x+=INTERP_SIZE;
                 }
@@ -426,12 +705,23 @@ public class FastTexturedPolygonRenderer extends PolygonRenderer {
                     int dtx = (nextTx-tx) / interpSize;
                     int dty = (nextTy-ty) / interpSize;
                     int endOffset = offset + interpSize;
-                    while (offset < endOffset) {
-                        doubleBufferData[offset++] =
-                            texture.getColor(
-                            tx >> SCALE_BITS, ty >> SCALE_BITS);
-                        tx+=dtx;
-                        ty+=dty;
+                    if (doubleBufferIntData != null) {
+                        while (offset < endOffset) {
+                            doubleBufferIntData[offset++] =
+                                texture.getIntColor(
+                                tx >> SCALE_BITS, ty >> SCALE_BITS);
+                            tx+=dtx;
+                            ty+=dty;
+                        }
+                    }
+                    else {
+                        while (offset < endOffset) {
+                            doubleBufferData[offset++] =
+                                texture.getColor(
+                                tx >> SCALE_BITS, ty >> SCALE_BITS);
+                            tx+=dtx;
+                            ty+=dty;
+                        }
                     }
                     x+=interpSize;
                 }
@@ -441,4 +731,194 @@ public class FastTexturedPolygonRenderer extends PolygonRenderer {
     }
 
 
+    //================================================
+    // METHOD 5: copy spans in batches
+    //================================================
+
+    /**
+        A SpanRenderer works out the texture coordinates every
+        INTERP_SIZE pixels, like the METHOD 4 renderers, but
+        instead of copying each span right away, it collects the
+        spans of the scan in a SpanList and copies them from the
+        texture in one call (for example,
+        PowerOf2Texture.getColors()). Spans are only split into
+        separate calls where the mip-map level changes. The copy
+        loop runs over many pixels with the texture's fields in
+        local variables, so HotSpot optimizes it better than a
+        loop calling getColor() for every pixel.
+    */
+    public abstract class SpanRenderer extends ScanRenderer {
+
+        protected SpanList spans = new SpanList(64);
+        // clamp the last span of a scan to the texture bounds
+        protected boolean clampLastSpan;
+
+        public void render(int offset, int left, int right) {
+            float u = SCALE * a.getDotProduct(viewPos);
+            float v = SCALE * b.getDotProduct(viewPos);
+            float z = c.getDotProduct(viewPos);
+            float du = INTERP_SIZE * SCALE * a.x;
+            float dv = INTERP_SIZE * SCALE * b.x;
+            float dz = INTERP_SIZE * c.x;
+            int nextTx = (int)(u/z);
+            int nextTy = (int)(v/z);
+            int x = left;
+            int spansOffset = offset;
+            int spansLevel = 0;
+            spans.clear();
+            while (x <= right) {
+                int tx = nextTx;
+                int ty = nextTy;
+                int maxLength = right-x+1;
+                int interpSize;
+                int dtx;
+                int dty;
+                if (maxLength > INTERP_SIZE) {
+                    interpSize = INTERP_SIZE;
+                    u+=du;
+                    v+=dv;
+                    z+=dz;
+                    nextTx = (int)(u/z);
+                    nextTy = (int)(v/z);
+                    dtx = (nextTx-tx) >> INTERP_SIZE_BITS;
+                    dty = (nextTy-ty) >> INTERP_SIZE_BITS;
+                }
+                else {
+                    // variable interpolation size
+                    interpSize = maxLength;
+                    u += interpSize * SCALE * a.x;
+                    v += interpSize * SCALE * b.x;
+                    z += interpSize * c.x;
+                    nextTx = (int)(u/z);
+                    nextTy = (int)(v/z);
+                    if (clampLastSpan) {
+                        int width = currentTexture.getWidth();
+                        int height = currentTexture.getHeight();
+                        tx = checkBounds(tx, width);
+                        ty = checkBounds(ty, height);
+                        nextTx = checkBounds(nextTx, width);
+                        nextTy = checkBounds(nextTy, height);
+                    }
+                    dtx = (nextTx-tx) / interpSize;
+                    dty = (nextTy-ty) / interpSize;
+                }
+
+                // draw the spans so far if the level changes
+                int level = getMipMapLevel(u, v, z, dtx, dty);
+                if (level != spansLevel && spans.numSpans > 0) {
+                    drawSpans(spansLevel, spansOffset);
+                    spans.clear();
+                    spansOffset = offset;
+                }
+                spansLevel = level;
+                spans.add(tx, ty, dtx, dty, interpSize);
+                offset+=interpSize;
+                x+=interpSize;
+            }
+            if (spans.numSpans > 0) {
+                drawSpans(spansLevel, spansOffset);
+            }
+        }
+
+        protected int checkBounds(int vScaled, int bounds) {
+            int v = vScaled >> SCALE_BITS;
+            if (v < 0) {
+                vScaled = 0;
+            }
+            else if (v >= bounds) {
+                vScaled = (bounds - 1) << SCALE_BITS;
+            }
+            return vScaled;
+        }
+
+        /**
+            Gets the mip-map level for a span, given the u, v
+            and z values at its end. Returns 0 by default.
+        */
+        protected int getMipMapLevel(float u, float v, float z,
+            int dtx, int dty)
+        {
+            return 0;
+        }
+
+        /**
+            Draws the spans in the span list, using the specified
+            mip-map level, starting at the specified offset.
+        */
+        protected abstract void drawSpans(int level, int offset);
+    }
+
+
+    public class PowerOf2TextureSpanRenderer extends SpanRenderer {
+
+        protected int getMipMapLevel(float u, float v, float z,
+            int dtx, int dty)
+        {
+            int maxLevel =
+                ((PowerOf2Texture)currentTexture).getNumMipMaps() - 1;
+            return FastTexturedPolygonRenderer.this.getMipMapLevel(
+                u, v, z, dtx, dty, maxLevel);
+        }
+
+        protected void drawSpans(int level, int offset) {
+            PowerOf2Texture mipMap =
+                ((PowerOf2Texture)currentTexture).getMipMap(level);
+            int shift = SCALE_BITS + level;
+            if (doubleBufferIntData != null) {
+                mipMap.getIntColors(spans, shift,
+                    doubleBufferIntData, offset);
+            }
+            else {
+                mipMap.getColors(spans, shift,
+                    doubleBufferData, offset);
+            }
+        }
+    }
+
+
+    public class ShadedTextureSpanRenderer extends SpanRenderer {
+
+        protected int getMipMapLevel(float u, float v, float z,
+            int dtx, int dty)
+        {
+            int maxLevel =
+                ((ShadedTexture)currentTexture).getNumMipMaps() - 1;
+            return FastTexturedPolygonRenderer.this.getMipMapLevel(
+                u, v, z, dtx, dty, maxLevel);
+        }
+
+        protected void drawSpans(int level, int offset) {
+            ShadedTexture mipMap =
+                ((ShadedTexture)currentTexture).getMipMap(level);
+            int shift = SCALE_BITS + level;
+            if (doubleBufferIntData != null) {
+                mipMap.getIntColors(spans, shift,
+                    doubleBufferIntData, offset);
+            }
+            else {
+                mipMap.getColors(spans, shift,
+                    doubleBufferData, offset);
+            }
+        }
+    }
+
+
+    public class ShadedSurfaceSpanRenderer extends SpanRenderer {
+
+        public ShadedSurfaceSpanRenderer() {
+            clampLastSpan = true;
+        }
+
+        protected void drawSpans(int level, int offset) {
+            ShadedSurface texture = (ShadedSurface)currentTexture;
+            if (doubleBufferIntData != null) {
+                texture.getIntColors(spans, SCALE_BITS,
+                    doubleBufferIntData, offset);
+            }
+            else {
+                texture.getColors(spans, SCALE_BITS,
+                    doubleBufferData, offset);
+            }
+        }
+    }
 }
@@ -0,0 +1,159 @@
+package deet.graphics3D;
+
+/**
+    The HierarchicalZBuffer keeps the minimum depth (the farthest
+    point, since a ZBuffer holds 1/z) of every 8x8 and 32x32
+    tile of a ZBuffer. It's built once the world is drawn, and
+    is used to check if the screen bounds of an object are
+    completely hidden before the object is drawn.
+*/
+public class HierarchicalZBuffer {
+
+    private static final int TILE_BITS = 3;
+    private static final int BLOCK_BITS = 5;
+    private static final int TILES_PER_BLOCK_BITS =
+        BLOCK_BITS - TILE_BITS;
+
+    private int width;
+    private int height;
+    private short[] tileDepth;
+    private int tilesWide;
+    private int tilesHigh;
+    private short[] blockDepth;
+    private int blocksWide;
+    private int blocksHigh;
+
+    /**
+        Creates a new HierarchicalZBuffer for a ZBuffer with the
+        specified width and height.
+    */
+    public HierarchicalZBuffer(int width, int height) {
+        this.width = width;
+        this.height = height;
+        tilesWide = (width + (1 << TILE_BITS) - 1) >> TILE_BITS;
+        tilesHigh = (height + (1 << TILE_BITS) - 1) >> TILE_BITS;
+        blocksWide = (width + (1 << BLOCK_BITS) - 1) >> BLOCK_BITS;
+        blocksHigh = (height + (1 << BLOCK_BITS) - 1) >> BLOCK_BITS;
+        tileDepth = new short[tilesWide * tilesHigh];
+        blockDepth = new short[blocksWide * blocksHigh];
+    }
+
+
+    /**
+        Gets the width of this buffer, in pixels.
+    */
+    public int getWidth() {
+        return width;
+    }
+
+
+    /**
+        Gets the height of this buffer, in pixels.
+    */
+    public int getHeight() {
+        return height;
+    }
+
+
+    /**
+        Builds this buffer from the current depths of the
+        specified ZBuffer, which must be the same size.
+    */
+    public void build(ZBuffer zBuffer) {
+        short[] depthBuffer = zBuffer.getArray();
+
+        // find the min depth of each 8x8 tile
+        for (int i=0; i<tileDepth.length; i++) {
+            tileDepth[i] = Short.MAX_VALUE;
+        }
+        int tileSize = 1 << TILE_BITS;
+        for (int y=0; y<height; y++) {
+            int offset = y * width;
+            int tileOffset = (y >> TILE_BITS) * tilesWide;
+            for (int x=0; x<width; x+=tileSize) {
+                int endOffset = offset + Math.min(tileSize, width-x);
+                short min = tileDepth[tileOffset];
+                while (offset < endOffset) {
+                    if (depthBuffer[offset] < min) {
+                        min = depthBuffer[offset];
+                    }
+                    offset++;
+                }
+                tileDepth[tileOffset++] = min;
+            }
+        }
+
+        // find the min depth of each 32x32 block
+        for (int i=0; i<blockDepth.length; i++) {
+            blockDepth[i] = Short.MAX_VALUE;
+        }
+        for (int ty=0; ty<tilesHigh; ty++) {
+            int tileOffset = ty * tilesWide;
+            int blockOffset = (ty >> TILES_PER_BLOCK_BITS) *
+                blocksWide;
+            for (int tx=0; tx<tilesWide; tx++) {
+                int block = blockOffset +
+                    (tx >> TILES_PER_BLOCK_BITS);
+                if (tileDepth[tileOffset] < blockDepth[block]) {
+                    blockDepth[block] = tileDepth[tileOffset];
+                }
+                tileOffset++;
+            }
+        }
+    }
+
+
+    /**
+        Checks if every pixel in the specified rectangle (in
+        ZBuffer coordinates, inclusive) is closer than the
+        specified depth. The 32x32 blocks are checked first, and
+        the 8x8 tiles only for blocks that aren't closer. The
+        result is conservative: if this method returns true,
+        nothing at the specified depth could be seen in the
+        rectangle.
+    */
+    public boolean isOccluded(int left, int top, int right,
+        int bottom, int depth)
+    {
+        left = Math.max(left, 0);
+        top = Math.max(top, 0);
+        right = Math.min(right, width-1);
+        bottom = Math.min(bottom, height-1);
+        if (left > right || top > bottom) {
+            return false;
+        }
+
+        int tileLeft = left >> TILE_BITS;
+        int tileRight = right >> TILE_BITS;
+        int tileTop = top >> TILE_BITS;
+        int tileBottom = bottom >> TILE_BITS;
+        for (int by=top >> BLOCK_BITS; by<=bottom >> BLOCK_BITS;
+            by++)
+        {
+            for (int bx=left >> BLOCK_BITS;
+                bx<=right >> BLOCK_BITS; bx++)
+            {
+                if (blockDepth[by * blocksWide + bx] > depth) {
+                    continue;
+                }
+                // check the tiles of this block in the rectangle
+                int tx1 = Math.max(tileLeft,
+                    bx << TILES_PER_BLOCK_BITS);
+                int tx2 = Math.min(tileRight,
+                    ((bx+1) << TILES_PER_BLOCK_BITS) - 1);
+                int ty1 = Math.max(tileTop,
+                    by << TILES_PER_BLOCK_BITS);
+                int ty2 = Math.min(tileBottom,
+                    ((by+1) << TILES_PER_BLOCK_BITS) - 1);
+                for (int ty=ty1; ty<=ty2; ty++) {
+                    for (int tx=tx1; tx<=tx2; tx++) {
+                        if (tileDepth[ty * tilesWide + tx] <= depth) {
+                            return false;
+                        }
+                    }
+                }
+            }
+        }
+        return true;
+    }
+}
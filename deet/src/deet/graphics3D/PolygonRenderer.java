@@ -4,6 +4,7 @@ import java.awt.Graphics2D;
 import java.awt.Color;
 
 import deet.math3D.*;
+import deet.util.Profiler;
 
 /**
     The PolygonRenderer class is an abstract class that transforms
@@ -94,14 +95,27 @@ public abstract class PolygonRenderer {
             sourcePolygon = poly;
             destPolygon.setTo(poly);
             destPolygon.subtract(camera);
-            boolean visible = destPolygon.clip(-1);
+            return drawTransformed(g);
+        }
+        return false;
+    }
+
+
+    /**
+        Clips, projects, and draws the destination polygon, which
+        is already transformed to camera space. The source polygon
+        must be set to the polygon it came from.
+    */
+    protected boolean drawTransformed(Graphics2D g) {
+        boolean visible = destPolygon.clip(-1);
+        if (visible) {
+            destPolygon.project(viewWindow);
+            long startTime = Profiler.start();
+            visible = scanConverter.convert(destPolygon);
+            Profiler.end(Profiler.SCAN_CONVERSION, startTime);
             if (visible) {
-                destPolygon.project(viewWindow);
-                visible = scanConverter.convert(destPolygon);
-                if (visible) {
-                    drawCurrentPolygon(g);
-                    return true;
-                }
+                drawCurrentPolygon(g);
+                return true;
             }
         }
         return false;
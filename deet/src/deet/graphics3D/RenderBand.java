@@ -0,0 +1,215 @@
+package deet.graphics3D;
+
+import java.util.ArrayList;
+
+import deet.math3D.*;
+
+/**
+    A RenderBand is a horizontal slice of a view window that is
+    rasterized on its own thread. Each band has its own
+    ZBufferedRenderer (and so its own ScanConverter state) that
+    only scans the rows of the band, so bands never write the
+    same pixel or z-buffer value. Polygons are queued in the
+    order they are drawn and each band draws them in that order,
+    so the result is exactly the same as drawing every polygon
+    on one thread.
+*/
+public class RenderBand implements Runnable {
+
+    /**
+        The filled sequence number of a band that isn't filled.
+    */
+    public static final int NOT_FILLED = Integer.MAX_VALUE;
+
+    /**
+        A queued polygon. The polygon is already transformed,
+        clipped and projected, and is shared (read-only) by
+        every band it is queued to.
+    */
+    static class Command {
+        Polygon3D source;
+        TexturedPolygon3D polygon = new TexturedPolygon3D();
+        boolean sorted;
+        int seq;
+    }
+
+    private ZBufferedRenderer renderer;
+    private int top;
+    private int bottom;
+    private ArrayList queue;
+    private int numProcessed;
+    private boolean closed;
+    private boolean running;
+    private volatile int filledSeq;
+
+    /**
+        Creates a new RenderBand that draws with the specified
+        renderer. The renderer should not be used for anything
+        else.
+    */
+    public RenderBand(ZBufferedRenderer renderer) {
+        this.renderer = renderer;
+        queue = new ArrayList();
+    }
+
+
+    /**
+        Sets the rows (in screen coordinates, inclusive) this
+        band draws.
+    */
+    public void setBounds(int top, int bottom) {
+        this.top = top;
+        this.bottom = bottom;
+        renderer.scanConverter.setBand(top, bottom);
+    }
+
+
+    /**
+        Gets the renderer this band draws with.
+    */
+    public ZBufferedRenderer getRenderer() {
+        return renderer;
+    }
+
+
+    /**
+        Gets the top row of this band.
+    */
+    public int getTop() {
+        return top;
+    }
+
+
+    /**
+        Gets the bottom row of this band.
+    */
+    public int getBottom() {
+        return bottom;
+    }
+
+
+    /**
+        Prepares this band to draw a new frame for the specified
+        parent renderer. Call before running this band.
+    */
+    public synchronized void startFrame(ZBufferedRenderer parent) {
+        renderer.startBandFrame(parent);
+        queue.clear();
+        numProcessed = 0;
+        closed = false;
+        running = true;
+        filledSeq = NOT_FILLED;
+    }
+
+
+    /**
+        Queues a polygon to draw.
+    */
+    public synchronized void add(Command command) {
+        queue.add(command);
+        notifyAll();
+    }
+
+
+    /**
+        Signals that no more polygons will be queued this frame.
+    */
+    public synchronized void close() {
+        closed = true;
+        notifyAll();
+    }
+
+
+    /**
+        Waits until every queued polygon is drawn.
+    */
+    public synchronized void waitUntilProcessed() {
+        while (running && numProcessed < queue.size()) {
+            waitForChange();
+        }
+    }
+
+
+    /**
+        Waits until this band stops running (after close() is
+        called and every queued polygon is drawn).
+    */
+    public synchronized void waitUntilDone() {
+        while (running) {
+            waitForChange();
+        }
+    }
+
+
+    /**
+        Gets the sequence number of the sorted polygon after which
+        this band was completely filled, or NOT_FILLED if it isn't
+        filled yet.
+    */
+    public int getFilledSeq() {
+        return filledSeq;
+    }
+
+
+    /**
+        Checks if this band was filled by sorted polygons this
+        frame.
+    */
+    public boolean isFilled() {
+        return (filledSeq != NOT_FILLED);
+    }
+
+
+    /**
+        Draws queued polygons until the band is closed and every
+        polygon is drawn.
+    */
+    public void run() {
+        try {
+            Command command;
+            while ((command = nextCommand()) != null) {
+                boolean visible = renderer.drawBandPolygon(
+                    command.source, command.polygon,
+                    command.sorted);
+                if (visible && command.sorted &&
+                    filledSeq == NOT_FILLED &&
+                    renderer.isBandFilled())
+                {
+                    filledSeq = command.seq;
+                }
+                commandProcessed();
+            }
+        }
+        finally {
+            synchronized (this) {
+                running = false;
+                notifyAll();
+            }
+        }
+    }
+
+
+    private synchronized Command nextCommand() {
+        while (numProcessed == queue.size() && !closed) {
+            waitForChange();
+        }
+        if (numProcessed < queue.size()) {
+            return (Command)queue.get(numProcessed);
+        }
+        return null;
+    }
+
+
+    private synchronized void commandProcessed() {
+        numProcessed++;
+        notifyAll();
+    }
+
+
+    private void waitForChange() {
+        try {
+            wait();
+        }
+        catch (InterruptedException ex) { }
+    }
+}
@@ -18,6 +18,8 @@ public class ScanConverter {
     protected Scan[] scans;
     protected int top;
     protected int bottom;
+    protected int bandTop;
+    protected int bandBottom;
 
     /**
         A horizontal scan line.
@@ -82,6 +84,29 @@ public class ScanConverter {
     */
     public ScanConverter(ViewWindow view) {
         this.view = view;
+        clearBand();
+    }
+
+
+    /**
+        Limits scan conversion to the rows from bandTop to
+        bandBottom (inclusive, in screen coordinates). Rows
+        outside the band are never touched, so several
+        ScanConverters with different bands can share one
+        ViewWindow. The scans within the band are exactly the
+        same as the scans produced without a band.
+    */
+    public void setBand(int bandTop, int bandBottom) {
+        this.bandTop = bandTop;
+        this.bandBottom = bandBottom;
+    }
+
+
+    /**
+        Removes any band limit set with setBand().
+    */
+    public void clearBand() {
+        setBand(Integer.MIN_VALUE, Integer.MAX_VALUE);
     }
 
 
@@ -141,6 +166,19 @@ public class ScanConverter {
     }
 
 
+    /**
+        Sets the boundary of every scan from startY to endY
+        that is within the current band.
+    */
+    private void setBoundaries(int startY, int endY, int x) {
+        startY = Math.max(startY, bandTop);
+        endY = Math.min(endY, bandBottom);
+        for (int y=startY; y<=endY; y++) {
+            scans[y].setBoundary(x);
+        }
+    }
+
+
     /**
         Scan-converts a projected polygon. Returns true if the
         polygon is visible in the view window.
@@ -190,9 +228,7 @@ public class ScanConverter {
                 int x = MoreMath.ceil(v1.x);
                 // ensure x within view bounds
                 x = Math.min(maxX+1, Math.max(x, minX));
-                for (int y=startY; y<=endY; y++) {
-                    scans[y].setBoundary(x);
-                }
+                setBoundaries(startY, endY, x);
             }
             else {
                 // scan-convert this edge (line equation)
@@ -216,19 +252,15 @@ public class ScanConverter {
                     int yInt = (int)(v1.y + (minX - v1.x) /
                         gradient);
                     yInt = Math.min(yInt, endY);
-                    while (startY <= yInt) {
-                        scans[startY].setBoundary(minX);
-                        startY++;
-                    }
+                    setBoundaries(startY, yInt, minX);
+                    startY = Math.max(startY, yInt+1);
                 }
                 else if (startX > maxX) {
                     int yInt = (int)(v1.y + (maxX - v1.x) /
                         gradient);
                     yInt = Math.min(yInt, endY);
-                    while (startY <= yInt) {
-                        scans[startY].setBoundary(maxX+1);
-                        startY++;
-                    }
+                    setBoundaries(startY, yInt, maxX+1);
+                    startY = Math.max(startY, yInt+1);
                 }
 
                 if (startY > endY) {
@@ -241,19 +273,15 @@ public class ScanConverter {
                     int yInt = MoreMath.ceil(v1.y + (minX - v1.x) /
                         gradient);
                     yInt = Math.max(yInt, startY);
-                    while (endY >= yInt) {
-                        scans[endY].setBoundary(minX);
-                        endY--;
-                    }
+                    setBoundaries(yInt, endY, minX);
+                    endY = Math.min(endY, yInt-1);
                 }
                 else if (endX > maxX) {
                     int yInt = MoreMath.ceil(v1.y + (maxX - v1.x) /
                         gradient);
                     yInt = Math.max(yInt, startY);
-                    while (endY >= yInt) {
-                        scans[endY].setBoundary(maxX+1);
-                        endY--;
-                    }
+                    setBoundaries(yInt, endY, maxX+1);
+                    endY = Math.min(endY, yInt-1);
                 }
 
                 if (startY > endY) {
@@ -265,6 +293,13 @@ public class ScanConverter {
                     SCALE * (startY - v1.y) * dx / dy) + SCALE_MASK;
                 int dxScaled = (int)(dx * SCALE / dy);
 
+                // skip to the band (same result as stepping there)
+                if (startY < bandTop) {
+                    xScaled += (bandTop - startY) * dxScaled;
+                    startY = bandTop;
+                }
+                endY = Math.min(endY, bandBottom);
+
                 for (int y=startY; y<=endY; y++) {
                     scans[y].setBoundary(xScaled >> SCALE_BITS);
                     xScaled+=dxScaled;
@@ -272,6 +307,10 @@ public class ScanConverter {
             }
         }
 
+        // only rows within the band were scanned
+        top = Math.max(top, bandTop);
+        bottom = Math.min(bottom, bandBottom);
+
         // check if visible (any valid scans)
         for (int i=top; i<=bottom; i++) {
             if (scans[i].isValid()) {
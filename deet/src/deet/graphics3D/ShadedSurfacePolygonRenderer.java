@@ -2,25 +2,23 @@ package deet.graphics3D;
 
 import java.awt.*;
 import java.awt.image.*;
-import java.util.List;
-import java.util.LinkedList;
-import java.util.Iterator;
 
 
 import deet.graphics3D.texture.*;
 import deet.math3D.*;
+import deet.util.Profiler;
 
 /**
     The ShadedSurfacePolygonRenderer is a PolygonRenderer that
-    renders polygons with ShadedSurfaces. It keeps track of
-    built surfaces, and clears any surfaces that weren't used
-    in the last rendered frame to save memory.
+    renders polygons with ShadedSurfaces. Surfaces are built
+    through a SurfaceCache, which clears the least recently used
+    surfaces when its memory budget is exceeded.
 */
 public class ShadedSurfacePolygonRenderer
     extends FastTexturedPolygonRenderer
 {
 
-    private List builtSurfaces = new LinkedList();
+    private SurfaceCache surfaceCache = new SurfaceCache();
 
     public ShadedSurfacePolygonRenderer(Transform3D camera,
         ViewWindow viewWindow)
@@ -36,19 +34,24 @@ public class ShadedSurfacePolygonRenderer
 
     public void endFrame(Graphics2D g) {
         super.endFrame(g);
+        surfaceCache.endFrame();
+    }
 
-        // clear all built surfaces that weren't used this frame.
-        Iterator i = builtSurfaces.iterator();
-        while (i.hasNext()) {
-            ShadedSurface surface = (ShadedSurface)i.next();
-            if (surface.isDirty()) {
-                surface.clearSurface();
-                i.remove();
-            }
-            else {
-                surface.setDirty(true);
-            }
-        }
+
+    /**
+        Sets the SurfaceCache used to build surfaces. Renderers
+        drawing the same polygons should share a cache.
+    */
+    public void setSurfaceCache(SurfaceCache surfaceCache) {
+        this.surfaceCache = surfaceCache;
+    }
+
+
+    /**
+        Gets the SurfaceCache used to build surfaces.
+    */
+    public SurfaceCache getSurfaceCache() {
+        return surfaceCache;
     }
 
     protected void drawCurrentPolygon(Graphics2D g) {
@@ -58,8 +61,8 @@ public class ShadedSurfacePolygonRenderer
 
 
     /**
-        Builds the surface of the polygon if it has a
-        ShadedSurface that is cleared.
+        Builds the surface of the polygon (using the
+        SurfaceCache) if it has a ShadedSurface.
     */
     protected void buildSurface() {
         // build surface, if needed
@@ -67,13 +70,9 @@ public class ShadedSurfacePolygonRenderer
             Texture texture =
                 ((TexturedPolygon3D)sourcePolygon).getTexture();
             if (texture instanceof ShadedSurface) {
-                ShadedSurface surface =
-                    (ShadedSurface)texture;
-                if (surface.isCleared()) {
-                    surface.buildSurface();
-                    builtSurfaces.add(surface);
-                }
-                surface.setDirty(false);
+                long startTime = Profiler.start();
+                surfaceCache.buildSurface((ShadedSurface)texture);
+                Profiler.end(Profiler.SURFACE_BUILD, startTime);
             }
         }
     }
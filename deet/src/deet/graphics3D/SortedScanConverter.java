@@ -67,7 +67,8 @@ public class SortedScanConverter extends ScanConverter {
 
 
     /**
-        Checks if the view is filled.
+        Checks if the view is filled. If a band is set, only the
+        rows within the band are checked.
     */
     public boolean isFilled() {
         if (viewScans == null) {
@@ -76,7 +77,9 @@ public class SortedScanConverter extends ScanConverter {
 
         int left = view.getLeftOffset();
         int right = left + view.getWidth() - 1;
-        for (int y=view.getTopOffset(); y<viewScans.length; y++) {
+        int top = Math.max(view.getTopOffset(), bandTop);
+        int bottom = Math.min(viewScans.length - 1, bandBottom);
+        for (int y=top; y<=bottom; y++) {
             if (!viewScans[y].equals(left, right)) {
                 return false;
             }
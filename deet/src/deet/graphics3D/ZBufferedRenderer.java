@@ -2,6 +2,7 @@ package deet.graphics3D;
 
 import java.awt.*;
 import java.awt.image.*;
+import java.util.ArrayList;
 import java.util.HashMap;
 import deet.game.*;
 
@@ -9,6 +10,9 @@ import deet.graphics3D.texture.*;
 import deet.math3D.*;
 import deet.object.GameObject;
 import deet.object.GameObjectRenderer;
+import deet.util.MoreMath;
+import deet.util.Profiler;
+import deet.util.ThreadPool;
 
 /**
     The ZBufferedRenderer is a PolygonRenderer that
@@ -25,11 +29,49 @@ public class ZBufferedRenderer
     */
     protected static final int MIN_DISTANCE = 12;
 
-    protected TexturedPolygon3D temp;
+    /**
+        The default largest error, in pixels, of a level of
+        detail drawn instead of a group's polygons.
+    */
+    public static final float DEFAULT_LEVEL_OF_DETAIL_ERROR = 1;
+
     protected ZBuffer zBuffer;
     // used for calculating depth
     protected float w;
 
+    // for band-parallel rendering (null if not used)
+    protected RenderBand[] bands;
+    private ThreadPool bandThreadPool;
+    private ArrayList bandCommands;
+    private int numBandCommands;
+    private int bandViewTop;
+    private int bandViewHeight;
+    private boolean bandRenderer;
+
+    // for culling PolygonGroups against the view frustum
+    private boolean groupCulling = true;
+    private ViewFrustum frustum;
+    private Transform3D[] groupTransforms = new Transform3D[4];
+    private Vector3D boundsBottom = new Vector3D();
+    private Vector3D boundsTop = new Vector3D();
+    private int numPolygonsTransformed;
+    private int numObjectsTested;
+    private int numObjectsCulled;
+    private int numObjectsDrawn;
+
+    // levels of detail
+    private float levelOfDetailError = DEFAULT_LEVEL_OF_DETAIL_ERROR;
+    private Vector3D lodCenter = new Vector3D();
+    private int numGroupsSimplified;
+
+    // for occlusion culling of PolygonGroups (built after the
+    // world is drawn)
+    private boolean occlusionCulling = true;
+    private HierarchicalZBuffer hierarchicalZBuffer;
+    private boolean hierarchicalZBufferBuilt;
+    private int numGroupsOccluded;
+    private int numObjectsOccluded;
+
     public ZBufferedRenderer(Transform3D camera,
         ViewWindow viewWindow)
     {
@@ -40,7 +82,6 @@ public class ZBufferedRenderer
         ViewWindow viewWindow, boolean eraseView)
     {
         super(camera, viewWindow, eraseView);
-        temp = new TexturedPolygon3D();
     }
 
     protected void init() {
@@ -58,8 +99,255 @@ public class ZBufferedRenderer
     }
 
 
+    /**
+        Sets the number of horizontal bands the view window is
+        split into. Each band is rasterized on its own thread,
+        and the frame is the same as if it was drawn on one
+        thread. Use 1 (the default) to draw everything on the
+        calling thread.
+    */
+    public void setNumBands(int numBands) {
+        if (bandThreadPool != null) {
+            bandThreadPool.close();
+            bandThreadPool = null;
+        }
+        bands = null;
+        if (numBands > 1) {
+            bands = new RenderBand[numBands];
+            for (int i=0; i<numBands; i++) {
+                bands[i] = new RenderBand(createBandRenderer());
+            }
+            bandThreadPool = new ThreadPool(numBands);
+            bandCommands = new ArrayList();
+            bandViewHeight = -1;
+        }
+    }
+
+
+    /**
+        Gets the number of horizontal bands the view window is
+        split into.
+    */
+    public int getNumBands() {
+        return (bands == null)?1:bands.length;
+    }
+
+
+    /**
+        Creates a renderer used to draw one band of the view
+        window. Subclasses should override this method to return
+        a renderer of their own type.
+    */
+    protected ZBufferedRenderer createBandRenderer() {
+        return new ZBufferedRenderer(camera, viewWindow, false);
+    }
+
+
+    /**
+        Prepares this renderer to draw one band of a frame for
+        the specified parent renderer. The band shares the
+        parent's pixel and depth buffers, but only writes to its
+        own rows.
+    */
+    protected void startBandFrame(ZBufferedRenderer parent) {
+        doubleBufferData = parent.doubleBufferData;
+        doubleBufferIntData = parent.doubleBufferIntData;
+        pixelFormat = parent.pixelFormat;
+        zBuffer = parent.zBuffer;
+        mipMapping = parent.mipMapping;
+        spanRendering = parent.spanRendering;
+        bandRenderer = true;
+        numPolygonsDrawn = 0;
+        numPixelsDrawn = 0;
+    }
+
+
+    protected void buildSurface() {
+        // band renderers only draw surfaces the parent already
+        // built, and the SurfaceCache isn't thread-safe
+        if (!bandRenderer) {
+            super.buildSurface();
+        }
+    }
+
+
+    /**
+        Draws a transformed, clipped and projected polygon for a
+        band. Returns true if the polygon is visible in the band.
+    */
+    protected boolean drawBandPolygon(Polygon3D source,
+        Polygon3D projected, boolean sorted)
+    {
+        sourcePolygon = source;
+        destPolygon.setTo(projected);
+        if (scanConverter.convert(destPolygon)) {
+            drawCurrentPolygon(null);
+            return true;
+        }
+        return false;
+    }
+
+
+    /**
+        Checks if this band renderer's band is completely filled
+        with sorted polygons. Returns false by default.
+    */
+    protected boolean isBandFilled() {
+        return false;
+    }
+
+
+    /**
+        Sets whether PolygonGroups (game objects) are tested
+        against the view frustum before their polygons are
+        transformed. Groups whose bounds are outside the view
+        are skipped without transforming any polygons. The
+        default is true.
+    */
+    public void setGroupCulling(boolean groupCulling) {
+        this.groupCulling = groupCulling;
+    }
+
+
+    /**
+        Checks if PolygonGroups are tested against the view
+        frustum.
+    */
+    public boolean isGroupCulling() {
+        return groupCulling;
+    }
+
+
+    /**
+        Sets whether PolygonGroups are tested against the
+        HierarchicalZBuffer (if one was built this frame with
+        buildHierarchicalZBuffer()) before they are drawn. Groups
+        completely hidden behind what's already drawn are
+        skipped, but are still reported visible if they're in the
+        view frustum, the same as without occlusion culling (so
+        game objects behind a wall are still "visible" to the
+        game). Only used if group culling is on. The default is
+        true.
+    */
+    public void setOcclusionCulling(boolean occlusionCulling) {
+        this.occlusionCulling = occlusionCulling;
+    }
+
+
+    /**
+        Checks if PolygonGroups are tested against the
+        HierarchicalZBuffer.
+    */
+    public boolean isOcclusionCulling() {
+        return occlusionCulling;
+    }
+
+
+    /**
+        Builds the HierarchicalZBuffer from the current depth
+        buffer. PolygonGroups drawn after this (in the same
+        frame) are tested against it. Call this after the world
+        is drawn and before game objects are drawn.
+    */
+    protected void buildHierarchicalZBuffer() {
+        if (!occlusionCulling) {
+            return;
+        }
+        if (hierarchicalZBuffer == null ||
+            hierarchicalZBuffer.getWidth() != zBuffer.getWidth() ||
+            hierarchicalZBuffer.getHeight() != zBuffer.getHeight())
+        {
+            hierarchicalZBuffer = new HierarchicalZBuffer(
+                zBuffer.getWidth(), zBuffer.getHeight());
+        }
+        hierarchicalZBuffer.build(zBuffer);
+        hierarchicalZBufferBuilt = true;
+    }
+
+
+    /**
+        Sets the largest error, in pixels, a PolygonGroup's level
+        of detail (see PolygonGroup.setLevelsOfDetail()) can
+        have on the screen to be drawn instead of the group's own
+        polygons. The least detailed level that fits is drawn.
+        Use 0 to always draw the groups' own polygons. The
+        default is DEFAULT_LEVEL_OF_DETAIL_ERROR.
+    */
+    public void setLevelOfDetailError(float levelOfDetailError) {
+        this.levelOfDetailError = levelOfDetailError;
+    }
+
+
+    /**
+        Gets the largest error, in pixels, of a level of detail
+        drawn instead of a group's polygons.
+    */
+    public float getLevelOfDetailError() {
+        return levelOfDetailError;
+    }
+
+
+    /**
+        Gets the number of groups drawn with a level of detail
+        this frame.
+    */
+    public int getNumGroupsSimplified() {
+        return numGroupsSimplified;
+    }
+
+
+    /**
+        Gets the number of objects (PolygonGroups) tested against
+        the view frustum this frame.
+    */
+    public int getNumObjectsTested() {
+        return numObjectsTested;
+    }
+
+
+    /**
+        Gets the number of objects (PolygonGroups) culled this
+        frame by the view frustum without transforming any of
+        their polygons.
+    */
+    public int getNumObjectsCulled() {
+        return numObjectsCulled;
+    }
+
+
+    /**
+        Gets the number of objects (PolygonGroups) skipped this
+        frame because they were hidden behind the world (see
+        setOcclusionCulling()).
+    */
+    public int getNumObjectsOccluded() {
+        return numObjectsOccluded;
+    }
+
+
+    /**
+        Gets the number of objects (PolygonGroups) drawn this
+        frame (at least one polygon was visible).
+    */
+    public int getNumObjectsDrawn() {
+        return numObjectsDrawn;
+    }
+
+
     public void startFrame(Graphics2D g) {
         super.startFrame(g);
+        if (frustum == null) {
+            frustum = new ViewFrustum(viewWindow);
+        }
+        else {
+            frustum.setTo(viewWindow);
+        }
+        numObjectsTested = 0;
+        numObjectsCulled = 0;
+        numObjectsDrawn = 0;
+        numObjectsOccluded = 0;
+        numGroupsSimplified = 0;
+        hierarchicalZBufferBuilt = false;
         // initialize depth buffer
         if (zBuffer == null ||
             zBuffer.getWidth() != viewWindow.getWidth() ||
@@ -71,6 +359,177 @@ public class ZBufferedRenderer
         else if (clearViewEveryFrame) {
             zBuffer.clear();
         }
+
+        if (bands != null) {
+            startBands();
+        }
+    }
+
+
+    public void endFrame(Graphics2D g) {
+        if (bands != null) {
+            for (int i=0; i<bands.length; i++) {
+                bands[i].close();
+            }
+            for (int i=0; i<bands.length; i++) {
+                bands[i].waitUntilDone();
+                // a polygon is counted once for each band it's in
+                ZBufferedRenderer renderer = bands[i].getRenderer();
+                numPolygonsDrawn+=renderer.numPolygonsDrawn;
+                numPixelsDrawn+=renderer.numPixelsDrawn;
+            }
+        }
+        super.endFrame(g);
+    }
+
+
+    /**
+        Splits the view window into bands (if the view size
+        changed) and starts every band on the thread pool.
+    */
+    private void startBands() {
+        if (bandViewTop != viewWindow.getTopOffset() ||
+            bandViewHeight != viewWindow.getHeight())
+        {
+            bandViewTop = viewWindow.getTopOffset();
+            bandViewHeight = viewWindow.getHeight();
+            for (int i=0; i<bands.length; i++) {
+                bands[i].setBounds(
+                    bandViewTop + i * bandViewHeight / bands.length,
+                    bandViewTop + (i+1) * bandViewHeight /
+                    bands.length - 1);
+            }
+        }
+        numBandCommands = 0;
+        for (int i=0; i<bands.length; i++) {
+            bands[i].startFrame(this);
+            bandThreadPool.runTask(bands[i]);
+        }
+    }
+
+
+    /**
+        Waits until every band has drawn every polygon queued
+        so far.
+    */
+    protected void waitForBands() {
+        for (int i=0; i<bands.length; i++) {
+            bands[i].waitUntilProcessed();
+        }
+    }
+
+
+    public boolean draw(Graphics2D g, Polygon3D poly) {
+        if (bands == null) {
+            return super.draw(g, poly);
+        }
+        else {
+            return drawBanded(poly, false, 0);
+        }
+    }
+
+
+    /**
+        Transforms, clips and projects a polygon, then queues it
+        to every band it covers. Sorted polygons are scan-
+        converted only by the bands, so the return value is only
+        exact for unsorted polygons. The seq value is passed
+        to the bands to keep track of when a band is filled.
+    */
+    protected boolean drawBanded(Polygon3D poly, boolean sorted,
+        int seq)
+    {
+        if (!poly.isFacing(camera.getLocation())) {
+            return false;
+        }
+        sourcePolygon = poly;
+        destPolygon.setTo(poly);
+        destPolygon.subtract(camera);
+        return drawBandedTransformed(sorted, seq);
+    }
+
+
+    /**
+        Same as drawBanded(), for the destination polygon, which
+        is already transformed to camera space. The source polygon
+        must be set to the polygon it came from.
+    */
+    private boolean drawBandedTransformed(boolean sorted, int seq) {
+        if (!destPolygon.clip(-1)) {
+            return false;
+        }
+        destPolygon.project(viewWindow);
+
+        int top;
+        int bottom;
+        if (sorted) {
+            // find the rows the polygon covers, and ignore it
+            // if it's completely to the left or right of the view
+            float minX = Float.MAX_VALUE;
+            float maxX = -Float.MAX_VALUE;
+            float minY = Float.MAX_VALUE;
+            float maxY = -Float.MAX_VALUE;
+            for (int i=0; i<destPolygon.getNumVertices(); i++) {
+                Vector3D v = destPolygon.getVertex(i);
+                minX = Math.min(minX, v.x);
+                maxX = Math.max(maxX, v.x);
+                minY = Math.min(minY, v.y);
+                maxY = Math.max(maxY, v.y);
+            }
+            if (maxX < viewWindow.getLeftOffset() ||
+                minX > viewWindow.getLeftOffset() +
+                viewWindow.getWidth() - 1)
+            {
+                return false;
+            }
+            top = MoreMath.ceil(minY);
+            bottom = MoreMath.ceil(maxY) - 1;
+        }
+        else {
+            // same visibility test as the single-threaded path
+            long startTime = Profiler.start();
+            boolean visible = scanConverter.convert(destPolygon);
+            Profiler.end(Profiler.SCAN_CONVERSION, startTime);
+            if (!visible) {
+                return false;
+            }
+            top = scanConverter.getTopBoundary();
+            bottom = scanConverter.getBottomBoundary();
+        }
+
+        if (!(sourcePolygon instanceof TexturedPolygon3D)) {
+            return true;
+        }
+
+        // surfaces are built here, before any band needs them
+        buildSurface();
+
+        RenderBand.Command command = nextBandCommand();
+        command.polygon.setTo(destPolygon);
+        command.source = sourcePolygon;
+        command.sorted = sorted;
+        command.seq = seq;
+        for (int i=0; i<bands.length; i++) {
+            if (top <= bands[i].getBottom() &&
+                bottom >= bands[i].getTop())
+            {
+                bands[i].add(command);
+            }
+        }
+        return true;
+    }
+
+
+    /**
+        Gets an unused band command. Commands are reused every
+        frame.
+    */
+    private RenderBand.Command nextBandCommand() {
+        if (numBandCommands == bandCommands.size()) {
+            bandCommands.add(new RenderBand.Command());
+        }
+        return (RenderBand.Command)bandCommands.get(
+            numBandCommands++);
     }
 
     public boolean draw(Graphics2D g, GameObject object) {
@@ -79,15 +538,302 @@ public class ZBufferedRenderer
 
     public boolean draw(Graphics2D g, PolygonGroup group) {
         boolean visible = false;
-        group.resetIterator();
-        while (group.hasNext()) {
-            group.nextPolygonTransformed(temp);
-            visible |= draw(g, temp);
+        boolean occluded = false;
+        if (groupCulling && frustum != null) {
+            numObjectsTested++;
+            int numTransformed = numPolygonsTransformed;
+            int numOccluded = numGroupsOccluded;
+            visible = drawGroup(g, group, 0, false);
+            if (numTransformed == numPolygonsTransformed) {
+                if (numOccluded == numGroupsOccluded) {
+                    numObjectsCulled++;
+                }
+                else {
+                    numObjectsOccluded++;
+                    occluded = true;
+                }
+            }
+        }
+        else {
+            visible = drawGroup(g, group, 0);
+        }
+        if (visible && !occluded) {
+            numObjectsDrawn++;
+        }
+        return visible;
+    }
+
+
+    /**
+        Draws a PolygonGroup at the specified depth of the group
+        hierarchy. First, the bounding sphere of the group (and
+        its subgroups) is tested against the view frustum. If
+        it's partially visible, the bounds of the group's own
+        polygons and each subgroup are tested separately. If
+        'inside' is true, the group is already known to be
+        completely inside the frustum. Bounds in the frustum are
+        also tested against the HierarchicalZBuffer, if built;
+        occluded bounds aren't drawn, but count as visible.
+    */
+    private boolean drawGroup(Graphics2D g, PolygonGroup group,
+        int depth, boolean inside)
+    {
+        setGroupTransform(group, depth);
+
+        boolean occlusion = (occlusionCulling &&
+            hierarchicalZBufferBuilt);
+        if (!inside || occlusion) {
+            // test the bounding sphere of the whole group
+            transformToCamera(boundsBottom, 0, depth);
+            float radius = group.getBoundingRadius();
+            if (!inside) {
+                int result = frustum.test(boundsBottom, radius);
+                if (result == ViewFrustum.OUTSIDE) {
+                    return false;
+                }
+                inside = (result == ViewFrustum.INSIDE);
+            }
+            if (occlusion && isOccluded(boundsBottom, boundsBottom,
+                radius))
+            {
+                // in the frustum, so it's visible to the game
+                numGroupsOccluded++;
+                return true;
+            }
+        }
+
+        boolean drawPolygons = true;
+        boolean visible = false;
+        if (!inside || occlusion) {
+            // test this group's own polygons
+            PolygonGroupBounds bounds = group.getPolygonBounds();
+            transformToCamera(boundsBottom,
+                bounds.getBottomHeight(), depth);
+            transformToCamera(boundsTop, bounds.getTopHeight(),
+                depth);
+            if (!inside) {
+                drawPolygons = (frustum.test(boundsBottom,
+                    boundsTop, bounds.getRadius()) !=
+                    ViewFrustum.OUTSIDE);
+            }
+            if (drawPolygons && occlusion && isOccluded(
+                boundsBottom, boundsTop, bounds.getRadius()))
+            {
+                numGroupsOccluded++;
+                drawPolygons = false;
+                visible = true;
+            }
+        }
+
+        LevelOfDetail lod = null;
+        TransformedVertices vertices = null;
+        if (drawPolygons) {
+            lod = getLevelOfDetail(group, depth);
+            vertices = (lod == null)?group.getTransformedVertices():
+                lod.getTransformedVertices();
+            vertices.transform(groupTransforms, depth, camera);
+        }
+        int polygonIndex = 0;
+        for (int i=0; i<group.getNumObjects(); i++) {
+            Object obj = group.getObject(i);
+            if (obj instanceof PolygonGroup) {
+                visible |= drawGroup(g, (PolygonGroup)obj, depth+1,
+                    inside);
+            }
+            else if (drawPolygons && lod == null) {
+                visible |= drawPolygon(g, vertices,
+                    polygonIndex++);
+            }
+        }
+        if (lod != null) {
+            visible |= drawPolygons(g, vertices);
         }
         return visible;
     }
 
 
+    /**
+        Draws a PolygonGroup at the specified depth of the group
+        hierarchy, without culling.
+    */
+    private boolean drawGroup(Graphics2D g, PolygonGroup group,
+        int depth)
+    {
+        setGroupTransform(group, depth);
+        LevelOfDetail lod = getLevelOfDetail(group, depth);
+        TransformedVertices vertices = (lod == null)?
+            group.getTransformedVertices():
+            lod.getTransformedVertices();
+        vertices.transform(groupTransforms, depth, camera);
+        boolean visible = false;
+        int polygonIndex = 0;
+        for (int i=0; i<group.getNumObjects(); i++) {
+            Object obj = group.getObject(i);
+            if (obj instanceof PolygonGroup) {
+                visible |= drawGroup(g, (PolygonGroup)obj,
+                    depth+1);
+            }
+            else if (lod == null) {
+                visible |= drawPolygon(g, vertices,
+                    polygonIndex++);
+            }
+        }
+        if (lod != null) {
+            visible |= drawPolygons(g, vertices);
+        }
+        return visible;
+    }
+
+
+    /**
+        Gets the least detailed level of detail of a group, at
+        the specified depth of the group hierarchy, whose error
+        is no more than the level of detail error on the screen,
+        or null if the group's own polygons should be drawn. The
+        error is projected at the closest point of the group's
+        bounds.
+    */
+    private LevelOfDetail getLevelOfDetail(PolygonGroup group,
+        int depth)
+    {
+        int numLevels = group.getNumLevelsOfDetail();
+        if (numLevels == 0 || levelOfDetailError <= 0) {
+            return null;
+        }
+        PolygonGroupBounds bounds = group.getPolygonBounds();
+        float radius = bounds.getRadius() +
+            Math.max(Math.abs(bounds.getTopHeight()),
+            Math.abs(bounds.getBottomHeight()));
+        transformToCamera(lodCenter, 0, depth);
+        float near = -lodCenter.z - radius;
+        if (near < MIN_DISTANCE) {
+            return null;
+        }
+        // the largest error allowed, in the group's space
+        float maxError = levelOfDetailError * near /
+            viewWindow.getDistance();
+        LevelOfDetail lod = null;
+        for (int i=0; i<numLevels; i++) {
+            LevelOfDetail level = group.getLevelOfDetail(i);
+            if (level.getError() > maxError) {
+                break;
+            }
+            lod = level;
+        }
+        if (lod != null) {
+            numGroupsSimplified++;
+        }
+        return lod;
+    }
+
+
+    /**
+        Draws every polygon of a level of detail whose vertices
+        are already transformed.
+    */
+    private boolean drawPolygons(Graphics2D g,
+        TransformedVertices vertices)
+    {
+        boolean visible = false;
+        for (int i=0; i<vertices.getNumPolygons(); i++) {
+            visible |= drawPolygon(g, vertices, i);
+        }
+        return visible;
+    }
+
+
+    private void setGroupTransform(PolygonGroup group, int depth) {
+        if (depth == groupTransforms.length) {
+            Transform3D[] transforms = new Transform3D[depth*2];
+            System.arraycopy(groupTransforms, 0, transforms, 0,
+                depth);
+            groupTransforms = transforms;
+        }
+        groupTransforms[depth] = group.getTransform();
+    }
+
+
+    /**
+        Draws a polygon of a group whose vertices are already
+        transformed. The polygon is built in camera space from the
+        transformed vertices, so it's drawn the same way as
+        draw(Graphics2D, Polygon3D) would draw it after
+        transforming it with the group transforms.
+    */
+    private boolean drawPolygon(Graphics2D g,
+        TransformedVertices vertices, int index)
+    {
+        numPolygonsTransformed++;
+        if (!vertices.isFacing(index, camera.getLocation())) {
+            return false;
+        }
+        sourcePolygon = vertices.getSourcePolygon(index);
+        vertices.getPolygon(index, destPolygon);
+        if (bands == null) {
+            return drawTransformed(g);
+        }
+        else {
+            return drawBandedTransformed(false, 0);
+        }
+    }
+
+
+    /**
+        Checks if a capsule (every point within the specified
+        radius of the line segment from a to b, in camera space)
+        is completely hidden behind what's in the
+        HierarchicalZBuffer. The corners of the box around the
+        capsule are projected to find its bounds on the screen,
+        and its closest point gives its depth.
+    */
+    private boolean isOccluded(Vector3D a, Vector3D b,
+        float radius)
+    {
+        float near = -Math.max(a.z, b.z) - radius;
+        if (near < MIN_DISTANCE) {
+            // too close (or behind the camera)
+            return false;
+        }
+        float far = -Math.min(a.z, b.z) + radius;
+        float minX = Math.min(a.x, b.x) - radius;
+        float maxX = Math.max(a.x, b.x) + radius;
+        float minY = Math.min(a.y, b.y) - radius;
+        float maxY = Math.max(a.y, b.y) + radius;
+
+        // project to the view window
+        float distance = viewWindow.getDistance();
+        float left = distance * Math.min(minX/near, minX/far);
+        float right = distance * Math.max(maxX/near, maxX/far);
+        float top = distance * Math.max(maxY/near, maxY/far);
+        float bottom = distance * Math.min(minY/near, minY/far);
+
+        // convert to depth buffer coordinates (plus a pixel)
+        int halfWidth = viewWindow.getWidth()/2;
+        int halfHeight = viewWindow.getHeight()/2;
+        int depth = (int)(MIN_DISTANCE * Short.MAX_VALUE / near) + 2;
+        return hierarchicalZBuffer.isOccluded(
+            (int)Math.floor(left) + halfWidth - 1,
+            halfHeight - (int)Math.ceil(top) - 1,
+            (int)Math.ceil(right) + halfWidth + 1,
+            halfHeight - (int)Math.floor(bottom) + 1,
+            depth);
+    }
+
+
+    /**
+        Sets a vector to the point (0,y,0) in the local space of
+        the group at the specified depth, transformed to camera
+        space.
+    */
+    private void transformToCamera(Vector3D v, float y, int depth) {
+        v.setTo(0, y, 0);
+        for (int j=depth; j>=0; j--) {
+            v.add(groupTransforms[j]);
+        }
+        v.subtract(camera);
+    }
+
+
     protected void drawCurrentPolygon(Graphics2D g) {
         if (!(sourcePolygon instanceof TexturedPolygon3D)) {
             // not a textured polygon - return
@@ -100,6 +846,7 @@ public class ZBufferedRenderer
             scanRenderers.get(texture.getClass());
         scanRenderer.setTexture(texture);
         Rectangle3D textureBounds = poly.getTextureBounds();
+        numPolygonsDrawn++;
 
         a.setToCrossProduct(textureBounds.getDirectionV(),
             textureBounds.getOrigin());
@@ -128,6 +875,7 @@ public class ZBufferedRenderer
                     (scan.left - viewWindow.getLeftOffset());
 
                 scanRenderer.render(offset, scan.left, scan.right);
+                numPixelsDrawn+=scan.right - scan.left + 1;
             }
             y++;
             viewPos.y--;
@@ -147,6 +895,7 @@ public class ZBufferedRenderer
         public void render(int offset, int left, int right) {
             PowerOf2Texture texture =
                 (PowerOf2Texture)currentTexture;
+            int maxLevel = texture.getNumMipMaps() - 1;
             float u = SCALE * a.getDotProduct(viewPos);
             float v = SCALE * b.getDotProduct(viewPos);
             float z = c.getDotProduct(viewPos);
@@ -170,19 +919,40 @@ public class ZBufferedRenderer
                     nextTy = (int)(v/z);
                     int dtx = (nextTx-tx) >> INTERP_SIZE_BITS;
                     int dty = (nextTy-ty) >> INTERP_SIZE_BITS;
+                    int level = getMipMapLevel(u, v, z, dtx, dty,
+                        maxLevel);
+                    PowerOf2Texture mipMap = texture.getMipMap(level);
+                    int shift = SCALE_BITS + level;
                     int endOffset = offset + INTERP_SIZE;
-                    while (offset < endOffset) {
-                        if (zBuffer.checkDepth(offset,
-                            (short)(depth >> SCALE_BITS)))
-                        {
-                            doubleBufferData[offset] =
-                                texture.getColor(tx >> SCALE_BITS,
-                                ty >> SCALE_BITS);
+                    if (doubleBufferIntData != null) {
+                        while (offset < endOffset) {
+                            if (zBuffer.checkDepth(offset,
+                                (short)(depth >> SCALE_BITS)))
+                            {
+                                doubleBufferIntData[offset] =
+                                    mipMap.getIntColor(tx >> shift,
+                                    ty >> shift);
+                            }
+                            offset++;
+                            tx+=dtx;
+                            ty+=dty;
+                            depth+=dDepth;
+                        }
+                    }
+                    else {
+                        while (offset < endOffset) {
+                            if (zBuffer.checkDepth(offset,
+                                (short)(depth >> SCALE_BITS)))
+                            {
+                                doubleBufferData[offset] =
+                                    mipMap.getColor(tx >> shift,
+                                    ty >> shift);
+                            }
+                            offset++;
+                            tx+=dtx;
+                            ty+=dty;
+                            depth+=dDepth;
                         }
-                        offset++;
-                        tx+=dtx;
-                        ty+=dty;
-                        depth+=dDepth;
                     }
                     x+=INTERP_SIZE;
                 }
@@ -196,19 +966,40 @@ public class ZBufferedRenderer
                     nextTy = (int)(v/z);
                     int dtx = (nextTx-tx) / interpSize;
                     int dty = (nextTy-ty) / interpSize;
+                    int level = getMipMapLevel(u, v, z, dtx, dty,
+                        maxLevel);
+                    PowerOf2Texture mipMap = texture.getMipMap(level);
+                    int shift = SCALE_BITS + level;
                     int endOffset = offset + interpSize;
-                    while (offset < endOffset) {
-                        if (zBuffer.checkDepth(offset,
-                            (short)(depth >> SCALE_BITS)))
-                        {
-                            doubleBufferData[offset++] =
-                                texture.getColor(tx >> SCALE_BITS,
-                                ty >> SCALE_BITS);
+                    if (doubleBufferIntData != null) {
+                        while (offset < endOffset) {
+                            if (zBuffer.checkDepth(offset,
+                                (short)(depth >> SCALE_BITS)))
+                            {
+                                doubleBufferIntData[offset] =
+                                    mipMap.getIntColor(tx >> shift,
+                                    ty >> shift);
+                            }
+                            offset++;
+                            tx+=dtx;
+                            ty+=dty;
+                            depth+=dDepth;
+                        }
+                    }
+                    else {
+                        while (offset < endOffset) {
+                            if (zBuffer.checkDepth(offset,
+                                (short)(depth >> SCALE_BITS)))
+                            {
+                                doubleBufferData[offset] =
+                                    mipMap.getColor(tx >> shift,
+                                    ty >> shift);
+                            }
+                            offset++;
+                            tx+=dtx;
+                            ty+=dty;
+                            depth+=dDepth;
                         }
-                        offset++;
-                        tx+=dtx;
-                        ty+=dty;
-                        depth+=dDepth;
                     }
                     x+=interpSize;
 
@@ -223,6 +1014,7 @@ public class ZBufferedRenderer
         public void render(int offset, int left, int right) {
             ShadedTexture texture =
                 (ShadedTexture)currentTexture;
+            int maxLevel = texture.getNumMipMaps() - 1;
             float u = SCALE * a.getDotProduct(viewPos);
             float v = SCALE * b.getDotProduct(viewPos);
             float z = c.getDotProduct(viewPos);
@@ -246,19 +1038,40 @@ public class ZBufferedRenderer
                     nextTy = (int)(v/z);
                     int dtx = (nextTx-tx) >> INTERP_SIZE_BITS;
                     int dty = (nextTy-ty) >> INTERP_SIZE_BITS;
+                    int level = getMipMapLevel(u, v, z, dtx, dty,
+                        maxLevel);
+                    ShadedTexture mipMap = texture.getMipMap(level);
+                    int shift = SCALE_BITS + level;
                     int endOffset = offset + INTERP_SIZE;
-                    while (offset < endOffset) {
-                        if (zBuffer.checkDepth(offset,
-                            (short)(depth >> SCALE_BITS)))
-                        {
-                            doubleBufferData[offset] =
-                                texture.getColor(tx >> SCALE_BITS,
-                                ty >> SCALE_BITS);
+                    if (doubleBufferIntData != null) {
+                        while (offset < endOffset) {
+                            if (zBuffer.checkDepth(offset,
+                                (short)(depth >> SCALE_BITS)))
+                            {
+                                doubleBufferIntData[offset] =
+                                    mipMap.getIntColor(tx >> shift,
+                                    ty >> shift);
+                            }
+                            offset++;
+                            tx+=dtx;
+                            ty+=dty;
+                            depth+=dDepth;
+                        }
+                    }
+                    else {
+                        while (offset < endOffset) {
+                            if (zBuffer.checkDepth(offset,
+                                (short)(depth >> SCALE_BITS)))
+                            {
+                                doubleBufferData[offset] =
+                                    mipMap.getColor(tx >> shift,
+                                    ty >> shift);
+                            }
+                            offset++;
+                            tx+=dtx;
+                            ty+=dty;
+                            depth+=dDepth;
                         }
-                        offset++;
-                        tx+=dtx;
-                        ty+=dty;
-                        depth+=dDepth;
                     }
                     x+=INTERP_SIZE;
                 }
@@ -272,19 +1085,40 @@ public class ZBufferedRenderer
                     nextTy = (int)(v/z);
                     int dtx = (nextTx-tx) / interpSize;
                     int dty = (nextTy-ty) / interpSize;
+                    int level = getMipMapLevel(u, v, z, dtx, dty,
+                        maxLevel);
+                    ShadedTexture mipMap = texture.getMipMap(level);
+                    int shift = SCALE_BITS + level;
                     int endOffset = offset + interpSize;
-                    while (offset < endOffset) {
-                        if (zBuffer.checkDepth(offset,
-                            (short)(depth >> SCALE_BITS)))
-                        {
-                            doubleBufferData[offset] =
-                                texture.getColor(tx >> SCALE_BITS,
-                                ty >> SCALE_BITS);
+                    if (doubleBufferIntData != null) {
+                        while (offset < endOffset) {
+                            if (zBuffer.checkDepth(offset,
+                                (short)(depth >> SCALE_BITS)))
+                            {
+                                doubleBufferIntData[offset] =
+                                    mipMap.getIntColor(tx >> shift,
+                                    ty >> shift);
+                            }
+                            offset++;
+                            tx+=dtx;
+                            ty+=dty;
+                            depth+=dDepth;
+                        }
+                    }
+                    else {
+                        while (offset < endOffset) {
+                            if (zBuffer.checkDepth(offset,
+                                (short)(depth >> SCALE_BITS)))
+                            {
+                                doubleBufferData[offset] =
+                                    mipMap.getColor(tx >> shift,
+                                    ty >> shift);
+                            }
+                            offset++;
+                            tx+=dtx;
+                            ty+=dty;
+                            depth+=dDepth;
                         }
-                        offset++;
-                        tx+=dtx;
-                        ty+=dty;
-                        depth+=dDepth;
                     }
                     x+=interpSize;
                 }
@@ -333,18 +1167,36 @@ public class ZBufferedRenderer
                     int dtx = (nextTx-tx) >> INTERP_SIZE_BITS;
                     int dty = (nextTy-ty) >> INTERP_SIZE_BITS;
                     int endOffset = offset + INTERP_SIZE;
-                    while (offset < endOffset) {
-                        if (zBuffer.checkDepth(offset,
-                            (short)(depth >> SCALE_BITS)))
-                        {
-                            doubleBufferData[offset] =
-                                texture.getColor(tx >> SCALE_BITS,
-                                ty >> SCALE_BITS);
+                    if (doubleBufferIntData != null) {
+                        while (offset < endOffset) {
+                            if (zBuffer.checkDepth(offset,
+                                (short)(depth >> SCALE_BITS)))
+                            {
+                                doubleBufferIntData[offset] =
+                                    texture.getIntColor(
+                                    tx >> SCALE_BITS,
+                                    ty >> SCALE_BITS);
+                            }
+                            offset++;
+                            tx+=dtx;
+                            ty+=dty;
+                            depth+=dDepth;
+                        }
+                    }
+                    else {
+                        while (offset < endOffset) {
+                            if (zBuffer.checkDepth(offset,
+                                (short)(depth >> SCALE_BITS)))
+                            {
+                                doubleBufferData[offset] =
+                                    texture.getColor(tx >> SCALE_BITS,
+                                    ty >> SCALE_BITS);
+                            }
+                            offset++;
+                            tx+=dtx;
+                            ty+=dty;
+                            depth+=dDepth;
                         }
-                        offset++;
-                        tx+=dtx;
-                        ty+=dty;
-                        depth+=dDepth;
                     }
                     x+=INTERP_SIZE;
                 }
@@ -367,18 +1219,36 @@ public class ZBufferedRenderer
                     int dtx = (nextTx-tx) / interpSize;
                     int dty = (nextTy-ty) / interpSize;
                     int endOffset = offset + interpSize;
-                    while (offset < endOffset) {
-                        if (zBuffer.checkDepth(offset,
-                            (short)(depth >> SCALE_BITS)))
-                        {
-                            doubleBufferData[offset] =
-                                texture.getColor(tx >> SCALE_BITS,
-                                ty >> SCALE_BITS);
+                    if (doubleBufferIntData != null) {
+                        while (offset < endOffset) {
+                            if (zBuffer.checkDepth(offset,
+                                (short)(depth >> SCALE_BITS)))
+                            {
+                                doubleBufferIntData[offset] =
+                                    texture.getIntColor(
+                                    tx >> SCALE_BITS,
+                                    ty >> SCALE_BITS);
+                            }
+                            offset++;
+                            tx+=dtx;
+                            ty+=dty;
+                            depth+=dDepth;
+                        }
+                    }
+                    else {
+                        while (offset < endOffset) {
+                            if (zBuffer.checkDepth(offset,
+                                (short)(depth >> SCALE_BITS)))
+                            {
+                                doubleBufferData[offset] =
+                                    texture.getColor(tx >> SCALE_BITS,
+                                    ty >> SCALE_BITS);
+                            }
+                            offset++;
+                            tx+=dtx;
+                            ty+=dty;
+                            depth+=dDepth;
                         }
-                        offset++;
-                        tx+=dtx;
-                        ty+=dty;
-                        depth+=dDepth;
                     }
                     x+=interpSize;
 
@@ -0,0 +1,331 @@
+package deet.graphics3D.texture;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import deet.math3D.*;
+
+/**
+    The DynamicLightManager lights a set of ShadedSurfaces with
+    lights that can move, flicker, or be added and removed after
+    the surfaces are built. Each light keeps a list of the
+    surfaces within its falloff distance. When a light changes,
+    only the shade map samples near its old and new location are
+    recalculated, and only the rows of the surfaces that use them
+    are marked dirty. The dirty rows are rebuilt the next time
+    the surface is drawn (see SurfaceCache).
+    <p>The surfaces are found with a grid on the x-z plane, so
+    the cost of a change depends on the light's falloff
+    distance, not on the number of surfaces. Lights with no
+    distance falloff reach every surface and are expensive to
+    change.
+*/
+public class DynamicLightManager {
+
+    /**
+        The size of each grid cell, in world units.
+    */
+    public static final float CELL_SIZE = 256;
+
+    /**
+        The state of a light when it was last updated.
+    */
+    private static class LightState {
+        PointLight3D light;
+        PointLight3D last;
+        List surfaces = new ArrayList();
+        boolean removed;
+    }
+
+    private ShadedSurface[] surfaces;
+    private Vector3D[] centers;
+    private float[] radii;
+
+    // the surfaces that touch each cell
+    private List[] cells;
+    private float minX;
+    private float minZ;
+    private int numCellsX;
+    private int numCellsZ;
+
+    // for finding each surface only once per query
+    private int[] queryMarks;
+    private int queryNum;
+
+    private List lights;
+
+    // stats
+    private int samplesUpdated;
+    private int surfacesUpdated;
+
+    /**
+        Creates a new DynamicLightManager for the specified list
+        of ShadedSurfaces. The shade maps of the surfaces should
+        already be built.
+    */
+    public DynamicLightManager(List surfaceList) {
+        int numSurfaces = surfaceList.size();
+        surfaces = new ShadedSurface[numSurfaces];
+        centers = new Vector3D[numSurfaces];
+        radii = new float[numSurfaces];
+        queryMarks = new int[numSurfaces];
+        lights = new ArrayList();
+
+        float maxX = 0;
+        float maxZ = 0;
+        for (int i=0; i<numSurfaces; i++) {
+            surfaces[i] = (ShadedSurface)surfaceList.get(i);
+            centers[i] = surfaces[i].getShadeMapCenter();
+            radii[i] = surfaces[i].getShadeMapRadius();
+            float x1 = centers[i].x - radii[i];
+            float z1 = centers[i].z - radii[i];
+            float x2 = centers[i].x + radii[i];
+            float z2 = centers[i].z + radii[i];
+            if (i == 0) {
+                minX = x1;
+                minZ = z1;
+                maxX = x2;
+                maxZ = z2;
+            }
+            else {
+                minX = Math.min(minX, x1);
+                minZ = Math.min(minZ, z1);
+                maxX = Math.max(maxX, x2);
+                maxZ = Math.max(maxZ, z2);
+            }
+        }
+
+        numCellsX = (int)((maxX - minX) / CELL_SIZE) + 1;
+        numCellsZ = (int)((maxZ - minZ) / CELL_SIZE) + 1;
+        cells = new List[numCellsX * numCellsZ];
+        for (int i=0; i<numSurfaces; i++) {
+            int x1 = getCellX(centers[i].x - radii[i]);
+            int z1 = getCellZ(centers[i].z - radii[i]);
+            int x2 = getCellX(centers[i].x + radii[i]);
+            int z2 = getCellZ(centers[i].z + radii[i]);
+            for (int z=z1; z<=z2; z++) {
+                for (int x=x1; x<=x2; x++) {
+                    int cell = x + z * numCellsX;
+                    if (cells[cell] == null) {
+                        cells[cell] = new ArrayList();
+                    }
+                    cells[cell].add(Integer.valueOf(i));
+                }
+            }
+        }
+    }
+
+
+    private int getCellX(float x) {
+        int cellX = (int)Math.floor((x - minX) / CELL_SIZE);
+        return Math.max(0, Math.min(numCellsX - 1, cellX));
+    }
+
+
+    private int getCellZ(float z) {
+        int cellZ = (int)Math.floor((z - minZ) / CELL_SIZE);
+        return Math.max(0, Math.min(numCellsZ - 1, cellZ));
+    }
+
+
+    /**
+        Adds a dynamic light. The surfaces aren't changed until
+        update() is called.
+    */
+    public void addLight(PointLight3D light) {
+        LightState state = new LightState();
+        state.light = light;
+        lights.add(state);
+    }
+
+
+    /**
+        Removes a dynamic light. The surfaces aren't changed
+        until update() is called.
+    */
+    public void removeLight(PointLight3D light) {
+        for (int i=0; i<lights.size(); i++) {
+            LightState state = (LightState)lights.get(i);
+            if (state.light == light) {
+                state.removed = true;
+            }
+        }
+    }
+
+
+    /**
+        Gets the number of dynamic lights.
+    */
+    public int getNumLights() {
+        int count = 0;
+        for (int i=0; i<lights.size(); i++) {
+            if (!((LightState)lights.get(i)).removed) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+
+    /**
+        Updates the shade maps of the surfaces near every light
+        that was added, removed, moved, or changed intensity or
+        falloff since the last update. Should be called once per
+        frame, before drawing.
+    */
+    public void update() {
+        samplesUpdated = 0;
+        surfacesUpdated = 0;
+        for (int i=0; i<lights.size(); i++) {
+            LightState state = (LightState)lights.get(i);
+            if (state.removed) {
+                updateLight(state, null);
+                lights.remove(i--);
+            }
+            else if (hasChanged(state)) {
+                updateLight(state, state.light);
+            }
+        }
+    }
+
+
+    /**
+        Checks if a light changed since the last update.
+    */
+    private boolean hasChanged(LightState state) {
+        PointLight3D light = state.light;
+        PointLight3D last = state.last;
+        return (last == null || !light.equals(last) ||
+            light.getIntensity() != last.getIntensity() ||
+            light.getDistanceFalloff() !=
+            last.getDistanceFalloff());
+    }
+
+
+    /**
+        Moves a light from the surfaces it last lit to the
+        surfaces it lights now (none if the light is null), and
+        recalculates the shade map samples near its old and new
+        location.
+    */
+    private void updateLight(LightState state, PointLight3D light) {
+        List oldSurfaces = state.surfaces;
+        for (int i=0; i<oldSurfaces.size(); i++) {
+            ((ShadedSurface)oldSurfaces.get(i)).removeDynamicLight(
+                state.light);
+        }
+
+        List newSurfaces = new ArrayList();
+        if (light != null) {
+            findSurfaces(light, getRange(light), newSurfaces);
+            for (int i=0; i<newSurfaces.size(); i++) {
+                ((ShadedSurface)newSurfaces.get(i)).addDynamicLight(
+                    light);
+            }
+        }
+
+        // the samples the light used to reach
+        if (state.last != null) {
+            float range = getRange(state.last);
+            for (int i=0; i<oldSurfaces.size(); i++) {
+                updateShadeMap((ShadedSurface)oldSurfaces.get(i),
+                    state.last, range);
+            }
+        }
+        // the samples the light reaches now
+        if (light != null) {
+            float range = getRange(light);
+            for (int i=0; i<newSurfaces.size(); i++) {
+                updateShadeMap((ShadedSurface)newSurfaces.get(i),
+                    light, range);
+            }
+            if (state.last == null) {
+                state.last = new PointLight3D(light);
+            }
+            else {
+                state.last.setTo(light);
+            }
+        }
+        state.surfaces = newSurfaces;
+    }
+
+
+    private void updateShadeMap(ShadedSurface surface,
+        Vector3D center, float range)
+    {
+        int samples = surface.updateShadeMap(center, range);
+        if (samples > 0) {
+            samplesUpdated+=samples;
+            surfacesUpdated++;
+        }
+    }
+
+
+    /**
+        Gets the distance a light reaches, or Float.MAX_VALUE if
+        it has no distance falloff.
+    */
+    private float getRange(PointLight3D light) {
+        float falloff = light.getDistanceFalloff();
+        if (falloff == PointLight3D.NO_DISTANCE_FALLOFF) {
+            return Float.MAX_VALUE;
+        }
+        // allow for rounding errors
+        return falloff + 1;
+    }
+
+
+    /**
+        Adds the surfaces within the specified range of the
+        specified location to the list.
+    */
+    private void findSurfaces(Vector3D location, float range,
+        List result)
+    {
+        queryNum++;
+        int x1 = getCellX(location.x - range);
+        int z1 = getCellZ(location.z - range);
+        int x2 = getCellX(location.x + range);
+        int z2 = getCellZ(location.z + range);
+        for (int z=z1; z<=z2; z++) {
+            for (int x=x1; x<=x2; x++) {
+                List cell = cells[x + z * numCellsX];
+                if (cell == null) {
+                    continue;
+                }
+                for (int i=0; i<cell.size(); i++) {
+                    int index = ((Integer)cell.get(i)).intValue();
+                    if (queryMarks[index] == queryNum) {
+                        continue;
+                    }
+                    queryMarks[index] = queryNum;
+                    float maxDistance = range + radii[index];
+                    if (range == Float.MAX_VALUE ||
+                        location.getDistanceSq(centers[index]) <=
+                        maxDistance * maxDistance)
+                    {
+                        result.add(surfaces[index]);
+                    }
+                }
+            }
+        }
+    }
+
+
+    /**
+        Gets the number of shade map samples recalculated in the
+        last update.
+    */
+    public int getNumSamplesUpdated() {
+        return samplesUpdated;
+    }
+
+
+    /**
+        Gets the number of surfaces whose shade maps were
+        recalculated in the last update.
+    */
+    public int getNumSurfacesUpdated() {
+        return surfacesUpdated;
+    }
+}
@@ -0,0 +1,124 @@
+package deet.graphics3D.texture;
+
+import java.awt.image.BufferedImage;
+
+/**
+    The PixelFormat class describes how the colors of textures,
+    surfaces and the renderer's double buffer are stored. A
+    16-bit (5:6:5) format is stored in short arrays, and a 32-bit
+    (8:8:8) format in int arrays. The 32-bit format uses twice
+    the memory, but usually matches the screen, so the double
+    buffer can be drawn without converting every pixel.
+    <p>Every texture drawn by a renderer must use the renderer's
+    pixel format.
+*/
+public final class PixelFormat {
+
+    /**
+        16-bit color, stored as shorts (BufferedImage
+        TYPE_USHORT_565_RGB).
+    */
+    public static final PixelFormat RGB_565 = new PixelFormat(
+        "RGB 5:6:5", BufferedImage.TYPE_USHORT_565_RGB, 2);
+
+    /**
+        32-bit color, stored as ints (BufferedImage
+        TYPE_INT_RGB).
+    */
+    public static final PixelFormat RGB_888 = new PixelFormat(
+        "RGB 8:8:8", BufferedImage.TYPE_INT_RGB, 4);
+
+    private String name;
+    private int imageType;
+    private int bytesPerPixel;
+
+    private PixelFormat(String name, int imageType,
+        int bytesPerPixel)
+    {
+        this.name = name;
+        this.imageType = imageType;
+        this.bytesPerPixel = bytesPerPixel;
+    }
+
+
+    /**
+        Checks if colors in this format are stored in int
+        arrays. If not, they are stored in short arrays.
+    */
+    public boolean isIntPixels() {
+        return (this == RGB_888);
+    }
+
+
+    /**
+        Gets the BufferedImage type that stores pixels in this
+        format.
+    */
+    public int getImageType() {
+        return imageType;
+    }
+
+
+    /**
+        Gets the number of bytes used to store one color.
+    */
+    public int getBytesPerPixel() {
+        return bytesPerPixel;
+    }
+
+
+    /**
+        Creates a BufferedImage that stores pixels in this
+        format.
+    */
+    public BufferedImage createImage(int width, int height) {
+        return new BufferedImage(width, height, imageType);
+    }
+
+
+    /**
+        Converts the specified 8-bit red, green and blue values
+        to a color in this format.
+    */
+    public int getColor(int red, int green, int blue) {
+        if (isIntPixels()) {
+            return (red << 16) | (green << 8) | blue;
+        }
+        else {
+            return ((red >> 3) << 11) | ((green >> 2) << 5) |
+                (blue >> 3);
+        }
+    }
+
+
+    /**
+        Averages four colors in this format.
+    */
+    public int average(int c1, int c2, int c3, int c4) {
+        if (isIntPixels()) {
+            int red = ((c1 >> 16) & 0xff) + ((c2 >> 16) & 0xff) +
+                ((c3 >> 16) & 0xff) + ((c4 >> 16) & 0xff);
+            int green = ((c1 >> 8) & 0xff) + ((c2 >> 8) & 0xff) +
+                ((c3 >> 8) & 0xff) + ((c4 >> 8) & 0xff);
+            int blue = (c1 & 0xff) + (c2 & 0xff) + (c3 & 0xff) +
+                (c4 & 0xff);
+            return ((red >> 2) << 16) | ((green >> 2) << 8) |
+                (blue >> 2);
+        }
+        else {
+            int red = ((c1 >> 11) & 0x1f) + ((c2 >> 11) & 0x1f) +
+                ((c3 >> 11) & 0x1f) + ((c4 >> 11) & 0x1f);
+            int green = ((c1 >> 5) & 0x3f) + ((c2 >> 5) & 0x3f) +
+                ((c3 >> 5) & 0x3f) + ((c4 >> 5) & 0x3f);
+            int blue = (c1 & 0x1f) + (c2 & 0x1f) + (c3 & 0x1f) +
+                (c4 & 0x1f);
+            return ((red >> 2) << 11) | ((green >> 2) << 5) |
+                (blue >> 2);
+        }
+    }
+
+
+    public String toString() {
+        return name;
+    }
+}
@@ -2,15 +2,19 @@ package deet.graphics3D.texture;
 
 /**
     The PowerOf2Texture class is a Texture with a width and height
-    that are a power of 2 (32, 128, etc.).
+    that are a power of 2 (32, 128, etc.). 16-bit textures are
+    stored in a short array, and 32-bit textures in an int
+    array.
 */
 public final class PowerOf2Texture extends Texture {
 
     private short[] buffer;
+    private int[] intBuffer;
     private int widthBits;
     private int widthMask;
     private int heightBits;
     private int heightMask;
+    private PowerOf2Texture[] mipMaps;
 
     /**
         Creates a new PowerOf2Texture with the specified buffer.
@@ -21,12 +25,92 @@ public final class PowerOf2Texture extends Texture {
     public PowerOf2Texture(short[] buffer,
         int widthBits, int heightBits)
     {
-        super(1 << widthBits, 1 << heightBits);
+        this(widthBits, heightBits, PixelFormat.RGB_565);
         this.buffer = buffer;
+    }
+
+
+    /**
+        Creates a new 32-bit PowerOf2Texture with the specified
+        buffer. The width and height are (1 << widthBits) and
+        (1 << heightBits).
+    */
+    public PowerOf2Texture(int[] buffer,
+        int widthBits, int heightBits)
+    {
+        this(widthBits, heightBits, PixelFormat.RGB_888);
+        this.intBuffer = buffer;
+    }
+
+
+    private PowerOf2Texture(int widthBits, int heightBits,
+        PixelFormat pixelFormat)
+    {
+        super(1 << widthBits, 1 << heightBits, pixelFormat);
         this.widthBits = widthBits;
         this.heightBits = heightBits;
         this.widthMask = getWidth() - 1;
         this.heightMask = getHeight() - 1;
+        mipMaps = new PowerOf2Texture[] { this };
+    }
+
+
+    /**
+        Creates the mip-maps of this texture. Each level is half
+        the width and height of the previous level (to a minimum
+        of 1), and each pixel is the average of four pixels of
+        the previous level.
+    */
+    public void createMipMaps() {
+        int numLevels = Math.max(widthBits, heightBits) + 1;
+        mipMaps = new PowerOf2Texture[numLevels];
+        mipMaps[0] = this;
+        for (int i=1; i<numLevels; i++) {
+            PowerOf2Texture src = mipMaps[i-1];
+            int wBits = Math.max(src.widthBits - 1, 0);
+            int hBits = Math.max(src.heightBits - 1, 0);
+            int[] dest = new int[1 << (wBits + hBits)];
+            for (int y=0; y<(1 << hBits); y++) {
+                for (int x=0; x<(1 << wBits); x++) {
+                    int x1 = x << (src.widthBits - wBits);
+                    int y1 = y << (src.heightBits - hBits);
+                    dest[x + (y << wBits)] = pixelFormat.average(
+                        src.getIntColor(x1, y1),
+                        src.getIntColor(x1 + 1, y1),
+                        src.getIntColor(x1, y1 + 1),
+                        src.getIntColor(x1 + 1, y1 + 1));
+                }
+            }
+            if (pixelFormat.isIntPixels()) {
+                mipMaps[i] = new PowerOf2Texture(dest, wBits, hBits);
+            }
+            else {
+                short[] shortDest = new short[dest.length];
+                for (int j=0; j<dest.length; j++) {
+                    shortDest[j] = (short)dest[j];
+                }
+                mipMaps[i] = new PowerOf2Texture(shortDest, wBits,
+                    hBits);
+            }
+        }
+    }
+
+
+    /**
+        Gets the number of mip-map levels of this texture
+        (1 if createMipMaps() wasn't called).
+    */
+    public int getNumMipMaps() {
+        return mipMaps.length;
+    }
+
+
+    /**
+        Gets the mip-map at the specified level, where level 0
+        is this texture.
+    */
+    public PowerOf2Texture getMipMap(int level) {
+        return mipMaps[level];
     }
 
 
@@ -40,4 +124,87 @@ public final class PowerOf2Texture extends Texture {
             ((y & heightMask) << widthBits)];
     }
 
+
+    /**
+        Gets the color of the pixel at location (x,y) in the
+        bitmap, in this texture's pixel format.
+    */
+    public int getIntColor(int x, int y) {
+        int offset = (x & widthMask) +
+            ((y & heightMask) << widthBits);
+        if (intBuffer != null) {
+            return intBuffer[offset];
+        }
+        return buffer[offset] & 0xffff;
+    }
+
+
+    /**
+        Copies the 16-bit colors of a list of spans into dest,
+        one span after another, starting at offset. Span
+        locations are shifted left by the specified amount. Same
+        as calling getColor() for each pixel, but keeps the loop
+        in one place so HotSpot can optimize it.
+    */
+    public void getColors(SpanList spans, int shift, short[] dest,
+        int offset)
+    {
+        short[] buffer = this.buffer;
+        int widthMask = this.widthMask;
+        int heightMask = this.heightMask;
+        int widthBits = this.widthBits;
+        for (int i=0; i<spans.numSpans; i++) {
+            int tx = spans.x[i];
+            int ty = spans.y[i];
+            int dtx = spans.dx[i];
+            int dty = spans.dy[i];
+            int endOffset = offset + spans.length[i];
+            while (offset < endOffset) {
+                dest[offset++] = buffer[
+                    ((tx >> shift) & widthMask) +
+                    (((ty >> shift) & heightMask) << widthBits)];
+                tx+=dtx;
+                ty+=dty;
+            }
+        }
+    }
+
+
+    /**
+        Same as getColors(), but copies colors in this texture's
+        pixel format (see getIntColor()) into an int array.
+    */
+    public void getIntColors(SpanList spans, int shift,
+        int[] dest, int offset)
+    {
+        if (intBuffer == null) {
+            getIntColorsByPixel(spans, shift, dest, offset);
+            return;
+        }
+        SpanCopier copier = getVectorSpanCopier();
+        if (copier != null) {
+            copier.copy(intBuffer, widthMask, heightMask,
+                1 << widthBits, spans, shift, dest, offset);
+            return;
+        }
+        int[] intBuffer = this.intBuffer;
+        int widthMask = this.widthMask;
+        int heightMask = this.heightMask;
+        int widthBits = this.widthBits;
+        for (int i=0; i<spans.numSpans; i++) {
+            int tx = spans.x[i];
+            int ty = spans.y[i];
+            int dtx = spans.dx[i];
+            int dty = spans.dy[i];
+            int endOffset = offset + spans.length[i];
+            while (offset < endOffset) {
+                dest[offset++] = intBuffer[
+                    ((tx >> shift) & widthMask) +
+                    (((ty >> shift) & heightMask) << widthBits)];
+                tx+=dtx;
+                ty+=dty;
+            }
+        }
+    }
+
 }
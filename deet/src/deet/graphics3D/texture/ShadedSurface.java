@@ -1,6 +1,6 @@
 package deet.graphics3D.texture;
 
-import java.lang.ref.SoftReference;
+import java.util.ArrayList;
 import java.util.List;
 
 import deet.math3D.*;
@@ -19,15 +19,31 @@ public final class ShadedSurface extends Texture {
     public static final int SHADE_RES_SQ = SHADE_RES*SHADE_RES;
     public static final int SHADE_RES_SQ_BITS = SHADE_RES_BITS*2;
 
+    // lights this close to being out of range are still used,
+    // to allow for rounding errors
+    private static final float LIGHT_RANGE_EPSILON = 1;
+
     private short[] buffer;
-    private SoftReference bufferReference;
+    private int[] intBuffer;
     private boolean dirty;
+    private int dirtyTop;
+    private int dirtyBottom;
     private ShadedTexture sourceTexture;
     private Rectangle3D sourceTextureBounds;
     private Rectangle3D surfaceBounds;
     private byte[] shadeMap;
     private int shadeMapWidth;
     private int shadeMapHeight;
+    private int shadeMapVersion;
+
+    // the lights of the shade map, for updating it when a
+    // dynamic light changes
+    private PointLight3D[] staticLights;
+    private PointLight3D[] dynamicLights = new PointLight3D[0];
+    private float ambientLightIntensity;
+    private Vector3D shadeMapOrigin;
+    private Vector3D shadeMapDu;
+    private Vector3D shadeMapDv;
 
     // for incrementally calculating shade values
     private int shadeValue;
@@ -38,7 +54,7 @@ public final class ShadedSurface extends Texture {
         height.
     */
     public ShadedSurface(int width, int height) {
-        this(null, width, height);
+        this((short[])null, width, height);
     }
 
 
@@ -49,9 +65,24 @@ public final class ShadedSurface extends Texture {
     public ShadedSurface(short[] buffer, int width, int height) {
         super(width, height);
         this.buffer = buffer;
-        bufferReference = new SoftReference(buffer);
         sourceTextureBounds = new Rectangle3D();
         dirty = true;
+        dirtyTop = 0;
+        dirtyBottom = height - 1;
+    }
+
+
+    /**
+        Creates a 32-bit ShadedSurface with the specified buffer,
+        width and height.
+    */
+    public ShadedSurface(int[] buffer, int width, int height) {
+        super(width, height, PixelFormat.RGB_888);
+        this.intBuffer = buffer;
+        sourceTextureBounds = new Rectangle3D();
+        dirty = true;
+        dirtyTop = 0;
+        dirtyBottom = height - 1;
     }
 
 
@@ -138,6 +169,83 @@ public final class ShadedSurface extends Texture {
     }
 
 
+    /**
+        Gets the color of the pixel at location (x,y) in the
+        bitmap, in this surface's pixel format. The x and y
+        values are assumbed to be within the bounds of the
+        surface.
+    */
+    public int getIntColor(int x, int y) {
+        if (intBuffer != null) {
+            return intBuffer[x + y * width];
+        }
+        return buffer[x + y * width] & 0xffff;
+    }
+
+
+    /**
+        Copies the 16-bit colors of a list of spans into dest,
+        one span after another, starting at offset. Span
+        locations are shifted left by the specified amount. Same
+        as calling getColor() for each pixel, so every location
+        must be within the bounds of the surface.
+    */
+    public void getColors(SpanList spans, int shift, short[] dest,
+        int offset)
+    {
+        short[] buffer = this.buffer;
+        int width = this.width;
+        for (int i=0; i<spans.numSpans; i++) {
+            int tx = spans.x[i];
+            int ty = spans.y[i];
+            int dtx = spans.dx[i];
+            int dty = spans.dy[i];
+            int endOffset = offset + spans.length[i];
+            while (offset < endOffset) {
+                dest[offset++] =
+                    buffer[(tx >> shift) + (ty >> shift) * width];
+                tx+=dtx;
+                ty+=dty;
+            }
+        }
+    }
+
+
+    /**
+        Same as getColors(), but copies colors in this surface's
+        pixel format (see getIntColor()) into an int array.
+    */
+    public void getIntColors(SpanList spans, int shift,
+        int[] dest, int offset)
+    {
+        if (intBuffer == null) {
+            getIntColorsByPixel(spans, shift, dest, offset);
+            return;
+        }
+        SpanCopier copier = getVectorSpanCopier();
+        if (copier != null) {
+            copier.copy(intBuffer, -1, -1, width, spans, shift, dest,
+                offset);
+            return;
+        }
+        int[] intBuffer = this.intBuffer;
+        int width = this.width;
+        for (int i=0; i<spans.numSpans; i++) {
+            int tx = spans.x[i];
+            int ty = spans.y[i];
+            int dtx = spans.dx[i];
+            int dty = spans.dy[i];
+            int endOffset = offset + spans.length[i];
+            while (offset < endOffset) {
+                dest[offset++] =
+                    intBuffer[(tx >> shift) + (ty >> shift) * width];
+                tx+=dtx;
+                ty+=dty;
+            }
+        }
+    }
+
+
     /**
         Gets the 16-bit color of the pixel at location (x,y) in
         the bitmap. The x and y values are checked to be within
@@ -162,17 +270,21 @@ public final class ShadedSurface extends Texture {
 
 
     /**
-        Marks whether this surface is dirty. Surfaces marked as
-        dirty may be cleared externally.
+        Marks whether this surface is dirty. A dirty surface has
+        rows that don't match its shade map (see
+        rebuildDirtyRows()). Marking a surface dirty marks every
+        row.
     */
     public void setDirty(boolean dirty) {
         this.dirty = dirty;
+        dirtyTop = 0;
+        dirtyBottom = dirty?height-1:-1;
     }
 
 
     /**
-        Checks wether this surface is dirty. Surfaces marked as
-        dirty may be cleared externally.
+        Checks wether this surface is dirty. A dirty surface has
+        rows that don't match its shade map.
     */
     public boolean isDirty() {
         return dirty;
@@ -180,20 +292,59 @@ public final class ShadedSurface extends Texture {
 
 
     /**
-        Creates a new surface and add a SoftReference to it.
+        Marks the specified rows (inclusive) as dirty.
+    */
+    private void setDirtyRows(int top, int bottom) {
+        top = Math.max(top, 0);
+        bottom = Math.min(bottom, height-1);
+        if (top > bottom) {
+            return;
+        }
+        if (dirty) {
+            dirtyTop = Math.min(dirtyTop, top);
+            dirtyBottom = Math.max(dirtyBottom, bottom);
+        }
+        else {
+            dirty = true;
+            dirtyTop = top;
+            dirtyBottom = bottom;
+        }
+    }
+
+
+    /**
+        Rebuilds the dirty rows of this surface, if it's built,
+        and marks it as not dirty.
+    */
+    public void rebuildDirtyRows() {
+        if (dirty && !isCleared()) {
+            buildRows((buffer != null)?(Object)buffer:intBuffer,
+                dirtyTop, dirtyBottom + 1, 0);
+        }
+        dirty = false;
+    }
+
+
+    /**
+        Creates a new surface.
     */
     protected void newSurface(int width, int height) {
-        buffer = new short[width*height];
-        bufferReference = new SoftReference(buffer);
+        if (pixelFormat.isIntPixels()) {
+            intBuffer = new int[width*height];
+        }
+        else {
+            buffer = new short[width*height];
+        }
     }
 
 
     /**
-        Clears this surface, allowing the garbage collector to
-        remove it from memory if needed.
+        Clears this surface, removing it from memory. Surfaces
+        are usually cleared by a SurfaceCache.
     */
     public void clearSurface() {
         buffer = null;
+        intBuffer = null;
     }
 
 
@@ -201,29 +352,27 @@ public final class ShadedSurface extends Texture {
         Checks if the surface has been cleared.
     */
     public boolean isCleared() {
-        return (buffer == null);
+        return (buffer == null && intBuffer == null);
     }
 
 
     /**
-        If the buffer has been previously built and cleared but
-        not yet removed from memory by the garbage collector,
-        then this method attempts to retrieve it. Returns true if
-        successfull.
+        Checks if the buffer is built. Cleared surfaces are no
+        longer kept around for the garbage collector, so this
+        is the same as !isCleared().
     */
     public boolean retrieveSurface() {
-        if (buffer == null) {
-            buffer = (short[])bufferReference.get();
-        }
-        return !(buffer == null);
+        return !isCleared();
     }
 
 
     /**
-        Sets the source texture for this ShadedSurface.
+        Sets the source texture for this ShadedSurface. The
+        surface uses the pixel format of the texture.
     */
     public void setTexture(ShadedTexture texture) {
         this.sourceTexture = texture;
+        pixelFormat = texture.getPixelFormat();
         sourceTextureBounds.setWidth(texture.getWidth());
         sourceTextureBounds.setHeight(texture.getHeight());
     }
@@ -259,8 +408,8 @@ public final class ShadedSurface extends Texture {
 
     /**
         Builds the surface. First, this method calls
-        retrieveSurface() to see if the surface needs to be
-        rebuilt. If not, the surface is built by tiling the
+        retrieveSurface() to see if the surface is already
+        built. If not, the surface is built by tiling the
         source texture and apply the shade map.
     */
     public void buildSurface() {
@@ -274,6 +423,7 @@ public final class ShadedSurface extends Texture {
 
         // create a new surface (buffer)
         newSurface(width, height);
+        dirty = false;
 
         // builds the surface.
         // assume surface bounds and texture bounds are aligned
@@ -305,12 +455,23 @@ public final class ShadedSurface extends Texture {
                 // keep drawing until we need to recalculate
                 // the interpolated shade. (every SHADE_RES pixels)
                 int endU = Math.min(startU + width, u + amount);
-                while (u < endU) {
-                    buffer[offset++] =
-                        sourceTexture.getColorCurrRow(u,
-                             shadeValue >> SHADE_RES_SQ_BITS);
-                    shadeValue+=shadeValueInc;
-                    u++;
+                if (intBuffer != null) {
+                    while (u < endU) {
+                        intBuffer[offset++] =
+                            sourceTexture.getIntColorCurrRow(u,
+                                 shadeValue >> SHADE_RES_SQ_BITS);
+                        shadeValue+=shadeValueInc;
+                        u++;
+                    }
+                }
+                else {
+                    while (u < endU) {
+                        buffer[offset++] =
+                            sourceTexture.getColorCurrRow(u,
+                                 shadeValue >> SHADE_RES_SQ_BITS);
+                        shadeValue+=shadeValueInc;
+                        u++;
+                    }
                 }
                 amount = SHADE_RES;
             }
@@ -363,6 +524,126 @@ public final class ShadedSurface extends Texture {
     }
 
 
+    /**
+        Builds a new buffer for this surface, without changing
+        the current buffer, and returns it. If lowResBits is more
+        than zero, only one texel in every 2^lowResBits by
+        2^lowResBits block is calculated and copied to the rest
+        of the block, which is much faster. Unlike
+        buildSurface(), this method can be called from any
+        thread. The buffer is a short array for 16-bit surfaces
+        or an int array for 32-bit surfaces.
+    */
+    public Object buildBuffer(int lowResBits) {
+        Object buffer;
+        if (pixelFormat.isIntPixels()) {
+            buffer = new int[width*height];
+        }
+        else {
+            buffer = new short[width*height];
+        }
+        buildRows(buffer, 0, height, lowResBits);
+        return buffer;
+    }
+
+
+    /**
+        Builds rows top (inclusive) to bottom (exclusive) of the
+        specified buffer (a short or int array). For low-res
+        buffers, top should be a multiple of 2^lowResBits.
+    */
+    private void buildRows(Object dest, int top, int bottom,
+        int lowResBits)
+    {
+        short[] buffer = null;
+        int[] intBuffer = null;
+        if (dest instanceof int[]) {
+            intBuffer = (int[])dest;
+        }
+        else {
+            buffer = (short[])dest;
+        }
+        Vector3D d = new Vector3D(surfaceBounds.getOrigin());
+        d.subtract(sourceTextureBounds.getOrigin());
+        int startU = (int)((d.getDotProduct(
+            sourceTextureBounds.getDirectionU()) -
+            SURFACE_BORDER_SIZE));
+        int startV = (int)((d.getDotProduct(
+            sourceTextureBounds.getDirectionV()) -
+            SURFACE_BORDER_SIZE));
+        int shadeMapOffsetU = SHADE_RES - SURFACE_BORDER_SIZE;
+        int shadeMapOffsetV = SHADE_RES - SURFACE_BORDER_SIZE;
+        int step = 1 << lowResBits;
+
+        for (int y=top; y<bottom; y+=step) {
+            int offset = y * width;
+            int v = y + shadeMapOffsetV;
+            int fracV = v & SHADE_RES_MASK;
+            int x = 0;
+            while (x < width) {
+                // interpolate the shade across to the next shade
+                // map sample
+                int u = x + shadeMapOffsetU;
+                int fracU = u & SHADE_RES_MASK;
+                int shadeOffset = (u >> SHADE_RES_BITS) +
+                    ((v >> SHADE_RES_BITS) * shadeMapWidth);
+                int shade0 =
+                    (SHADE_RES-fracV) * shadeMap[shadeOffset] +
+                    fracV * shadeMap[shadeOffset + shadeMapWidth];
+                int shade1 =
+                    (SHADE_RES-fracV) * shadeMap[shadeOffset + 1] +
+                    fracV * shadeMap[shadeOffset + shadeMapWidth + 1];
+                int shadeValue = SHADE_RES_SQ/2 +
+                    (SHADE_RES-fracU) * shade0 + fracU * shade1;
+                int shadeValueInc = (shade1 - shade0) * step;
+                int endX = Math.min(width, x + SHADE_RES - fracU);
+                while (x < endX) {
+                    int shade = shadeValue >> SHADE_RES_SQ_BITS;
+                    int blockEndX = Math.min(x + step, width);
+                    if (intBuffer != null) {
+                        int color = sourceTexture.getIntColor(
+                            startU + x, startV + y, shade);
+                        for (int i=x; i<blockEndX; i++) {
+                            intBuffer[offset + i] = color;
+                        }
+                    }
+                    else {
+                        short color = sourceTexture.getColor(
+                            startU + x, startV + y, shade);
+                        for (int i=x; i<blockEndX; i++) {
+                            buffer[offset + i] = color;
+                        }
+                    }
+                    shadeValue+=shadeValueInc;
+                    x+=step;
+                }
+            }
+            // copy the row to the rest of the block
+            int endY = Math.min(y + step, bottom);
+            for (int i=y+1; i<endY; i++) {
+                System.arraycopy(dest, offset, dest, i * width,
+                    width);
+            }
+        }
+    }
+
+
+    /**
+        Sets the buffer of this surface, usually one returned
+        from buildBuffer().
+    */
+    public void setBuffer(Object buffer) {
+        if (buffer instanceof int[]) {
+            this.intBuffer = (int[])buffer;
+            this.buffer = null;
+        }
+        else {
+            this.buffer = (short[])buffer;
+            this.intBuffer = null;
+        }
+    }
+
+
     /**
         Gets the shade (from the shade map) for the  specified
         (u,v) location. The u and v values should be
@@ -410,6 +691,9 @@ public final class ShadedSurface extends Texture {
     /**
         Builds the shade map for this surface from the specified
         list of point lights and the ambiant light intensity.
+        Lights that can't reach any part of the surface are
+        skipped. This method only changes this surface, so shade
+        maps of different surfaces can be built in parallel.
     */
     public void buildShadeMap(List pointLights,
         float ambientLightIntensity)
@@ -426,7 +710,41 @@ public final class ShadedSurface extends Texture {
         shadeMapHeight = polyHeight / SHADE_RES + 4;
         shadeMap = new byte[shadeMapWidth * shadeMapHeight];
 
-        // calculate the shade map origin
+        // find the lights that reach the shade map
+        calcShadeMapBasis();
+        Vector3D origin = new Vector3D(shadeMapOrigin);
+        Vector3D du = shadeMapDu;
+        Vector3D dv = shadeMapDv;
+        PointLight3D[] lights = getLightsInRange(pointLights,
+            surfaceNormal, origin, du, dv);
+
+        // keep what's needed to update the shade map later
+        staticLights = lights;
+        this.ambientLightIntensity = ambientLightIntensity;
+        shadeMapVersion++;
+
+        // calculate the shade for each sample point.
+        Vector3D point = new Vector3D();
+        Vector3D directionToLight = new Vector3D();
+        for (int v=0; v<shadeMapHeight; v++) {
+            point.setTo(origin);
+            for (int u=0; u<shadeMapWidth; u++) {
+                shadeMap[u + v * shadeMapWidth] =
+                    calcShade(surfaceNormal, point, lights,
+                    ambientLightIntensity, directionToLight);
+                point.add(du);
+            }
+            origin.add(dv);
+        }
+    }
+
+
+    /**
+        Calculates the location of the first shade map sample,
+        and the distance between samples, from the surface
+        bounds.
+    */
+    private void calcShadeMapBasis() {
         Vector3D origin = new Vector3D(surfaceBounds.getOrigin());
         Vector3D du = new Vector3D(surfaceBounds.getDirectionU());
         Vector3D dv = new Vector3D(surfaceBounds.getDirectionV());
@@ -434,26 +752,286 @@ public final class ShadedSurface extends Texture {
         dv.multiply(SHADE_RES - SURFACE_BORDER_SIZE);
         origin.subtract(du);
         origin.subtract(dv);
-
-        // calculate the shade for each sample point.
-        Vector3D point = new Vector3D();
         du.setTo(surfaceBounds.getDirectionU());
         dv.setTo(surfaceBounds.getDirectionV());
         du.multiply(SHADE_RES);
         dv.multiply(SHADE_RES);
-        for (int v=0; v<shadeMapHeight; v++) {
-            point.setTo(origin);
-            for (int u=0; u<shadeMapWidth; u++) {
-                shadeMap[u + v * shadeMapWidth] =
-                    calcShade(surfaceNormal, point,
-                    pointLights, ambientLightIntensity);
-                point.add(du);
+        shadeMapOrigin = origin;
+        shadeMapDu = du;
+        shadeMapDv = dv;
+    }
+
+
+    /**
+        Sets the shade map of this surface to one built earlier
+        (see getShadeMap()), along with the lights and ambient
+        light intensity it was built with. The surface bounds
+        must already be set.
+    */
+    public void setShadeMap(byte[] shadeMap, int width, int height,
+        PointLight3D[] lights, float ambientLightIntensity)
+    {
+        calcShadeMapBasis();
+        this.shadeMap = shadeMap;
+        shadeMapWidth = width;
+        shadeMapHeight = height;
+        staticLights = lights;
+        this.ambientLightIntensity = ambientLightIntensity;
+        shadeMapVersion++;
+    }
+
+
+    /**
+        Gets the shade map of this surface, one shade level (from
+        0 to ShadedTexture.MAX_LEVEL) per sample, row by row.
+    */
+    public byte[] getShadeMap() {
+        return shadeMap;
+    }
+
+
+    public int getShadeMapWidth() {
+        return shadeMapWidth;
+    }
+
+
+    public int getShadeMapHeight() {
+        return shadeMapHeight;
+    }
+
+
+    /**
+        Gets the lights the shade map was built with (not
+        counting dynamic lights).
+    */
+    public PointLight3D[] getStaticLights() {
+        return staticLights;
+    }
+
+
+    /**
+        Gets the ambient light intensity the shade map was built
+        with.
+    */
+    public float getAmbientLightIntensity() {
+        return ambientLightIntensity;
+    }
+
+
+    /**
+        Gets the source texture of this ShadedSurface.
+    */
+    public ShadedTexture getSourceTexture() {
+        return sourceTexture;
+    }
+
+
+    /**
+        Gets the bounds of the source texture of this
+        ShadedSurface.
+    */
+    public Rectangle3D getSourceTextureBounds() {
+        return sourceTextureBounds;
+    }
+
+
+    /**
+        Adds a dynamic light to the lights of this surface. The
+        shade map isn't changed until updateShadeMap() is
+        called.
+    */
+    public void addDynamicLight(PointLight3D light) {
+        PointLight3D[] lights =
+            new PointLight3D[dynamicLights.length + 1];
+        System.arraycopy(dynamicLights, 0, lights, 0,
+            dynamicLights.length);
+        lights[dynamicLights.length] = light;
+        dynamicLights = lights;
+    }
+
+
+    /**
+        Removes a dynamic light from the lights of this surface.
+        The shade map isn't changed until updateShadeMap() is
+        called.
+    */
+    public void removeDynamicLight(PointLight3D light) {
+        for (int i=0; i<dynamicLights.length; i++) {
+            if (dynamicLights[i] == light) {
+                PointLight3D[] lights =
+                    new PointLight3D[dynamicLights.length - 1];
+                System.arraycopy(dynamicLights, 0, lights, 0, i);
+                System.arraycopy(dynamicLights, i+1, lights, i,
+                    lights.length - i);
+                dynamicLights = lights;
+                return;
             }
-            origin.add(dv);
         }
     }
 
 
+    /**
+        Recalculates the shade map samples within the specified
+        distance of the specified point, using the lights the
+        shade map was built with plus the current dynamic
+        lights. The rows of the surface that use changed samples
+        are marked dirty. Returns the number of samples
+        recalculated. The shade map must already be built.
+    */
+    public int updateShadeMap(Vector3D center, float radius) {
+        Vector3D normal = surfaceBounds.getNormal();
+        Vector3D point = new Vector3D(center);
+        point.subtract(shadeMapOrigin);
+        float distance = point.getDotProduct(normal);
+        if (Math.abs(distance) > radius) {
+            return 0;
+        }
+        // the circle where the sphere meets the plane, in samples
+        float circleRadius =
+            (float)Math.sqrt(radius*radius - distance*distance);
+        float sampleSize = shadeMapDu.length();
+        float centerU = point.getDotProduct(shadeMapDu) /
+            (sampleSize * sampleSize);
+        float centerV = point.getDotProduct(shadeMapDv) /
+            (sampleSize * sampleSize);
+        float sampleRadius = circleRadius / sampleSize;
+        int minU = Math.max(0,
+            (int)Math.floor(centerU - sampleRadius));
+        int maxU = Math.min(shadeMapWidth - 1,
+            (int)Math.ceil(centerU + sampleRadius));
+        int minV = Math.max(0,
+            (int)Math.floor(centerV - sampleRadius));
+        int maxV = Math.min(shadeMapHeight - 1,
+            (int)Math.ceil(centerV + sampleRadius));
+        if (minU > maxU || minV > maxV) {
+            return 0;
+        }
+
+        PointLight3D[] lights = new PointLight3D[
+            staticLights.length + dynamicLights.length];
+        System.arraycopy(staticLights, 0, lights, 0,
+            staticLights.length);
+        System.arraycopy(dynamicLights, 0, lights,
+            staticLights.length, dynamicLights.length);
+
+        Vector3D directionToLight = new Vector3D();
+        Vector3D d = new Vector3D();
+        int minChangedV = Integer.MAX_VALUE;
+        int maxChangedV = -1;
+        for (int v=minV; v<=maxV; v++) {
+            for (int u=minU; u<=maxU; u++) {
+                point.setTo(shadeMapOrigin);
+                d.setTo(shadeMapDu);
+                d.multiply(u);
+                point.add(d);
+                d.setTo(shadeMapDv);
+                d.multiply(v);
+                point.add(d);
+                byte shade = calcShade(normal, point, lights,
+                    ambientLightIntensity, directionToLight);
+                int offset = u + v * shadeMapWidth;
+                if (shadeMap[offset] != shade) {
+                    shadeMap[offset] = shade;
+                    minChangedV = Math.min(minChangedV, v);
+                    maxChangedV = Math.max(maxChangedV, v);
+                }
+            }
+        }
+
+        if (maxChangedV != -1) {
+            shadeMapVersion++;
+            // rows between samples v-1 and v+1 use sample v
+            int offset = SURFACE_BORDER_SIZE - SHADE_RES;
+            setDirtyRows((minChangedV - 1) * SHADE_RES + offset,
+                (maxChangedV + 1) * SHADE_RES + offset);
+        }
+        return (maxU - minU + 1) * (maxV - minV + 1);
+    }
+
+
+    /**
+        Gets the version of the shade map, which changes every
+        time the shade map changes. A buffer built from an older
+        version is out of date.
+    */
+    public int getShadeMapVersion() {
+        return shadeMapVersion;
+    }
+
+
+    /**
+        Gets the center of the shade map samples of this
+        surface, for finding which lights can reach it. The
+        shade map must already be built.
+    */
+    public Vector3D getShadeMapCenter() {
+        Vector3D center = new Vector3D(shadeMapDu);
+        center.multiply((shadeMapWidth - 1) / 2f);
+        Vector3D d = new Vector3D(shadeMapDv);
+        d.multiply((shadeMapHeight - 1) / 2f);
+        center.add(d);
+        center.add(shadeMapOrigin);
+        return center;
+    }
+
+
+    /**
+        Gets the distance from the center of the shade map
+        samples to the furthest sample. The shade map must
+        already be built.
+    */
+    public float getShadeMapRadius() {
+        Vector3D d = new Vector3D(shadeMapDu);
+        d.multiply((shadeMapWidth - 1) / 2f);
+        Vector3D d2 = new Vector3D(shadeMapDv);
+        d2.multiply((shadeMapHeight - 1) / 2f);
+        d.add(d2);
+        return d.length();
+    }
+
+
+    /**
+        Gets the lights in the specified list that light at
+        least part of the shade map with the specified normal,
+        origin, and distance between samples (du and dv). Lights
+        behind the surface, and lights further than their
+        distance falloff from every sample, add nothing to the
+        shade of any sample, so they are left out.
+    */
+    private PointLight3D[] getLightsInRange(List pointLights,
+        Vector3D normal, Vector3D origin, Vector3D du, Vector3D dv)
+    {
+        // bounding sphere of the shade map samples
+        Vector3D center = new Vector3D(du);
+        center.multiply((shadeMapWidth - 1) / 2f);
+        Vector3D d = new Vector3D(dv);
+        d.multiply((shadeMapHeight - 1) / 2f);
+        center.add(d);
+        float radius = center.length();
+        center.add(origin);
+
+        List lights = new ArrayList();
+        for (int i=0; i<pointLights.size(); i++) {
+            PointLight3D light = (PointLight3D)pointLights.get(i);
+            d.setTo(light);
+            d.subtract(center);
+            // (every sample is on the plane of the surface)
+            if (d.getDotProduct(normal) < -LIGHT_RANGE_EPSILON) {
+                continue;
+            }
+            float falloff = light.getDistanceFalloff();
+            if (falloff != PointLight3D.NO_DISTANCE_FALLOFF &&
+                d.length() - radius > falloff + LIGHT_RANGE_EPSILON)
+            {
+                continue;
+            }
+            lights.add(light);
+        }
+        return (PointLight3D[])lights.toArray(
+            new PointLight3D[lights.size()]);
+    }
+
+
     /**
         Determine the shade of a point on the polygon.
         This computes the Lambertian reflection for a point on
@@ -464,12 +1042,27 @@ public final class ShadedSurface extends Texture {
     */
     protected byte calcShade(Vector3D normal, Vector3D point,
         List pointLights, float ambientLightIntensity)
+    {
+        PointLight3D[] lights = (PointLight3D[])pointLights.toArray(
+            new PointLight3D[pointLights.size()]);
+        return calcShade(normal, point, lights,
+            ambientLightIntensity, new Vector3D());
+    }
+
+
+    /**
+        Same as calcShade() above, but doesn't allocate any
+        objects. The directionToLight vector is used for
+        calculations.
+    */
+    protected byte calcShade(Vector3D normal, Vector3D point,
+        PointLight3D[] pointLights, float ambientLightIntensity,
+        Vector3D directionToLight)
     {
         float intensity = 0;
-        Vector3D directionToLight = new Vector3D();
 
-        for (int i=0; i<pointLights.size(); i++) {
-            PointLight3D light = (PointLight3D)pointLights.get(i);
+        for (int i=0; i<pointLights.length; i++) {
+            PointLight3D light = pointLights[i];
             directionToLight.setTo(light);
             directionToLight.subtract(point);
 
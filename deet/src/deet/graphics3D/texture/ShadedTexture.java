@@ -2,11 +2,14 @@ package deet.graphics3D.texture;
 
 import java.awt.Color;
 import java.awt.image.IndexColorModel;
+import java.util.HashMap;
 
 /**
     The ShadedTexture class is a Texture that has multiple
     shades. The texture source image is stored as a 8-bit image
-    with a palette for every shade.
+    with a palette for every shade. The shaded palettes of 16-bit
+    textures are stored in a short array, and the palettes of
+    32-bit textures in an int array.
 */
 public final class ShadedTexture extends Texture {
 
@@ -19,11 +22,13 @@ public final class ShadedTexture extends Texture {
     private byte[] buffer;
     private IndexColorModel palette;
     private short[] shadeTable;
+    private int[] intShadeTable;
     private int defaultShadeLevel;
     private int widthBits;
     private int widthMask;
     private int heightBits;
     private int heightMask;
+    private ShadedTexture[] mipMaps;
 
     // the row set in setCurrRow and used in getColorCurrRow
     private int currRow;
@@ -56,7 +61,36 @@ public final class ShadedTexture extends Texture {
         int widthBits, int heightBits,
         IndexColorModel palette, Color targetShade)
     {
-        super(1 << widthBits, 1 << heightBits);
+        this(buffer, widthBits, heightBits, palette, targetShade,
+            PixelFormat.RGB_565);
+    }
+
+
+    /**
+        Creates a new ShadedTexture with the specified pixel
+        format from the specified 8-bit image buffer and palette.
+        The texture is shaded from it's original color to black.
+    */
+    public ShadedTexture(byte[] buffer,
+        int widthBits, int heightBits,
+        IndexColorModel palette, PixelFormat pixelFormat)
+    {
+        this(buffer, widthBits, heightBits, palette, Color.BLACK,
+            pixelFormat);
+    }
+
+
+    /**
+        Creates a new ShadedTexture with the specified pixel
+        format from the specified 8-bit image buffer, palette,
+        and target shade.
+    */
+    public ShadedTexture(byte[] buffer,
+        int widthBits, int heightBits,
+        IndexColorModel palette, Color targetShade,
+        PixelFormat pixelFormat)
+    {
+        super(1 << widthBits, 1 << heightBits, pixelFormat);
         this.buffer = buffer;
         this.widthBits = widthBits;
         this.heightBits = heightBits;
@@ -65,11 +99,150 @@ public final class ShadedTexture extends Texture {
         this.buffer = buffer;
         this.palette = palette;
         defaultShadeLevel = MAX_LEVEL;
+        mipMaps = new ShadedTexture[] { this };
 
         makeShadeTable(targetShade);
     }
 
 
+    /**
+        Creates a mip-map level that shares the palette and shade
+        table of the specified texture.
+    */
+    private ShadedTexture(byte[] buffer,
+        int widthBits, int heightBits, ShadedTexture parent)
+    {
+        super(1 << widthBits, 1 << heightBits, parent.pixelFormat);
+        this.buffer = buffer;
+        this.widthBits = widthBits;
+        this.heightBits = heightBits;
+        this.widthMask = getWidth() - 1;
+        this.heightMask = getHeight() - 1;
+        this.palette = parent.palette;
+        this.shadeTable = parent.shadeTable;
+        this.intShadeTable = parent.intShadeTable;
+        defaultShadeLevel = parent.defaultShadeLevel;
+        mipMaps = new ShadedTexture[] { this };
+    }
+
+
+    /**
+        Creates the mip-maps of this texture. Each level is half
+        the width and height of the previous level (to a minimum
+        of 1). Each pixel is the palette color closest to the
+        average of four pixels of the previous level.
+    */
+    public void createMipMaps() {
+        int numLevels = Math.max(widthBits, heightBits) + 1;
+        mipMaps = new ShadedTexture[numLevels];
+        mipMaps[0] = this;
+        // maps averaged colors to palette indices
+        HashMap closest = new HashMap();
+        for (int i=1; i<numLevels; i++) {
+            ShadedTexture src = mipMaps[i-1];
+            int wBits = Math.max(src.widthBits - 1, 0);
+            int hBits = Math.max(src.heightBits - 1, 0);
+            byte[] dest = new byte[1 << (wBits + hBits)];
+            for (int y=0; y<(1 << hBits); y++) {
+                for (int x=0; x<(1 << wBits); x++) {
+                    int x1 = x << (src.widthBits - wBits);
+                    int y1 = y << (src.heightBits - hBits);
+                    int red = 0;
+                    int green = 0;
+                    int blue = 0;
+                    for (int j=0; j<4; j++) {
+                        int index = src.getIndex(x1 + (j & 1),
+                            y1 + (j >> 1));
+                        red += palette.getRed(index);
+                        green += palette.getGreen(index);
+                        blue += palette.getBlue(index);
+                    }
+                    dest[x + (y << wBits)] = (byte)findClosest(
+                        red >> 2, green >> 2, blue >> 2, closest);
+                }
+            }
+            mipMaps[i] = new ShadedTexture(dest, wBits, hBits, this);
+        }
+    }
+
+
+    /**
+        Gets the palette index of this texture at the specified
+        (x,y) location.
+    */
+    private int getIndex(int x, int y) {
+        return 0xff & buffer[(x & widthMask) |
+            ((y & heightMask) << widthBits)];
+    }
+
+
+    /**
+        Finds the index of the palette color closest to the
+        specified color.
+    */
+    private int findClosest(int red, int green, int blue,
+        HashMap closest)
+    {
+        Integer key = Integer.valueOf((red << 16) | (green << 8) |
+            blue);
+        Integer index = (Integer)closest.get(key);
+        if (index == null) {
+            int bestIndex = 0;
+            int bestDistance = Integer.MAX_VALUE;
+            for (int i=0; i<palette.getMapSize(); i++) {
+                int dr = palette.getRed(i) - red;
+                int dg = palette.getGreen(i) - green;
+                int db = palette.getBlue(i) - blue;
+                int distance = dr*dr + dg*dg + db*db;
+                if (distance < bestDistance) {
+                    bestDistance = distance;
+                    bestIndex = i;
+                }
+            }
+            index = Integer.valueOf(bestIndex);
+            closest.put(key, index);
+        }
+        return index.intValue();
+    }
+
+
+    /**
+        Gets the number of mip-map levels of this texture
+        (1 if createMipMaps() wasn't called).
+    */
+    public int getNumMipMaps() {
+        return mipMaps.length;
+    }
+
+
+    /**
+        Gets the mip-map at the specified level, where level 0
+        is this texture.
+    */
+    public ShadedTexture getMipMap(int level) {
+        return mipMaps[level];
+    }
+
+
+    /**
+        Gets the number of bytes used by this texture: the image
+        buffers of every mip-map level and the shade table.
+    */
+    public int getNumBytes() {
+        int bytes = 0;
+        for (int i=0; i<mipMaps.length; i++) {
+            bytes+=mipMaps[i].buffer.length;
+        }
+        if (intShadeTable != null) {
+            bytes+=intShadeTable.length * 4;
+        }
+        else {
+            bytes+=shadeTable.length * 2;
+        }
+        return bytes;
+    }
+
+
     /**
         Creates the shade table for this ShadedTexture. Each entry
         in the palette is shaded from the original color to the
@@ -77,7 +250,7 @@ public final class ShadedTexture extends Texture {
     */
     public void makeShadeTable(Color targetShade) {
 
-        shadeTable = new short[NUM_SHADE_LEVELS*PALETTE_SIZE];
+        int[] table = new int[NUM_SHADE_LEVELS*PALETTE_SIZE];
 
         for (int level=0; level<NUM_SHADE_LEVELS; level++) {
             for (int i=0; i<palette.getMapSize(); i++) {
@@ -89,13 +262,26 @@ public final class ShadedTexture extends Texture {
                     targetShade.getBlue(), level);
 
                 int index = level * PALETTE_SIZE + i;
-                // RGB 5:6:5
-                shadeTable[index] = (short)(
-                            ((red >> 3) << 11) |
-                            ((green >> 2) << 5) |
-                            (blue >> 3));
+                table[index] = pixelFormat.getColor(red, green,
+                    blue);
+            }
+        }
+
+        if (pixelFormat.isIntPixels()) {
+            intShadeTable = table;
+        }
+        else {
+            shadeTable = new short[table.length];
+            for (int i=0; i<table.length; i++) {
+                shadeTable[i] = (short)table[i];
             }
         }
+
+        // the mip-maps share the shade table
+        for (int i=1; mipMaps != null && i<mipMaps.length; i++) {
+            mipMaps[i].shadeTable = shadeTable;
+            mipMaps[i].intShadeTable = intShadeTable;
+        }
     }
 
     private int calcColor(int palColor, int target, int level) {
@@ -110,6 +296,9 @@ public final class ShadedTexture extends Texture {
     */
     public void setDefaultShadeLevel(int level) {
         defaultShadeLevel = level;
+        for (int i=1; i<mipMaps.length; i++) {
+            mipMaps[i].defaultShadeLevel = level;
+        }
     }
 
 
@@ -131,6 +320,32 @@ public final class ShadedTexture extends Texture {
     }
 
 
+    /**
+        Gets the color of this Texture at the specified (x,y)
+        location, in this Texture's pixel format, using the
+        default shade level.
+    */
+    public int getIntColor(int x, int y) {
+        if (intShadeTable != null) {
+            return getIntColor(x, y, defaultShadeLevel);
+        }
+        return getColor(x, y, defaultShadeLevel) & 0xffff;
+    }
+
+
+    /**
+        Gets the 32-bit color of this Texture at the specified
+        (x,y) location, using the specified shade level. Only
+        valid for 32-bit textures.
+    */
+    public int getIntColor(int x, int y, int shadeLevel) {
+        return intShadeTable[(shadeLevel << PALETTE_SIZE_BITS) |
+            (0xff & buffer[
+            (x & widthMask) |
+            ((y & heightMask) << widthBits)])];
+    }
+
+
     /**
         Gets the 16-bit color of this Texture at the specified
         (x,y) location, using the specified shade level.
@@ -143,6 +358,80 @@ public final class ShadedTexture extends Texture {
     }
 
 
+    /**
+        Copies the 16-bit colors of a list of spans, using the
+        default shade level, into dest, one span after another,
+        starting at offset. Span locations are shifted left by
+        the specified amount. Same as calling getColor() for each
+        pixel.
+    */
+    public void getColors(SpanList spans, int shift, short[] dest,
+        int offset)
+    {
+        byte[] buffer = this.buffer;
+        short[] shadeTable = this.shadeTable;
+        int shadeOffset = defaultShadeLevel << PALETTE_SIZE_BITS;
+        int widthMask = this.widthMask;
+        int heightMask = this.heightMask;
+        int widthBits = this.widthBits;
+        for (int i=0; i<spans.numSpans; i++) {
+            int tx = spans.x[i];
+            int ty = spans.y[i];
+            int dtx = spans.dx[i];
+            int dty = spans.dy[i];
+            int endOffset = offset + spans.length[i];
+            while (offset < endOffset) {
+                dest[offset++] = shadeTable[shadeOffset |
+                    (0xff & buffer[((tx >> shift) & widthMask) |
+                    (((ty >> shift) & heightMask) << widthBits)])];
+                tx+=dtx;
+                ty+=dty;
+            }
+        }
+    }
+
+
+    /**
+        Same as getColors(), but copies colors in this texture's
+        pixel format (see getIntColor()) into an int array.
+    */
+    public void getIntColors(SpanList spans, int shift,
+        int[] dest, int offset)
+    {
+        if (intShadeTable == null) {
+            getIntColorsByPixel(spans, shift, dest, offset);
+            return;
+        }
+        int shadeOffset = defaultShadeLevel << PALETTE_SIZE_BITS;
+        SpanCopier copier = getVectorSpanCopier();
+        if (copier != null) {
+            copier.copy(buffer, intShadeTable, shadeOffset,
+                widthMask, heightMask, 1 << widthBits, spans, shift,
+                dest, offset);
+            return;
+        }
+        byte[] buffer = this.buffer;
+        int[] intShadeTable = this.intShadeTable;
+        int widthMask = this.widthMask;
+        int heightMask = this.heightMask;
+        int widthBits = this.widthBits;
+        for (int i=0; i<spans.numSpans; i++) {
+            int tx = spans.x[i];
+            int ty = spans.y[i];
+            int dtx = spans.dx[i];
+            int dty = spans.dy[i];
+            int endOffset = offset + spans.length[i];
+            while (offset < endOffset) {
+                dest[offset++] = intShadeTable[shadeOffset |
+                    (0xff & buffer[((tx >> shift) & widthMask) |
+                    (((ty >> shift) & heightMask) << widthBits)])];
+                tx+=dtx;
+                ty+=dty;
+            }
+        }
+    }
+
+
     /**
         Sets the current row for getColorCurrRow(). Pre-calculates
         the offset for this row.
@@ -162,4 +451,15 @@ public final class ShadedTexture extends Texture {
             (0xff & buffer[(x & widthMask) | currRow])];
     }
 
+
+    /**
+        Gets the 32-bit color at the specified x location at the
+        specified shade level, using the current row defined in
+        setCurrRow. Only valid for 32-bit textures.
+    */
+    public int getIntColorCurrRow(int x, int shadeLevel) {
+        return intShadeTable[(shadeLevel << PALETTE_SIZE_BITS) |
+            (0xff & buffer[(x & widthMask) | currRow])];
+    }
+
 }
@@ -0,0 +1,35 @@
+package deet.graphics3D.texture;
+
+/**
+    A SpanCopier copies the 32-bit colors of a list of spans
+    from a texture buffer into a destination array, one span
+    after another, starting at offset. The texel of location (x,y),
+    after the span location is shifted right by 'shift', is at
+
+    <pre>
+    ((x &amp; xMask) + (y &amp; yMask) * rowSize)
+    </pre>
+
+    in the buffer. Textures use their own scalar loops for this
+    unless a SpanCopier built on the Vector API is available (see
+    Texture.setVectorSpans()). There are no 16-bit methods: the
+    Vector API gathers 16-bit and 8-bit values no faster than the
+    scalar loops, so 16-bit textures always use their loops.
+*/
+interface SpanCopier {
+
+    /**
+        Copies 32-bit texels (see Texture.getIntColor()).
+    */
+    public void copy(int[] buffer, int xMask, int yMask,
+        int rowSize, SpanList spans, int shift, int[] dest,
+        int offset);
+
+    /**
+        Copies 8-bit palette indices, looked up in a 32-bit shade
+        table after adding the table offset.
+    */
+    public void copy(byte[] buffer, int[] table, int tableOffset,
+        int xMask, int yMask, int rowSize, SpanList spans,
+        int shift, int[] dest, int offset);
+}
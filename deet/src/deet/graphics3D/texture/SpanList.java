@@ -0,0 +1,73 @@
+package deet.graphics3D.texture;
+
+/**
+    A SpanList is a list of runs of pixels (spans) to copy from a
+    texture, drawn one after another across a scan. Each span
+    starts at texture location (x,y) and steps by (dx,dy) for each
+    of its pixels. The values are kept in one array per field, so
+    textures can copy a whole list in one call (see
+    PowerOf2Texture.getColors()).
+*/
+public class SpanList {
+
+    public int[] x;
+    public int[] y;
+    public int[] dx;
+    public int[] dy;
+    public int[] length;
+    public int numSpans;
+    // scratch space for a SpanCopier
+    int[] indexMap;
+
+    /**
+        Creates a new SpanList that holds up to the specified
+        number of spans before it grows.
+    */
+    public SpanList(int capacity) {
+        x = new int[capacity];
+        y = new int[capacity];
+        dx = new int[capacity];
+        dy = new int[capacity];
+        length = new int[capacity];
+    }
+
+
+    /**
+        Removes every span.
+    */
+    public void clear() {
+        numSpans = 0;
+    }
+
+
+    /**
+        Adds a span to the end of this list.
+    */
+    public void add(int x, int y, int dx, int dy, int length) {
+        if (numSpans == this.x.length) {
+            grow();
+        }
+        this.x[numSpans] = x;
+        this.y[numSpans] = y;
+        this.dx[numSpans] = dx;
+        this.dy[numSpans] = dy;
+        this.length[numSpans] = length;
+        numSpans++;
+    }
+
+
+    private void grow() {
+        x = grow(x);
+        y = grow(y);
+        dx = grow(dx);
+        dy = grow(dy);
+        length = grow(length);
+    }
+
+
+    private static int[] grow(int[] array) {
+        int[] newArray = new int[array.length * 2 + 1];
+        System.arraycopy(array, 0, newArray, 0, array.length);
+        return newArray;
+    }
+}
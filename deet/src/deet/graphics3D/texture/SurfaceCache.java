@@ -0,0 +1,488 @@
+package deet.graphics3D.texture;
+
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+
+import deet.util.ThreadPool;
+
+/**
+    The SurfaceCache keeps the buffers of built ShadedSurfaces in
+    memory up to a fixed number of bytes. When the budget is
+    exceeded, the least recently used surfaces are cleared.
+    Surfaces used in the current frame are never cleared, so the
+    budget can be exceeded for a frame if more surfaces than fit
+    are visible at once.
+    <p>If build threads are used (see setNumBuildThreads()),
+    surfaces are built in the background. A surface needed
+    before its background build is done is drawn with a quick
+    low-res version until the full surface is ready, at the end
+    of a later frame. Surfaces can also be prefetched before
+    they are visible.
+*/
+public class SurfaceCache {
+
+    /**
+        The default budget, in bytes.
+    */
+    public static final long DEFAULT_MAX_BYTES = 16 * 1024 * 1024;
+
+    /**
+        Low-res surfaces calculate one texel in every 4x4 block.
+    */
+    public static final int LOW_RES_BITS = 2;
+
+    /**
+        A built surface in the cache.
+    */
+    private static class Entry {
+        ShadedSurface surface;
+        int bytes;
+        int frame;
+    }
+
+
+    /**
+        Builds a full surface buffer on a build thread.
+    */
+    private class BuildTask implements Runnable {
+        ShadedSurface surface;
+        boolean prefetch;
+        Object buffer;
+        int shadeMapVersion;
+
+        public void run() {
+            buffer = surface.buildBuffer(0);
+            synchronized (finishedTasks) {
+                finishedTasks.add(this);
+            }
+        }
+    }
+
+    // entries in least-recently-used order
+    private LinkedHashMap entries;
+    private long maxBytes;
+    private long usedBytes;
+    private int frame;
+
+    // for building surfaces in the background
+    private ThreadPool buildThreadPool;
+    private int numBuildThreads;
+    private HashSet pendingSurfaces;
+    private LinkedList finishedTasks;
+
+    // stats
+    private int hits;
+    private int misses;
+    private int builds;
+    private int evictions;
+    private long evictedBytes;
+    private int lowResBuilds;
+    private int prefetches;
+    private long frameBuildTime;
+    private long lastFrameBuildTime;
+    private long maxFrameBuildTime;
+
+    /**
+        Creates a new SurfaceCache with the default budget.
+    */
+    public SurfaceCache() {
+        this(DEFAULT_MAX_BYTES);
+    }
+
+
+    /**
+        Creates a new SurfaceCache with the specified budget, in
+        bytes.
+    */
+    public SurfaceCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+        entries = new LinkedHashMap(16, .75f, true);
+        pendingSurfaces = new HashSet();
+        finishedTasks = new LinkedList();
+    }
+
+
+    /**
+        Sets the number of threads used to build surfaces in the
+        background. If zero (the default), surfaces are built
+        when they are needed, on the calling thread.
+    */
+    public void setNumBuildThreads(int numThreads) {
+        if (numThreads == numBuildThreads) {
+            return;
+        }
+        if (buildThreadPool != null) {
+            // queued builds are dropped, so clear their surfaces
+            // (they're rebuilt the next time they're needed)
+            buildThreadPool.close();
+            buildThreadPool = null;
+            Iterator i = pendingSurfaces.iterator();
+            while (i.hasNext()) {
+                removeSurface((ShadedSurface)i.next());
+            }
+            pendingSurfaces.clear();
+        }
+        numBuildThreads = numThreads;
+        if (numThreads > 0) {
+            buildThreadPool = new ThreadPool(numThreads) {
+                protected void threadStarted() {
+                    // don't compete with the rendering thread
+                    Thread.currentThread().setPriority(
+                        Thread.MIN_PRIORITY);
+                }
+            };
+        }
+    }
+
+
+    /**
+        Gets the number of threads used to build surfaces in the
+        background.
+    */
+    public int getNumBuildThreads() {
+        return numBuildThreads;
+    }
+
+
+    /**
+        Sets the budget of this cache, in bytes. If the cache
+        uses more than the new budget, surfaces not used in the
+        current frame are cleared.
+    */
+    public void setMaxBytes(long maxBytes) {
+        this.maxBytes = maxBytes;
+        evict();
+    }
+
+
+    /**
+        Gets the budget of this cache, in bytes.
+    */
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+
+    /**
+        Gets the number of bytes used by the surfaces in this
+        cache.
+    */
+    public long getUsedBytes() {
+        return usedBytes;
+    }
+
+
+    /**
+        Gets the number of surfaces in this cache.
+    */
+    public int getNumSurfaces() {
+        return entries.size();
+    }
+
+
+    /**
+        Makes sure the specified surface is built, and marks it
+        as used in the current frame. If the surface isn't in
+        the cache, it's built (if needed) and added, and least
+        recently used surfaces are cleared to stay within the
+        budget. With build threads, a low-res version is built
+        instead and the full surface is built in the background.
+    */
+    public void buildSurface(ShadedSurface surface) {
+        Entry entry = (Entry)entries.get(surface);
+        if (entry != null && !surface.isCleared()) {
+            hits++;
+            entry.frame = frame;
+            if (surface.isDirty()) {
+                // the shade map changed (see DynamicLightManager)
+                long startTime = System.nanoTime();
+                surface.rebuildDirtyRows();
+                frameBuildTime+=System.nanoTime() - startTime;
+            }
+            return;
+        }
+        misses++;
+        if (surface.isCleared()) {
+            long startTime = System.nanoTime();
+            if (buildThreadPool == null) {
+                surface.buildSurface();
+                builds++;
+            }
+            else {
+                surface.setBuffer(surface.buildBuffer(LOW_RES_BITS));
+                lowResBuilds++;
+                startBuild(surface, false);
+            }
+            frameBuildTime+=System.nanoTime() - startTime;
+        }
+        if (entry == null) {
+            entry = new Entry();
+            entry.surface = surface;
+            entry.bytes = getSize(surface);
+            entries.put(surface, entry);
+            usedBytes+=entry.bytes;
+        }
+        entry.frame = frame;
+        evict();
+    }
+
+
+    /**
+        Starts building the specified surface in the background,
+        if it isn't already built. Does nothing if there are no
+        build threads. The surface is added to the cache at the
+        end of the frame its build is done.
+    */
+    public void prefetchSurface(ShadedSurface surface) {
+        if (buildThreadPool != null && surface.isCleared()) {
+            if (startBuild(surface, true)) {
+                prefetches++;
+            }
+        }
+    }
+
+
+    /**
+        Queues a background build of the specified surface,
+        unless one is already queued. Returns true if queued.
+    */
+    private boolean startBuild(ShadedSurface surface,
+        boolean prefetch)
+    {
+        if (!pendingSurfaces.add(surface)) {
+            return false;
+        }
+        BuildTask task = new BuildTask();
+        task.surface = surface;
+        task.prefetch = prefetch;
+        task.shadeMapVersion = surface.getShadeMapVersion();
+        buildThreadPool.runTask(task);
+        return true;
+    }
+
+
+    /**
+        Gives the surfaces built in the background since the
+        last call their full buffers. Surfaces removed from the
+        cache since their build started are left cleared, unless
+        they were prefetched.
+    */
+    private void installBuiltSurfaces() {
+        while (true) {
+            BuildTask task;
+            synchronized (finishedTasks) {
+                if (finishedTasks.isEmpty()) {
+                    return;
+                }
+                task = (BuildTask)finishedTasks.removeFirst();
+            }
+            ShadedSurface surface = task.surface;
+            pendingSurfaces.remove(surface);
+            if (task.shadeMapVersion !=
+                surface.getShadeMapVersion())
+            {
+                // the shade map changed during the build
+                startBuild(surface, task.prefetch);
+                continue;
+            }
+            Entry entry = (Entry)entries.get(surface);
+            if (entry == null && task.prefetch &&
+                surface.isCleared())
+            {
+                entry = new Entry();
+                entry.surface = surface;
+                entry.bytes = getSize(surface);
+                // not used yet, so it can be evicted right away
+                entry.frame = frame - 1;
+                entries.put(surface, entry);
+                usedBytes+=entry.bytes;
+            }
+            if (entry != null) {
+                surface.setBuffer(task.buffer);
+                surface.setDirty(false);
+                builds++;
+            }
+        }
+    }
+
+
+    /**
+        Gets the number of background builds that aren't
+        installed yet.
+    */
+    public int getNumPendingBuilds() {
+        return pendingSurfaces.size();
+    }
+
+
+    /**
+        Removes the specified surface from this cache and clears
+        it.
+    */
+    public void removeSurface(ShadedSurface surface) {
+        Entry entry = (Entry)entries.remove(surface);
+        if (entry != null) {
+            usedBytes-=entry.bytes;
+        }
+        surface.clearSurface();
+    }
+
+
+    /**
+        Clears every surface in this cache.
+    */
+    public void clear() {
+        Iterator i = entries.values().iterator();
+        while (i.hasNext()) {
+            ((Entry)i.next()).surface.clearSurface();
+        }
+        entries.clear();
+        usedBytes = 0;
+    }
+
+
+    /**
+        Ends the current frame. Surfaces used in this frame can
+        be cleared after this call.
+    */
+    public void endFrame() {
+        installBuiltSurfaces();
+        frame++;
+        evict();
+        lastFrameBuildTime = frameBuildTime;
+        maxFrameBuildTime = Math.max(maxFrameBuildTime,
+            frameBuildTime);
+        frameBuildTime = 0;
+    }
+
+
+    /**
+        Clears least recently used surfaces, not used in the
+        current frame, until this cache is within its budget.
+    */
+    private void evict() {
+        Iterator i = entries.values().iterator();
+        while (usedBytes > maxBytes && i.hasNext()) {
+            Entry entry = (Entry)i.next();
+            if (entry.frame == frame) {
+                // every surface after this one was used this
+                // frame, too
+                break;
+            }
+            i.remove();
+            entry.surface.clearSurface();
+            usedBytes-=entry.bytes;
+            evictions++;
+            evictedBytes+=entry.bytes;
+        }
+    }
+
+
+    /**
+        Gets the size of the buffer of the specified surface, in
+        bytes.
+    */
+    private static int getSize(ShadedSurface surface) {
+        return surface.getWidth() * surface.getHeight() *
+            surface.getPixelFormat().getBytesPerPixel();
+    }
+
+
+    /**
+        Gets the number of times a surface was already built
+        when it was needed.
+    */
+    public int getNumHits() {
+        return hits;
+    }
+
+
+    /**
+        Gets the number of times a surface wasn't in the cache
+        when it was needed.
+    */
+    public int getNumMisses() {
+        return misses;
+    }
+
+
+    /**
+        Gets the number of surfaces built by this cache.
+    */
+    public int getNumBuilds() {
+        return builds;
+    }
+
+
+    /**
+        Gets the number of surfaces cleared to stay within the
+        budget.
+    */
+    public int getNumEvictions() {
+        return evictions;
+    }
+
+
+    /**
+        Gets the total number of bytes of the surfaces cleared
+        to stay within the budget.
+    */
+    public long getEvictedBytes() {
+        return evictedBytes;
+    }
+
+
+    /**
+        Gets the number of low-res surfaces built while waiting
+        for a background build.
+    */
+    public int getNumLowResBuilds() {
+        return lowResBuilds;
+    }
+
+
+    /**
+        Gets the number of surfaces queued by prefetchSurface().
+    */
+    public int getNumPrefetches() {
+        return prefetches;
+    }
+
+
+    /**
+        Gets the time spent building surfaces on the rendering
+        thread in the last frame, in nanoseconds. This is the
+        hitch building surfaces added to the frame.
+    */
+    public long getLastFrameBuildTime() {
+        return lastFrameBuildTime;
+    }
+
+
+    /**
+        Gets the longest time spent building surfaces on the
+        rendering thread in one frame since the stats were
+        reset, in nanoseconds.
+    */
+    public long getMaxFrameBuildTime() {
+        return maxFrameBuildTime;
+    }
+
+
+    /**
+        Resets the hit, miss, build and eviction counts, and the
+        build times.
+    */
+    public void resetStats() {
+        hits = 0;
+        misses = 0;
+        builds = 0;
+        evictions = 0;
+        evictedBytes = 0;
+        lowResBuilds = 0;
+        prefetches = 0;
+        maxFrameBuildTime = 0;
+    }
+}
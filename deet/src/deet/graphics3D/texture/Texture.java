@@ -8,19 +8,106 @@ import javax.imageio.ImageIO;
 
 /**
    The Texture class is an sabstract class that represents a
-   16-bit color texture.
+   16-bit or 32-bit color texture (see PixelFormat).
 */
 public abstract class Texture {
 
+    // copies span lists with the Vector API, if it's available
+    private static final SpanCopier vectorSpanCopier =
+        createVectorSpanCopier();
+    private static boolean vectorSpans = (vectorSpanCopier != null);
+
     protected int width;
     protected int height;
+    protected PixelFormat pixelFormat;
+
+    /**
+        Creates the VectorSpanCopier if the jdk.incubator.vector
+        module is present (the program was run with --add-modules
+        jdk.incubator.vector) and the class was compiled from the
+        separate src-vector source root. Otherwise, returns null.
+        It's loaded by name so this package builds without the
+        module.
+    */
+    private static SpanCopier createVectorSpanCopier() {
+        if (!ModuleLayer.boot().findModule(
+            "jdk.incubator.vector").isPresent())
+        {
+            return null;
+        }
+        try {
+            return (SpanCopier)Class.forName(
+                "deet.graphics3D.texture.VectorSpanCopier").
+                getDeclaredConstructor().newInstance();
+        }
+        catch (Exception ex) {
+            return null;
+        }
+        catch (LinkageError ex) {
+            return null;
+        }
+    }
+
+
+    /**
+        Checks if span lists can be copied with the Vector API
+        (see setVectorSpans()).
+    */
+    public static boolean isVectorSpansAvailable() {
+        return (vectorSpanCopier != null);
+    }
+
 
     /**
-        Creates a new Texture with the specified width and height.
+        Sets whether 32-bit span lists (see getIntColors() in
+        PowerOf2Texture, ShadedTexture and ShadedSurface) are
+        copied with the Vector API, which computes the texture
+        locations of many pixels at once in vector lanes and
+        gathers their texels. Only possible if the
+        jdk.incubator.vector module is present; otherwise, the
+        scalar loops are always used. The default is true if the
+        module is present. 16-bit span lists always use the
+        scalar loops.
+    */
+    public static void setVectorSpans(boolean enable) {
+        vectorSpans = enable && isVectorSpansAvailable();
+    }
+
+
+    /**
+        Checks if span lists are copied with the Vector API.
+    */
+    public static boolean isVectorSpans() {
+        return vectorSpans;
+    }
+
+
+    /**
+        Gets the SpanCopier to use instead of the scalar span
+        loops, or null to use the scalar loops.
+    */
+    static SpanCopier getVectorSpanCopier() {
+        return vectorSpans?vectorSpanCopier:null;
+    }
+
+
+    /**
+        Creates a new 16-bit Texture with the specified width and
+        height.
     */
     public Texture(int width, int height) {
+        this(width, height, PixelFormat.RGB_565);
+    }
+
+
+    /**
+        Creates a new Texture with the specified width, height
+        and pixel format.
+    */
+    public Texture(int width, int height, PixelFormat pixelFormat) {
         this.width = width;
         this.height = height;
+        this.pixelFormat = pixelFormat;
     }
 
 
@@ -40,13 +127,52 @@ public abstract class Texture {
     }
 
 
+    /**
+        Gets the pixel format of this Texture.
+    */
+    public PixelFormat getPixelFormat() {
+        return pixelFormat;
+    }
+
+
     /**
         Gets the 16-bit color of this Texture at the specified
-        (x,y) location.
+        (x,y) location. Only valid for 16-bit textures.
     */
     public abstract short getColor(int x, int y);
 
 
+    /**
+        Gets the color of this Texture at the specified (x,y)
+        location, in this Texture's pixel format.
+    */
+    public abstract int getIntColor(int x, int y);
+
+
+    /**
+        Copies the colors of a list of spans into dest, one span
+        after another, starting at offset, by calling
+        getIntColor() for each pixel. Span locations are shifted
+        left by the specified amount. Used by textures whose
+        faster span loops don't handle their pixel format.
+    */
+    protected void getIntColorsByPixel(SpanList spans, int shift,
+        int[] dest, int offset)
+    {
+        for (int i=0; i<spans.numSpans; i++) {
+            int tx = spans.x[i];
+            int ty = spans.y[i];
+            int endOffset = offset + spans.length[i];
+            while (offset < endOffset) {
+                dest[offset++] = getIntColor(tx >> shift,
+                    ty >> shift);
+                tx+=spans.dx[i];
+                ty+=spans.dy[i];
+            }
+        }
+    }
+
+
     /**
         Creates an unshaded Texture from the specified image file.
     */
@@ -61,10 +187,22 @@ public abstract class Texture {
     */
     public static Texture createTexture(String filename,
         boolean shaded)
+    {
+        return createTexture(filename, shaded, PixelFormat.RGB_565);
+    }
+
+
+    /**
+        Creates an Texture with the specified pixel format from
+        the specified image file. If shaded is true, then a
+        ShadedTexture is returned.
+    */
+    public static Texture createTexture(String filename,
+        boolean shaded, PixelFormat pixelFormat)
     {
         try {
             return createTexture(ImageIO.read(new File(filename)),
-                shaded);
+                shaded, pixelFormat);
         }
         catch (IOException ex) {
             ex.printStackTrace();
@@ -85,10 +223,24 @@ public abstract class Texture {
 
     /**
         Creates an Texture from the specified image. If
-        shaded is true, then a ShadedTexture is returned.
+        shaded is true, then a ShadedTexture is returned. The
+        texture's mip-maps are created.
     */
     public static Texture createTexture(
         BufferedImage image, boolean shaded)
+    {
+        return createTexture(image, shaded, PixelFormat.RGB_565);
+    }
+
+
+    /**
+        Creates an Texture with the specified pixel format from
+        the specified image. If shaded is true, then a
+        ShadedTexture is returned. The texture's mip-maps are
+        created.
+    */
+    public static Texture createTexture(
+        BufferedImage image, boolean shaded, PixelFormat pixelFormat)
     {
         int type = image.getType();
         int width = image.getWidth();
@@ -114,17 +266,19 @@ public abstract class Texture {
                 image = newImage;
             }
             DataBuffer dest = image.getRaster().getDataBuffer();
-            return new ShadedTexture(
+            ShadedTexture texture = new ShadedTexture(
                 ((DataBufferByte)dest).getData(),
                 countbits(width-1), countbits(height-1),
-                (IndexColorModel)image.getColorModel());
+                (IndexColorModel)image.getColorModel(),
+                pixelFormat);
+            texture.createMipMaps();
+            return texture;
         }
         else {
-            // convert image to an 16-bit image
-            if (type != BufferedImage.TYPE_USHORT_565_RGB) {
-                BufferedImage newImage = new BufferedImage(
-                    image.getWidth(), image.getHeight(),
-                    BufferedImage.TYPE_USHORT_565_RGB);
+            // convert image to the pixel format
+            if (type != pixelFormat.getImageType()) {
+                BufferedImage newImage = pixelFormat.createImage(
+                    image.getWidth(), image.getHeight());
                 Graphics2D g = newImage.createGraphics();
                 g.drawImage(image, 0, 0, null);
                 g.dispose();
@@ -132,9 +286,19 @@ public abstract class Texture {
             }
 
             DataBuffer dest = image.getRaster().getDataBuffer();
-            return new PowerOf2Texture(
-                ((DataBufferUShort)dest).getData(),
-                countbits(width-1), countbits(height-1));
+            PowerOf2Texture texture;
+            if (pixelFormat.isIntPixels()) {
+                texture = new PowerOf2Texture(
+                    ((DataBufferInt)dest).getData(),
+                    countbits(width-1), countbits(height-1));
+            }
+            else {
+                texture = new PowerOf2Texture(
+                    ((DataBufferUShort)dest).getData(),
+                    countbits(width-1), countbits(height-1));
+            }
+            texture.createMipMaps();
+            return texture;
         }
     }
 
@@ -0,0 +1,289 @@
+package deet.graphics3D.texture;
+
+import java.awt.Color;
+import java.io.File;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+
+/**
+    The TextureCache shares ShadedTextures between loaders, so a
+    texture used by several materials, objects or maps is decoded
+    and shaded only once. Textures are keyed by image file, shade
+    color and pixel format.
+    <p>A loader acquires a SharedTexture for each texture it
+    might use, and the image isn't decoded until getTexture() is
+    first called, so textures that are defined but never used
+    cost nothing. SharedTextures are reference counted: once
+    every loader that acquired a texture has released it, the
+    cache forgets it (it's freed when nothing draws it anymore).
+    All methods are thread-safe.
+*/
+public class TextureCache {
+
+    /**
+        A texture in the cache, decoded when it's first needed.
+    */
+    public static class SharedTexture {
+        private TextureCache cache;
+        private Object key;
+        private File file;
+        private Color shade;
+        private PixelFormat pixelFormat;
+        private volatile ShadedTexture texture;
+        private volatile int numBytes;
+        private boolean failed;
+        // guarded by the cache
+        private int refCount;
+        private boolean counted;
+
+        SharedTexture(TextureCache cache, Object key, File file,
+            Color shade, PixelFormat pixelFormat)
+        {
+            this.cache = cache;
+            this.key = key;
+            this.file = file;
+            this.shade = shade;
+            this.pixelFormat = pixelFormat;
+        }
+
+        /**
+            Gets the texture, decoding it first if this is the
+            first call. Returns null if the image couldn't be
+            loaded.
+        */
+        public synchronized ShadedTexture getTexture() {
+            if (texture == null && !failed) {
+                texture = (ShadedTexture)Texture.createTexture(
+                    file.getPath(), true, pixelFormat);
+                if (texture == null) {
+                    failed = true;
+                }
+                else {
+                    if (!shade.equals(Color.BLACK)) {
+                        texture.makeShadeTable(shade);
+                    }
+                    numBytes = texture.getNumBytes();
+                    cache.textureLoaded(this);
+                }
+            }
+            return texture;
+        }
+
+        /**
+            Checks if the texture has been decoded.
+        */
+        public boolean isLoaded() {
+            return (texture != null);
+        }
+
+        /**
+            Gets the number of bytes used by the decoded
+            texture, or 0 if it hasn't been decoded.
+        */
+        public int getNumBytes() {
+            return numBytes;
+        }
+
+        /**
+            Gets the image file of this texture.
+        */
+        public File getFile() {
+            return file;
+        }
+
+        /**
+            Gets the color this texture is shaded to.
+        */
+        public Color getShade() {
+            return shade;
+        }
+
+        /**
+            Gets the pixel format of this texture.
+        */
+        public PixelFormat getPixelFormat() {
+            return pixelFormat;
+        }
+    }
+
+    private static TextureCache instance;
+
+    private HashMap textures;
+    private long usedBytes;
+    private int numLoaded;
+    private int numRequests;
+
+    /**
+        Gets the TextureCache shared by every loader.
+    */
+    public static synchronized TextureCache getInstance() {
+        if (instance == null) {
+            instance = new TextureCache();
+        }
+        return instance;
+    }
+
+
+    /**
+        Creates a new, empty TextureCache. Usually the shared
+        cache from getInstance() is used instead.
+    */
+    public TextureCache() {
+        textures = new HashMap();
+    }
+
+
+    /**
+        Acquires the texture from an image file, shaded to the
+        specified color, with the specified pixel format. The
+        image isn't decoded until the SharedTexture's
+        getTexture() method is called. Call release() when the
+        texture isn't needed anymore.
+    */
+    public synchronized SharedTexture acquire(File file,
+        Color shade, PixelFormat pixelFormat)
+    {
+        numRequests++;
+        Object key = getKey(file, shade, pixelFormat);
+        SharedTexture texture = (SharedTexture)textures.get(key);
+        if (texture == null) {
+            texture = new SharedTexture(this, key, file, shade,
+                pixelFormat);
+            textures.put(key, texture);
+        }
+        texture.refCount++;
+        return texture;
+    }
+
+
+    /**
+        Releases a texture acquired with acquire(). When every
+        acquire() of a texture has been released, the cache
+        forgets it.
+    */
+    public synchronized void release(SharedTexture texture) {
+        texture.refCount--;
+        if (texture.refCount <= 0 &&
+            textures.get(texture.key) == texture)
+        {
+            textures.remove(texture.key);
+            if (texture.counted) {
+                usedBytes-=texture.numBytes;
+                texture.counted = false;
+            }
+        }
+    }
+
+
+    /**
+        Gets the key of a texture: the canonical path of its
+        image file, its shade color and its pixel format.
+    */
+    private static Object getKey(File file, Color shade,
+        PixelFormat pixelFormat)
+    {
+        String path;
+        try {
+            path = file.getCanonicalPath();
+        }
+        catch (IOException ex) {
+            path = file.getAbsolutePath();
+        }
+        return path + "|" + Integer.toHexString(shade.getRGB()) +
+            "|" + pixelFormat;
+    }
+
+
+    /**
+        Adds a decoded texture to the memory used, if it's still
+        in the cache.
+    */
+    private synchronized void textureLoaded(SharedTexture texture) {
+        numLoaded++;
+        if (textures.get(texture.key) == texture) {
+            usedBytes+=texture.numBytes;
+            texture.counted = true;
+        }
+    }
+
+
+    /**
+        Gets the number of textures in this cache, decoded or
+        not.
+    */
+    public synchronized int getNumTextures() {
+        return textures.size();
+    }
+
+
+    /**
+        Gets the number of bytes used by the decoded textures in
+        this cache.
+    */
+    public synchronized long getUsedBytes() {
+        return usedBytes;
+    }
+
+
+    /**
+        Gets the number of textures decoded since this cache was
+        created.
+    */
+    public synchronized int getNumLoaded() {
+        return numLoaded;
+    }
+
+
+    /**
+        Gets the number of acquire() calls since this cache was
+        created.
+    */
+    public synchronized int getNumRequests() {
+        return numRequests;
+    }
+
+
+    /**
+        Describes the memory used by a collection of
+        SharedTextures, for example those acquired for one level:
+        how many are decoded and their size. Textures in the
+        collection more than once are counted once.
+    */
+    public static String getReport(Collection sharedTextures) {
+        HashSet distinct = new HashSet(sharedTextures);
+        int numLoaded = 0;
+        long bytes = 0;
+        Iterator i = distinct.iterator();
+        while (i.hasNext()) {
+            SharedTexture texture = (SharedTexture)i.next();
+            if (texture.isLoaded()) {
+                numLoaded++;
+                bytes+=texture.getNumBytes();
+            }
+        }
+        return numLoaded + " of " + distinct.size() +
+            " textures decoded, " + bytes / 1024 + "KB";
+    }
+
+
+    /**
+        Describes the textures in this cache and the memory they
+        use.
+    */
+    public synchronized String toString() {
+        int numDecoded = 0;
+        Iterator i = textures.values().iterator();
+        while (i.hasNext()) {
+            if (((SharedTexture)i.next()).isLoaded()) {
+                numDecoded++;
+            }
+        }
+        return numDecoded + " of " + textures.size() +
+            " textures decoded, " + usedBytes / 1024 + "KB (" +
+            numLoaded + " decoded, " + numRequests +
+            " requests in all)";
+    }
+}
@@ -0,0 +1,75 @@
+package deet.math3D;
+
+/**
+    A LevelOfDetail is a simplified version of the polygons
+    directly in a PolygonGroup (see MeshSimplifier), drawn instead
+    of them when the group is far enough away. The error is the
+    largest distance, in the group's local space, the simplified
+    surface is expected to be from the original surface.
+    <p>Polygons the simplification didn't change are shared with
+    the group.
+*/
+public class LevelOfDetail {
+
+    private Polygon3D[] polygons;
+    private float error;
+    private TransformedVertices transformedVertices;
+
+    /**
+        Creates a new LevelOfDetail with the specified polygons
+        and error.
+    */
+    public LevelOfDetail(Polygon3D[] polygons, float error) {
+        this.polygons = polygons;
+        this.error = error;
+        transformedVertices = new TransformedVertices(polygons);
+    }
+
+
+    /**
+        Creates a new LevelOfDetail with the same polygons as the
+        specified LevelOfDetail (used for cloned groups). The
+        polygons and vertex lists are shared, but each object has
+        its own transformed vertices.
+    */
+    public LevelOfDetail(LevelOfDetail lod) {
+        polygons = lod.polygons;
+        error = lod.error;
+        transformedVertices =
+            new TransformedVertices(lod.transformedVertices);
+    }
+
+
+    /**
+        Gets the number of polygons in this level of detail.
+    */
+    public int getNumPolygons() {
+        return polygons.length;
+    }
+
+
+    /**
+        Gets the polygon at the specified index.
+    */
+    public Polygon3D getPolygon(int index) {
+        return polygons[index];
+    }
+
+
+    /**
+        Gets the error of this level of detail, in the group's
+        local space.
+    */
+    public float getError() {
+        return error;
+    }
+
+
+    /**
+        Gets the TransformedVertices for the polygons of this
+        level of detail.
+    */
+    public TransformedVertices getTransformedVertices() {
+        return transformedVertices;
+    }
+}
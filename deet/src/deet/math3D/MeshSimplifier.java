@@ -0,0 +1,495 @@
+package deet.math3D;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+/**
+    The MeshSimplifier simplifies a list of polygons that share
+    vertices (like the polygons of a group loaded by the
+    ObjectLoader) with edge collapses. Each collapse moves one
+    vertex of an edge onto the other one, so no new vertices are
+    created. Faces that shrink to fewer than three vertices are
+    removed, and faces that are bent out of their plane are split
+    into triangles.
+    <p>Collapses are picked by the quadric error metric: each
+    vertex keeps the sum of the squared distances to the planes
+    of the faces around it (and to planes along open edges), and
+    the cheapest collapse is done first. A collapse is only done
+    if every face it changes (or the triangles it's split into)
+    stays convex and facing about the same way, so the faces can
+    still be drawn as polygons.
+    <p>After each call to simplify(), the current faces are
+    available as lists of vertices, with getFace(), along with
+    the index of the polygon each face came from.
+*/
+public class MeshSimplifier {
+
+    // how far a vertex can be from its face's plane, relative
+    // to the size of the face
+    private static final float PLANAR_TOLERANCE = .01f;
+    // the smallest cosine of the angle a face can turn
+    private static final float MIN_NORMAL_DOT = .5f;
+    private static final float EPSILON = .0001f;
+
+    private Vector3D[] vertices;
+    private double[][] quadrics;
+    private List faces;
+    private float error;
+
+    /**
+        A face: what's left of a source polygon, or of part of
+        it.
+    */
+    private static class Face {
+        int source;
+        int[] vertices;
+        Vector3D normal;
+        boolean changed;
+
+        Face(int source, int[] vertices, Vector3D normal,
+            boolean changed)
+        {
+            this.source = source;
+            this.vertices = vertices;
+            this.normal = normal;
+            this.changed = changed;
+        }
+    }
+
+    /**
+        A possible collapse of vertex 'from' onto vertex 'to'.
+    */
+    private static class Collapse implements Comparable {
+        int from;
+        int to;
+        double cost;
+
+        public int compareTo(Object obj) {
+            Collapse c = (Collapse)obj;
+            if (cost != c.cost) {
+                return (cost < c.cost)?-1:1;
+            }
+            // the same order every time
+            if (from != c.from) {
+                return from - c.from;
+            }
+            return to - c.to;
+        }
+    }
+
+    /**
+        Creates a new MeshSimplifier for the specified polygons.
+        Polygons that share a vertex must share the same
+        Vector3D object.
+    */
+    public MeshSimplifier(Polygon3D[] polygons) {
+        IdentityHashMap vertexIndices = new IdentityHashMap();
+        List vertexList = new ArrayList();
+        faces = new ArrayList();
+        for (int i=0; i<polygons.length; i++) {
+            Polygon3D poly = polygons[i];
+            int[] face = new int[poly.getNumVertices()];
+            for (int j=0; j<poly.getNumVertices(); j++) {
+                Vector3D v = poly.getVertex(j);
+                Integer index = (Integer)vertexIndices.get(v);
+                if (index == null) {
+                    index = Integer.valueOf(vertexList.size());
+                    vertexIndices.put(v, index);
+                    vertexList.add(v);
+                }
+                face[j] = index.intValue();
+            }
+            faces.add(new Face(i, face,
+                new Vector3D(poly.getNormal()), false));
+        }
+        vertices = new Vector3D[vertexList.size()];
+        vertexList.toArray(vertices);
+        createQuadrics();
+    }
+
+
+    private void createQuadrics() {
+        quadrics = new double[vertices.length][10];
+
+        // the plane of each face
+        HashMap edgeFaces = new HashMap();
+        for (int i=0; i<faces.size(); i++) {
+            int[] face = ((Face)faces.get(i)).vertices;
+            Vector3D n = ((Face)faces.get(i)).normal;
+            Vector3D v0 = vertices[face[0]];
+            double d = -(n.x*v0.x + n.y*v0.y + n.z*v0.z);
+            for (int j=0; j<face.length; j++) {
+                addPlane(quadrics[face[j]], n.x, n.y, n.z, d);
+
+                // count the faces of each edge
+                Long key = getEdgeKey(face[j],
+                    face[(j + 1) % face.length]);
+                edgeFaces.put(key, (edgeFaces.get(key) == null)?
+                    Boolean.FALSE : Boolean.TRUE);
+            }
+        }
+
+        // keep open edges in place with a plane along the edge,
+        // perpendicular to its face
+        for (int i=0; i<faces.size(); i++) {
+            int[] face = ((Face)faces.get(i)).vertices;
+            Vector3D n = ((Face)faces.get(i)).normal;
+            for (int j=0; j<face.length; j++) {
+                int a = face[j];
+                int b = face[(j + 1) % face.length];
+                if (edgeFaces.get(getEdgeKey(a, b)) ==
+                    Boolean.TRUE)
+                {
+                    continue;
+                }
+                Vector3D va = vertices[a];
+                Vector3D vb = vertices[b];
+                double ex = vb.x - va.x;
+                double ey = vb.y - va.y;
+                double ez = vb.z - va.z;
+                double px = ey*n.z - ez*n.y;
+                double py = ez*n.x - ex*n.z;
+                double pz = ex*n.y - ey*n.x;
+                double length = Math.sqrt(px*px + py*py + pz*pz);
+                if (length < EPSILON) {
+                    continue;
+                }
+                px/=length;
+                py/=length;
+                pz/=length;
+                double d = -(px*va.x + py*va.y + pz*va.z);
+                addPlane(quadrics[a], px, py, pz, d);
+                addPlane(quadrics[b], px, py, pz, d);
+            }
+        }
+    }
+
+
+    private static Long getEdgeKey(int a, int b) {
+        return Long.valueOf(((long)Math.min(a, b) << 32) |
+            Math.max(a, b));
+    }
+
+
+    private static void addPlane(double[] q, double a, double b,
+        double c, double d)
+    {
+        q[0]+=a*a; q[1]+=a*b; q[2]+=a*c; q[3]+=a*d;
+        q[4]+=b*b; q[5]+=b*c; q[6]+=b*d;
+        q[7]+=c*c; q[8]+=c*d;
+        q[9]+=d*d;
+    }
+
+
+    /**
+        Calculates the sum of squared distances from the point
+        (x,y,z) to the planes of two quadrics.
+    */
+    private static double calcError(double[] q, double[] r,
+        double x, double y, double z)
+    {
+        return
+            (q[0] + r[0])*x*x + 2*(q[1] + r[1])*x*y +
+            2*(q[2] + r[2])*x*z + 2*(q[3] + r[3])*x +
+            (q[4] + r[4])*y*y + 2*(q[5] + r[5])*y*z +
+            2*(q[6] + r[6])*y +
+            (q[7] + r[7])*z*z + 2*(q[8] + r[8])*z +
+            (q[9] + r[9]);
+    }
+
+
+    /**
+        Collapses edges, cheapest first, until there are no more
+        than the specified number of faces, or no edge can be
+        collapsed. Returns true if any edge was collapsed.
+    */
+    public boolean simplify(int targetFaces) {
+        boolean simplified = false;
+        while (faces.size() > targetFaces) {
+            Collapse[] collapses = getCollapses();
+            Arrays.sort(collapses);
+            List newFaces = null;
+            for (int i=0; i<collapses.length && newFaces == null;
+                i++)
+            {
+                newFaces = collapse(collapses[i]);
+                if (newFaces != null) {
+                    faces = newFaces;
+                    addQuadric(collapses[i]);
+                }
+            }
+            if (newFaces == null) {
+                break;
+            }
+            simplified = true;
+        }
+        return simplified;
+    }
+
+
+    /**
+        Gets every possible collapse (both ways along each edge)
+        with its cost.
+    */
+    private Collapse[] getCollapses() {
+        List list = new ArrayList();
+        HashSet edges = new HashSet();
+        for (int i=0; i<faces.size(); i++) {
+            int[] face = ((Face)faces.get(i)).vertices;
+            for (int j=0; j<face.length; j++) {
+                int a = face[j];
+                int b = face[(j + 1) % face.length];
+                if (edges.add(getEdgeKey(a, b))) {
+                    list.add(createCollapse(a, b));
+                    list.add(createCollapse(b, a));
+                }
+            }
+        }
+        Collapse[] collapses = new Collapse[list.size()];
+        list.toArray(collapses);
+        return collapses;
+    }
+
+
+    private Collapse createCollapse(int from, int to) {
+        Collapse c = new Collapse();
+        c.from = from;
+        c.to = to;
+        Vector3D v = vertices[to];
+        c.cost = calcError(quadrics[from], quadrics[to],
+            v.x, v.y, v.z);
+        return c;
+    }
+
+
+    /**
+        Gets the faces after collapsing an edge, or null if the
+        collapse would leave a face that can't be drawn, or no
+        faces at all.
+    */
+    private List collapse(Collapse c) {
+        List newFaces = new ArrayList();
+        for (int i=0; i<faces.size(); i++) {
+            Face face = (Face)faces.get(i);
+            if (!contains(face.vertices, c.from)) {
+                newFaces.add(face);
+                continue;
+            }
+            int[] v = collapseFace(face.vertices, c.from, c.to);
+            if (v == null) {
+                // removed
+                continue;
+            }
+            if (isValidFace(v, face.normal, true)) {
+                newFaces.add(new Face(face.source, v, face.normal,
+                    true));
+            }
+            else if (v.length == 3 || !split(face, v, newFaces)) {
+                return null;
+            }
+        }
+        return newFaces.isEmpty()?null:newFaces;
+    }
+
+
+    /**
+        Splits a face that's no longer flat (or convex) into a fan
+        of triangles, and adds them to the list. Each vertex is
+        tried as the center of the fan. Returns false if no fan
+        works.
+    */
+    private boolean split(Face face, int[] v, List newFaces) {
+        for (int i=0; i<v.length; i++) {
+            boolean valid = true;
+            for (int j=1; j<v.length-1 && valid; j++) {
+                valid = isValidFace(new int[] { v[i],
+                    v[(i + j) % v.length],
+                    v[(i + j + 1) % v.length] }, face.normal, false);
+            }
+            if (valid) {
+                for (int j=1; j<v.length-1; j++) {
+                    newFaces.add(new Face(face.source, new int[] {
+                        v[i], v[(i + j) % v.length],
+                        v[(i + j + 1) % v.length] }, face.normal,
+                        true));
+                }
+                return true;
+            }
+        }
+        return false;
+    }
+
+
+    private void addQuadric(Collapse c) {
+        double[] q = quadrics[c.to];
+        for (int i=0; i<q.length; i++) {
+            q[i]+=quadrics[c.from][i];
+        }
+        error = Math.max(error,
+            (float)Math.sqrt(Math.max(0, c.cost)));
+    }
+
+
+    /**
+        Gets a face with every 'from' vertex replaced with 'to',
+        without repeated vertices. Returns null if fewer than
+        three vertices are left.
+    */
+    private static int[] collapseFace(int[] face, int from,
+        int to)
+    {
+        int[] newFace = new int[face.length];
+        int count = 0;
+        for (int i=0; i<face.length; i++) {
+            int index = (face[i] == from)?to:face[i];
+            if (count == 0 || newFace[count-1] != index) {
+                newFace[count++] = index;
+            }
+        }
+        if (count > 1 && newFace[count-1] == newFace[0]) {
+            count--;
+        }
+        if (count < 3) {
+            return null;
+        }
+        int[] result = new int[count];
+        System.arraycopy(newFace, 0, result, 0, count);
+        return result;
+    }
+
+
+    private static boolean contains(int[] face, int index) {
+        for (int i=0; i<face.length; i++) {
+            if (face[i] == index) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+
+    /**
+        Checks if a face has some area, faces about the same way
+        as its original normal, is convex, and (if 'flat' is
+        true) is flat.
+    */
+    private boolean isValidFace(int[] face, Vector3D oldNormal,
+        boolean flat)
+    {
+        // Newell's method for the normal
+        double nx = 0;
+        double ny = 0;
+        double nz = 0;
+        double size = 0;
+        for (int i=0; i<face.length; i++) {
+            Vector3D a = vertices[face[i]];
+            Vector3D b = vertices[face[(i + 1) % face.length]];
+            nx+=(a.y - b.y) * (a.z + b.z);
+            ny+=(a.z - b.z) * (a.x + b.x);
+            nz+=(a.x - b.x) * (a.y + b.y);
+            double dx = b.x - a.x;
+            double dy = b.y - a.y;
+            double dz = b.z - a.z;
+            size = Math.max(size, Math.sqrt(dx*dx + dy*dy + dz*dz));
+        }
+        double length = Math.sqrt(nx*nx + ny*ny + nz*nz);
+        if (length < EPSILON * size * size) {
+            // no area
+            return false;
+        }
+        nx/=length;
+        ny/=length;
+        nz/=length;
+        if (nx*oldNormal.x + ny*oldNormal.y + nz*oldNormal.z <
+            MIN_NORMAL_DOT)
+        {
+            return false;
+        }
+
+        Vector3D v0 = vertices[face[0]];
+        for (int i=0; i<face.length; i++) {
+            Vector3D a = vertices[face[i]];
+            Vector3D b = vertices[face[(i + 1) % face.length]];
+            Vector3D c = vertices[face[(i + 2) % face.length]];
+
+            double distance = nx*(a.x - v0.x) + ny*(a.y - v0.y) +
+                nz*(a.z - v0.z);
+            if (flat &&
+                Math.abs(distance) > PLANAR_TOLERANCE * size)
+            {
+                return false;
+            }
+
+            // convex (each corner turns the same way)
+            double ux = b.x - a.x;
+            double uy = b.y - a.y;
+            double uz = b.z - a.z;
+            double wx = c.x - b.x;
+            double wy = c.y - b.y;
+            double wz = c.z - b.z;
+            double turn = nx*(uy*wz - uz*wy) +
+                ny*(uz*wx - ux*wz) + nz*(ux*wy - uy*wx);
+            if (turn < -EPSILON * size * size) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+
+    /**
+        Gets the number of faces left.
+    */
+    public int getNumFaces() {
+        return faces.size();
+    }
+
+
+    /**
+        Gets the vertex indices of the face at the specified
+        index.
+    */
+    public int[] getFace(int index) {
+        return ((Face)faces.get(index)).vertices;
+    }
+
+
+    /**
+        Gets the index of the polygon the face at the specified
+        index came from.
+    */
+    public int getSourcePolygon(int index) {
+        return ((Face)faces.get(index)).source;
+    }
+
+
+    /**
+        Checks if the face at the specified index was changed
+        from the polygon it came from.
+    */
+    public boolean isChanged(int index) {
+        return ((Face)faces.get(index)).changed;
+    }
+
+
+    /**
+        Gets the vertex at the specified index.
+    */
+    public Vector3D getVertex(int index) {
+        return vertices[index];
+    }
+
+
+    /**
+        Gets the largest error so far: the square root of the
+        largest sum of squared distances of a collapsed vertex to
+        its planes.
+    */
+    public float getError() {
+        return error;
+    }
+}
@@ -1,9 +1,12 @@
 package deet.math3D;
 
+import java.awt.Color;
 import java.io.*;
 import java.util.*;
+import java.util.zip.CRC32;
 
 import deet.graphics3D.texture.*;
+import deet.util.ThreadPool;
 
 /**
     The ObjectLoader class loads a subset of the
@@ -39,15 +42,90 @@ import deet.graphics3D.texture.*;
     newmtl [name]        - Define a new material by name.
     map_Kd [filename]    - Give the material a texture map.
     </pre>
+
+    After an object is loaded, simplified levels of detail are
+    created for each group (see MeshSimplifier and
+    PolygonGroup.setLevelsOfDetail()). They are saved to a ".lod"
+    file next to the OBJ file, and loaded from it the next time
+    if the OBJ file hasn't changed.
+
+    The parsed groups and materials are also saved to a binary
+    ".mesh" file next to the OBJ file, which is read instead of
+    parsing the OBJ and MTL files the next time if none of them
+    have changed. Loaded objects are kept in memory, keyed by the
+    contents of the OBJ file and the settings they were loaded
+    with, and loading the same object again returns a clone that
+    shares its polygons (see PolygonGroup.clone()). A kept object
+    is reference counted by loader: it's forgotten, and its
+    textures released to the TextureCache, once every loader that
+    returned it has called releaseTextures().
 */
 public class ObjectLoader {
 
     /**
-        The Material class wraps a ShadedTexture.
+        The default number of levels of detail created for each
+        group.
+    */
+    public static final int DEFAULT_LEVELS_OF_DETAIL = 3;
+
+    private static final int LOD_MAGIC = 0x4C4F4431;
+    private static final int MESH_MAGIC = 0x4D534831;
+    private static final int MESH_POLYGON = 0;
+    private static final int MESH_GROUP = 1;
+
+    // loaded objects shared by every ObjectLoader, by key (see
+    // getSharedKey())
+    private static HashMap sharedObjects = new HashMap();
+
+    // the cosine of the angle of a face considered flat with the
+    // polygon it came from
+    private static final float FLAT_DOT = .999f;
+
+    /**
+        The Material class wraps a ShadedTexture. The texture is
+        shared through the TextureCache and isn't decoded until
+        getTexture() is first called.
     */
     public static class Material {
         public File sourceFile;
         public ShadedTexture texture;
+        public TextureCache.SharedTexture sharedTexture;
+
+        /**
+            Gets the texture of this material, decoding it if
+            needed. Returns null if there's no texture.
+        */
+        public synchronized ShadedTexture getTexture() {
+            if (texture == null && sharedTexture != null) {
+                texture = sharedTexture.getTexture();
+            }
+            return texture;
+        }
+    }
+
+
+    /**
+        A loaded object kept in memory, with the textures it holds
+        in the TextureCache and the number of loaders using it.
+    */
+    private static class SharedObject {
+        String key;
+        PolygonGroup object;
+        Collection textures;
+        // guarded by the ObjectLoader class
+        int refCount;
+    }
+
+
+    /**
+        A simplified level of detail of a group, as faces of
+        vertex indices into the OBJ file's vertex list. Each face
+        is what's left of one of the group's polygons.
+    */
+    private static class SimplifiedMesh {
+        float error;
+        int[] sourcePolygons;
+        int[][] faces;
     }
 
 
@@ -67,7 +145,19 @@ public class ObjectLoader {
     protected HashMap materials;
     protected List lights;
     protected float ambientLightIntensity;
+    protected PixelFormat pixelFormat = PixelFormat.RGB_565;
     protected HashMap parsers;
+    protected int numLevelsOfDetail = DEFAULT_LEVELS_OF_DETAIL;
+    protected boolean levelOfDetailCache = true;
+    protected boolean meshCache = true;
+    protected IdentityHashMap polygonMaterials;
+    // the textures of the shared objects this loader returned
+    protected List objectTextures;
+    // the shared objects this loader returned (a SharedObject
+    // for each time one was returned)
+    protected List sharedObjectsUsed;
+    // the MTL files parsed for the current object or map
+    protected List mtlFiles = new ArrayList();
     private PolygonGroup object;
     private PolygonGroup currentGroup;
 
@@ -77,6 +167,9 @@ public class ObjectLoader {
     public ObjectLoader() {
         materials = new HashMap();
         vertices = new ArrayList();
+        polygonMaterials = new IdentityHashMap();
+        objectTextures = new ArrayList();
+        sharedObjectsUsed = new ArrayList();
         parsers = new HashMap();
         parsers.put("obj", new ObjLineParser());
         parsers.put("mtl", new MtlLineParser());
@@ -98,21 +191,349 @@ public class ObjectLoader {
 
 
     /**
-        Loads an OBJ file as a PolygonGroup.
+        Sets the pixel format of the textures loaded after this
+        call. The default is PixelFormat.RGB_565.
+    */
+    public void setPixelFormat(PixelFormat pixelFormat) {
+        this.pixelFormat = pixelFormat;
+    }
+
+
+    /**
+        Sets the number of simplified levels of detail to create
+        for each group of the objects loaded after this call. Fewer
+        are created if a group can't be simplified enough. Use 0
+        to create none. The default is DEFAULT_LEVELS_OF_DETAIL.
+    */
+    public void setNumLevelsOfDetail(int numLevelsOfDetail) {
+        this.numLevelsOfDetail = numLevelsOfDetail;
+    }
+
+
+    /**
+        Gets the number of levels of detail to create for each
+        group.
+    */
+    public int getNumLevelsOfDetail() {
+        return numLevelsOfDetail;
+    }
+
+
+    /**
+        Sets whether levels of detail are loaded from and saved
+        to ".lod" files. The default is true.
+    */
+    public void setLevelOfDetailCache(boolean levelOfDetailCache) {
+        this.levelOfDetailCache = levelOfDetailCache;
+    }
+
+
+    /**
+        Checks if levels of detail are loaded from and saved to
+        ".lod" files.
+    */
+    public boolean isLevelOfDetailCache() {
+        return levelOfDetailCache;
+    }
+
+
+    /**
+        Sets whether parsed objects are loaded from and saved to
+        ".mesh" files. The default is true.
+    */
+    public void setMeshCache(boolean meshCache) {
+        this.meshCache = meshCache;
+    }
+
+
+    /**
+        Checks if parsed objects are loaded from and saved to
+        ".mesh" files.
+    */
+    public boolean isMeshCache() {
+        return meshCache;
+    }
+
+
+    /**
+        Loads an OBJ file as a PolygonGroup. If the same OBJ file
+        was already loaded with the same lights, pixel format and
+        number of levels of detail (by any ObjectLoader), and
+        not every loader that returned it has released its
+        textures (see releaseTextures()), a clone of it is
+        returned.
     */
     public PolygonGroup loadObject(String filename)
         throws IOException
     {
         File file = new File(filename);
+        long objHash = calcHash(file);
+        String key = getSharedKey(file, objHash);
+        SharedObject shared = acquireSharedObject(key);
+        if (shared != null) {
+            return useSharedObject(shared);
+        }
+
         object = new PolygonGroup();
         object.setFilename(file.getName());
         path = file.getParentFile();
 
         vertices.clear();
+        polygonMaterials.clear();
+        mtlFiles.clear();
         currentGroup = object;
-        parseFile(filename);
+        File meshFile = new File(file.getPath() + ".mesh");
+        boolean loaded = false;
+        if (meshCache && meshFile.exists()) {
+            try {
+                loaded = loadMesh(meshFile, objHash);
+            }
+            catch (IOException ex) {
+                ex.printStackTrace();
+            }
+        }
+        if (!loaded) {
+            object = new PolygonGroup();
+            object.setFilename(file.getName());
+            vertices.clear();
+            polygonMaterials.clear();
+            mtlFiles.clear();
+            currentGroup = object;
+            parseFile(filename);
+            if (meshCache) {
+                try {
+                    saveMesh(meshFile, objHash);
+                }
+                catch (IOException ex) {
+                    // the object still works, it just isn't saved
+                    System.out.println("Couldn't save " + meshFile +
+                        ": " + ex);
+                }
+            }
+        }
+
+        if (numLevelsOfDetail > 0) {
+            createLevelsOfDetail(file);
+        }
+
+        // the shared object holds its textures in the
+        // TextureCache until every loader using it releases it
+        TextureCache cache = TextureCache.getInstance();
+        HashSet textures = new HashSet();
+        Iterator i = polygonMaterials.values().iterator();
+        while (i.hasNext()) {
+            TextureCache.SharedTexture texture =
+                ((Material)i.next()).sharedTexture;
+            if (texture != null && textures.add(texture)) {
+                cache.acquire(texture.getFile(), texture.getShade(),
+                    texture.getPixelFormat());
+            }
+        }
+        polygonMaterials.clear();
+
+        shared = putSharedObject(key, object, textures);
+        return useSharedObject(shared);
+    }
+
 
-        return object;
+    /**
+        Records that this loader uses a shared object (acquired
+        with acquireSharedObject() or putSharedObject()) until
+        releaseTextures() is called, and acquires its textures
+        so they're counted as this loader's textures. Returns a
+        clone of the object.
+    */
+    private PolygonGroup useSharedObject(SharedObject shared) {
+        synchronized (sharedObjectsUsed) {
+            sharedObjectsUsed.add(shared);
+        }
+        TextureCache cache = TextureCache.getInstance();
+        Iterator i = shared.textures.iterator();
+        while (i.hasNext()) {
+            TextureCache.SharedTexture texture =
+                (TextureCache.SharedTexture)i.next();
+            texture = cache.acquire(texture.getFile(),
+                texture.getShade(), texture.getPixelFormat());
+            synchronized (objectTextures) {
+                objectTextures.add(texture);
+            }
+        }
+        return (PolygonGroup)shared.object.clone();
+    }
+
+
+    /**
+        Loads several OBJ files in parallel, on a ThreadPool with
+        up to one thread per available processor. Each file is
+        loaded by its own ObjectLoader with the same settings as
+        this one, sharing this loader's materials. Returns the
+        PolygonGroups in the same order as the file names.
+    */
+    public PolygonGroup[] loadObjects(final String[] filenames)
+        throws IOException
+    {
+        final PolygonGroup[] objects =
+            new PolygonGroup[filenames.length];
+        final IOException[] error = new IOException[1];
+        int numThreads = Math.min(filenames.length,
+            Runtime.getRuntime().availableProcessors());
+        if (numThreads <= 1) {
+            for (int i=0; i<filenames.length; i++) {
+                objects[i] = loadObject(filenames[i]);
+            }
+            return objects;
+        }
+
+        ThreadPool threadPool = new ThreadPool(numThreads);
+        for (int i=0; i<filenames.length; i++) {
+            final int index = i;
+            threadPool.runTask(new Runnable() {
+                public void run() {
+                    try {
+                        objects[index] = createWorker().loadObject(
+                            filenames[index]);
+                    }
+                    catch (IOException ex) {
+                        synchronized (error) {
+                            error[0] = ex;
+                        }
+                    }
+                }
+            });
+        }
+        threadPool.join();
+
+        synchronized (error) {
+            if (error[0] != null) {
+                throw error[0];
+            }
+        }
+        for (int i=0; i<objects.length; i++) {
+            if (objects[i] == null) {
+                throw new IOException("Couldn't load " +
+                    filenames[i]);
+            }
+        }
+        return objects;
+    }
+
+
+    /**
+        Creates an ObjectLoader with the same settings as this
+        one, that shares this loader's materials.
+    */
+    protected ObjectLoader createWorker() {
+        ObjectLoader loader = new ObjectLoader();
+        loader.materials = materials;
+        loader.objectTextures = objectTextures;
+        loader.sharedObjectsUsed = sharedObjectsUsed;
+        loader.setLights(lights, ambientLightIntensity);
+        loader.setPixelFormat(pixelFormat);
+        loader.setNumLevelsOfDetail(numLevelsOfDetail);
+        loader.setLevelOfDetailCache(levelOfDetailCache);
+        loader.setMeshCache(meshCache);
+        return loader;
+    }
+
+
+    /**
+        Gets the key of an object in the shared objects. Objects
+        loaded from the same OBJ file contents, with the same
+        lights, pixel format and number of levels of detail, are
+        the same.
+    */
+    private String getSharedKey(File file, long objHash)
+        throws IOException
+    {
+        CRC32 crc = new CRC32();
+        for (int i=0; i<lights.size(); i++) {
+            PointLight3D light = (PointLight3D)lights.get(i);
+            updateHash(crc, light.x);
+            updateHash(crc, light.y);
+            updateHash(crc, light.z);
+            updateHash(crc, light.getIntensity());
+            updateHash(crc, light.getDistanceFalloff());
+        }
+        updateHash(crc, ambientLightIntensity);
+        return file.getCanonicalPath() + ":" + objHash + ":" +
+            crc.getValue() + ":" + pixelFormat + ":" +
+            numLevelsOfDetail;
+    }
+
+
+    private static void updateHash(CRC32 crc, float value) {
+        int bits = Float.floatToIntBits(value);
+        crc.update(bits >>> 24);
+        crc.update(bits >>> 16);
+        crc.update(bits >>> 8);
+        crc.update(bits);
+    }
+
+
+    /**
+        Gets the shared object with the specified key, counting
+        one more loader using it, or null if there isn't one.
+    */
+    private static synchronized SharedObject acquireSharedObject(
+        String key)
+    {
+        SharedObject shared = (SharedObject)sharedObjects.get(key);
+        if (shared != null) {
+            shared.refCount++;
+        }
+        return shared;
+    }
+
+
+    /**
+        Adds an object and the textures it holds to the shared
+        objects (unless another thread just added it, in which
+        case the textures are released) and returns the shared
+        object, counting one more loader using it.
+    */
+    private static synchronized SharedObject putSharedObject(
+        String key, PolygonGroup object, Collection textures)
+    {
+        SharedObject shared = (SharedObject)sharedObjects.get(key);
+        if (shared == null) {
+            shared = new SharedObject();
+            shared.key = key;
+            shared.object = object;
+            shared.textures = textures;
+            sharedObjects.put(key, shared);
+        }
+        else {
+            releaseTextures(textures);
+        }
+        shared.refCount++;
+        return shared;
+    }
+
+
+    /**
+        Counts one less loader using a shared object. When no
+        loader uses it, it's forgotten and its textures are
+        released.
+    */
+    private static synchronized void releaseSharedObject(
+        SharedObject shared)
+    {
+        shared.refCount--;
+        if (shared.refCount <= 0 &&
+            sharedObjects.get(shared.key) == shared)
+        {
+            sharedObjects.remove(shared.key);
+            releaseTextures(shared.textures);
+        }
+    }
+
+
+    private static void releaseTextures(Collection textures) {
+        TextureCache cache = TextureCache.getInstance();
+        Iterator i = textures.iterator();
+        while (i.hasNext()) {
+            cache.release((TextureCache.SharedTexture)i.next());
+        }
     }
 
 
@@ -142,6 +563,9 @@ public class ObjectLoader {
         File file = new File(path, filename);
         BufferedReader reader = new BufferedReader(
             new FileReader(file));
+        if (filename.toLowerCase().endsWith(".mtl")) {
+            mtlFiles.add(filename);
+        }
 
         // get the parser based on the file extention
         LineParser parser = null;
@@ -183,6 +607,590 @@ public class ObjectLoader {
     }
 
 
+    /**
+        Creates the levels of detail of every group in the loaded
+        object, loading them from the ".lod" file next to the OBJ
+        file if it was made from the same OBJ file. Otherwise, the
+        groups are simplified, and the ".lod" file is saved.
+    */
+    protected void createLevelsOfDetail(File objFile)
+        throws IOException
+    {
+        List groups = new ArrayList();
+        findGroups(object, groups);
+        Polygon3D[][] polygons = new Polygon3D[groups.size()][];
+        for (int i=0; i<groups.size(); i++) {
+            polygons[i] = ((PolygonGroup)groups.get(i)).getPolygons();
+        }
+
+        long objHash = calcHash(objFile);
+        File lodFile = new File(objFile.getPath() + ".lod");
+        SimplifiedMesh[][] meshes = null;
+        if (levelOfDetailCache && lodFile.exists()) {
+            try {
+                meshes = loadSimplifiedMeshes(lodFile, objHash,
+                    polygons);
+            }
+            catch (IOException ex) {
+                ex.printStackTrace();
+            }
+        }
+        if (meshes == null) {
+            meshes = new SimplifiedMesh[groups.size()][];
+            for (int i=0; i<groups.size(); i++) {
+                meshes[i] = simplify(polygons[i]);
+            }
+            if (levelOfDetailCache) {
+                try {
+                    saveSimplifiedMeshes(lodFile, objHash, meshes);
+                }
+                catch (IOException ex) {
+                    // the levels still work, they just aren't
+                    // saved
+                    System.out.println("Couldn't save " + lodFile +
+                        ": " + ex);
+                }
+            }
+        }
+
+        for (int i=0; i<groups.size(); i++) {
+            if (meshes[i].length == 0) {
+                continue;
+            }
+            LevelOfDetail[] levels =
+                new LevelOfDetail[meshes[i].length];
+            for (int j=0; j<levels.length; j++) {
+                levels[j] = createLevelOfDetail(polygons[i],
+                    meshes[i][j]);
+            }
+            ((PolygonGroup)groups.get(i)).setLevelsOfDetail(levels);
+        }
+    }
+
+
+    /**
+        Adds the specified group, and every subgroup, that has
+        polygons directly in it to the list.
+    */
+    private void findGroups(PolygonGroup group, List groups) {
+        boolean hasPolygons = false;
+        for (int i=0; i<group.getNumObjects(); i++) {
+            if (group.getObject(i) instanceof Polygon3D) {
+                hasPolygons = true;
+            }
+        }
+        if (hasPolygons) {
+            groups.add(group);
+        }
+        for (int i=0; i<group.getNumObjects(); i++) {
+            Object obj = group.getObject(i);
+            if (obj instanceof PolygonGroup) {
+                findGroups((PolygonGroup)obj, groups);
+            }
+        }
+    }
+
+
+    /**
+        Simplifies the polygons of a group, halving the number
+        of faces for each level of detail (some faces may be
+        split, so there can be more).
+    */
+    private SimplifiedMesh[] simplify(Polygon3D[] polygons) {
+        IdentityHashMap vertexIndices = new IdentityHashMap();
+        for (int i=0; i<vertices.size(); i++) {
+            vertexIndices.put(vertices.get(i), Integer.valueOf(i));
+        }
+
+        MeshSimplifier simplifier = new MeshSimplifier(polygons);
+        List meshes = new ArrayList();
+        while (meshes.size() < numLevelsOfDetail &&
+            simplifier.getNumFaces() > 1 &&
+            simplifier.simplify(simplifier.getNumFaces() / 2))
+        {
+            SimplifiedMesh mesh = new SimplifiedMesh();
+            mesh.error = simplifier.getError();
+            mesh.sourcePolygons = new int[simplifier.getNumFaces()];
+            mesh.faces = new int[simplifier.getNumFaces()][];
+            for (int i=0; i<simplifier.getNumFaces(); i++) {
+                int[] face = simplifier.getFace(i);
+                int[] fileFace = new int[face.length];
+                for (int j=0; j<face.length; j++) {
+                    fileFace[j] = ((Integer)vertexIndices.get(
+                        simplifier.getVertex(face[j]))).intValue();
+                }
+                mesh.sourcePolygons[i] =
+                    simplifier.getSourcePolygon(i);
+                mesh.faces[i] = fileFace;
+            }
+            meshes.add(mesh);
+        }
+        SimplifiedMesh[] array = new SimplifiedMesh[meshes.size()];
+        meshes.toArray(array);
+        return array;
+    }
+
+
+    /**
+        Creates a LevelOfDetail of a group's polygons. Faces that
+        weren't changed use the group's polygons. New polygons in
+        the plane of the polygon they came from get a texture
+        lined up with its texture; triangles bent out of the
+        plane get a texture of their own.
+    */
+    private LevelOfDetail createLevelOfDetail(Polygon3D[] polygons,
+        SimplifiedMesh mesh)
+    {
+        Polygon3D[] lodPolygons = new Polygon3D[mesh.faces.length];
+        for (int i=0; i<lodPolygons.length; i++) {
+            Polygon3D source = polygons[mesh.sourcePolygons[i]];
+            int[] face = mesh.faces[i];
+            Vector3D[] array = new Vector3D[face.length];
+            boolean same = (face.length == source.getNumVertices());
+            for (int j=0; j<face.length; j++) {
+                array[j] = (Vector3D)vertices.get(face[j]);
+                same &= (array[j] == source.getVertex(j));
+            }
+            if (same) {
+                lodPolygons[i] = source;
+                continue;
+            }
+
+            TexturedPolygon3D poly = new TexturedPolygon3D(array);
+            ShadedTexture texture = ((Material)
+                polygonMaterials.get(source)).getTexture();
+            if (face.length == 3 && poly.getNormal().getDotProduct(
+                source.getNormal()) < FLAT_DOT)
+            {
+                ShadedSurface.createShadedSurface(poly, texture,
+                    lights, ambientLightIntensity);
+                lodPolygons[i] = poly;
+                continue;
+            }
+            // the first three vertices could be in a line
+            poly.setNormal(source.getNormal());
+
+            // the same texture bounds as the source polygon
+            Vector3D origin = source.getVertex(0);
+            Vector3D dv = new Vector3D(source.getVertex(1));
+            dv.subtract(origin);
+            Vector3D du = new Vector3D();
+            du.setToCrossProduct(source.getNormal(), dv);
+            Rectangle3D bounds = new Rectangle3D(origin, du, dv,
+                texture.getWidth(), texture.getHeight());
+
+            ShadedSurface.createShadedSurface(poly, texture, bounds,
+                lights, ambientLightIntensity);
+            lodPolygons[i] = poly;
+        }
+        return new LevelOfDetail(lodPolygons, mesh.error);
+    }
+
+
+    /**
+        Saves simplified meshes to a ".lod" file.
+    */
+    private void saveSimplifiedMeshes(File file, long objHash,
+        SimplifiedMesh[][] meshes) throws IOException
+    {
+        DataOutputStream out = new DataOutputStream(
+            new BufferedOutputStream(new FileOutputStream(file)));
+        try {
+            out.writeInt(LOD_MAGIC);
+            out.writeLong(objHash);
+            out.writeInt(numLevelsOfDetail);
+            out.writeInt(meshes.length);
+            for (int i=0; i<meshes.length; i++) {
+                out.writeInt(meshes[i].length);
+                for (int j=0; j<meshes[i].length; j++) {
+                    SimplifiedMesh mesh = meshes[i][j];
+                    out.writeFloat(mesh.error);
+                    out.writeInt(mesh.faces.length);
+                    for (int k=0; k<mesh.faces.length; k++) {
+                        int[] face = mesh.faces[k];
+                        out.writeInt(mesh.sourcePolygons[k]);
+                        out.writeInt(face.length);
+                        for (int n=0; n<face.length; n++) {
+                            out.writeInt(face[n]);
+                        }
+                    }
+                }
+            }
+        }
+        finally {
+            out.close();
+        }
+    }
+
+
+    /**
+        Loads simplified meshes saved with saveSimplifiedMeshes().
+        Returns null if the file was saved for a different OBJ
+        file or number of levels of detail, or doesn't match the
+        groups.
+    */
+    private SimplifiedMesh[][] loadSimplifiedMeshes(File file,
+        long objHash, Polygon3D[][] polygons) throws IOException
+    {
+        DataInputStream in = new DataInputStream(
+            new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if (in.readInt() != LOD_MAGIC) {
+                throw new IOException("Not a LOD file: " + file);
+            }
+            if (in.readLong() != objHash ||
+                in.readInt() != numLevelsOfDetail ||
+                in.readInt() != polygons.length)
+            {
+                return null;
+            }
+            SimplifiedMesh[][] meshes =
+                new SimplifiedMesh[polygons.length][];
+            for (int i=0; i<meshes.length; i++) {
+                meshes[i] = new SimplifiedMesh[in.readInt()];
+                for (int j=0; j<meshes[i].length; j++) {
+                    SimplifiedMesh mesh = new SimplifiedMesh();
+                    mesh.error = in.readFloat();
+                    int numFaces = in.readInt();
+                    mesh.sourcePolygons = new int[numFaces];
+                    mesh.faces = new int[numFaces][];
+                    for (int k=0; k<numFaces; k++) {
+                        int source = in.readInt();
+                        int[] face = new int[in.readInt()];
+                        for (int n=0; n<face.length; n++) {
+                            face[n] = in.readInt();
+                            if (face[n] < 0 ||
+                                face[n] >= vertices.size())
+                            {
+                                return null;
+                            }
+                        }
+                        if (source < 0 ||
+                            source >= polygons[i].length)
+                        {
+                            return null;
+                        }
+                        mesh.sourcePolygons[k] = source;
+                        mesh.faces[k] = face;
+                    }
+                    meshes[i][j] = mesh;
+                }
+            }
+            return meshes;
+        }
+        finally {
+            in.close();
+        }
+    }
+
+
+    /**
+        Saves the parsed object to a ".mesh" file: the MTL files
+        it uses (with their hashes), the materials of its
+        polygons, the vertices, and the groups and polygons.
+    */
+    private void saveMesh(File file, long objHash)
+        throws IOException
+    {
+        // find the materials used
+        List usedMaterials = new ArrayList();
+        IdentityHashMap materialIndices = new IdentityHashMap();
+        Iterator i = polygonMaterials.values().iterator();
+        while (i.hasNext()) {
+            Object material = i.next();
+            if (!materialIndices.containsKey(material)) {
+                materialIndices.put(material,
+                    Integer.valueOf(usedMaterials.size()));
+                usedMaterials.add(material);
+            }
+        }
+        IdentityHashMap vertexIndices = new IdentityHashMap();
+        for (int j=0; j<vertices.size(); j++) {
+            vertexIndices.put(vertices.get(j), Integer.valueOf(j));
+        }
+
+        DataOutputStream out = new DataOutputStream(
+            new BufferedOutputStream(new FileOutputStream(file)));
+        try {
+            out.writeInt(MESH_MAGIC);
+            out.writeLong(objHash);
+            out.writeInt(mtlFiles.size());
+            for (int j=0; j<mtlFiles.size(); j++) {
+                String name = (String)mtlFiles.get(j);
+                out.writeUTF(name);
+                out.writeLong(calcHash(new File(path, name)));
+            }
+            out.writeInt(usedMaterials.size());
+            for (int j=0; j<usedMaterials.size(); j++) {
+                Material material = (Material)usedMaterials.get(j);
+                String name = "";
+                synchronized (materials) {
+                    Iterator k = materials.entrySet().iterator();
+                    while (k.hasNext()) {
+                        Map.Entry entry = (Map.Entry)k.next();
+                        if (entry.getValue() == material) {
+                            name = (String)entry.getKey();
+                        }
+                    }
+                }
+                out.writeUTF(name);
+                // relative to the OBJ file if it's in the same
+                // directory
+                File textureFile = material.sourceFile;
+                if (textureFile.equals(
+                    new File(path, textureFile.getName())))
+                {
+                    out.writeUTF(textureFile.getName());
+                }
+                else {
+                    out.writeUTF(textureFile.getAbsolutePath());
+                }
+            }
+            out.writeInt(vertices.size());
+            for (int j=0; j<vertices.size(); j++) {
+                Vector3D v = (Vector3D)vertices.get(j);
+                out.writeFloat(v.x);
+                out.writeFloat(v.y);
+                out.writeFloat(v.z);
+            }
+            writeMeshGroup(out, object, vertexIndices,
+                materialIndices);
+        }
+        finally {
+            out.close();
+        }
+    }
+
+
+    private void writeMeshGroup(DataOutputStream out,
+        PolygonGroup group, Map vertexIndices, Map materialIndices)
+        throws IOException
+    {
+        out.writeUTF(group.getName());
+        out.writeInt(group.getNumObjects());
+        for (int i=0; i<group.getNumObjects(); i++) {
+            Object obj = group.getObject(i);
+            if (obj instanceof PolygonGroup) {
+                out.writeInt(MESH_GROUP);
+                writeMeshGroup(out, (PolygonGroup)obj, vertexIndices,
+                    materialIndices);
+                continue;
+            }
+            Polygon3D poly = (Polygon3D)obj;
+            out.writeInt(MESH_POLYGON);
+            out.writeInt(((Integer)materialIndices.get(
+                polygonMaterials.get(poly))).intValue());
+            out.writeInt(poly.getNumVertices());
+            for (int j=0; j<poly.getNumVertices(); j++) {
+                out.writeInt(((Integer)vertexIndices.get(
+                    poly.getVertex(j))).intValue());
+            }
+        }
+    }
+
+
+    /**
+        Loads an object saved with saveMesh() into the current
+        object, creating the polygons' surfaces the same way
+        parsing the OBJ file does. Returns false if the file was
+        saved for a different OBJ file, or one of its MTL files
+        has changed.
+    */
+    private boolean loadMesh(File file, long objHash)
+        throws IOException
+    {
+        DataInputStream in = new DataInputStream(
+            new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if (in.readInt() != MESH_MAGIC) {
+                throw new IOException("Not a mesh file: " + file);
+            }
+            if (in.readLong() != objHash) {
+                return false;
+            }
+            int numMtlFiles = in.readInt();
+            for (int i=0; i<numMtlFiles; i++) {
+                File mtlFile = new File(path, in.readUTF());
+                if (!mtlFile.exists() ||
+                    in.readLong() != calcHash(mtlFile))
+                {
+                    return false;
+                }
+            }
+            Material[] meshMaterials = new Material[in.readInt()];
+            for (int i=0; i<meshMaterials.length; i++) {
+                String name = in.readUTF();
+                File textureFile = new File(in.readUTF());
+                if (!textureFile.isAbsolute()) {
+                    textureFile = new File(path,
+                        textureFile.getPath());
+                }
+                meshMaterials[i] = getMaterial(name);
+                setTexture(meshMaterials[i], textureFile);
+            }
+            int numVertices = in.readInt();
+            for (int i=0; i<numVertices; i++) {
+                vertices.add(new Vector3D(in.readFloat(),
+                    in.readFloat(), in.readFloat()));
+            }
+            readMeshGroup(in, object, meshMaterials);
+            return true;
+        }
+        catch (IndexOutOfBoundsException ex) {
+            throw new IOException("Bad mesh file: " + file);
+        }
+        finally {
+            in.close();
+        }
+    }
+
+
+    private void readMeshGroup(DataInputStream in,
+        PolygonGroup group, Material[] meshMaterials)
+        throws IOException
+    {
+        group.setName(in.readUTF());
+        int numObjects = in.readInt();
+        for (int i=0; i<numObjects; i++) {
+            if (in.readInt() == MESH_GROUP) {
+                PolygonGroup subgroup = new PolygonGroup();
+                readMeshGroup(in, subgroup, meshMaterials);
+                group.addPolygonGroup(subgroup);
+                continue;
+            }
+            Material material = meshMaterials[in.readInt()];
+            Vector3D[] array = new Vector3D[in.readInt()];
+            for (int j=0; j<array.length; j++) {
+                array[j] = (Vector3D)vertices.get(in.readInt());
+            }
+            TexturedPolygon3D poly = new TexturedPolygon3D(array);
+            ShadedSurface.createShadedSurface(poly,
+                material.getTexture(), lights, ambientLightIntensity);
+            group.addPolygon(poly);
+            polygonMaterials.put(poly, material);
+        }
+    }
+
+
+    /**
+        Gets the material with the specified name, creating it
+        if needed. The materials may be shared with other
+        ObjectLoaders loading in parallel.
+    */
+    protected Material getMaterial(String name) {
+        synchronized (materials) {
+            Material material = (Material)materials.get(name);
+            if (material == null) {
+                material = new Material();
+                materials.put(name, material);
+            }
+            return material;
+        }
+    }
+
+
+    /**
+        Gives a material the texture from the specified image
+        file, unless it already has that texture. The texture is
+        acquired from the TextureCache, so it's decoded once for
+        every loader, and only if a polygon uses it.
+    */
+    protected void setTexture(Material material, File file) {
+        TextureCache cache = TextureCache.getInstance();
+        synchronized (material) {
+            if (!file.equals(material.sourceFile)) {
+                if (material.sharedTexture != null) {
+                    cache.release(material.sharedTexture);
+                }
+                material.sourceFile = file;
+                material.texture = null;
+                material.sharedTexture = cache.acquire(file,
+                    Color.BLACK, pixelFormat);
+            }
+        }
+    }
+
+
+    /**
+        Gets the shared textures of this loader's materials and
+        of the objects it loaded, decoded or not (see
+        TextureCache.getReport()).
+    */
+    public List getSharedTextures() {
+        List sharedTextures = new ArrayList();
+        synchronized (objectTextures) {
+            sharedTextures.addAll(objectTextures);
+        }
+        synchronized (materials) {
+            Iterator i = materials.values().iterator();
+            while (i.hasNext()) {
+                Material material = (Material)i.next();
+                if (material.sharedTexture != null) {
+                    sharedTextures.add(material.sharedTexture);
+                }
+            }
+        }
+        return sharedTextures;
+    }
+
+
+    /**
+        Releases the shared textures of this loader's materials
+        and of the objects it loaded back to the TextureCache,
+        and stops using the shared objects it returned (once no
+        loader uses an object, it's forgotten). Call this when
+        the objects loaded aren't used anymore; the materials are
+        forgotten.
+    */
+    public void releaseTextures() {
+        TextureCache cache = TextureCache.getInstance();
+        synchronized (objectTextures) {
+            releaseTextures(objectTextures);
+            objectTextures.clear();
+        }
+        synchronized (sharedObjectsUsed) {
+            for (int i=0; i<sharedObjectsUsed.size(); i++) {
+                releaseSharedObject(
+                    (SharedObject)sharedObjectsUsed.get(i));
+            }
+            sharedObjectsUsed.clear();
+        }
+        synchronized (materials) {
+            Iterator i = materials.values().iterator();
+            while (i.hasNext()) {
+                Material material = (Material)i.next();
+                synchronized (material) {
+                    if (material.sharedTexture != null) {
+                        cache.release(material.sharedTexture);
+                        material.sharedTexture = null;
+                    }
+                }
+            }
+            materials.clear();
+        }
+    }
+
+
+    /**
+        Calculates a CRC32 hash of a file's contents.
+    */
+    private static long calcHash(File file) throws IOException {
+        CRC32 crc = new CRC32();
+        InputStream is = new FileInputStream(file);
+        try {
+            byte[] buffer = new byte[4096];
+            int count;
+            while ((count = is.read(buffer)) != -1) {
+                crc.update(buffer, 0, count);
+            }
+        }
+        finally {
+            is.close();
+        }
+        return crc.getValue();
+    }
+
+
     /**
         Parses a line in an OBJ file.
     */
@@ -224,11 +1232,12 @@ public class ObjectLoader {
 
                 // set the texture
                 ShadedSurface.createShadedSurface(
-                    poly, currentMaterial.texture,
+                    poly, currentMaterial.getTexture(),
                     lights, ambientLightIntensity);
 
                 // add the polygon to the current group
                 currentGroup.addPolygon(poly);
+                polygonMaterials.put(poly, currentMaterial);
             }
             else if (command.equals("g")) {
                 // define the current group
@@ -249,7 +1258,9 @@ public class ObjectLoader {
             else if (command.equals("usemtl")) {
                 // define the current material
                 String name = tokenizer.nextToken();
-                currentMaterial = (Material)materials.get(name);
+                synchronized (materials) {
+                    currentMaterial = (Material)materials.get(name);
+                }
                 if (currentMaterial == null) {
                     System.out.println("no material: " + name);
                 }
@@ -276,21 +1287,12 @@ public class ObjectLoader {
             if (command.equals("newmtl")) {
                 // create a new material if needed
                 String name = tokenizer.nextToken();
-                currentMaterial = (Material)materials.get(name);
-                if (currentMaterial == null) {
-                    currentMaterial = new Material();
-                    materials.put(name, currentMaterial);
-                }
+                currentMaterial = getMaterial(name);
             }
             else if (command.equals("map_Kd")) {
                 // give the current material a texture
                 String name = tokenizer.nextToken();
-                File file = new File(path, name);
-                if (!file.equals(currentMaterial.sourceFile)) {
-                    currentMaterial.sourceFile = file;
-                    currentMaterial.texture = (ShadedTexture)
-                        Texture.createTexture(file.getPath(),true);
-                }
+                setTexture(currentMaterial, new File(path, name));
             }
             else {
                 // unknown command - ignore it
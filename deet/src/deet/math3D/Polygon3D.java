@@ -70,6 +70,24 @@ public class Polygon3D implements Transformable {
     }
 
 
+    /**
+        Sets this polygon to the specified number of vertices,
+        read from the x, y, and z arrays at the indices stored in
+        the indices array, starting at the specified offset (see
+        TransformedVertices). The normal isn't changed.
+    */
+    public void setTo(float[] x, float[] y, float[] z,
+        int[] indices, int offset, int numVertices)
+    {
+        this.numVertices = numVertices;
+        ensureCapacity(numVertices);
+        for (int i=0; i<numVertices; i++) {
+            int index = indices[offset + i];
+            v[i].setTo(x[index], y[index], z[index]);
+        }
+    }
+
+
     /**
         Ensures this polgon has enough capacity to hold the
         specified number of vertices.
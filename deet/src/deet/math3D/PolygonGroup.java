@@ -15,6 +15,9 @@ public class PolygonGroup implements Transformable {
     private List objects;
     private MovingTransform3D transform;
     private int iteratorIndex;
+    private PolygonGroupBounds polygonBounds;
+    private TransformedVertices transformedVertices;
+    private LevelOfDetail[] levelsOfDetail;
 
     /**
         Creates a new, empty PolygonGroup.
@@ -80,6 +83,9 @@ public class PolygonGroup implements Transformable {
     */
     public void addPolygon(Polygon3D o) {
         objects.add(o);
+        polygonBounds = null;
+        transformedVertices = null;
+        levelsOfDetail = null;
     }
 
 
@@ -92,8 +98,128 @@ public class PolygonGroup implements Transformable {
 
 
     /**
-        Clones this polygon group. Polygon3Ds are shared between
-        this group and the cloned group; Transform3Ds are copied.
+        Gets the number of polygons and PolygonGroups directly in
+        this group.
+    */
+    public int getNumObjects() {
+        return objects.size();
+    }
+
+
+    /**
+        Gets the polygon (a Polygon3D) or PolygonGroup at the
+        specified index in this group.
+    */
+    public Object getObject(int index) {
+        return objects.get(index);
+    }
+
+
+    /**
+        Gets the polygons directly in this group (not in
+        subgroups).
+    */
+    public Polygon3D[] getPolygons() {
+        List polygonList = new ArrayList();
+        for (int i=0; i<objects.size(); i++) {
+            Object obj = objects.get(i);
+            if (obj instanceof Polygon3D) {
+                polygonList.add(obj);
+            }
+        }
+        Polygon3D[] polygons = new Polygon3D[polygonList.size()];
+        polygonList.toArray(polygons);
+        return polygons;
+    }
+
+
+    /**
+        Gets the bounds of the polygons directly in this group
+        (not in subgroups), in this group's local space. The
+        bounds are calculated the first time this method is
+        called.
+    */
+    public PolygonGroupBounds getPolygonBounds() {
+        if (polygonBounds == null) {
+            polygonBounds = new PolygonGroupBounds();
+            polygonBounds.setToPolygonBounds(this);
+        }
+        return polygonBounds;
+    }
+
+
+    /**
+        Gets the TransformedVertices for the polygons directly in
+        this group (not in subgroups). It's created the first time
+        this method is called.
+    */
+    public TransformedVertices getTransformedVertices() {
+        if (transformedVertices == null) {
+            transformedVertices = new TransformedVertices(this);
+        }
+        return transformedVertices;
+    }
+
+
+    /**
+        Sets the levels of detail of the polygons directly in this
+        group (not in subgroups), from the most detailed to the
+        least detailed. Each one replaces all of this group's own
+        polygons. Adding a polygon clears the levels of detail.
+    */
+    public void setLevelsOfDetail(LevelOfDetail[] levelsOfDetail) {
+        this.levelsOfDetail = levelsOfDetail;
+    }
+
+
+    /**
+        Gets the number of levels of detail of this group (not
+        counting the group's own polygons).
+    */
+    public int getNumLevelsOfDetail() {
+        return (levelsOfDetail == null)?0:levelsOfDetail.length;
+    }
+
+
+    /**
+        Gets the level of detail at the specified index. Index 0
+        is the most detailed.
+    */
+    public LevelOfDetail getLevelOfDetail(int index) {
+        return levelsOfDetail[index];
+    }
+
+
+    /**
+        Gets the radius of a sphere, centered at this group's
+        origin, that contains every polygon in this group and
+        its subgroups (at their current locations).
+    */
+    public float getBoundingRadius() {
+        PolygonGroupBounds bounds = getPolygonBounds();
+        float height = Math.max(Math.abs(bounds.getTopHeight()),
+            Math.abs(bounds.getBottomHeight()));
+        float radius = (float)Math.sqrt(
+            bounds.getRadius() * bounds.getRadius() +
+            height * height);
+        for (int i=0; i<objects.size(); i++) {
+            Object obj = objects.get(i);
+            if (obj instanceof PolygonGroup) {
+                PolygonGroup group = (PolygonGroup)obj;
+                radius = Math.max(radius,
+                    group.getTransform().getLocation().length() +
+                    group.getBoundingRadius());
+            }
+        }
+        return radius;
+    }
+
+
+    /**
+        Clones this polygon group. Polygon3Ds (and the vertex
+        lists of their TransformedVertices) and levels of detail
+        are shared between this group and the cloned group;
+        Transform3Ds are copied.
     */
     public Object clone() {
         PolygonGroup group = new PolygonGroup(name);
@@ -109,10 +235,52 @@ public class PolygonGroup implements Transformable {
             }
         }
         group.transform = (MovingTransform3D)transform.clone();
+        // share the vertex lists
+        group.transformedVertices =
+            new TransformedVertices(getTransformedVertices());
+        if (levelsOfDetail != null) {
+            group.levelsOfDetail =
+                new LevelOfDetail[levelsOfDetail.length];
+            for (int i=0; i<levelsOfDetail.length; i++) {
+                group.levelsOfDetail[i] =
+                    new LevelOfDetail(levelsOfDetail[i]);
+            }
+        }
         return group;
     }
 
 
+    /**
+        Sets the transforms of this group and its subgroups to
+        the transforms of the specified group, which should have
+        the same structure (usually this group is a clone of
+        it). Only the location and angles are copied. Returns
+        false if the structures don't match.
+    */
+    public boolean setTransformsTo(PolygonGroup group) {
+        if (objects.size() != group.objects.size()) {
+            return false;
+        }
+        transform.setTo(group.transform);
+        for (int i=0; i<objects.size(); i++) {
+            Object obj = objects.get(i);
+            Object src = group.objects.get(i);
+            if (obj instanceof PolygonGroup) {
+                if (!(src instanceof PolygonGroup) ||
+                    !((PolygonGroup)obj).setTransformsTo(
+                    (PolygonGroup)src))
+                {
+                    return false;
+                }
+            }
+            else if (obj != src) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+
     /**
         Gets the PolygonGroup in this group with the specified
         name, or null if none found.
@@ -59,6 +59,39 @@ public class PolygonGroupBounds {
         }
     }
 
+    /**
+        Sets this to the bounds of the polygons directly in the
+        specified PolygonGroup, ignoring any subgroups.
+    */
+    public void setToPolygonBounds(PolygonGroup group) {
+        topHeight = -Float.MAX_VALUE;
+        bottomHeight = Float.MAX_VALUE;
+        radius = 0;
+        boolean empty = true;
+
+        for (int i=0; i<group.getNumObjects(); i++) {
+            Object obj = group.getObject(i);
+            if (obj instanceof Polygon3D) {
+                Polygon3D poly = (Polygon3D)obj;
+                for (int j=0; j<poly.getNumVertices(); j++) {
+                    Vector3D v = poly.getVertex(j);
+                    topHeight = Math.max(topHeight, v.y);
+                    bottomHeight = Math.min(bottomHeight, v.y);
+                    // compute radius squared
+                    radius = Math.max(radius, v.x*v.x + v.z*v.z);
+                    empty = false;
+                }
+            }
+        }
+
+        if (empty) {
+            topHeight = 0;
+            bottomHeight = 0;
+        }
+        radius = (float)Math.sqrt(radius);
+    }
+
+
     public float getTopHeight() {
         return topHeight;
     }
@@ -124,6 +124,51 @@ public class Transform3D {
         setAngleZ(angleZ);
     }
 
+    /**
+        Sets this Transform3D to a transform between two others:
+        the first when alpha is 0, and the second when alpha is
+        1. The location moves in a line and each angle turns the
+        shortest way.
+    */
+    public void setToInterpolated(Transform3D t1, Transform3D t2,
+        float alpha)
+    {
+        if (alpha <= 0) {
+            setTo(t1);
+            return;
+        }
+        if (alpha >= 1) {
+            setTo(t2);
+            return;
+        }
+        float angleX = interpolateAngle(t1.getAngleX(),
+            t2.getAngleX(), alpha);
+        float angleY = interpolateAngle(t1.getAngleY(),
+            t2.getAngleY(), alpha);
+        float angleZ = interpolateAngle(t1.getAngleZ(),
+            t2.getAngleZ(), alpha);
+        Vector3D v1 = t1.location;
+        Vector3D v2 = t2.location;
+        location.setTo(v1.x + (v2.x - v1.x) * alpha,
+            v1.y + (v2.y - v1.y) * alpha,
+            v1.z + (v2.z - v1.z) * alpha);
+        setAngle(angleX, angleY, angleZ);
+    }
+
+
+    private float interpolateAngle(float angle1, float angle2,
+        float alpha)
+    {
+        float diff = angle2 - angle1;
+        if (diff > Math.PI) {
+            diff-=2*Math.PI;
+        }
+        else if (diff < -Math.PI) {
+            diff+=2*Math.PI;
+        }
+        return angle1 + diff * alpha;
+    }
+
     public void rotateAngleX(float angle) {
         if (angle != 0) {
             setAngleX(getAngleX() + angle);
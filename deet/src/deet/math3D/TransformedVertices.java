@@ -0,0 +1,298 @@
+package deet.math3D;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+/**
+    The TransformedVertices class holds the polygons directly in
+    a PolygonGroup (not in subgroups) as a list of vertices, each
+    stored once even if several polygons share it (the polygons
+    created by the ObjectLoader share their vertices). Every frame,
+    transform() transforms each vertex once, into reusable x, y
+    and z arrays in world space and camera space, and
+    getPolygon() copies one polygon out of the arrays. Nothing is
+    allocated after the first frame.
+    <p>The transforms use the same calculations, in the same
+    order, as Polygon3D.add() and Polygon3D.subtract(), so the
+    results are exactly the same as transforming each polygon.
+*/
+public class TransformedVertices {
+
+    // shared with copies
+    private Polygon3D[] polygons;
+    private Vector3D[] vertices;
+    private int[] indices;
+    private int[] firstIndex;
+
+    // the vertices and polygon normals in world space
+    private float[] worldX;
+    private float[] worldY;
+    private float[] worldZ;
+    private float[] normalX;
+    private float[] normalY;
+    private float[] normalZ;
+
+    // the vertices in camera space
+    private float[] cameraX;
+    private float[] cameraY;
+    private float[] cameraZ;
+
+    // the transforms of the last call to transform()
+    private Transform3D[] transforms;
+    private int depth;
+    private Transform3D camera;
+
+    /**
+        Creates a new TransformedVertices object for the polygons
+        directly in the specified group.
+    */
+    public TransformedVertices(PolygonGroup group) {
+        this(group.getPolygons());
+    }
+
+
+    /**
+        Creates a new TransformedVertices object for the specified
+        polygons.
+    */
+    public TransformedVertices(Polygon3D[] polygons) {
+        this.polygons = polygons;
+
+        // find the unique vertices
+        IdentityHashMap vertexIndices = new IdentityHashMap();
+        List vertexList = new ArrayList();
+        firstIndex = new int[polygons.length + 1];
+        for (int i=0; i<polygons.length; i++) {
+            firstIndex[i+1] = firstIndex[i] +
+                polygons[i].getNumVertices();
+        }
+        indices = new int[firstIndex[polygons.length]];
+        for (int i=0; i<polygons.length; i++) {
+            Polygon3D poly = polygons[i];
+            for (int j=0; j<poly.getNumVertices(); j++) {
+                Vector3D v = poly.getVertex(j);
+                Integer index = (Integer)vertexIndices.get(v);
+                if (index == null) {
+                    index = Integer.valueOf(vertexList.size());
+                    vertexIndices.put(v, index);
+                    vertexList.add(v);
+                }
+                indices[firstIndex[i] + j] = index.intValue();
+            }
+        }
+        vertices = new Vector3D[vertexList.size()];
+        vertexList.toArray(vertices);
+        createArrays();
+    }
+
+
+    /**
+        Creates a new TransformedVertices object for the same
+        polygons as the specified object (used for cloned
+        groups). The vertex lists are shared, but each object has
+        its own transformed vertices.
+    */
+    public TransformedVertices(TransformedVertices v) {
+        polygons = v.polygons;
+        vertices = v.vertices;
+        indices = v.indices;
+        firstIndex = v.firstIndex;
+        createArrays();
+    }
+
+
+    private void createArrays() {
+        worldX = new float[vertices.length];
+        worldY = new float[vertices.length];
+        worldZ = new float[vertices.length];
+        cameraX = new float[vertices.length];
+        cameraY = new float[vertices.length];
+        cameraZ = new float[vertices.length];
+        normalX = new float[polygons.length];
+        normalY = new float[polygons.length];
+        normalZ = new float[polygons.length];
+    }
+
+
+    /**
+        Gets the number of polygons.
+    */
+    public int getNumPolygons() {
+        return polygons.length;
+    }
+
+
+    /**
+        Gets the number of unique vertices.
+    */
+    public int getNumVertices() {
+        return vertices.length;
+    }
+
+
+    /**
+        Gets the polygon at the specified index (in the order the
+        polygons appear in the group).
+    */
+    public Polygon3D getSourcePolygon(int index) {
+        return polygons[index];
+    }
+
+
+    /**
+        Transforms every vertex and polygon normal to world space,
+        by transforms[depth] down to transforms[0] (the group's
+        transform first, then the transforms of the groups it's
+        in), then transforms the vertices to camera space.
+    */
+    public void transform(Transform3D[] transforms, int depth,
+        Transform3D camera)
+    {
+        this.transforms = transforms;
+        this.depth = depth;
+        this.camera = camera;
+
+        for (int i=0; i<vertices.length; i++) {
+            Vector3D v = vertices[i];
+            float x = v.x;
+            float y = v.y;
+            float z = v.z;
+            for (int j=depth; j>=0; j--) {
+                Transform3D xform = transforms[j];
+                float cos = xform.getCosAngleX();
+                float sin = xform.getSinAngleX();
+                float newX;
+                float newY = y*cos - z*sin;
+                float newZ = y*sin + z*cos;
+                y = newY;
+                z = newZ;
+                cos = xform.getCosAngleZ();
+                sin = xform.getSinAngleZ();
+                newX = x*cos - y*sin;
+                newY = x*sin + y*cos;
+                x = newX;
+                y = newY;
+                cos = xform.getCosAngleY();
+                sin = xform.getSinAngleY();
+                newX = z*sin + x*cos;
+                newZ = z*cos - x*sin;
+                x = newX;
+                z = newZ;
+                Vector3D location = xform.getLocation();
+                x+=location.x;
+                y+=location.y;
+                z+=location.z;
+            }
+            worldX[i] = x;
+            worldY[i] = y;
+            worldZ[i] = z;
+        }
+
+        for (int i=0; i<polygons.length; i++) {
+            Vector3D n = polygons[i].getNormal();
+            float x = n.x;
+            float y = n.y;
+            float z = n.z;
+            for (int j=depth; j>=0; j--) {
+                Transform3D xform = transforms[j];
+                float cos = xform.getCosAngleX();
+                float sin = xform.getSinAngleX();
+                float newX;
+                float newY = y*cos - z*sin;
+                float newZ = y*sin + z*cos;
+                y = newY;
+                z = newZ;
+                cos = xform.getCosAngleZ();
+                sin = xform.getSinAngleZ();
+                newX = x*cos - y*sin;
+                newY = x*sin + y*cos;
+                x = newX;
+                y = newY;
+                cos = xform.getCosAngleY();
+                sin = xform.getSinAngleY();
+                newX = z*sin + x*cos;
+                newZ = z*cos - x*sin;
+                x = newX;
+                z = newZ;
+            }
+            normalX[i] = x;
+            normalY[i] = y;
+            normalZ[i] = z;
+        }
+
+        // world space to camera space
+        Vector3D location = camera.getLocation();
+        float cosX = camera.getCosAngleX();
+        float sinX = -camera.getSinAngleX();
+        float cosY = camera.getCosAngleY();
+        float sinY = -camera.getSinAngleY();
+        float cosZ = camera.getCosAngleZ();
+        float sinZ = -camera.getSinAngleZ();
+        for (int i=0; i<vertices.length; i++) {
+            float x = worldX[i] - location.x;
+            float y = worldY[i] - location.y;
+            float z = worldZ[i] - location.z;
+            float newX = z*sinY + x*cosY;
+            float newY;
+            float newZ = z*cosY - x*sinY;
+            x = newX;
+            z = newZ;
+            newX = x*cosZ - y*sinZ;
+            newY = x*sinZ + y*cosZ;
+            x = newX;
+            y = newY;
+            newY = y*cosX - z*sinX;
+            newZ = y*sinX + z*cosX;
+            cameraX[i] = x;
+            cameraY[i] = newY;
+            cameraZ[i] = newZ;
+        }
+    }
+
+
+    /**
+        Tests if the polygon at the specified index is facing
+        the specified location, in world space (see
+        Polygon3D.isFacing()).
+    */
+    public boolean isFacing(int index, Vector3D u) {
+        int v0 = indices[firstIndex[index]];
+        float x = u.x - worldX[v0];
+        float y = u.y - worldY[v0];
+        float z = u.z - worldZ[v0];
+        return (normalX[index]*x + normalY[index]*y +
+            normalZ[index]*z >= 0);
+    }
+
+
+    /**
+        Sets the specified polygon to the polygon at the specified
+        index, in camera space. If both are TexturedPolygon3Ds,
+        the texture and texture bounds are set, too.
+    */
+    public void getPolygon(int index, Polygon3D dest) {
+        int first = firstIndex[index];
+        dest.setTo(cameraX, cameraY, cameraZ, indices, first,
+            firstIndex[index+1] - first);
+        Vector3D normal = dest.getNormal();
+        normal.setTo(normalX[index], normalY[index],
+            normalZ[index]);
+        normal.subtractRotation(camera);
+
+        Polygon3D source = polygons[index];
+        if (dest instanceof TexturedPolygon3D &&
+            source instanceof TexturedPolygon3D)
+        {
+            TexturedPolygon3D tDest = (TexturedPolygon3D)dest;
+            TexturedPolygon3D tSource = (TexturedPolygon3D)source;
+            tDest.texture = tSource.texture;
+            Rectangle3D bounds = tDest.textureBounds;
+            bounds.setTo(tSource.textureBounds);
+            for (int j=depth; j>=0; j--) {
+                bounds.add(transforms[j]);
+            }
+            bounds.subtract(camera);
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package deet.math3D;
+
+/**
+    The ViewFrustum class represents the four side planes of the
+    view volume of a ViewWindow, in camera space (the camera is
+    at the origin looking down the negative z axis). It's used
+    to quickly check if a bounding volume can be seen before
+    transforming and clipping every polygon inside it.
+*/
+public class ViewFrustum {
+
+    /**
+        The bounds are completely outside the frustum.
+    */
+    public static final int OUTSIDE = 0;
+
+    /**
+        The bounds are partially inside the frustum.
+    */
+    public static final int INTERSECTING = 1;
+
+    /**
+        The bounds are completely inside the frustum.
+    */
+    public static final int INSIDE = 2;
+
+    /**
+        The frustum is grown by this many pixels on each side so
+        polygons touching the edge of the view aren't culled.
+    */
+    private static final float MARGIN = 1;
+
+    // the outward normals of the left, right, top and bottom
+    // planes (every plane passes through the origin)
+    private float[] normalX = new float[4];
+    private float[] normalY = new float[4];
+    private float[] normalZ = new float[4];
+
+    /**
+        Creates a new ViewFrustum for the specified ViewWindow.
+    */
+    public ViewFrustum(ViewWindow view) {
+        setTo(view);
+    }
+
+
+    /**
+        Sets this frustum to the view volume of the specified
+        ViewWindow. Call this whenever the ViewWindow's bounds or
+        angle changes.
+    */
+    public void setTo(ViewWindow view) {
+        float distance = view.getDistance();
+        float halfWidth = view.getWidth()/2f + MARGIN;
+        float halfHeight = view.getHeight()/2f + MARGIN;
+        setPlane(0, -distance, 0, halfWidth);
+        setPlane(1, distance, 0, halfWidth);
+        setPlane(2, 0, distance, halfHeight);
+        setPlane(3, 0, -distance, halfHeight);
+    }
+
+
+    private void setPlane(int index, float x, float y, float z) {
+        float length = (float)Math.sqrt(x*x + y*y + z*z);
+        normalX[index] = x / length;
+        normalY[index] = y / length;
+        normalZ[index] = z / length;
+    }
+
+
+    /**
+        Tests a sphere (in camera space) against this frustum.
+        Returns OUTSIDE, INTERSECTING, or INSIDE.
+    */
+    public int test(Vector3D center, float radius) {
+        return test(center, center, radius);
+    }
+
+
+    /**
+        Tests a capsule (every point within the specified radius
+        of the line segment from a to b, in camera space) against
+        this frustum. A capsule around the axis of a
+        PolygonGroupBounds contains the bounds no matter how it's
+        rotated. Returns OUTSIDE, INTERSECTING, or INSIDE.
+    */
+    public int test(Vector3D a, Vector3D b, float radius) {
+        int result = INSIDE;
+        for (int i=0; i<4; i++) {
+            float distA = normalX[i]*a.x + normalY[i]*a.y +
+                normalZ[i]*a.z;
+            float distB = normalX[i]*b.x + normalY[i]*b.y +
+                normalZ[i]*b.z;
+            if (distA > radius && distB > radius) {
+                return OUTSIDE;
+            }
+            if (distA > -radius || distB > -radius) {
+                result = INTERSECTING;
+            }
+        }
+        return result;
+    }
+}
@@ -2,8 +2,10 @@ package deet.object;
 
 import java.awt.Rectangle;
 import java.awt.Graphics2D;
+import java.util.BitSet;
 import java.util.Iterator;
 
+import deet.bsp2D.BSPTree;
 import deet.object.GameObjectRenderer;
 
 /**
@@ -26,6 +28,16 @@ public interface GameObjectManager {
     public void markAllVisible();
 
 
+    /**
+        Sets the leaves of the BSP tree (as a set of leaf indices)
+        that are potentially visible, for example from the
+        tree's PotentiallyVisibleSet. Managers may use this to
+        mark fewer objects visible in markVisible(). If the
+        leaves are null, every leaf is potentially visible.
+    */
+    public void setVisibleLeaves(BSPTree tree, BitSet leaves);
+
+
     /**
         Adds a GameObject to this manager.
     */
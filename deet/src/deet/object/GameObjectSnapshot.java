@@ -0,0 +1,216 @@
+package deet.object;
+
+import java.awt.Rectangle;
+import java.awt.Graphics2D;
+import java.util.*;
+
+import deet.bsp2D.BSPTree;
+import deet.math3D.PolygonGroup;
+
+/**
+    The GameObjectSnapshot is a read-only copy of the objects of
+    a GameObjectManager, for drawing on one thread while the
+    objects are updated on another. Each object's PolygonGroup
+    is copied (polygons are shared, transforms are copied), so
+    the objects can move while the snapshot is drawn.
+    <p>Drawing a snapshot doesn't notify the objects whether
+    they are visible. Instead, the results are kept until
+    notifyVisible() is called, usually on the update thread.
+    The methods that change the objects throw an
+    UnsupportedOperationException.
+*/
+public class GameObjectSnapshot implements GameObjectManager {
+
+    /**
+        The copy of one object.
+    */
+    private static class Entry {
+        GameObject object;
+        // draws the copied PolygonGroup
+        GameObject copy;
+        float x;
+        float z;
+        float radius;
+        boolean markedVisible;
+        boolean visible;
+    }
+
+    private List entries;
+    // copies kept between captures, by object
+    private HashMap copies;
+    private List objects;
+    private GameObject player;
+    private boolean drawn;
+
+    /**
+        Creates a new, empty GameObjectSnapshot.
+    */
+    public GameObjectSnapshot() {
+        entries = new ArrayList();
+        copies = new HashMap();
+        objects = new ArrayList();
+    }
+
+
+    /**
+        Copies the objects of the specified manager into this
+        snapshot, replacing the previous copy. Copies of objects
+        that are still in the manager are reused.
+    */
+    public void capture(GameObjectManager manager) {
+        HashMap oldCopies = copies;
+        copies = new HashMap();
+        entries.clear();
+        objects.clear();
+        player = manager.getPlayer();
+        drawn = false;
+        Iterator i = manager.iterator();
+        while (i.hasNext()) {
+            GameObject object = (GameObject)i.next();
+            PolygonGroup group = object.getPolygonGroup();
+            Entry entry = (Entry)oldCopies.get(object);
+            if (entry == null || !entry.copy.getPolygonGroup().
+                setTransformsTo(group))
+            {
+                entry = new Entry();
+                entry.object = object;
+                entry.copy = new GameObject(
+                    (PolygonGroup)group.clone());
+                entry.radius = group.getBoundingRadius();
+            }
+            entry.x = object.getX();
+            entry.z = object.getZ();
+            entry.markedVisible = false;
+            entry.visible = false;
+            copies.put(object, entry);
+            entries.add(entry);
+            objects.add(object);
+        }
+    }
+
+
+    /**
+        Notifies the objects (except the player) whether they
+        were visible the last time this snapshot was drawn. Does
+        nothing if it wasn't drawn since it was captured, and
+        skips objects destroyed since then. Call this on the
+        thread that updates the objects.
+    */
+    public void notifyVisible() {
+        if (!drawn) {
+            return;
+        }
+        for (int i=0; i<entries.size(); i++) {
+            Entry entry = (Entry)entries.get(i);
+            if (entry.object != player &&
+                !entry.object.isDestroyed())
+            {
+                entry.object.getListener().notifyVisible(
+                    entry.object, entry.visible);
+            }
+        }
+    }
+
+
+    /**
+        Marks all objects whose bounds reach the specified 2D
+        bounds as potentially visible (should be drawn).
+    */
+    public void markVisible(Rectangle bounds) {
+        for (int i=0; i<entries.size(); i++) {
+            Entry entry = (Entry)entries.get(i);
+            if (entry.x + entry.radius >= bounds.x &&
+                entry.x - entry.radius <= bounds.x + bounds.width &&
+                entry.z + entry.radius >= bounds.y &&
+                entry.z - entry.radius <= bounds.y + bounds.height)
+            {
+                entry.markedVisible = true;
+            }
+        }
+    }
+
+
+    /**
+        Marks all objects as potentially visible (should be drawn).
+    */
+    public void markAllVisible() {
+        for (int i=0; i<entries.size(); i++) {
+            ((Entry)entries.get(i)).markedVisible = true;
+        }
+    }
+
+
+    /**
+        Does nothing; objects are marked by their bounds only.
+    */
+    public void setVisibleLeaves(BSPTree tree, BitSet leaves) {
+        // do nothing
+    }
+
+
+    /**
+        Draws the copies of all visible objects, and marks all
+        objects as not visible.
+    */
+    public void draw(Graphics2D g, GameObjectRenderer r) {
+        drawn = true;
+        for (int i=0; i<entries.size(); i++) {
+            Entry entry = (Entry)entries.get(i);
+            entry.visible = false;
+            if (entry.markedVisible) {
+                entry.visible = r.draw(g, entry.copy);
+                entry.markedVisible = false;
+            }
+        }
+    }
+
+
+    /**
+        Gets an iterator of the objects (not the copies) in this
+        snapshot. The objects may have changed since the
+        snapshot was captured.
+    */
+    public Iterator iterator() {
+        return Collections.unmodifiableList(objects).iterator();
+    }
+
+
+    /**
+        Gets the player object when the snapshot was captured.
+    */
+    public GameObject getPlayer() {
+        return player;
+    }
+
+
+    /**
+        Throws an UnsupportedOperationException.
+    */
+    public void add(GameObject object) {
+        throw new UnsupportedOperationException();
+    }
+
+
+    /**
+        Throws an UnsupportedOperationException.
+    */
+    public void addPlayer(GameObject player) {
+        throw new UnsupportedOperationException();
+    }
+
+
+    /**
+        Throws an UnsupportedOperationException.
+    */
+    public void remove(GameObject object) {
+        throw new UnsupportedOperationException();
+    }
+
+
+    /**
+        Throws an UnsupportedOperationException.
+    */
+    public void update(long elapsedTime) {
+        throw new UnsupportedOperationException();
+    }
+}
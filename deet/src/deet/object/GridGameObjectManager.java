@@ -4,7 +4,9 @@ import java.awt.Rectangle;
 import java.awt.Graphics2D;
 import java.util.*;
 
+import deet.bsp2D.BSPTree;
 import deet.math3D.*;
+import deet.util.Profiler;
 
 /**
     The GridGameObjectManager is a GameObjectManager that
@@ -28,6 +30,7 @@ public class GridGameObjectManager implements GameObjectManager {
     private static class Cell {
         List objects;
         boolean visible;
+        BitSet leaves;
 
         Cell() {
             objects = new ArrayList();
@@ -44,6 +47,8 @@ public class GridGameObjectManager implements GameObjectManager {
     private GameObject player;
     private Vector3D oldLocation;
     private CollisionDetection collisionDetection;
+    private BSPTree leafTree;
+    private BitSet visibleLeaves;
 
     /**
         Creates a new GridGameObjectManager with the specified
@@ -93,6 +98,51 @@ public class GridGameObjectManager implements GameObjectManager {
     }
 
 
+    /**
+        Sets the leaves of the BSP tree that are potentially
+        visible. When set, markVisible() only marks cells that
+        overlap at least one of those leaves.
+    */
+    public void setVisibleLeaves(BSPTree tree, BitSet leaves) {
+        if (leaves != null && tree != leafTree) {
+            // find the leaves that overlap each cell
+            for (int i=0; i<grid.length; i++) {
+                grid[i].leaves = new BitSet();
+            }
+            List treeLeaves = tree.getLeaves();
+            for (int i=0; i<treeLeaves.size(); i++) {
+                BSPTree.Leaf leaf = (BSPTree.Leaf)treeLeaves.get(i);
+                if (leaf.bounds != null) {
+                    addLeafToCells(i, leaf.bounds);
+                }
+            }
+            leafTree = tree;
+        }
+        visibleLeaves = leaves;
+    }
+
+
+    /**
+        Adds a leaf index to every cell within the specified
+        2D bounds.
+    */
+    private void addLeafToCells(int leafIndex, Rectangle bounds) {
+        int x1 = Math.max(0, convertMapXtoGridX(bounds.x));
+        int y1 = Math.max(0, convertMapYtoGridY(bounds.y));
+        int x2 = Math.min(gridWidth-1,
+            convertMapXtoGridX(bounds.x + bounds.width));
+        int y2 = Math.min(gridHeight-1,
+            convertMapYtoGridY(bounds.y + bounds.height));
+
+        for (int y=y1; y<=y2; y++) {
+            int offset = y * gridWidth;
+            for (int x=x1; x<=x2; x++) {
+                grid[offset+x].leaves.set(leafIndex);
+            }
+        }
+    }
+
+
     /**
         Marks all objects within the specified 2D bounds
         as potentially visible (should be drawn).
@@ -108,7 +158,13 @@ public class GridGameObjectManager implements GameObjectManager {
         for (int y=y1; y<=y2; y++) {
             int offset = y * gridWidth;
             for (int x=x1; x<=x2; x++) {
-                grid[offset+x].visible = true;
+                Cell cell = grid[offset+x];
+                // skip cells with no potentially visible leaves
+                if (visibleLeaves == null ||
+                    cell.leaves.intersects(visibleLeaves))
+                {
+                    cell.visible = true;
+                }
             }
         }
     }
@@ -209,6 +265,7 @@ public class GridGameObjectManager implements GameObjectManager {
         from the last update and applied collision detection.
     */
     public void update(long elapsedTime) {
+        long startTime = Profiler.start();
         for (int i=0; i<allObjects.size(); i++) {
             GameObject object = (GameObject)allObjects.get(i);
 
@@ -245,6 +302,7 @@ public class GridGameObjectManager implements GameObjectManager {
             {
 
                 // check walls, floors, and ceilings
+                long collisionStartTime = Profiler.start();
                 collisionDetection.checkBSP(object,
                     oldLocation, elapsedTime);
 
@@ -253,6 +311,7 @@ public class GridGameObjectManager implements GameObjectManager {
                     // revert to old position
                     object.getLocation().setTo(oldLocation);
                 }
+                Profiler.end(Profiler.COLLISION, collisionStartTime);
 
                 // update grid location
                 Cell cell = getCell(object);
@@ -279,6 +338,7 @@ public class GridGameObjectManager implements GameObjectManager {
             }
             spawnedObjects.clear();
         }
+        Profiler.end(Profiler.UPDATE, startTime);
     }
 
 
@@ -4,6 +4,7 @@ import java.awt.Rectangle;
 import java.awt.Graphics2D;
 import java.util.*;
 
+import deet.bsp2D.BSPTree;
 import deet.object.GameObjectRenderer;
 
 /**
@@ -42,6 +43,15 @@ public class SimpleGameObjectManager implements GameObjectManager {
     }
 
 
+    /**
+        Does nothing; the SimpleGameObjectManager doesn't track
+        leaves.
+    */
+    public void setVisibleLeaves(BSPTree tree, BitSet leaves) {
+        // do nothing
+    }
+
+
     /**
         Marks all objects within the specified 2D bounds
         as potentially visible (should be drawn).
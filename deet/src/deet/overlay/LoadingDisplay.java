@@ -0,0 +1,96 @@
+package deet.overlay;
+
+import java.awt.*;
+
+import deet.bsp2D.MapLoadListener;
+import deet.graphics3D.Overlay;
+import deet.math3D.ViewWindow;
+
+/**
+    The LoadingDisplay shows the stage and progress of a map
+    loading in the background, as text and a bar along the
+    bottom of the view. It is a MapLoadListener, so it can be
+    given to a MapLoader on the loading thread, and is enabled
+    from the time start() is called until the map is loaded.
+*/
+public class LoadingDisplay implements Overlay, MapLoadListener {
+
+    private static final Color BACKGROUND = new Color(0, 0, 0, 160);
+    private static final Color BAR_COLOR = new Color(0x40a0ff);
+
+    private String name;
+    private String stage;
+    private float progress;
+    private boolean loading;
+    private Font font;
+
+    /**
+        Starts showing the progress of loading the named map.
+    */
+    public synchronized void start(String name) {
+        this.name = name;
+        stage = "Starting";
+        progress = 0;
+        loading = true;
+    }
+
+
+    /**
+        Stops showing the progress, for example if loading
+        failed.
+    */
+    public synchronized void stop() {
+        loading = false;
+    }
+
+
+    public synchronized void loadProgress(String stage,
+        float progress)
+    {
+        this.stage = stage;
+        this.progress = progress;
+        if (progress >= 1) {
+            loading = false;
+        }
+    }
+
+
+    public void update(long elapsedTime) {
+        // do nothing
+    }
+
+    public void draw(Graphics2D g, ViewWindow window) {
+        String text;
+        float progress;
+        synchronized (this) {
+            text = "Loading " + name + ": " + stage + "...";
+            progress = this.progress;
+        }
+
+        // set the font (scaled for this view window)
+        int fontHeight = Math.max(9, window.getHeight() / 40);
+        if (font == null || fontHeight != font.getSize()) {
+            font = new Font("Dialog", Font.PLAIN, fontHeight);
+        }
+        g.setFont(font);
+        int barWidth = Math.max(window.getWidth() / 3,
+            g.getFontMetrics().stringWidth(text) + fontHeight / 2);
+        int barHeight = fontHeight / 2;
+        int x = window.getLeftOffset() + fontHeight / 2;
+        int y = window.getTopOffset() + window.getHeight() -
+            fontHeight * 2;
+
+        g.setColor(BACKGROUND);
+        g.fillRect(x, y - fontHeight, barWidth,
+            fontHeight * 3 / 2 + barHeight);
+        g.setColor(Color.WHITE);
+        g.drawString(text, x + fontHeight / 4, y);
+        g.setColor(BAR_COLOR);
+        g.fillRect(x, y + fontHeight / 3,
+            (int)(barWidth * progress), barHeight);
+    }
+
+    public synchronized boolean isEnabled() {
+        return loading;
+    }
+}
@@ -0,0 +1,96 @@
+package deet.overlay;
+
+import java.awt.*;
+
+import deet.graphics3D.Overlay;
+import deet.math3D.ViewWindow;
+import deet.util.Profiler;
+
+/**
+    The ProfilerDisplay shows the average and maximum time of each
+    Profiler stage, as text and a bar per stage, while the
+    Profiler is enabled. The times are read twice per second so
+    they are readable.
+*/
+public class ProfilerDisplay implements Overlay {
+
+    private static final long REFRESH_TIME = 500;
+    private static final Color BACKGROUND = new Color(0, 0, 0, 160);
+    private static final Color BAR_COLOR = new Color(0x40a0ff);
+    private static final Color MAX_COLOR = new Color(0x204060);
+
+    private long[] averageTimes = new long[Profiler.NUM_STAGES + 1];
+    private long[] maxTimes = new long[Profiler.NUM_STAGES + 1];
+    private long timeUntilRefresh;
+    private Font font;
+
+    public void update(long elapsedTime) {
+        timeUntilRefresh-=elapsedTime;
+        if (timeUntilRefresh <= 0) {
+            timeUntilRefresh = REFRESH_TIME;
+            for (int i=0; i<=Profiler.NUM_STAGES; i++) {
+                averageTimes[i] = Profiler.getAverageTime(i);
+                maxTimes[i] = Profiler.getMaxTime(i);
+            }
+        }
+    }
+
+    public void draw(Graphics2D g, ViewWindow window) {
+
+        // set the font (scaled for this view window)
+        int fontHeight = Math.max(9, window.getHeight() / 40);
+        if (font == null || fontHeight != font.getSize()) {
+            font = new Font("Dialog", Font.PLAIN, fontHeight);
+        }
+        g.setFont(font);
+        int lineHeight = fontHeight + fontHeight / 3;
+        int textWidth = fontHeight * 16;
+        int barWidth = window.getWidth() / 4;
+        int x = window.getLeftOffset() + window.getWidth() -
+            textWidth - barWidth - fontHeight;
+        int y = window.getTopOffset() + fontHeight / 2;
+
+        g.setColor(BACKGROUND);
+        g.fillRect(x, y, textWidth + barWidth + fontHeight / 2,
+            lineHeight * (Profiler.NUM_STAGES + 1) + fontHeight / 2);
+
+        // the bars are scaled to the longest frame
+        long frameTime = averageTimes[Profiler.NUM_STAGES];
+        long scale = Math.max(1, maxTimes[Profiler.NUM_STAGES]);
+        x+=fontHeight / 4;
+        for (int i=0; i<=Profiler.NUM_STAGES; i++) {
+            y+=lineHeight;
+            String name = (i == Profiler.NUM_STAGES)?"frame":
+                Profiler.getStageName(i);
+            g.setColor(Color.WHITE);
+            g.drawString(name + ": " + toMillis(averageTimes[i]) +
+                " (max " + toMillis(maxTimes[i]) + ")", x, y);
+
+            int barX = x + textWidth;
+            int barY = y - fontHeight * 2 / 3;
+            g.setColor(MAX_COLOR);
+            g.fillRect(barX, barY,
+                (int)(barWidth * maxTimes[i] / scale),
+                fontHeight * 2 / 3);
+            g.setColor(BAR_COLOR);
+            g.fillRect(barX, barY,
+                (int)(barWidth * averageTimes[i] / scale),
+                fontHeight * 2 / 3);
+            if (i == Profiler.NUM_STAGES && frameTime > 0) {
+                // frames per second, next to the frame bar
+                g.setColor(Color.WHITE);
+                g.drawString(1000000000L / frameTime + " fps",
+                    barX + barWidth / 2, y);
+            }
+        }
+    }
+
+    public boolean isEnabled() {
+        return Profiler.isProfiling();
+    }
+
+
+    private static String toMillis(long nanos) {
+        return (nanos / 10000) / 100f + "ms";
+    }
+}
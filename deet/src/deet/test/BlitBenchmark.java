@@ -0,0 +1,84 @@
+package deet.test;
+
+import java.awt.Graphics2D;
+import java.awt.GraphicsEnvironment;
+import java.awt.image.BufferedImage;
+
+import deet.graphics3D.texture.PixelFormat;
+
+/**
+    The BlitBenchmark draws a double buffer in each PixelFormat
+    onto a screen-sized image many times, and prints the average
+    time per frame. This is the cost of
+    FastTexturedPolygonRenderer.endFrame(), not counting the
+    screen itself. The destination is an image compatible with
+    the screen, or a TYPE_INT_RGB image if there is no screen.
+    No window is opened.
+    <p>Usage: BlitBenchmark [width] [height] [frames]
+*/
+public class BlitBenchmark {
+
+    public static void main(String[] args) {
+        int width = (args.length > 1)?Integer.parseInt(args[0]):1024;
+        int height = (args.length > 1)?Integer.parseInt(args[1]):768;
+        int numFrames = (args.length > 2)?
+            Integer.parseInt(args[2]):500;
+
+        BufferedImage screen;
+        if (GraphicsEnvironment.isHeadless()) {
+            screen = new BufferedImage(width, height,
+                BufferedImage.TYPE_INT_RGB);
+        }
+        else {
+            screen = GraphicsEnvironment.
+                getLocalGraphicsEnvironment().
+                getDefaultScreenDevice().getDefaultConfiguration().
+                createCompatibleImage(width, height);
+        }
+        PixelFormat[] formats = {
+            PixelFormat.RGB_565, PixelFormat.RGB_888 };
+
+        System.out.println("Size: " + width + "x" + height +
+            ", destination type: " + screen.getType() + ", " +
+            numFrames + " frames");
+        for (int i=0; i<2; i++) {
+            // first pass warms up the VM
+            for (int j=0; j<formats.length; j++) {
+                long time = blit(formats[j], screen, numFrames);
+                if (i == 1) {
+                    System.out.println(formats[j] + ": " +
+                        (time / numFrames / 1000) + "us/frame");
+                }
+            }
+        }
+    }
+
+
+    /**
+        Draws a double buffer in the specified format onto the
+        screen image the specified number of times, and returns
+        the total time in nanoseconds.
+    */
+    private static long blit(PixelFormat format,
+        BufferedImage screen, int numFrames)
+    {
+        int width = screen.getWidth();
+        int height = screen.getHeight();
+        BufferedImage doubleBuffer = format.createImage(width,
+            height);
+        for (int y=0; y<height; y++) {
+            for (int x=0; x<width; x++) {
+                doubleBuffer.setRGB(x, y, (x * 255 / width) << 16 |
+                    (y * 255 / height) << 8 | ((x ^ y) & 0xff));
+            }
+        }
+        Graphics2D g = screen.createGraphics();
+        long startTime = System.nanoTime();
+        for (int i=0; i<numFrames; i++) {
+            g.drawImage(doubleBuffer, 0, 0, null);
+        }
+        long time = System.nanoTime() - startTime;
+        g.dispose();
+        return time;
+    }
+}
@@ -0,0 +1,125 @@
+package deet.test;
+
+/**
+    The MicroBenchmark class times one small operation, like
+    rendering a scan or clearing a buffer, accurately enough to
+    compare the results from different builds. The operation is
+    run in timed iterations of many calls each: first some
+    warm-up iterations (so HotSpot compiles it), then the
+    measured iterations. The result is the mean time per call and
+    its standard deviation across the measured iterations.
+    <p>Subclasses implement run(), which does the operation once
+    and returns any value computed from its result. The values
+    are summed and kept, so HotSpot can't skip the work.
+*/
+public abstract class MicroBenchmark {
+
+    // the sum of every value returned by run()
+    private static volatile int sink;
+
+    private String name;
+
+    /**
+        Creates a new MicroBenchmark with the specified name.
+    */
+    public MicroBenchmark(String name) {
+        this.name = name;
+    }
+
+
+    /**
+        Gets the name of this benchmark.
+    */
+    public String getName() {
+        return name;
+    }
+
+
+    /**
+        Prepares the fixtures for this benchmark. Called once,
+        before any iterations. Does nothing by default.
+    */
+    public void setUp() {
+        // do nothing
+    }
+
+
+    /**
+        Does the operation once. Returns any value computed from
+        its result.
+    */
+    public abstract int run();
+
+
+    /**
+        Runs this benchmark and returns the mean time per call
+        (index 0) and its standard deviation (index 1), in
+        nanoseconds. Each iteration lasts about the specified
+        number of milliseconds.
+    */
+    public double[] measure(int numWarmups, int numIterations,
+        long iterationTime)
+    {
+        setUp();
+
+        // find how many calls fill an iteration
+        long targetTime = iterationTime * 1000000;
+        int calls = 1;
+        long time = runIteration(calls);
+        while (time < targetTime / 10 && calls < (1 << 30)) {
+            calls*=2;
+            time = runIteration(calls);
+        }
+        calls = getCalls(calls, time, targetTime);
+
+        // the count is found again after each warm-up, in case
+        // the first calls were slow (not compiled yet)
+        for (int i=0; i<numWarmups; i++) {
+            time = runIteration(calls);
+            calls = getCalls(calls, time, targetTime);
+        }
+        double[] times = new double[numIterations];
+        double total = 0;
+        for (int i=0; i<numIterations; i++) {
+            times[i] = (double)runIteration(calls) / calls;
+            total+=times[i];
+        }
+        double mean = total / numIterations;
+        double variance = 0;
+        for (int i=0; i<numIterations; i++) {
+            variance+=(times[i] - mean) * (times[i] - mean);
+        }
+        if (numIterations > 1) {
+            variance/=(numIterations - 1);
+        }
+        return new double[] { mean, Math.sqrt(variance) };
+    }
+
+
+    /**
+        Gets how many calls fill the target time, if the
+        specified number of calls took the specified time.
+    */
+    private static int getCalls(int calls, long time,
+        long targetTime)
+    {
+        return (int)Math.max(1, Math.min(Integer.MAX_VALUE,
+            (double)calls * targetTime / Math.max(1, time)));
+    }
+
+
+    /**
+        Calls run() the specified number of times and returns
+        the total time in nanoseconds.
+    */
+    private long runIteration(int calls) {
+        int sum = 0;
+        long startTime = System.nanoTime();
+        for (int i=0; i<calls; i++) {
+            sum+=run();
+        }
+        long time = System.nanoTime() - startTime;
+        sink+=sum;
+        return time;
+    }
+}
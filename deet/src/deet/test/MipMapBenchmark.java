@@ -0,0 +1,218 @@
+package deet.test;
+
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import javax.imageio.ImageIO;
+
+import deet.graphics3D.*;
+import deet.graphics3D.texture.*;
+import deet.math3D.*;
+
+/**
+    The MipMapBenchmark draws two scenes with and without
+    mip-mapping and prints the average time per frame: a long
+    textured corridor (floor, ceiling and walls), which is mostly
+    magnified close up, and a distant wall, where every pixel
+    covers about 16x16 texels. ShadedTextures are drawn with a
+    ZBufferedRenderer and PowerOf2Textures with a
+    FastTexturedPolygonRenderer. No window is opened.
+    <p>Usage: MipMapBenchmark [textureFile] [width] [height]
+    [frames] [textureSize]
+    <p>If textureSize is given, the texture image is scaled to
+    that size first (large textures are where mip-mapping helps
+    most, since they don't fit in the CPU cache).
+*/
+public class MipMapBenchmark {
+
+    private static final float CORRIDOR_WIDTH = 512;
+    private static final float CORRIDOR_HEIGHT = 256;
+    private static final float CORRIDOR_LENGTH = 16384;
+    // texels per pixel on the distant wall
+    private static final float WALL_MINIFICATION = 16;
+
+    public static void main(String[] args) {
+        String textureFile = (args.length > 0)?args[0]:
+            "../images/test_pattern.png";
+        int width = (args.length > 1)?Integer.parseInt(args[1]):1024;
+        int height = (args.length > 2)?Integer.parseInt(args[2]):768;
+        int numFrames = (args.length > 3)?
+            Integer.parseInt(args[3]):200;
+
+        BufferedImage textureImage;
+        try {
+            textureImage = ImageIO.read(new File(textureFile));
+        }
+        catch (IOException ex) {
+            ex.printStackTrace();
+            return;
+        }
+        if (args.length > 4) {
+            int size = Integer.parseInt(args[4]);
+            BufferedImage scaled = new BufferedImage(size, size,
+                BufferedImage.TYPE_INT_RGB);
+            Graphics2D g = scaled.createGraphics();
+            g.drawImage(textureImage, 0, 0, size, size, null);
+            g.dispose();
+            textureImage = scaled;
+        }
+        Texture shaded = Texture.createTexture(textureImage, true);
+        Texture unshaded = Texture.createTexture(textureImage, false);
+
+        Transform3D camera = new Transform3D();
+        ViewWindow view = new ViewWindow(0, 0, width, height,
+            (float)Math.toRadians(75));
+        BufferedImage image = new BufferedImage(width, height,
+            BufferedImage.TYPE_INT_RGB);
+
+        System.out.println("Size: " + width + "x" + height +
+            ", texture: " + shaded.getWidth() + "x" +
+            shaded.getHeight() + ", " + numFrames + " frames");
+        for (int i=0; i<2; i++) {
+            // first pass warms up the VM
+            boolean print = (i == 1);
+            run("Corridor, ShadedTexture",
+                new ZBufferedRenderer(camera, view),
+                createCorridor(shaded), camera, image, numFrames,
+                print);
+            run("Corridor, PowerOf2Texture",
+                new FastTexturedPolygonRenderer(camera, view),
+                createCorridor(unshaded), camera, image, numFrames,
+                print);
+            run("Distant wall, ShadedTexture",
+                new ZBufferedRenderer(camera, view),
+                createDistantWall(shaded, view), camera, image,
+                numFrames, print);
+            run("Distant wall, PowerOf2Texture",
+                new FastTexturedPolygonRenderer(camera, view),
+                createDistantWall(unshaded, view), camera, image,
+                numFrames, print);
+        }
+    }
+
+
+    /**
+        Draws the polygons with mip-mapping off and on, and
+        prints the average time per frame for each.
+    */
+    private static void run(String name,
+        FastTexturedPolygonRenderer renderer, List polygons,
+        Transform3D camera, BufferedImage image, int numFrames,
+        boolean print)
+    {
+        renderer.setMipMapping(false);
+        long time1 = drawFrames(renderer, polygons, camera, image,
+            numFrames);
+        renderer.setMipMapping(true);
+        long time2 = drawFrames(renderer, polygons, camera, image,
+            numFrames);
+        if (print) {
+            System.out.println(name + ": " +
+                (time1 / numFrames / 1000) + "us/frame without " +
+                "mip-maps, " + (time2 / numFrames / 1000) +
+                "us/frame with mip-maps");
+        }
+    }
+
+
+    /**
+        Draws the specified number of frames looking down the
+        corridor, and returns the total time in nanoseconds.
+    */
+    private static long drawFrames(PolygonRenderer renderer,
+        List polygons, Transform3D camera, BufferedImage image,
+        int numFrames)
+    {
+        Graphics2D g = image.createGraphics();
+        long startTime = System.nanoTime();
+        for (int i=0; i<numFrames; i++) {
+            // look around a little
+            float angle = (float)Math.sin(i * .05) * .4f;
+            camera.getLocation().setTo(0, CORRIDOR_HEIGHT/2, 0);
+            camera.setAngle((float)Math.sin(i * .03) * .1f, angle,
+                0);
+            renderer.startFrame(g);
+            for (int j=0; j<polygons.size(); j++) {
+                renderer.draw(g, (Polygon3D)polygons.get(j));
+            }
+            renderer.endFrame(g);
+        }
+        long time = System.nanoTime() - startTime;
+        g.dispose();
+        return time;
+    }
+
+
+    /**
+        Creates the polygons of a corridor going down the
+        negative z axis, facing in.
+    */
+    private static List createCorridor(Texture texture) {
+        float x1 = -CORRIDOR_WIDTH/2;
+        float x2 = CORRIDOR_WIDTH/2;
+        float y1 = 0;
+        float y2 = CORRIDOR_HEIGHT;
+        float z1 = CORRIDOR_LENGTH/64;
+        float z2 = -CORRIDOR_LENGTH;
+        Vector3D unitX = new Vector3D(1, 0, 0);
+        Vector3D unitY = new Vector3D(0, 1, 0);
+        Vector3D unitZ = new Vector3D(0, 0, 1);
+        List polygons = new ArrayList();
+        // floor
+        polygons.add(createPolygon(texture, unitX, unitZ,
+            new Vector3D(x1, y1, z1), new Vector3D(x2, y1, z1),
+            new Vector3D(x2, y1, z2), new Vector3D(x1, y1, z2)));
+        // ceiling
+        polygons.add(createPolygon(texture, unitX, unitZ,
+            new Vector3D(x1, y2, z2), new Vector3D(x2, y2, z2),
+            new Vector3D(x2, y2, z1), new Vector3D(x1, y2, z1)));
+        // left wall
+        polygons.add(createPolygon(texture, unitZ, unitY,
+            new Vector3D(x1, y2, z1), new Vector3D(x1, y1, z1),
+            new Vector3D(x1, y1, z2), new Vector3D(x1, y2, z2)));
+        // right wall
+        polygons.add(createPolygon(texture, unitZ, unitY,
+            new Vector3D(x2, y2, z2), new Vector3D(x2, y1, z2),
+            new Vector3D(x2, y1, z1), new Vector3D(x2, y2, z1)));
+        return polygons;
+    }
+
+
+    /**
+        Creates a wall facing the camera, far enough away that
+        each pixel covers WALL_MINIFICATION texels across, and
+        big enough to fill the view as the camera looks around.
+    */
+    private static List createDistantWall(Texture texture,
+        ViewWindow view)
+    {
+        float z = -view.getDistance() * WALL_MINIFICATION;
+        float halfWidth = view.getWidth() * WALL_MINIFICATION;
+        float halfHeight = view.getHeight() * WALL_MINIFICATION;
+        float y = CORRIDOR_HEIGHT/2;
+        List polygons = new ArrayList();
+        polygons.add(createPolygon(texture, new Vector3D(1, 0, 0),
+            new Vector3D(0, 1, 0),
+            new Vector3D(-halfWidth, y + halfHeight, z),
+            new Vector3D(-halfWidth, y - halfHeight, z),
+            new Vector3D(halfWidth, y - halfHeight, z),
+            new Vector3D(halfWidth, y + halfHeight, z)));
+        return polygons;
+    }
+
+
+    private static TexturedPolygon3D createPolygon(Texture texture,
+        Vector3D directionU, Vector3D directionV,
+        Vector3D v0, Vector3D v1, Vector3D v2, Vector3D v3)
+    {
+        TexturedPolygon3D poly = new TexturedPolygon3D(
+            v0, v1, v2, v3);
+        poly.setTexture(texture, new Rectangle3D(
+            v0, directionU, directionV,
+            texture.getWidth(), texture.getHeight()));
+        return poly;
+    }
+}
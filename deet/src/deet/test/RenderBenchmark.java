@@ -0,0 +1,426 @@
+package deet.test;
+
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.*;
+import java.util.*;
+
+import deet.bsp2D.*;
+import deet.game.ResolutionController;
+import deet.graphics3D.*;
+import deet.graphics3D.texture.*;
+import deet.math3D.*;
+import deet.object.*;
+import deet.util.Profiler;
+
+/**
+    The RenderBenchmark draws a map the way ShooterCore does (same
+    lights, BSPRenderer and game objects), but into an offscreen
+    image, so it runs without a display (for example, with
+    -Djava.awt.headless=true on a build server). The camera
+    follows a scripted path, so every run draws the same frames.
+    The path is drawn once to warm up the VM and the surface
+    cache, then again while timing each frame. It prints the
+    frame time percentiles, and the polygons and pixels drawn
+    per frame. With -profile, it also prints the average time of
+    each Profiler stage in the timed pass. With -budget, the
+    resolution is lowered when frames take longer than the
+    budget (see ResolutionController), and the render scale of
+    the timed pass is printed. With -light, a dynamic light with
+    the specified distance falloff follows the camera, moved
+    every frame with a DynamicLightManager, and the time and
+    number of shade map samples it updates are printed. With
+    -vectorspans, 32-bit spans are copied with the Vector API
+    (see Texture.setVectorSpans()); build src-vector and run
+    with --add-modules jdk.incubator.vector.
+    <p>Usage: RenderBenchmark [mapFile] [-size WIDTHxHEIGHT]
+    [-path pathFile] [-steps n] [-bands n] [-portals]
+    [-intpixels] [-spans] [-vectorspans] [-profile]
+    [-budget ms] [-light falloff]
+    <p>A path file has one camera position per line: x y z
+    angleY [angleX], with angles in degrees. The camera moves
+    from each position to the next in the specified number of
+    steps (frames). Without a path file, the camera turns all
+    the way around at the player start location and at each
+    object in the map, moving in a line from one to the next.
+*/
+public class RenderBenchmark {
+
+    private static final float CAMERA_HEIGHT = 100;
+
+    public static void main(String[] args) throws IOException {
+        String mapFile = "../images/level1.map";
+        String pathFile = null;
+        int width = 640;
+        int height = 480;
+        int steps = 12;
+        int numBands = 1;
+        boolean portalCulling = false;
+        boolean profile = false;
+        boolean spanRendering = false;
+        boolean vectorSpans = false;
+        long frameBudget = 0;
+        float lightFalloff = 0;
+        PixelFormat pixelFormat = PixelFormat.RGB_565;
+        for (int i=0; i<args.length; i++) {
+            if (args[i].equals("-size") && i + 1 < args.length) {
+                String size = args[++i];
+                int x = size.indexOf('x');
+                width = Integer.parseInt(size.substring(0, x));
+                height = Integer.parseInt(size.substring(x + 1));
+            }
+            else if (args[i].equals("-path") && i + 1 < args.length)
+            {
+                pathFile = args[++i];
+            }
+            else if (args[i].equals("-steps") && i + 1 < args.length)
+            {
+                steps = Integer.parseInt(args[++i]);
+            }
+            else if (args[i].equals("-bands") && i + 1 < args.length)
+            {
+                numBands = Integer.parseInt(args[++i]);
+            }
+            else if (args[i].equals("-portals")) {
+                portalCulling = true;
+            }
+            else if (args[i].equals("-intpixels")) {
+                pixelFormat = PixelFormat.RGB_888;
+            }
+            else if (args[i].equals("-spans")) {
+                spanRendering = true;
+            }
+            else if (args[i].equals("-vectorspans")) {
+                spanRendering = true;
+                vectorSpans = true;
+            }
+            else if (args[i].equals("-profile")) {
+                profile = true;
+            }
+            else if (args[i].equals("-budget") &&
+                i + 1 < args.length)
+            {
+                frameBudget = Long.parseLong(args[++i]) * 1000000;
+            }
+            else if (args[i].equals("-light") && i + 1 < args.length)
+            {
+                lightFalloff = Float.parseFloat(args[++i]);
+            }
+            else if (!args[i].startsWith("-")) {
+                mapFile = args[i];
+            }
+        }
+        if (vectorSpans && !Texture.isVectorSpansAvailable()) {
+            System.out.println("The Vector API isn't available; " +
+                "build src-vector and run with --add-modules " +
+                "jdk.incubator.vector.");
+            return;
+        }
+
+        // load the map (same lights as ShooterCore)
+        List lights = new LinkedList();
+        lights.add(new PointLight3D(-100,100,100, .3f, -1));
+        lights.add(new PointLight3D(100,100,0, .3f, -1));
+        MapLoader loader = new MapLoader(
+            new BSPTreeBuilderWithPortals());
+        loader.setObjectLights(lights, .2f);
+        loader.setPixelFormat(pixelFormat);
+        BSPTree bspTree = loader.loadMap(mapFile);
+
+        GameObjectManager gameObjectManager =
+            new GridGameObjectManager(bspTree.calcBounds(),
+            new CollisionDetection(bspTree));
+        Iterator i = loader.getObjectsInMap().iterator();
+        while (i.hasNext()) {
+            Object object = i.next();
+            if (object instanceof PolygonGroup) {
+                gameObjectManager.add(
+                    new GameObject((PolygonGroup)object));
+            }
+            else if (object instanceof GameObject) {
+                gameObjectManager.add((GameObject)object);
+            }
+        }
+
+        // a dynamic light that follows the camera
+        DynamicLightManager lightManager = null;
+        PointLight3D dynamicLight = null;
+        if (lightFalloff > 0) {
+            lightManager = new DynamicLightManager(
+                bspTree.getShadedSurfaces());
+            dynamicLight = new PointLight3D(0, 0, 0, .5f,
+                lightFalloff);
+            lightManager.addLight(dynamicLight);
+        }
+
+        // create the path
+        List path;
+        if (pathFile != null) {
+            path = loadPath(pathFile);
+        }
+        else {
+            path = createPath(bspTree, loader);
+        }
+        if (path.size() < 2) {
+            System.out.println("The path needs at least two " +
+                "positions.");
+            return;
+        }
+        int numFrames = (path.size() - 1) * steps + 1;
+
+        Transform3D camera = new Transform3D();
+        ViewWindow viewWindow = new ViewWindow(0, 0, width, height,
+            (float)Math.toRadians(75));
+        BSPRenderer renderer = new BSPRenderer(camera, viewWindow);
+        renderer.setNumBands(numBands);
+        renderer.setPortalCulling(portalCulling);
+        renderer.setPixelFormat(pixelFormat);
+        renderer.setSpanRendering(spanRendering);
+        Texture.setVectorSpans(vectorSpans);
+        renderer.setGameObjectManager(gameObjectManager);
+        BufferedImage image = new BufferedImage(width, height,
+            BufferedImage.TYPE_INT_RGB);
+        ResolutionController resolutionController = null;
+        if (frameBudget > 0) {
+            resolutionController =
+                new ResolutionController(frameBudget);
+        }
+
+        System.out.println("Map: " + mapFile + ", " + width + "x" +
+            height + ", " + numBands + " band(s), " + pixelFormat +
+            (portalCulling?", portals":"") +
+            (spanRendering?", spans":"") +
+            (vectorSpans?" (Vector API)":"") +
+            (frameBudget > 0?", budget " +
+            toMillis(frameBudget):"") +
+            (lightFalloff > 0?", light " + lightFalloff:"") +
+            ", " + numFrames +
+            " frames");
+
+        // first pass warms up the VM and the surface cache
+        long[] frameTimes = new long[numFrames];
+        int[] polygons = new int[numFrames];
+        int[] pixels = new int[numFrames];
+        float[] scales = new float[numFrames];
+        long[] lightTimes = new long[numFrames];
+        int[] lightSamples = new int[numFrames];
+        int[] lightSurfaces = new int[numFrames];
+        Profiler.registerThread();
+        for (int pass=0; pass<2; pass++) {
+            Profiler.setProfiling(profile && pass == 1);
+            Graphics2D g = image.createGraphics();
+            for (int frame=0; frame<numFrames; frame++) {
+                setCamera(camera, path, frame, steps);
+                if (resolutionController != null) {
+                    renderer.setRenderScale(
+                        resolutionController.getScale());
+                }
+                long startTime = System.nanoTime();
+                if (lightManager != null) {
+                    dynamicLight.setTo(camera.getLocation());
+                    lightManager.update();
+                    lightTimes[frame] = System.nanoTime() - startTime;
+                    lightSamples[frame] =
+                        lightManager.getNumSamplesUpdated();
+                    lightSurfaces[frame] =
+                        lightManager.getNumSurfacesUpdated();
+                }
+                renderer.startFrame(g);
+                renderer.draw(g, bspTree);
+                long objectStartTime = Profiler.start();
+                gameObjectManager.draw(g, renderer);
+                Profiler.end(Profiler.OBJECT_RENDERING,
+                    objectStartTime);
+                renderer.endFrame(g);
+                frameTimes[frame] = System.nanoTime() - startTime;
+                if (resolutionController != null) {
+                    resolutionController.addFrame(frameTimes[frame]);
+                }
+                scales[frame] = renderer.getRenderScale();
+                Profiler.endFrame();
+                polygons[frame] = renderer.getNumPolygonsDrawn();
+                pixels[frame] = renderer.getNumPixelsDrawn();
+            }
+            g.dispose();
+        }
+        // stop the band threads
+        renderer.setNumBands(1);
+
+        long totalTime = 0;
+        long totalPolygons = 0;
+        long totalPixels = 0;
+        float totalScale = 0;
+        float minScale = 1;
+        float viewSize = 0;
+        for (int frame=0; frame<numFrames; frame++) {
+            totalTime+=frameTimes[frame];
+            totalPolygons+=polygons[frame];
+            totalPixels+=pixels[frame];
+            totalScale+=scales[frame];
+            minScale = Math.min(minScale, scales[frame]);
+            viewSize+=scales[frame] * scales[frame];
+        }
+        Arrays.sort(frameTimes);
+        System.out.println("Frame time: mean " +
+            toMillis(totalTime / numFrames) + ", p50 " +
+            toMillis(getPercentile(frameTimes, 50)) + ", p95 " +
+            toMillis(getPercentile(frameTimes, 95)) + ", p99 " +
+            toMillis(getPercentile(frameTimes, 99)) + ", max " +
+            toMillis(frameTimes[numFrames - 1]));
+        System.out.println("Polygons drawn: " +
+            (totalPolygons / numFrames) + " per frame");
+        // compared to the size of the (scaled) view
+        float overdraw = totalPixels / (viewSize * width * height);
+        System.out.println("Pixels drawn: " +
+            (totalPixels / numFrames) + " per frame (" +
+            Math.round(overdraw * 100) / 100f + "x the view)");
+        if (lightManager != null) {
+            long totalLightTime = 0;
+            long totalSamples = 0;
+            long totalSurfaces = 0;
+            for (int frame=0; frame<numFrames; frame++) {
+                totalLightTime+=lightTimes[frame];
+                totalSamples+=lightSamples[frame];
+                totalSurfaces+=lightSurfaces[frame];
+            }
+            Arrays.sort(lightTimes);
+            System.out.println("Dynamic light: update mean " +
+                toMillis(totalLightTime / numFrames) + ", max " +
+                toMillis(lightTimes[numFrames - 1]) + ", " +
+                (totalSamples / numFrames) + " samples on " +
+                (totalSurfaces / numFrames) + " surfaces per frame");
+        }
+        if (resolutionController != null) {
+            System.out.println("Render scale: mean " +
+                Math.round(totalScale / numFrames * 100) / 100f +
+                ", min " + minScale + ", " +
+                resolutionController.getNumChanges() +
+                " changes in both passes");
+        }
+
+        if (profile) {
+            // the history only holds the last frames
+            System.out.println("Stages (last " +
+                Profiler.getNumFrames() + " frames):");
+            for (int j=0; j<Profiler.NUM_STAGES; j++) {
+                System.out.println("  " + Profiler.getStageName(j) +
+                    ": mean " + toMillis(Profiler.getAverageTime(j)) +
+                    ", max " + toMillis(Profiler.getMaxTime(j)));
+            }
+            Profiler.setProfiling(false);
+        }
+    }
+
+
+    /**
+        Gets a percentile (nearest rank) of sorted values.
+    */
+    private static long getPercentile(long[] sorted,
+        int percentile)
+    {
+        int rank = (percentile * sorted.length + 99) / 100;
+        return sorted[Math.max(0, rank - 1)];
+    }
+
+
+    private static String toMillis(long nanos) {
+        return (nanos / 10000) / 100f + "ms";
+    }
+
+
+    /**
+        Moves the camera to where it is on the path at the
+        specified frame.
+    */
+    private static void setCamera(Transform3D camera, List path,
+        int frame, int steps)
+    {
+        int segment = Math.min(frame / steps, path.size() - 2);
+        float alpha = (float)(frame - segment * steps) / steps;
+        camera.setToInterpolated((Transform3D)path.get(segment),
+            (Transform3D)path.get(segment + 1), alpha);
+    }
+
+
+    /**
+        Loads a camera path. Each line is: x y z angleY [angleX],
+        with angles in degrees. Empty lines and lines starting
+        with # are ignored.
+    */
+    private static List loadPath(String filename)
+        throws IOException
+    {
+        List path = new ArrayList();
+        BufferedReader reader = new BufferedReader(
+            new FileReader(filename));
+        try {
+            while (true) {
+                String line = reader.readLine();
+                if (line == null) {
+                    break;
+                }
+                line = line.trim();
+                if (line.length() == 0 || line.startsWith("#")) {
+                    continue;
+                }
+                StringTokenizer tokenizer =
+                    new StringTokenizer(line);
+                Transform3D position = new Transform3D(
+                    Float.parseFloat(tokenizer.nextToken()),
+                    Float.parseFloat(tokenizer.nextToken()),
+                    Float.parseFloat(tokenizer.nextToken()));
+                position.setAngleY((float)Math.toRadians(
+                    Float.parseFloat(tokenizer.nextToken())));
+                if (tokenizer.hasMoreTokens()) {
+                    position.setAngleX((float)Math.toRadians(
+                        Float.parseFloat(tokenizer.nextToken())));
+                }
+                path.add(position);
+            }
+        }
+        finally {
+            reader.close();
+        }
+        return path;
+    }
+
+
+    /**
+        Creates a path that turns all the way around at the
+        player start location and at each object in the map, at
+        eye level above the floor. Each turn is split into four
+        positions, since interpolation takes the shortest way.
+    */
+    private static List createPath(BSPTree bspTree,
+        MapLoader loader)
+    {
+        List locations = new ArrayList();
+        locations.add(loader.getPlayerStartLocation().getLocation());
+        Iterator i = loader.getObjectsInMap().iterator();
+        while (i.hasNext()) {
+            Object object = i.next();
+            if (object instanceof PolygonGroup) {
+                locations.add(((PolygonGroup)object).
+                    getTransform().getLocation());
+            }
+            else if (object instanceof GameObject) {
+                locations.add(((GameObject)object).getLocation());
+            }
+        }
+
+        List path = new ArrayList();
+        for (int j=0; j<locations.size(); j++) {
+            Vector3D location = (Vector3D)locations.get(j);
+            BSPTree.Leaf leaf = bspTree.getLeaf(location.x,
+                location.z);
+            float y = (leaf == null)?location.y:leaf.floorHeight;
+            for (int k=0; k<=4; k++) {
+                Transform3D position = new Transform3D(location.x,
+                    y + CAMERA_HEIGHT, location.z);
+                position.setAngleY((float)(k * Math.PI / 2));
+                path.add(position);
+            }
+        }
+        return path;
+    }
+}
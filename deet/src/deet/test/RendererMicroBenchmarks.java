@@ -0,0 +1,594 @@
+package deet.test;
+
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.*;
+import java.util.*;
+
+import deet.graphics3D.*;
+import deet.graphics3D.texture.*;
+import deet.math3D.*;
+
+/**
+    The RendererMicroBenchmarks time the renderer's hot paths
+    with fixed fixtures: every ScanRenderer (including Method0
+    to Method3, and the span renderers used with
+    setSpanRendering(), also with 32-bit textures, with scalar
+    loops and, if the jdk.incubator.vector module is present,
+    with the Vector API (see Texture.setVectorSpans())),
+    ScanConverter.convert() and
+    SortedScanConverter.convert(), building a ShadedSurface,
+    ZBuffer.clear(), Polygon3D.clip() and project(), and
+    transforming a mesh polygon by polygon or with
+    TransformedVertices. The
+    fixture polygon is a quad with a generated texture, at an
+    angle to the camera, covering most of a 640x480 view. No
+    window is opened and no files are read.
+    <p>Build src-vector and run with --add-modules
+    jdk.incubator.vector to include the "Vector" span benchmarks
+    (32-bit only).
+    <p>Usage: RendererMicroBenchmarks [-filter text]
+    [-warmups n] [-iterations n] [-time ms] [-save file]
+    [-compare file]
+    <p>-filter runs only the benchmarks whose names contain the
+    text. -save writes the results to a file, and -compare shows
+    the change from the results in a file, so a change to a hot
+    path can be judged by running the benchmarks before and
+    after it. Changes smaller than the combined standard
+    deviation are marked with a "~".
+*/
+public class RendererMicroBenchmarks {
+
+    private static final int VIEW_WIDTH = 640;
+    private static final int VIEW_HEIGHT = 480;
+    private static final int TEXTURE_SIZE = 128;
+    private static final int MESH_SIZE = 16;
+
+    // ScanFixture methods other than Method0 to Method3
+    private static final int DEFAULT_RENDERERS = -1;
+    private static final int SPAN_RENDERERS = -2;
+    private static final int VECTOR_SPAN_RENDERERS = -3;
+
+    public static void main(String[] args) throws IOException {
+        String filter = null;
+        String saveFile = null;
+        String compareFile = null;
+        int numWarmups = 5;
+        int numIterations = 10;
+        long iterationTime = 200;
+        for (int i=0; i<args.length - 1; i++) {
+            if (args[i].equals("-filter")) {
+                filter = args[++i];
+            }
+            else if (args[i].equals("-warmups")) {
+                numWarmups = Integer.parseInt(args[++i]);
+            }
+            else if (args[i].equals("-iterations")) {
+                numIterations = Integer.parseInt(args[++i]);
+            }
+            else if (args[i].equals("-time")) {
+                iterationTime = Long.parseLong(args[++i]);
+            }
+            else if (args[i].equals("-save")) {
+                saveFile = args[++i];
+            }
+            else if (args[i].equals("-compare")) {
+                compareFile = args[++i];
+            }
+        }
+        Map baseline = (compareFile == null)?null:
+            loadResults(compareFile);
+
+        Fixtures fixtures = new Fixtures();
+        List benchmarks = createBenchmarks(fixtures);
+        System.out.println("Fixture polygon: " +
+            fixtures.numPixels + " pixels in a " + VIEW_WIDTH + "x" +
+            VIEW_HEIGHT + " view; " + numWarmups + " warm-ups, " +
+            numIterations + " iterations of " + iterationTime +
+            "ms");
+        System.out.println(pad("Benchmark", 46) +
+            pad("ns/op", 12) + pad("+/-", 10) +
+            ((baseline == null)?"":"change"));
+
+        PrintWriter out = null;
+        if (saveFile != null) {
+            out = new PrintWriter(new FileWriter(saveFile));
+        }
+        for (int i=0; i<benchmarks.size(); i++) {
+            MicroBenchmark benchmark =
+                (MicroBenchmark)benchmarks.get(i);
+            String name = benchmark.getName();
+            if (filter != null && name.indexOf(filter) == -1) {
+                continue;
+            }
+            double[] result = benchmark.measure(numWarmups,
+                numIterations, iterationTime);
+            String line = pad(name, 46) +
+                pad(format(result[0]), 12) +
+                pad(format(result[1]), 10);
+            if (baseline != null && baseline.containsKey(name)) {
+                double[] old = (double[])baseline.get(name);
+                double change = (result[0] - old[0]) / old[0];
+                line+=(change >= 0?"+":"") +
+                    format(change * 100) + "%";
+                if (Math.abs(result[0] - old[0]) <=
+                    result[1] + old[1])
+                {
+                    line+=" ~";
+                }
+            }
+            System.out.println(line);
+            if (out != null) {
+                out.println(name + " " + result[0] + " " +
+                    result[1]);
+            }
+        }
+        if (out != null) {
+            out.close();
+        }
+    }
+
+
+    /**
+        Loads results written with -save, as a map of names to
+        {mean, deviation} arrays.
+    */
+    private static Map loadResults(String filename)
+        throws IOException
+    {
+        Map results = new HashMap();
+        BufferedReader reader = new BufferedReader(
+            new FileReader(filename));
+        try {
+            while (true) {
+                String line = reader.readLine();
+                if (line == null) {
+                    break;
+                }
+                StringTokenizer tokenizer =
+                    new StringTokenizer(line);
+                if (tokenizer.countTokens() == 3) {
+                    results.put(tokenizer.nextToken(),
+                        new double[] {
+                        Double.parseDouble(tokenizer.nextToken()),
+                        Double.parseDouble(tokenizer.nextToken())
+                    });
+                }
+            }
+        }
+        finally {
+            reader.close();
+        }
+        return results;
+    }
+
+
+    private static String format(double value) {
+        return String.valueOf(Math.round(value * 10) / 10.0);
+    }
+
+
+    private static String pad(String s, int width) {
+        StringBuffer buffer = new StringBuffer(s);
+        while (buffer.length() < width) {
+            buffer.append(' ');
+        }
+        return buffer.toString();
+    }
+
+
+    /**
+        The fixed textures and polygons every benchmark uses.
+    */
+    private static class Fixtures {
+        Transform3D camera = new Transform3D();
+        ViewWindow view = new ViewWindow(0, 0, VIEW_WIDTH,
+            VIEW_HEIGHT, (float)Math.toRadians(75));
+        BufferedImage image = new BufferedImage(VIEW_WIDTH,
+            VIEW_HEIGHT, BufferedImage.TYPE_INT_RGB);
+        Texture texture;
+        ShadedTexture shadedTexture;
+        TexturedPolygon3D polygon;
+        TexturedPolygon3D shadedPolygon;
+        TexturedPolygon3D surfacePolygon;
+        // the same polygons, with 32-bit textures
+        TexturedPolygon3D intPolygon;
+        TexturedPolygon3D intShadedPolygon;
+        TexturedPolygon3D intSurfacePolygon;
+        PolygonGroup mesh;
+        int numPixels;
+
+        Fixtures() {
+            // a texture with detail at every scale
+            BufferedImage textureImage = new BufferedImage(
+                TEXTURE_SIZE, TEXTURE_SIZE,
+                BufferedImage.TYPE_INT_RGB);
+            for (int y=0; y<TEXTURE_SIZE; y++) {
+                for (int x=0; x<TEXTURE_SIZE; x++) {
+                    textureImage.setRGB(x, y, (x * 2) << 16 |
+                        (y * 2) << 8 | ((x ^ y) & 0xff));
+                }
+            }
+            texture = Texture.createTexture(textureImage, false);
+            shadedTexture = (ShadedTexture)Texture.createTexture(
+                textureImage, true);
+            Texture intTexture = Texture.createTexture(
+                textureImage, false, PixelFormat.RGB_888);
+            ShadedTexture intShadedTexture =
+                (ShadedTexture)Texture.createTexture(textureImage,
+                true, PixelFormat.RGB_888);
+
+            polygon = createPolygon(texture);
+            shadedPolygon = createPolygon(shadedTexture);
+            surfacePolygon = createSurfacePolygon(shadedTexture);
+            intPolygon = createPolygon(intTexture);
+            intShadedPolygon = createPolygon(intShadedTexture);
+            intSurfacePolygon =
+                createSurfacePolygon(intShadedTexture);
+
+            FastTexturedPolygonRenderer renderer =
+                new FastTexturedPolygonRenderer(camera, view);
+            Graphics2D g = image.createGraphics();
+            renderer.startFrame(g);
+            if (!renderer.draw(g, polygon)) {
+                throw new IllegalStateException(
+                    "Fixture polygon not visible");
+            }
+            numPixels = renderer.getNumPixelsDrawn();
+            g.dispose();
+
+            mesh = createMesh();
+        }
+
+
+        /**
+            Creates a quad in front of the camera, turned so its
+            right side is further away.
+        */
+        private TexturedPolygon3D createPolygon(Texture texture) {
+            Vector3D v0 = new Vector3D(-300, 200, -250);
+            Vector3D v1 = new Vector3D(-300, -200, -250);
+            Vector3D v2 = new Vector3D(300, -200, -550);
+            Vector3D v3 = new Vector3D(300, 200, -550);
+            TexturedPolygon3D poly = new TexturedPolygon3D(
+                v0, v1, v2, v3);
+            Vector3D du = new Vector3D(v2);
+            du.subtract(v1);
+            du.normalize();
+            poly.setTexture(texture, new Rectangle3D(v0, du,
+                new Vector3D(0, 1, 0), texture.getWidth(),
+                texture.getHeight()));
+            return poly;
+        }
+
+
+        /**
+            Creates the fixture polygon with a lit ShadedSurface
+            of the specified texture.
+        */
+        private TexturedPolygon3D createSurfacePolygon(
+            ShadedTexture texture)
+        {
+            TexturedPolygon3D poly = createPolygon(texture);
+            List lights = new ArrayList();
+            lights.add(new PointLight3D(0, 0, -100, 1, 800));
+            ShadedSurface.createShadedSurface(poly, texture, lights,
+                .2f);
+            // FastTexturedPolygonRenderer doesn't build surfaces
+            ShadedSurface surface = (ShadedSurface)poly.getTexture();
+            surface.setBuffer(surface.buildBuffer(0));
+            return poly;
+        }
+
+
+        /**
+            Creates a grid of triangles in front of the camera,
+            sharing their vertices like the triangles the
+            ObjectLoader creates.
+        */
+        private PolygonGroup createMesh() {
+            Vector3D[] v = new Vector3D[(MESH_SIZE + 1) *
+                (MESH_SIZE + 1)];
+            for (int i=0; i<v.length; i++) {
+                int x = i % (MESH_SIZE + 1);
+                int y = i / (MESH_SIZE + 1);
+                v[i] = new Vector3D(x * 20 - 160, y * 20 - 160, 0);
+            }
+            PolygonGroup group = new PolygonGroup("mesh");
+            for (int y=0; y<MESH_SIZE; y++) {
+                for (int x=0; x<MESH_SIZE; x++) {
+                    int i = y * (MESH_SIZE + 1) + x;
+                    int j = i + MESH_SIZE + 1;
+                    group.addPolygon(new Polygon3D(v[i], v[i+1],
+                        v[j+1]));
+                    group.addPolygon(new Polygon3D(v[i], v[j+1],
+                        v[j]));
+                }
+            }
+            MovingTransform3D transform = group.getTransform();
+            transform.getLocation().setTo(0, 0, -400);
+            transform.setAngle(.3f, .5f, .1f);
+            return group;
+        }
+    }
+
+
+    /**
+        A FastTexturedPolygonRenderer that draws the fixture
+        polygon once, then redraws it (without transforming or
+        scan converting it again) with a chosen ScanRenderer.
+    */
+    private static class ScanFixture
+        extends FastTexturedPolygonRenderer
+    {
+        private Fixtures fixtures;
+
+        ScanFixture(Fixtures fixtures) {
+            super(fixtures.camera, fixtures.view);
+            this.fixtures = fixtures;
+        }
+
+        void setUp(TexturedPolygon3D poly, int method) {
+            ScanRenderer scanRenderer = null;
+            switch (method) {
+                case 0: scanRenderer = new Method0(); break;
+                case 1: scanRenderer = new Method1(); break;
+                case 2: scanRenderer = new Method2(); break;
+                case 3: scanRenderer = new Method3(); break;
+            }
+            if (scanRenderer != null) {
+                scanRenderers.put(PowerOf2Texture.class,
+                    scanRenderer);
+            }
+            setSpanRendering(method == SPAN_RENDERERS ||
+                method == VECTOR_SPAN_RENDERERS);
+            Texture.setVectorSpans(method == VECTOR_SPAN_RENDERERS);
+            setPixelFormat(poly.getTexture().getPixelFormat());
+            Graphics2D g = fixtures.image.createGraphics();
+            startFrame(g);
+            draw(g, poly);
+            g.dispose();
+        }
+
+        int redraw() {
+            drawCurrentPolygon(null);
+            if (getPixelFormat() == PixelFormat.RGB_888) {
+                return doubleBufferIntData[
+                    doubleBufferIntData.length / 2];
+            }
+            return doubleBufferData[doubleBufferData.length / 2];
+        }
+    }
+
+
+    /**
+        The same as ScanFixture, but for a ZBufferedRenderer.
+    */
+    private static class ZScanFixture extends ZBufferedRenderer {
+        private Fixtures fixtures;
+
+        ZScanFixture(Fixtures fixtures) {
+            super(fixtures.camera, fixtures.view);
+            this.fixtures = fixtures;
+        }
+
+        void setUp(TexturedPolygon3D poly) {
+            Graphics2D g = fixtures.image.createGraphics();
+            startFrame(g);
+            draw(g, poly);
+            g.dispose();
+        }
+
+        int redraw() {
+            // the depth test passes for equal depths
+            drawCurrentPolygon(null);
+            return doubleBufferData[doubleBufferData.length / 2];
+        }
+    }
+
+
+    /**
+        Creates every benchmark.
+    */
+    private static List createBenchmarks(final Fixtures fixtures) {
+        List benchmarks = new ArrayList();
+
+        // FastTexturedPolygonRenderer's ScanRenderers
+        String[] methodNames = { "Method0", "Method1", "Method2",
+            "Method3" };
+        for (int i=0; i<methodNames.length; i++) {
+            benchmarks.add(createScanBenchmark(fixtures,
+                "scan." + methodNames[i], fixtures.polygon, i));
+        }
+        benchmarks.add(createScanBenchmark(fixtures,
+            "scan.PowerOf2TextureRenderer", fixtures.polygon,
+            DEFAULT_RENDERERS));
+        benchmarks.add(createScanBenchmark(fixtures,
+            "scan.ShadedTextureRenderer", fixtures.shadedPolygon,
+            DEFAULT_RENDERERS));
+        benchmarks.add(createScanBenchmark(fixtures,
+            "scan.ShadedSurfaceRenderer", fixtures.surfacePolygon,
+            DEFAULT_RENDERERS));
+        benchmarks.add(createScanBenchmark(fixtures,
+            "scan.PowerOf2TextureSpanRenderer", fixtures.polygon,
+            SPAN_RENDERERS));
+        benchmarks.add(createScanBenchmark(fixtures,
+            "scan.ShadedTextureSpanRenderer",
+            fixtures.shadedPolygon, SPAN_RENDERERS));
+        benchmarks.add(createScanBenchmark(fixtures,
+            "scan.ShadedSurfaceSpanRenderer",
+            fixtures.surfacePolygon, SPAN_RENDERERS));
+
+        // the 32-bit span renderers, scalar and Vector API
+        String[] spanNames = { "PowerOf2Texture", "ShadedTexture",
+            "ShadedSurface" };
+        TexturedPolygon3D[] intSpanPolygons = { fixtures.intPolygon,
+            fixtures.intShadedPolygon, fixtures.intSurfacePolygon };
+        for (int i=0; i<spanNames.length; i++) {
+            String name = "scan." + spanNames[i];
+            benchmarks.add(createScanBenchmark(fixtures,
+                name + "SpanRenderer.rgb888", intSpanPolygons[i],
+                SPAN_RENDERERS));
+            if (Texture.isVectorSpansAvailable()) {
+                benchmarks.add(createScanBenchmark(fixtures,
+                    name + "VectorSpanRenderer.rgb888",
+                    intSpanPolygons[i], VECTOR_SPAN_RENDERERS));
+            }
+        }
+
+        // ZBufferedRenderer's ScanRenderers
+        benchmarks.add(createZScanBenchmark(fixtures,
+            "zscan.PowerOf2TextureZRenderer", fixtures.polygon));
+        benchmarks.add(createZScanBenchmark(fixtures,
+            "zscan.ShadedTextureZRenderer", fixtures.shadedPolygon));
+        benchmarks.add(createZScanBenchmark(fixtures,
+            "zscan.ShadedSurfaceZRenderer",
+            fixtures.surfacePolygon));
+
+        // scan conversion
+        final Polygon3D projected = new Polygon3D();
+        projected.setTo(fixtures.polygon);
+        projected.subtract(fixtures.camera);
+        projected.clip(-1);
+        projected.project(fixtures.view);
+        benchmarks.add(new MicroBenchmark(
+            "convert.ScanConverter")
+        {
+            ScanConverter scanConverter =
+                new ScanConverter(fixtures.view);
+            public int run() {
+                scanConverter.convert(projected);
+                return scanConverter.getTopBoundary();
+            }
+        });
+        benchmarks.add(new MicroBenchmark(
+            "convert.SortedScanConverter")
+        {
+            SortedScanConverter scanConverter =
+                new SortedScanConverter(fixtures.view);
+            public int run() {
+                // the first polygon of a frame
+                scanConverter.clear();
+                scanConverter.convert(projected);
+                return scanConverter.getTopBoundary();
+            }
+        });
+
+        // building a surface
+        final ShadedSurface surface =
+            (ShadedSurface)fixtures.surfacePolygon.getTexture();
+        benchmarks.add(new MicroBenchmark("surface.buildBuffer") {
+            public int run() {
+                return ((short[])surface.buildBuffer(0)).length;
+            }
+        });
+        benchmarks.add(new MicroBenchmark(
+            "surface.buildBuffer.lowRes2")
+        {
+            public int run() {
+                return ((short[])surface.buildBuffer(2)).length;
+            }
+        });
+
+        // clearing the depth buffer
+        benchmarks.add(new MicroBenchmark("zbuffer.clear") {
+            ZBuffer zBuffer = new ZBuffer(VIEW_WIDTH, VIEW_HEIGHT);
+            public int run() {
+                zBuffer.clear();
+                return zBuffer.getArray()[0];
+            }
+        });
+
+        // transforming polygons (both include a copy)
+        benchmarks.add(new MicroBenchmark("polygon.clip") {
+            Polygon3D poly = new Polygon3D();
+            public int run() {
+                poly.setTo(fixtures.polygon);
+                poly.subtract(fixtures.camera);
+                poly.clip(-1);
+                return poly.getNumVertices();
+            }
+        });
+        final Polygon3D clipped = new Polygon3D();
+        clipped.setTo(fixtures.polygon);
+        clipped.subtract(fixtures.camera);
+        clipped.clip(-1);
+        benchmarks.add(new MicroBenchmark("polygon.project") {
+            Polygon3D poly = new Polygon3D();
+            public int run() {
+                poly.setTo(clipped);
+                poly.project(fixtures.view);
+                return (int)poly.getVertex(0).x;
+            }
+        });
+
+        // transforming a mesh to camera space
+        final PolygonGroup mesh = fixtures.mesh;
+        benchmarks.add(new MicroBenchmark("group.transformPolygons")
+        {
+            Polygon3D poly = new Polygon3D();
+            public int run() {
+                int sum = 0;
+                for (int i=0; i<mesh.getNumObjects(); i++) {
+                    poly.setTo((Polygon3D)mesh.getObject(i));
+                    poly.add(mesh.getTransform());
+                    poly.subtract(fixtures.camera);
+                    sum+=(int)poly.getVertex(0).z;
+                }
+                return sum;
+            }
+        });
+        benchmarks.add(new MicroBenchmark("group.transformVertices")
+        {
+            Polygon3D poly = new Polygon3D();
+            Transform3D[] transforms = { mesh.getTransform() };
+            public int run() {
+                TransformedVertices vertices =
+                    mesh.getTransformedVertices();
+                vertices.transform(transforms, 0, fixtures.camera);
+                int sum = 0;
+                for (int i=0; i<vertices.getNumPolygons(); i++) {
+                    vertices.getPolygon(i, poly);
+                    sum+=(int)poly.getVertex(0).z;
+                }
+                return sum;
+            }
+        });
+
+        return benchmarks;
+    }
+
+
+    private static MicroBenchmark createScanBenchmark(
+        final Fixtures fixtures, String name,
+        final TexturedPolygon3D poly, final int method)
+    {
+        return new MicroBenchmark(name) {
+            ScanFixture renderer;
+            public void setUp() {
+                renderer = new ScanFixture(fixtures);
+                renderer.setUp(poly, method);
+            }
+            public int run() {
+                return renderer.redraw();
+            }
+        };
+    }
+
+
+    private static MicroBenchmark createZScanBenchmark(
+        final Fixtures fixtures, String name,
+        final TexturedPolygon3D poly)
+    {
+        return new MicroBenchmark(name) {
+            ZScanFixture renderer;
+            public void setUp() {
+                renderer = new ZScanFixture(fixtures);
+                renderer.setUp(poly);
+            }
+            public int run() {
+                return renderer.redraw();
+            }
+        };
+    }
+}
@@ -0,0 +1,311 @@
+package deet.util;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import javax.management.*;
+
+/**
+    The Profiler measures how long each stage of a frame takes,
+    like updating objects or traversing the BSP tree. Code marks
+    a stage like this:
+    <pre>
+    long startTime = Profiler.start();
+    ...
+    Profiler.end(Profiler.UPDATE, startTime);
+    </pre>
+    and the game loop calls endFrame() once per frame. The times
+    of the last HISTORY_SIZE frames are kept in ring buffers
+    (nothing is allocated while profiling), and can be read as
+    averages and maximums, dumped to a CSV file, or read through
+    JMX (see ProfilerMBean).
+    <p>When the profiler is disabled (the default), start() and
+    end() only check a flag. Only threads that called
+    registerThread() are measured, so work done by helper threads
+    (render bands, surface builders) isn't counted.
+    <p>Stages can be nested: COLLISION is part of UPDATE, and
+    SURFACE_BUILD and SCAN_CONVERSION are part of BSP_TRAVERSAL
+    and OBJECT_RENDERING.
+*/
+public class Profiler implements ProfilerMBean {
+
+    public static final int INPUT = 0;
+    public static final int UPDATE = 1;
+    public static final int COLLISION = 2;
+    public static final int BSP_TRAVERSAL = 3;
+    public static final int SURFACE_BUILD = 4;
+    public static final int SCAN_CONVERSION = 5;
+    public static final int OBJECT_RENDERING = 6;
+    public static final int OVERLAYS = 7;
+    public static final int BLIT = 8;
+    public static final int NUM_STAGES = 9;
+
+    private static final String[] STAGE_NAMES = {
+        "input", "update", "collision", "bsp traversal",
+        "surface build", "scan conversion", "object rendering",
+        "overlays", "blit"
+    };
+
+    /**
+        The number of frames kept.
+    */
+    public static final int HISTORY_SIZE = 256;
+
+    private static final Profiler INSTANCE = new Profiler();
+
+    private static volatile boolean enabled;
+    private static ThreadLocal registered = new ThreadLocal();
+
+    // times for the current frame
+    private static long[] frameTimes = new long[NUM_STAGES];
+    private static long frameStartTime;
+
+    // ring buffers, one per stage, plus the total frame time
+    private static long[][] history =
+        new long[NUM_STAGES + 1][HISTORY_SIZE];
+    private static int historyIndex;
+    private static int numFrames;
+
+    // use the static methods
+    private Profiler() { }
+
+
+    /**
+        Gets a Profiler object, for registering with JMX. All its
+        methods read the same data as the static methods.
+    */
+    public static Profiler getInstance() {
+        return INSTANCE;
+    }
+
+
+    /**
+        Registers the Profiler with the platform MBean server,
+        under the name "deet:type=Profiler". Returns false if it
+        couldn't be registered.
+    */
+    public static boolean registerMBean() {
+        try {
+            ObjectName name = new ObjectName("deet:type=Profiler");
+            MBeanServer server =
+                ManagementFactory.getPlatformMBeanServer();
+            if (!server.isRegistered(name)) {
+                server.registerMBean(INSTANCE, name);
+            }
+            return true;
+        }
+        catch (JMException ex) {
+            ex.printStackTrace();
+            return false;
+        }
+    }
+
+
+    /**
+        Enables or disables profiling. Enabling clears the
+        history.
+    */
+    public static synchronized void setProfiling(boolean enable) {
+        if (enable && !enabled) {
+            for (int i=0; i<history.length; i++) {
+                for (int j=0; j<HISTORY_SIZE; j++) {
+                    history[i][j] = 0;
+                }
+            }
+            for (int i=0; i<NUM_STAGES; i++) {
+                frameTimes[i] = 0;
+            }
+            historyIndex = 0;
+            numFrames = 0;
+            frameStartTime = System.nanoTime();
+        }
+        enabled = enable;
+    }
+
+
+    /**
+        Checks if profiling is enabled.
+    */
+    public static boolean isProfiling() {
+        return enabled;
+    }
+
+
+    /**
+        Measures the stages run on the current thread.
+    */
+    public static void registerThread() {
+        registered.set(Boolean.TRUE);
+    }
+
+
+    /**
+        Returns the start time of a stage, or 0 if profiling is
+        disabled.
+    */
+    public static long start() {
+        if (!enabled) {
+            return 0;
+        }
+        return System.nanoTime();
+    }
+
+
+    /**
+        Adds the time since the specified start time (from
+        start()) to a stage of the current frame.
+    */
+    public static void end(int stage, long startTime) {
+        if (!enabled || startTime == 0 ||
+            registered.get() == null)
+        {
+            return;
+        }
+        long time = System.nanoTime() - startTime;
+        synchronized (Profiler.class) {
+            frameTimes[stage]+=time;
+        }
+    }
+
+
+    /**
+        Ends the current frame: stores the time of each stage,
+        and the total time since the last frame ended, in the
+        history.
+    */
+    public static synchronized void endFrame() {
+        if (!enabled) {
+            return;
+        }
+        long currTime = System.nanoTime();
+        for (int i=0; i<NUM_STAGES; i++) {
+            history[i][historyIndex] = frameTimes[i];
+            frameTimes[i] = 0;
+        }
+        history[NUM_STAGES][historyIndex] =
+            currTime - frameStartTime;
+        frameStartTime = currTime;
+        historyIndex = (historyIndex + 1) % HISTORY_SIZE;
+        numFrames = Math.min(numFrames + 1, HISTORY_SIZE);
+    }
+
+
+    /**
+        Gets the name of a stage.
+    */
+    public static String getStageName(int stage) {
+        return STAGE_NAMES[stage];
+    }
+
+
+    /**
+        Gets the number of frames in the history.
+    */
+    public static synchronized int getNumFrames() {
+        return numFrames;
+    }
+
+
+    /**
+        Gets the average time of a stage over the frames in the
+        history, in nanoseconds. The stage NUM_STAGES is the
+        whole frame.
+    */
+    public static synchronized long getAverageTime(int stage) {
+        if (numFrames == 0) {
+            return 0;
+        }
+        long total = 0;
+        for (int i=0; i<numFrames; i++) {
+            total+=history[stage][i];
+        }
+        return total / numFrames;
+    }
+
+
+    /**
+        Gets the longest time of a stage over the frames in the
+        history, in nanoseconds. The stage NUM_STAGES is the
+        whole frame.
+    */
+    public static synchronized long getMaxTime(int stage) {
+        long max = 0;
+        for (int i=0; i<numFrames; i++) {
+            max = Math.max(max, history[stage][i]);
+        }
+        return max;
+    }
+
+
+    /**
+        Writes the history as CSV, oldest frame first: one line
+        per frame with the frame time and the time of each stage,
+        in microseconds.
+    */
+    public static synchronized void writeCSV(Writer out)
+        throws IOException
+    {
+        out.write("frame");
+        for (int i=0; i<NUM_STAGES; i++) {
+            out.write("," + STAGE_NAMES[i]);
+        }
+        out.write("\n");
+        int first = (historyIndex - numFrames + HISTORY_SIZE) %
+            HISTORY_SIZE;
+        for (int i=0; i<numFrames; i++) {
+            int index = (first + i) % HISTORY_SIZE;
+            out.write(Long.toString(
+                history[NUM_STAGES][index] / 1000));
+            for (int j=0; j<NUM_STAGES; j++) {
+                out.write("," + history[j][index] / 1000);
+            }
+            out.write("\n");
+        }
+        out.flush();
+    }
+
+
+    // ProfilerMBean methods
+
+    public boolean isEnabled() {
+        return isProfiling();
+    }
+
+
+    public void setEnabled(boolean enable) {
+        setProfiling(enable);
+    }
+
+
+    public String[] getStageNames() {
+        return STAGE_NAMES.clone();
+    }
+
+
+    public long[] getAverageTimes() {
+        long[] times = new long[NUM_STAGES];
+        for (int i=0; i<NUM_STAGES; i++) {
+            times[i] = getAverageTime(i);
+        }
+        return times;
+    }
+
+
+    public long[] getMaxTimes() {
+        long[] times = new long[NUM_STAGES];
+        for (int i=0; i<NUM_STAGES; i++) {
+            times[i] = getMaxTime(i);
+        }
+        return times;
+    }
+
+
+    public long getAverageFrameTime() {
+        return getAverageTime(NUM_STAGES);
+    }
+
+
+    public long getMaxFrameTime() {
+        return getMaxTime(NUM_STAGES);
+    }
+}
@@ -0,0 +1,23 @@
+package deet.util;
+
+/**
+    The management interface of the Profiler, so the stage times
+    can be watched with a JMX console (like jconsole). Times are
+    in nanoseconds. See Profiler.registerMBean().
+*/
+public interface ProfilerMBean {
+
+    public boolean isEnabled();
+
+    public void setEnabled(boolean enable);
+
+    public String[] getStageNames();
+
+    public long[] getAverageTimes();
+
+    public long[] getMaxTimes();
+
+    public long getAverageFrameTime();
+
+    public long getMaxFrameTime();
+}
@@ -18,7 +18,6 @@ public class ThreadPool extends ThreadGroup {
     */
     public ThreadPool(int numThreads) {
         super("ThreadPool-" + (threadPoolID++));
-        setDaemon(true);
 
         isAlive = true;
 